@@ -0,0 +1,24 @@
+package com.trilead.ssh2;
+
+/**
+ * Gets told when conditions of a SSH-2 channel become true, instead of a
+ * thread waiting for them with {@link Session#waitForCondition(int, long)}.
+ *
+ * @see Session#addConditionListener(int, ChannelConditionListener, java.util.concurrent.Executor)
+ */
+public interface ChannelConditionListener
+{
+	/**
+	 * Called on the executor given at registration, once per transition: when
+	 * stdout or stderr data arrives while none was available, and once for
+	 * each of EOF, EXIT_STATUS, EXIT_SIGNAL and CLOSED. CLOSED is always
+	 * reported, and is the last call.
+	 * <p>
+	 * Conditions that already hold when the listener is added are reported
+	 * right away.
+	 *
+	 * @param conditions all conditions that held at the time, a bitmask based
+	 *        on {@link ChannelCondition} values
+	 */
+	public void conditionsChanged(int conditions);
+}
@@ -3,6 +3,7 @@ package com.trilead.ssh2;
 import com.trilead.ssh2.auth.AgentProxy;
 import com.trilead.ssh2.auth.AuthenticationManager;
 import com.trilead.ssh2.channel.ChannelManager;
+import com.trilead.ssh2.channel.KeepAliveService;
 import com.trilead.ssh2.crypto.CryptoWishList;
 import com.trilead.ssh2.crypto.cipher.BlockCipherFactory;
 import com.trilead.ssh2.crypto.digest.MessageMac;
@@ -10,6 +11,7 @@ import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.PacketIgnore;
 import com.trilead.ssh2.transport.ClientServerHello;
 import com.trilead.ssh2.transport.KexManager;
+import com.trilead.ssh2.transport.TransportFactory;
 import com.trilead.ssh2.transport.TransportManager;
 import com.trilead.ssh2.util.TimeoutService;
 import com.trilead.ssh2.util.TimeoutService.TimeoutToken;
@@ -26,6 +28,7 @@ import java.security.SecureRandom;
 import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A <code>Connection</code> is used to establish an encrypted TCP/IP
@@ -107,8 +110,26 @@ public class Connection
 
 	protected boolean tcpNoDelay = false;
 
+	protected int socketReceiveBufferSize = 0;
+
+	protected int socketSendBufferSize = 0;
+
+	protected long sendRateLimit = 0;
+
+	protected long sendRateBurst = 0;
+
+	protected long windowBudget = 0;
+
+	protected long keepAliveInterval = 0;
+
+	protected int keepAliveCountMax = 3;
+
+	private KeepAliveService.KeepAlive keepAlive;
+
 	protected ProxyData proxyData = null;
 
+	protected TransportFactory transportFactory = null;
+
 	protected Vector connectionMonitors = new Vector();
 
 	/**
@@ -181,7 +202,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -191,6 +212,8 @@ public class Connection
 
 		authenticated = am.authenticatePublicKey(user, pem.toCharArray(), password, getOrCreateSecureRND());
 
+		startKeepAlive();
+
 		return authenticated;
 	}
 
@@ -230,13 +253,15 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
 
 		authenticated = am.authenticatePublicKey(user, proxy);
 
+		startKeepAlive();
+
 		return authenticated;
 	}
 
@@ -283,13 +308,15 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
 
 		authenticated = am.authenticateInteractive(user, submethods, cb);
 
+		startKeepAlive();
+
 		return authenticated;
 	}
 
@@ -331,7 +358,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -341,6 +368,8 @@ public class Connection
 
 		authenticated = am.authenticatePassword(user, password);
 
+		startKeepAlive();
+
 		return authenticated;
 	}
 	
@@ -355,13 +384,15 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
 		
 		authenticated = am.authenticateGssapiWithMic(user, this.hostname);
 
+		startKeepAlive();
+
 		return authenticated;
 	}
 
@@ -403,7 +434,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -413,6 +444,8 @@ public class Connection
 
 		authenticated = am.authenticateNone(user);
 
+		startKeepAlive();
+
 		return authenticated;
 	}
 
@@ -463,7 +496,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -473,6 +506,8 @@ public class Connection
 
 		authenticated = am.authenticatePublicKey(user, pemPrivateKey, password, getOrCreateSecureRND());
 
+		startKeepAlive();
+
 		return authenticated;
 	}
 
@@ -566,6 +601,8 @@ public class Connection
 
 	private void close(Throwable t, boolean hard)
 	{
+		stopKeepAlive();
+
 		if (cm != null)
 			cm.closeAllChannels();
 
@@ -685,6 +722,14 @@ public class Connection
 		
 		tm.setConnectionMonitors(connectionMonitors);
 
+		if ((socketReceiveBufferSize > 0) || (socketSendBufferSize > 0))
+			tm.setSocketBufferSizes(socketReceiveBufferSize, socketSendBufferSize);
+
+		tm.setTransportFactory(transportFactory);
+
+		if (sendRateLimit > 0)
+			tm.setSendRateLimit(sendRateLimit, sendRateBurst);
+
 		/*
 		 * Make sure that the runnable below will observe the new value of "tm"
 		 * and "state" (the runnable will be executed in a different thread,
@@ -1008,7 +1053,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		return am.getRemainingMethods(user);
 	}
@@ -1096,6 +1141,80 @@ public class Connection
 		return new Session(cm, getOrCreateSecureRND());
 	}
 
+	/**
+	 * Open a new {@link Session} that allows the server to send data packets of
+	 * up to <code>maxPacketSize</code> bytes. Bulk transfers benefit from
+	 * packets larger than the default (derived from
+	 * {@link TransportManager#MAX_PACKET_SIZE}), since fewer packets mean less
+	 * per-packet overhead; interactive sessions should use {@link #openSession()}.
+	 * <p>
+	 * The server may still choose to send smaller packets.
+	 *
+	 * @param maxPacketSize the maximum packet size advertised for the channel
+	 * @return A {@link Session} object.
+	 * @throws IOException the io exception
+	 */
+	public synchronized Session openSession(int maxPacketSize) throws IOException
+	{
+		if (tm == null)
+			throw new IllegalStateException("Cannot open session, you need to establish a connection first.");
+
+		if (!authenticated)
+			throw new IllegalStateException("Cannot open session, connection is not authenticated.");
+
+		if (maxPacketSize <= 0)
+			throw new IllegalArgumentException("Invalid maximum packet size: " + maxPacketSize);
+
+		return new Session(cm, getOrCreateSecureRND(), maxPacketSize);
+	}
+
+	/**
+	 * Like {@link #openSession()}, but does not wait for the server to open
+	 * the session, nor for the lock of this connection while it does. Many
+	 * sessions can so be opened at the same time, without a round trip each.
+	 * <p>
+	 * The future is completed on the receiver thread of the connection. Actions
+	 * that depend on it and may block (e.g. the blocking methods of
+	 * {@link Session}) must be added with the <code>...Async</code> methods
+	 * of {@link CompletableFuture}, or run on another thread.
+	 *
+	 * @return completes with the open {@link Session}
+	 */
+	public CompletableFuture<Session> openSessionAsync()
+	{
+		return openSessionAsync(0);
+	}
+
+	/**
+	 * Like {@link #openSession(int)}, but does not wait for the server.
+	 *
+	 * @param maxPacketSize the maximum packet size advertised for the channel, 0 for the default
+	 * @return completes with the open {@link Session}
+	 * @see #openSessionAsync()
+	 */
+	public CompletableFuture<Session> openSessionAsync(int maxPacketSize)
+	{
+		ChannelManager cm;
+		SecureRandom rnd;
+
+		synchronized (this)
+		{
+			if (tm == null)
+				throw new IllegalStateException("Cannot open session, you need to establish a connection first.");
+
+			if (!authenticated)
+				throw new IllegalStateException("Cannot open session, connection is not authenticated.");
+
+			if (maxPacketSize < 0)
+				throw new IllegalArgumentException("Invalid maximum packet size: " + maxPacketSize);
+
+			cm = this.cm;
+			rnd = getOrCreateSecureRND();
+		}
+
+		return Session.openAsync(cm, rnd, maxPacketSize);
+	}
+
 	/**
 	 * Send an SSH_MSG_IGNORE packet. This method will generate a random data
 	 * attribute (length between 0 (invlusive) and 16 (exclusive) bytes,
@@ -1295,6 +1414,71 @@ public class Connection
 			tm.setTcpNoDelay(enable);
 	}
 
+	/**
+	 * Sets the size of the socket receive and send buffers (SO_RCVBUF and
+	 * SO_SNDBUF) of the underlying socket.
+	 * <p>
+	 * Should be called before the connection is established, since the receive
+	 * buffer size influences the TCP window scale negotiated during the
+	 * handshake. By default (<code>0</code>) the OS defaults are used, which
+	 * leaves the kernel free to tune the buffers itself.
+	 * <p>
+	 * Socket buffer sizing is opt-in: this library never sets the buffer
+	 * sizes unless this method is called, or the
+	 * <code>com.trilead.ssh2.transport.TransportManager.resizeSocketBuffers</code>
+	 * system property lets them grow with the auto-tuned channel windows.
+	 *
+	 * @param receiveBufferSize SO_RCVBUF in bytes, 0 for the OS default
+	 * @param sendBufferSize SO_SNDBUF in bytes, 0 for the OS default
+	 * @throws IOException the io exception
+	 */
+	public synchronized void setSocketBufferSizes(int receiveBufferSize, int sendBufferSize) throws IOException
+	{
+		if ((receiveBufferSize < 0) || (sendBufferSize < 0))
+			throw new IllegalArgumentException("Socket buffer sizes must not be negative");
+
+		socketReceiveBufferSize = receiveBufferSize;
+		socketSendBufferSize = sendBufferSize;
+
+		if (tm != null)
+			tm.setSocketBufferSizes(receiveBufferSize, sendBufferSize);
+	}
+
+	/**
+	 * Limits the rate at which this connection sends channel data, shared by
+	 * all channels. Control messages and the key exchange are not held back.
+	 * Use {@link Session#setSendRateLimit(long, long)} to cap a single bulk
+	 * transfer without holding back the other channels.
+	 * <p>
+	 * Can be called at any time, also while data is being sent.
+	 *
+	 * @param bytesPerSecond the rate, 0 for unlimited (the default)
+	 * @param burst bytes that may be sent at once after an idle period, 0 for
+	 *        one second worth of the rate
+	 */
+	public synchronized void setSendRateLimit(long bytesPerSecond, long burst)
+	{
+		sendRateLimit = bytesPerSecond;
+		sendRateBurst = burst;
+
+		if (tm != null)
+			tm.setSendRateLimit(bytesPerSecond, burst);
+	}
+
+	/**
+	 * Runs the connection over a transport other than a TCP socket, e.g. a
+	 * UNIX-domain socket ({@link com.trilead.ssh2.transport.UnixDomainTransportFactory})
+	 * or an in-JVM pipe ({@link com.trilead.ssh2.transport.InMemoryTransportFactory}).
+	 * The proxy settings and the socket options are not used then. Only has an
+	 * effect before {@link #connect() connect()} is called.
+	 *
+	 * @param factory the factory, or <code>null</code> for a TCP socket (the default)
+	 */
+	public synchronized void setTransportFactory(TransportFactory factory)
+	{
+		this.transportFactory = factory;
+	}
+
 	/**
 	 * Used to tell the library that the connection shall be established through
 	 * a proxy server. It only makes sense to call this method before calling
@@ -1464,6 +1648,78 @@ public class Connection
 		cm.requestGlobalTrileadPing();
 	}
 
+	/**
+	 * Keeps the connection alive without a thread of its own: every
+	 * <code>intervalMillis</code> a 'keepalive@openssh.com' global request is
+	 * sent from a timer thread shared by all connections, without waiting for
+	 * the reply. If the server does not reply to <code>countMax</code>
+	 * keepalives in a row, the connection is closed. The replies also update
+	 * the round trip time in {@link ConnectionInfo#smoothedRttNanos}.
+	 * <p>
+	 * Can be called at any time; the keepalives start once the connection is
+	 * authenticated.
+	 *
+	 * @param intervalMillis time between two keepalives, 0 to turn them off (the default)
+	 * @param countMax unanswered keepalives after which the connection is closed, 0 to never close it
+	 */
+	public synchronized void setKeepAlive(long intervalMillis, int countMax)
+	{
+		if (intervalMillis < 0 || countMax < 0)
+			throw new IllegalArgumentException("Keepalive interval and count must not be negative");
+
+		keepAliveInterval = intervalMillis;
+		keepAliveCountMax = countMax;
+
+		stopKeepAlive();
+		startKeepAlive();
+	}
+
+	/**
+	 * Caps the data that the server may send ahead, summed over all channels
+	 * of this connection. Each channel normally advertises its own window, so
+	 * hundreds of forwarded ports with slow readers could make us buffer
+	 * hundreds of MB. With a budget, the windows are handed out to the
+	 * channels that consume, and idle channels are not refilled.
+	 * <p>
+	 * Can be called at any time. A budget for all connections of the JVM can
+	 * be set with the <tt>com.trilead.ssh2.channel.WindowBudget.jvmLimit</tt>
+	 * system property.
+	 *
+	 * @param bytes the budget, 0 for unlimited (the default)
+	 */
+	public synchronized void setWindowBudget(long bytes)
+	{
+		if (bytes < 0)
+			throw new IllegalArgumentException("Window budget must not be negative");
+
+		windowBudget = bytes;
+
+		if (cm != null)
+			cm.getWindowBudget().setLimit(bytes);
+	}
+
+	private ChannelManager createChannelManager()
+	{
+		ChannelManager manager = new ChannelManager(tm);
+		manager.getWindowBudget().setLimit(windowBudget);
+		return manager;
+	}
+
+	private void startKeepAlive()
+	{
+		if (authenticated && (keepAliveInterval > 0) && (keepAlive == null))
+			keepAlive = KeepAliveService.schedule(cm, keepAliveInterval, keepAliveCountMax);
+	}
+
+	private void stopKeepAlive()
+	{
+		if (keepAlive != null)
+		{
+			keepAlive.cancel();
+			keepAlive = null;
+		}
+	}
+
 	/**
 	 * If the socket connection is lost (either by this side closing down or the other side closing down),
 	 * return a non-null object indicating the cause of the connection loss.
@@ -49,4 +49,12 @@ public class ConnectionInfo
 	 * Number of kex exchanges performed on this connection so far.
 	 */
 	public int keyExchangeCounter = 0;
+
+	/**
+	 * The smoothed round trip time in nanoseconds when this information was
+	 * retrieved, measured with requests the server has to answer (e.g.,
+	 * keepalives, see {@link Connection#setKeepAlive(long, int)}). 0 if
+	 * nothing has been measured yet.
+	 */
+	public long smoothedRttNanos = 0;
 }
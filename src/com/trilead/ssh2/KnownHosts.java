@@ -9,9 +9,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Reader;
-import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
@@ -22,9 +22,8 @@ import java.util.Vector;
 
 import com.trilead.ssh2.crypto.Base64;
 import com.trilead.ssh2.crypto.digest.Digest;
-import com.trilead.ssh2.crypto.digest.MD5;
+import com.trilead.ssh2.crypto.digest.JreMessageDigestWrapper;
 import com.trilead.ssh2.crypto.digest.MessageMac;
-import com.trilead.ssh2.crypto.digest.SHA1;
 import com.trilead.ssh2.log.Logger;
 
 import com.trilead.ssh2.signature.KeyAlgorithm;
@@ -57,6 +56,9 @@ public class KnownHosts
 	public static final int HOSTKEY_HAS_CHANGED = 2;
     private static final SecureRandom SECURE_RANDOM = RandomFactory.create();
 
+	/* OpenSSH uses a salt as long as the HMAC-SHA1 output */
+	private static final int HASHED_HOSTNAME_SALT_LENGTH = 20;
+
 	private class KnownHostsEntry
 	{
 		private final String[] patterns;
@@ -147,9 +149,7 @@ public class KnownHosts
 	 */
 	public static String createHashedHostname(String hostname)
 	{
-		SHA1 sha1 = new SHA1();
-
-		byte[] salt = new byte[sha1.getDigestLength()];
+		byte[] salt = new byte[HASHED_HOSTNAME_SALT_LENGTH];
 
 		SECURE_RANDOM.nextBytes(salt);
 
@@ -164,21 +164,14 @@ public class KnownHosts
 	private static byte[] hmacSha1Hash(byte[] salt, String hostname)
 	{
 
-		if (salt.length != 20) {
+		if (salt.length != HASHED_HOSTNAME_SALT_LENGTH) {
 			throw new IllegalArgumentException("Salt has wrong length (" + salt.length + ")");
 		}
 
 		MessageMac messageMac = new MessageMac("hmac-sha1", salt);
 
-		try {
-			byte[] message = hostname.getBytes("ISO-8859-1");
-			messageMac.update(message, 0, message.length);
-		} catch (UnsupportedEncodingException ignore) {
-		/* Actually, ISO-8859-1 is supported by all correct
-		 * Java implementations. But... you never know. */
-			byte[] message = hostname.getBytes();
-			messageMac.update(message, 0, message.length);
-		}
+		byte[] message = hostname.getBytes(StandardCharsets.ISO_8859_1);
+		messageMac.update(message, 0, message.length);
 
 		byte[] dig = new byte[20];
 
@@ -213,13 +206,14 @@ public class KnownHosts
 			return false;
 		}
 
-		SHA1 sha1 = new SHA1();
-
-		if (salt.length != sha1.getDigestLength())
+		if (salt.length != HASHED_HOSTNAME_SALT_LENGTH)
 			return false;
 
 		byte[] dig = hmacSha1Hash(salt, hostname);
 
+		if (hash.length != dig.length)
+			return false;
+
 		for (int i = 0; i < dig.length; i++)
 			if (dig[i] != hash[i])
 				return false;
@@ -675,11 +669,11 @@ public class KnownHosts
 
 		if ("md5".equals(type))
 		{
-			dig = new MD5();
+			dig = JreMessageDigestWrapper.getInstance("MD5");
 		}
 		else if ("sha1".equals(type))
 		{
-			dig = new SHA1();
+			dig = JreMessageDigestWrapper.getInstance("SHA-1");
 		}
 		else
 			throw new IllegalArgumentException("Unknown hash type " + type);
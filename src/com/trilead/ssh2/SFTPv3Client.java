@@ -81,9 +81,15 @@ public class SFTPv3Client
 	final Session sess;
 	final PrintStream debug;
 
+	/* uint32 length, byte type and uint32 request-id */
+	private static final int REQUEST_HEADER_ROOM = 9;
+
 	InputStream is;
 	OutputStream os;
 
+	final byte[] recv_header = new byte[4];
+	byte[] recv_buffer = new byte[34000];
+
 	int protocol_version = 0;
 	HashMap server_extensions = new HashMap();
 
@@ -238,6 +244,43 @@ public class SFTPv3Client
 		sendMessage(type, requestId, msg, 0, msg.length);
 	}
 
+	/**
+	 * Takes a pooled writer for the body of a request. The room for the packet
+	 * header (length, type and request id) is reserved in front of the body, so
+	 * {@link #sendRequest(int, int, TypesWriter)} can send the whole packet with
+	 * a single write.
+	 */
+	private static TypesWriter newRequest()
+	{
+		return TypesWriter.obtain(REQUEST_HEADER_ROOM);
+	}
+
+	/**
+	 * Sends a request built in a writer from {@link #newRequest()} and hands the
+	 * writer back to the pool.
+	 */
+	private final void sendRequest(int type, int requestId, TypesWriter tw) throws IOException
+	{
+		int off = tw.getOffset() - REQUEST_HEADER_ROOM;
+		int msglen = tw.length() + REQUEST_HEADER_ROOM - 4;
+		byte[] buff = tw.getBuffer();
+
+		buff[off] = (byte) (msglen >> 24);
+		buff[off + 1] = (byte) (msglen >> 16);
+		buff[off + 2] = (byte) (msglen >> 8);
+		buff[off + 3] = (byte) msglen;
+		buff[off + 4] = (byte) type;
+		buff[off + 5] = (byte) (requestId >> 24);
+		buff[off + 6] = (byte) (requestId >> 16);
+		buff[off + 7] = (byte) (requestId >> 8);
+		buff[off + 8] = (byte) requestId;
+
+		os.write(buff, off, msglen + 4);
+		os.flush();
+
+		tw.recycle();
+	}
+
 	private final void readBytes(byte[] buff, int pos, int len) throws IOException
 	{
 		while (len > 0)
@@ -260,25 +303,29 @@ public class SFTPv3Client
 	 * bytes (the length attribute preceeding the contents is 4 bytes).
 	 * 
 	 * @param maxlen
-	 * @return the message contents
+	 * @return a reader over the message contents, only valid until the next
+	 *         message is received
 	 * @throws IOException the io exception
 	 */
-	private final byte[] receiveMessage(int maxlen) throws IOException
+	private final TypesReader receiveMessage(int maxlen) throws IOException
 	{
-		byte[] msglen = new byte[4];
-
-		readBytes(msglen, 0, 4);
+		readBytes(recv_header, 0, 4);
 
-		int len = (((msglen[0] & 0xff) << 24) | ((msglen[1] & 0xff) << 16) | ((msglen[2] & 0xff) << 8) | (msglen[3] & 0xff));
+		int len = (((recv_header[0] & 0xff) << 24) | ((recv_header[1] & 0xff) << 16) | ((recv_header[2] & 0xff) << 8) | (recv_header[3] & 0xff));
 
 		if ((len > maxlen) || (len <= 0))
 			throw new IOException("Illegal sftp packet len: " + len);
 
-		byte[] msg = new byte[len];
+		/*
+		 * Replies are parsed before the next request is sent, so one buffer
+		 * (sized for the largest reply seen so far) is enough.
+		 */
+		if (recv_buffer.length < len)
+			recv_buffer = new byte[Math.max(len, recv_buffer.length << 1)];
 
-		readBytes(msg, 0, len);
+		readBytes(recv_buffer, 0, len);
 
-		return msg;
+		return new TypesReader(recv_buffer, 0, len);
 	}
 
 	private final int generateNextRequestID()
@@ -293,10 +340,10 @@ public class SFTPv3Client
 	{
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(handle, 0, handle.length);
 
-		sendMessage(Packet.SSH_FXP_CLOSE, req_id, tw.getBytes());
+		sendRequest(Packet.SSH_FXP_CLOSE, req_id, tw);
 
 		expectStatusOKMessage(req_id);
 	}
@@ -364,8 +411,8 @@ public class SFTPv3Client
 
 			while (count > 0)
 			{
-				tr.readByteString();
-				tr.readByteString();
+				tr.skipString();
+				tr.skipString();
 				count--;
 			}
 		}
@@ -386,7 +433,7 @@ public class SFTPv3Client
 
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
 
 		if (debug != null)
@@ -395,9 +442,9 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_FSTAT, req_id, tw.getBytes());
+		sendRequest(Packet.SSH_FXP_FSTAT, req_id, tw);
 
-		byte[] resp = receiveMessage(34000);
+		TypesReader tr = receiveMessage(34000);
 
 		if (debug != null)
 		{
@@ -405,8 +452,6 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		TypesReader tr = new TypesReader(resp);
-
 		int t = tr.readByte();
 
 		int rep_id = tr.readUINT32();
@@ -430,7 +475,7 @@ public class SFTPv3Client
 	{
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(path, charsetName);
 
 		if (debug != null)
@@ -439,9 +484,9 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(statMethod, req_id, tw.getBytes());
+		sendRequest(statMethod, req_id, tw);
 
-		byte[] resp = receiveMessage(34000);
+		TypesReader tr = receiveMessage(34000);
 
 		if (debug != null)
 		{
@@ -449,8 +494,6 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		TypesReader tr = new TypesReader(resp);
-
 		int t = tr.readByte();
 
 		int rep_id = tr.readUINT32();
@@ -511,7 +554,7 @@ public class SFTPv3Client
 	{
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(path, charsetName);
 
 		if (debug != null)
@@ -520,9 +563,9 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_READLINK, req_id, tw.getBytes());
+		sendRequest(Packet.SSH_FXP_READLINK, req_id, tw);
 
-		byte[] resp = receiveMessage(34000);
+		TypesReader tr = receiveMessage(34000);
 
 		if (debug != null)
 		{
@@ -530,8 +573,6 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		TypesReader tr = new TypesReader(resp);
-
 		int t = tr.readByte();
 
 		int rep_id = tr.readUINT32();
@@ -558,7 +599,7 @@ public class SFTPv3Client
 
 	private void expectStatusOKMessage(int id) throws IOException
 	{
-		byte[] resp = receiveMessage(34000);
+		TypesReader tr = receiveMessage(34000);
 
 		if (debug != null)
 		{
@@ -566,8 +607,6 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		TypesReader tr = new TypesReader(resp);
-
 		int t = tr.readByte();
 
 		int rep_id = tr.readUINT32();
@@ -598,9 +637,9 @@ public class SFTPv3Client
 	{
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(path, charsetName);
-		tw.writeBytes(createAttrs(attr));
+		writeAttrs(tw, attr);
 
 		if (debug != null)
 		{
@@ -608,7 +647,7 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_SETSTAT, req_id, tw.getBytes());
+		sendRequest(Packet.SSH_FXP_SETSTAT, req_id, tw);
 
 		expectStatusOKMessage(req_id);
 	}
@@ -628,9 +667,9 @@ public class SFTPv3Client
 
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
-		tw.writeBytes(createAttrs(attr));
+		writeAttrs(tw, attr);
 
 		if (debug != null)
 		{
@@ -638,7 +677,7 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_FSETSTAT, req_id, tw.getBytes());
+		sendRequest(Packet.SSH_FXP_FSETSTAT, req_id, tw);
 
 		expectStatusOKMessage(req_id);
 	}
@@ -659,7 +698,7 @@ public class SFTPv3Client
 		 * or the OpenSSH guys changed the semantics of src and target.
 		 */
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(target, charsetName);
 		tw.writeString(src, charsetName);
 
@@ -669,7 +708,7 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_SYMLINK, req_id, tw.getBytes());
+		sendRequest(Packet.SSH_FXP_SYMLINK, req_id, tw);
 
 		expectStatusOKMessage(req_id);
 	}
@@ -687,7 +726,7 @@ public class SFTPv3Client
 	{
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(path, charsetName);
 
 		if (debug != null)
@@ -696,9 +735,9 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_REALPATH, req_id, tw.getBytes());
+		sendRequest(Packet.SSH_FXP_REALPATH, req_id, tw);
 
-		byte[] resp = receiveMessage(34000);
+		TypesReader tr = receiveMessage(34000);
 
 		if (debug != null)
 		{
@@ -706,8 +745,6 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		TypesReader tr = new TypesReader(resp);
-
 		int t = tr.readByte();
 
 		int rep_id = tr.readUINT32();
@@ -740,7 +777,7 @@ public class SFTPv3Client
 		{
 			int req_id = generateNextRequestID();
 
-			TypesWriter tw = new TypesWriter();
+			TypesWriter tw = newRequest();
 			tw.writeString(handle, 0, handle.length);
 
 			if (debug != null)
@@ -749,12 +786,12 @@ public class SFTPv3Client
 				debug.flush();
 			}
 
-			sendMessage(Packet.SSH_FXP_READDIR, req_id, tw.getBytes());
+			sendRequest(Packet.SSH_FXP_READDIR, req_id, tw);
 		
 			/* Some servers send here a packet with size > 34000 */
 			/* To whom it may concern: please learn to read the specs. */
 			
-			byte[] resp = receiveMessage(65536);
+			TypesReader tr = receiveMessage(65536);
 
 			if (debug != null)
 			{
@@ -762,8 +799,6 @@ public class SFTPv3Client
 				debug.flush();
 			}
 
-			TypesReader tr = new TypesReader(resp);
-
 			int t = tr.readByte();
 
 			int rep_id = tr.readUINT32();
@@ -810,7 +845,7 @@ public class SFTPv3Client
 	{
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(path, charsetName);
 
 		if (debug != null)
@@ -819,11 +854,9 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_OPENDIR, req_id, tw.getBytes());
+		sendRequest(Packet.SSH_FXP_OPENDIR, req_id, tw);
 
-		byte[] resp = receiveMessage(34000);
-
-		TypesReader tr = new TypesReader(resp);
+		TypesReader tr = receiveMessage(34000);
 
 		int t = tr.readByte();
 
@@ -891,7 +924,7 @@ public class SFTPv3Client
 		if (debug != null)
 			debug.println("Waiting for SSH_FXP_VERSION...");
 
-		TypesReader tr = new TypesReader(receiveMessage(34000)); /* Should be enough for any reasonable server */
+		TypesReader tr = receiveMessage(34000); /* Should be enough for any reasonable server */
 
 		int type = tr.readByte();
 
@@ -975,12 +1008,12 @@ public class SFTPv3Client
 	{
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(dirName, charsetName);
 		tw.writeUINT32(AttribFlags.SSH_FILEXFER_ATTR_PERMISSIONS);
 		tw.writeUINT32(posixPermissions);
 
-		sendMessage(Packet.SSH_FXP_MKDIR, req_id, tw.getBytes());
+		sendRequest(Packet.SSH_FXP_MKDIR, req_id, tw);
 
 		expectStatusOKMessage(req_id);
 	}
@@ -995,10 +1028,10 @@ public class SFTPv3Client
 	{
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(fileName, charsetName);
 
-		sendMessage(Packet.SSH_FXP_REMOVE, req_id, tw.getBytes());
+		sendRequest(Packet.SSH_FXP_REMOVE, req_id, tw);
 
 		expectStatusOKMessage(req_id);
 	}
@@ -1013,10 +1046,10 @@ public class SFTPv3Client
 	{
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(dirName, charsetName);
 
-		sendMessage(Packet.SSH_FXP_RMDIR, req_id, tw.getBytes());
+		sendRequest(Packet.SSH_FXP_RMDIR, req_id, tw);
 
 		expectStatusOKMessage(req_id);
 	}
@@ -1032,11 +1065,11 @@ public class SFTPv3Client
 	{
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(oldPath, charsetName);
 		tw.writeString(newPath, charsetName);
 
-		sendMessage(Packet.SSH_FXP_RENAME, req_id, tw.getBytes());
+		sendRequest(Packet.SSH_FXP_RENAME, req_id, tw);
 
 		expectStatusOKMessage(req_id);
 	}
@@ -1136,10 +1169,8 @@ public class SFTPv3Client
 		return openFile(fileName, 0x00000018 | 0x00000003, attr); // SSH_FXF_CREAT | SSH_FXF_TRUNC | SSH_FXF_READ | SSH_FXF_WRITE
 	}
 
-	private byte[] createAttrs(SFTPv3FileAttributes attr)
+	private void writeAttrs(TypesWriter tw, SFTPv3FileAttributes attr)
 	{
-		TypesWriter tw = new TypesWriter();
-
 		int attrFlags = 0;
 
 		if (attr == null)
@@ -1180,8 +1211,6 @@ public class SFTPv3Client
 				tw.writeUINT32(attr.mtime.intValue());
 			}
 		}
-
-		return tw.getBytes();
 	}
 
 
@@ -1206,10 +1235,10 @@ public class SFTPv3Client
 	{
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(fileName, charsetName);
 		tw.writeUINT32(flags);
-		tw.writeBytes(createAttrs(attr));
+		writeAttrs(tw, attr);
 
 		if (debug != null)
 		{
@@ -1217,11 +1246,9 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_OPEN, req_id, tw.getBytes());
-
-		byte[] resp = receiveMessage(34000);
+		sendRequest(Packet.SSH_FXP_OPEN, req_id, tw);
 
-		TypesReader tr = new TypesReader(resp);
+		TypesReader tr = receiveMessage(34000);
 
 		int t = tr.readByte();
 
@@ -1281,7 +1308,7 @@ public class SFTPv3Client
 
 		int req_id = generateNextRequestID();
 
-		TypesWriter tw = new TypesWriter();
+		TypesWriter tw = newRequest();
 		tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
 		tw.writeUINT64(fileOffset);
 		tw.writeUINT32(len);
@@ -1292,11 +1319,9 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_READ, req_id, tw.getBytes());
+		sendRequest(Packet.SSH_FXP_READ, req_id, tw);
 
-		byte[] resp = receiveMessage(SFTP_MAX_READ_LENGTH + 1024); // Some overhead for headers
-
-		TypesReader tr = new TypesReader(resp);
+		TypesReader tr = receiveMessage(SFTP_MAX_READ_LENGTH + 1024); // Some overhead for headers
 
 		int t = tr.readByte();
 
@@ -1367,7 +1392,7 @@ public class SFTPv3Client
 
 			int req_id = generateNextRequestID();
 
-			TypesWriter tw = new TypesWriter();
+			TypesWriter tw = newRequest();
 			tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
 			tw.writeUINT64(fileOffset);
 			tw.writeString(src, srcoff, writeRequestLen);
@@ -1378,16 +1403,14 @@ public class SFTPv3Client
 				debug.flush();
 			}
 
-			sendMessage(Packet.SSH_FXP_WRITE, req_id, tw.getBytes());
+			sendRequest(Packet.SSH_FXP_WRITE, req_id, tw);
 
 			fileOffset += writeRequestLen;
 
 			srcoff += writeRequestLen;
 			len -= writeRequestLen;
 
-			byte[] resp = receiveMessage(34000);
-
-			TypesReader tr = new TypesReader(resp);
+			TypesReader tr = receiveMessage(34000);
 
 			int t = tr.readByte();
 
@@ -1442,12 +1465,12 @@ public class SFTPv3Client
                 int writeRequestLen = Math.min(len - bytesSent, SFTP_MAX_READ_LENGTH);
                 int req_id = generateNextRequestID();
 
-                TypesWriter tw = new TypesWriter();
+                TypesWriter tw = newRequest();
                 tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
                 tw.writeUINT64(fileOffset + bytesSent);
                 tw.writeString(src, srcoff + bytesSent, writeRequestLen);
 
-                sendMessage(Packet.SSH_FXP_WRITE, req_id, tw.getBytes());
+                sendRequest(Packet.SSH_FXP_WRITE, req_id, tw);
 
                 pendingRequests.add(req_id);
                 bytesSent += writeRequestLen;
@@ -1455,8 +1478,7 @@ public class SFTPv3Client
 
             // 2. Drain the pipeline: Read one response
             if (!pendingRequests.isEmpty()) {
-                byte[] resp = receiveMessage(34000);
-                TypesReader tr = new TypesReader(resp);
+                TypesReader tr = receiveMessage(34000);
 
                 int t = tr.readByte();
                 int rep_id = tr.readUINT32();
@@ -1485,8 +1507,7 @@ public class SFTPv3Client
 
     private void drainPendingRequests(List<Integer> pendingRequests) throws IOException {
         while (!pendingRequests.isEmpty()) {
-            byte[] resp = receiveMessage(34000);
-            TypesReader tr = new TypesReader(resp);
+            TypesReader tr = receiveMessage(34000);
             int t = tr.readByte(); // packet type not needed. still needs to be read.
             int rep_id = tr.readUINT32();
             if (!pendingRequests.remove((Integer) rep_id)) {
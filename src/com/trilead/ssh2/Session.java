@@ -5,10 +5,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
 
 import com.trilead.ssh2.channel.Channel;
 import com.trilead.ssh2.channel.ChannelManager;
+import com.trilead.ssh2.channel.FlushPolicy;
 import com.trilead.ssh2.channel.X11ServerData;
 import com.trilead.ssh2.packets.PacketSignal;
 
@@ -37,12 +45,33 @@ public class Session
 	final SecureRandom rnd;
 	
 	Session(ChannelManager cm, SecureRandom rnd) throws IOException
+	{
+		this(cm, rnd, 0);
+	}
+
+	Session(ChannelManager cm, SecureRandom rnd, int maxPacketSize) throws IOException
+	{
+		this(cm, cm.openSessionChannel(maxPacketSize), rnd);
+	}
+
+	private Session(ChannelManager cm, Channel cn, SecureRandom rnd)
 	{
 		this.cm = cm;
-		this.cn = cm.openSessionChannel();
+		this.cn = cn;
 		this.rnd = rnd;
 	}
 
+	static CompletableFuture<Session> openAsync(final ChannelManager cm, final SecureRandom rnd, int maxPacketSize)
+	{
+		return cm.openSessionChannelAsync(maxPacketSize).thenApply(new Function<Channel, Session>()
+		{
+			public Session apply(Channel cn)
+			{
+				return new Session(cm, cn, rnd);
+			}
+		});
+	}
+
 	/**
 	 * Basically just a wrapper for lazy people - identical to calling
 	 * requestPTY("dumb", 0, 0, 0, 0, null).
@@ -101,6 +130,47 @@ public class Session
 	 */
 	public void requestPTY(String term, int term_width_characters, int term_height_characters, int term_width_pixels,
 			int term_height_pixels, byte[] terminal_modes) throws IOException
+	{
+		terminal_modes = startPTYRequest(term, terminal_modes);
+
+		cm.requestPTY(cn, term, term_width_characters, term_height_characters, term_width_pixels, term_height_pixels,
+				terminal_modes);
+	}
+
+	/**
+	 * Like {@link #requestPTY(String, int, int, int, int, byte[])}, but does not
+	 * wait for the reply of the server. Requests of a session are answered in
+	 * order, so a command can be started right away, without waiting for the PTY.
+	 * <p>
+	 * The future is completed on the receiver thread of the connection. Actions
+	 * that depend on it and may block must be added with the <code>...Async</code>
+	 * methods of {@link CompletableFuture}.
+	 *
+	 * @return completes once the server granted the PTY
+	 */
+	public CompletableFuture<Void> requestPTYAsync(String term, int term_width_characters, int term_height_characters,
+			int term_width_pixels, int term_height_pixels, byte[] terminal_modes)
+	{
+		try
+		{
+			terminal_modes = startPTYRequest(term, terminal_modes);
+		}
+		catch (IOException e)
+		{
+			return CompletableFuture.failedFuture(e);
+		}
+
+		return cm.requestPTYAsync(cn, term, term_width_characters, term_height_characters, term_width_pixels,
+				term_height_pixels, terminal_modes);
+	}
+
+	public CompletableFuture<Void> requestPTYAsync(String term)
+	{
+		return requestPTYAsync(term, 0, 0, 0, 0, null);
+	}
+
+	/* Checks the arguments and the state, returns the terminal modes to send */
+	private byte[] startPTYRequest(String term, byte[] terminal_modes) throws IOException
 	{
 		if (term == null)
 			throw new IllegalArgumentException("TERM cannot be null.");
@@ -129,8 +199,7 @@ public class Session
 			flag_pty_requested = true;
 		}
 
-		cm.requestPTY(cn, term, term_width_characters, term_height_characters, term_width_pixels, term_height_pixels,
-				terminal_modes);
+		return terminal_modes;
 	}
 
     /**
@@ -298,19 +367,52 @@ public class Session
 		if (cmd == null)
 			throw new IllegalArgumentException("cmd argument may not be null");
 
-		synchronized (this)
-		{
-			/* The following is just a nicer error, we would catch it anyway later in the channel code */
-			if (flag_closed)
-				throw new IOException("This session is closed.");
+		startExecution();
 
-			if (flag_execution_started)
-				throw new IOException("A remote execution has already started.");
+		cm.requestExecCommand(cn, cmd);
+	}
 
-			flag_execution_started = true;
+	/**
+	 * Like {@link #execCommand(String)}, but does not wait for the reply of the
+	 * server. Many sessions can so be started at the same time, without a
+	 * round trip each.
+	 * <p>
+	 * The future is completed on the receiver thread of the connection. Actions
+	 * that depend on it and may block must be added with the <code>...Async</code>
+	 * methods of {@link CompletableFuture}.
+	 *
+	 * @param cmd
+	 *            The command to execute on the remote host.
+	 * @return completes once the server started the command
+	 */
+	public CompletableFuture<Void> execCommandAsync(String cmd)
+	{
+		if (cmd == null)
+			throw new IllegalArgumentException("cmd argument may not be null");
+
+		try
+		{
+			startExecution();
+		}
+		catch (IOException e)
+		{
+			return CompletableFuture.failedFuture(e);
 		}
 
-		cm.requestExecCommand(cn, cmd);
+		return cm.requestExecCommandAsync(cn, cmd);
+	}
+
+	/* Only one program may be started per session */
+	private synchronized void startExecution() throws IOException
+	{
+		/* The following is just a nicer error, we would catch it anyway later in the channel code */
+		if (flag_closed)
+			throw new IOException("This session is closed.");
+
+		if (flag_execution_started)
+			throw new IOException("A remote execution has already started.");
+
+		flag_execution_started = true;
 	}
 
 	/**
@@ -320,19 +422,29 @@ public class Session
 	 */
 	public void startShell() throws IOException
 	{
-		synchronized (this)
-		{
-			/* The following is just a nicer error, we would catch it anyway later in the channel code */
-			if (flag_closed)
-				throw new IOException("This session is closed.");
+		startExecution();
 
-			if (flag_execution_started)
-				throw new IOException("A remote execution has already started.");
+		cm.requestShell(cn);
+	}
 
-			flag_execution_started = true;
+	/**
+	 * Like {@link #startShell()}, but does not wait for the reply of the server.
+	 *
+	 * @return completes once the server started the shell
+	 * @see #execCommandAsync(String)
+	 */
+	public CompletableFuture<Void> startShellAsync()
+	{
+		try
+		{
+			startExecution();
+		}
+		catch (IOException e)
+		{
+			return CompletableFuture.failedFuture(e);
 		}
 
-		cm.requestShell(cn);
+		return cm.requestShellAsync(cn);
 	}
 
 	/**
@@ -347,19 +459,33 @@ public class Session
 		if (name == null)
 			throw new IllegalArgumentException("name argument may not be null");
 
-		synchronized (this)
-		{
-			/* The following is just a nicer error, we would catch it anyway later in the channel code */
-			if (flag_closed)
-				throw new IOException("This session is closed.");
+		startExecution();
 
-			if (flag_execution_started)
-				throw new IOException("A remote execution has already started.");
+		cm.requestSubSystem(cn, name);
+	}
+
+	/**
+	 * Like {@link #startSubSystem(String)}, but does not wait for the reply of the server.
+	 *
+	 * @param name the name of the subsystem.
+	 * @return completes once the server started the subsystem
+	 * @see #execCommandAsync(String)
+	 */
+	public CompletableFuture<Void> startSubSystemAsync(String name)
+	{
+		if (name == null)
+			throw new IllegalArgumentException("name argument may not be null");
 
-			flag_execution_started = true;
+		try
+		{
+			startExecution();
+		}
+		catch (IOException e)
+		{
+			return CompletableFuture.failedFuture(e);
 		}
 
-		cm.requestSubSystem(cn, name);
+		return cm.requestSubSystemAsync(cn, name);
 	}
 
 	/**
@@ -403,6 +529,101 @@ public class Session
 		return cn.getStdinStream();
 	}
 
+	/**
+	 * A buffered variant of {@link #getStdin()}. Writes are collected into a buffer that holds one maximum
+	 * sized packet, so that many small writes go out as few SSH_MSG_CHANNEL_DATA messages, and the
+	 * <code>policy</code> decides when buffered data is sent. Closing the stream sends what is buffered
+	 * and then EOF.
+	 *
+	 * @param policy e.g. {@link FlushPolicy#delay(long)} for interactive use
+	 * @return a new stream, do not mix it with {@link #getStdin()}
+	 */
+	public OutputStream getBufferedStdin(FlushPolicy policy)
+	{
+		return cn.newBufferedStdinStream(policy);
+	}
+
+	/**
+	 * A buffered variant of {@link #getStdout()}, for reading small pieces (e.g. byte by byte).
+	 *
+	 * @return a new stream, do not mix it with {@link #getStdout()}
+	 */
+	public InputStream getBufferedStdout()
+	{
+		return cn.newBufferedStdoutStream();
+	}
+
+	/**
+	 * A buffered variant of {@link #getStderr()}.
+	 *
+	 * @return a new stream, do not mix it with {@link #getStderr()}
+	 */
+	public InputStream getBufferedStderr()
+	{
+		return cn.newBufferedStderrStream();
+	}
+
+	/**
+	 * Stdout as a {@link ReadableByteChannel}, e.g. to read into direct buffers or to transfer
+	 * straight into a {@link java.nio.channels.FileChannel}.
+	 *
+	 * @return a new channel, do not mix it with {@link #getStdout()}
+	 */
+	public ReadableByteChannel getStdoutChannel()
+	{
+		return cn.newStdoutChannel();
+	}
+
+	/**
+	 * @return a new channel, do not mix it with {@link #getStderr()}
+	 * @see #getStdoutChannel()
+	 */
+	public ReadableByteChannel getStderrChannel()
+	{
+		return cn.newStderrChannel();
+	}
+
+	/**
+	 * Stdin as a {@link WritableByteChannel}. Closing it sends EOF, like closing {@link #getStdin()}.
+	 */
+	public WritableByteChannel getStdinChannel()
+	{
+		return cn.newStdinChannel();
+	}
+
+	/**
+	 * Stdout as a {@link Flow.Publisher} for one subscriber, for non-blocking pipelines.
+	 * The remote side may only send as much as the subscriber requested, so a slow
+	 * subscriber slows down this session instead of filling the memory.
+	 * <p>
+	 * Data that arrived before the subscription is delivered first. Once subscribed,
+	 * stdout can no longer be read through {@link #getStdout()}.
+	 *
+	 * @throws IllegalStateException if stdout is piped already
+	 */
+	public Flow.Publisher<ByteBuffer> getStdoutPublisher()
+	{
+		return cn.newStdoutPublisher();
+	}
+
+	/**
+	 * @see #getStdoutPublisher()
+	 */
+	public Flow.Publisher<ByteBuffer> getStderrPublisher()
+	{
+		return cn.newStderrPublisher();
+	}
+
+	/**
+	 * A {@link Flow.Subscriber} that writes to stdin. It requests the next buffer only
+	 * while the remote side grants window, and sends EOF once the publisher completes.
+	 * If the publisher fails, the session is closed.
+	 */
+	public Flow.Subscriber<ByteBuffer> getStdinSubscriber()
+	{
+		return cn.newStdinSubscriber();
+	}
+
 	/**
 	 * Write stdout received from the other side to the specified {@link OutputStream}.
 	 *
@@ -447,6 +668,52 @@ public class Session
         cn.pipeStderrStream(os);
     }
 
+	/**
+	 * Like {@link #pipeStdout(OutputStream)}, but the given stream is written to from a thread pool
+	 * shared by all connections rather than from the receiver thread of this connection.
+	 *
+	 * <p>
+	 * Use this for streams that may block for a while, e.g. files on a slow disk or network
+	 * destinations. The data waits in the buffer of this session, and the remote side is only
+	 * allowed to send more once the stream took it, so a slow stream only slows down this session.
+	 *
+	 * @param os the os
+	 */
+	public void pipeStdoutAsync(OutputStream os) {
+        cn.pipeStdoutStreamAsync(os);
+    }
+
+	/**
+	 * The same as {@link #pipeStdoutAsync(OutputStream)} except for stderr, not for stdout.
+	 *
+	 * @param os the os
+	 */
+	public void pipeStderrAsync(OutputStream os) {
+        cn.pipeStderrStreamAsync(os);
+    }
+
+	/**
+	 * Like {@link #pipeStdoutAsync(OutputStream)}, but the writes to the given stream are run by
+	 * <code>executor</code> instead of the pool of this library. The executor must accept them as long
+	 * as the session is open.
+	 *
+	 * @param os the os
+	 * @param executor the executor
+	 */
+	public void pipeStdoutAsync(OutputStream os, Executor executor) {
+        cn.pipeStdoutStreamAsync(os, executor);
+    }
+
+	/**
+	 * The same as {@link #pipeStdoutAsync(OutputStream, Executor)} except for stderr, not for stdout.
+	 *
+	 * @param os the os
+	 * @param executor the executor
+	 */
+	public void pipeStderrAsync(OutputStream os, Executor executor) {
+        cn.pipeStderrStreamAsync(os, executor);
+    }
+
 	/**
 	 * This method blocks until there is more data available on either the
 	 * stdout or stderr InputStream of this Session. Very useful
@@ -524,6 +791,39 @@ public class Session
 		return cm.waitForCondition(cn, timeout, condition_set);
 	}
 
+	/**
+	 * Instead of blocking a thread in {@link #waitForCondition(int, long)}, has the
+	 * listener called on the executor when one of the conditions becomes true. Many
+	 * sessions can thus be watched by a few threads.
+	 * <p>
+	 * STDOUT_DATA and STDERR_DATA are reported when data arrives while none was
+	 * available, the other conditions once. CLOSED is always reported, as the last call.
+	 * Conditions that hold already are reported right away.
+	 * <p>
+	 * The executor is called from the receive thread of the connection and must not
+	 * run the listener on the calling thread (use a thread pool, not a direct executor).
+	 *
+	 * @param condition_set a bitmask based on {@link ChannelCondition} values
+	 * @param listener the listener
+	 * @param executor runs the listener
+	 */
+	public void addConditionListener(int condition_set, ChannelConditionListener listener, Executor executor)
+	{
+		cn.addConditionListener(condition_set, listener, executor);
+	}
+
+	/**
+	 * Stops calling a listener added with
+	 * {@link #addConditionListener(int, ChannelConditionListener, Executor)}. A call
+	 * that was already handed to the executor may still run.
+	 *
+	 * @param listener the listener
+	 */
+	public void removeConditionListener(ChannelConditionListener listener)
+	{
+		cn.removeConditionListener(listener);
+	}
+
 	/**
 	 * Get the exit code/status from the remote command - if available. Be
 	 * careful - not all server implementations return this value. It is
@@ -601,4 +901,48 @@ public class Session
 	public synchronized void setWindowSize(int newSize) {
         cn.setWindowSize(newSize);
     }
+
+	/**
+	 * Limits the rate at which data is sent to stdin of the remote process.
+	 * <p>
+	 * This value can be adjusted at runtime.
+	 *
+	 * @param bytesPerSecond the rate, 0 for unlimited (the default)
+	 * @param burst bytes that may be sent at once after an idle period, 0 for one second worth of the rate
+	 */
+	public void setSendRateLimit(long bytesPerSecond, long burst) {
+		cn.setSendRateLimit(bytesPerSecond, burst);
+	}
+
+	/**
+	 * Sets the share of the connection that stdin data of this session gets while
+	 * other sessions on the same connection send data, too. A bulk transfer at
+	 * priority 1 next to interactive sessions at the default leaves them 8 times
+	 * its share. Window adjustments, requests and EOF always go first.
+	 * <p>
+	 * This value can be adjusted at runtime.
+	 *
+	 * @param priority from 1 to {@link Channel#MAX_PRIORITY}, {@link Channel#DEFAULT_PRIORITY} by default
+	 */
+	public void setPriority(int priority) {
+		cn.setPriority(priority);
+	}
+
+	public int getPriority() {
+		return cn.getPriority();
+	}
+
+	/**
+	 * Limits the rate at which the remote side may send stdout and stderr data,
+	 * by pacing the window adjustments. Only applies to output read through
+	 * {@link #getStdout()} and {@link #getStderr()}, not to piped output.
+	 * <p>
+	 * This value can be adjusted at runtime.
+	 *
+	 * @param bytesPerSecond the rate, 0 for unlimited (the default)
+	 * @param burst bytes that may be received at once after an idle period, 0 for one second worth of the rate
+	 */
+	public void setReceiveRateLimit(long bytesPerSecond, long burst) {
+		cn.setReceiveRateLimit(bytesPerSecond, burst);
+	}
 }
@@ -15,6 +15,7 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Vector;
@@ -309,6 +310,7 @@ public class AuthenticationManager implements MessageHandler
 			if (candidateAlgorithms.isEmpty()) {
 				throw new IOException("Unknown private key type returned by the PEM decoder.");
 			}
+			candidateAlgorithms = preferServerSigAlgs(candidateAlgorithms);
 			for (KeyAlgorithm<PublicKey, PrivateKey> algorithm : candidateAlgorithms) {
 				byte[] encodedKey = algorithm.encodePublicKey(keyPair.getPublic());
 				TypesWriter tw = new TypesWriter();
@@ -363,6 +365,27 @@ public class AuthenticationManager implements MessageHandler
 		}
 	}
 
+	/**
+	 * If the server told us which signature algorithms it accepts (RFC 8308
+	 * "server-sig-algs"), only try those, so we do not waste a signature and
+	 * a round trip on each algorithm the server is going to reject anyway.
+	 * Falls back to the full list if none of them are announced.
+	 */
+	private List<KeyAlgorithm<PublicKey, PrivateKey>> preferServerSigAlgs(List<KeyAlgorithm<PublicKey, PrivateKey>> candidates)
+	{
+		String[] serverSigAlgs = tm.getServerSigAlgs();
+		if (serverSigAlgs == null) {
+			return candidates;
+		}
+
+		List<String> accepted = Arrays.asList(serverSigAlgs);
+		List<KeyAlgorithm<PublicKey, PrivateKey>> filtered = candidates.stream()
+				.filter(alg -> accepted.contains(alg.getKeyFormat()))
+				.collect(Collectors.toList());
+
+		return filtered.isEmpty() ? candidates : filtered;
+	}
+
 	public boolean authenticateNone(String user) throws IOException
 	{
 		try
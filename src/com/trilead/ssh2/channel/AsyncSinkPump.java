@@ -0,0 +1,285 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.trilead.ssh2.log.Logger;
+
+import static com.trilead.ssh2.util.IOUtils.closeQuietly;
+
+/**
+ * Moves what a channel output has buffered into the {@link OutputStream} it is piped to, on a thread
+ * pool shared by all connections instead of the receive thread of the connection. Writes to the stream
+ * may block, so they get a pool of their own (or the executor the caller gave), apart from the pool
+ * that runs the non-blocking turns of {@link ChannelPublisher} and {@link ChannelSubscriber}.
+ *
+ * The window is only given back to the peer once the bytes were written to the sink, so a slow sink
+ * throttles its own channel, not all channels of the connection.
+ *
+ * {@link ChannelPublisher} hands the data to a {@link java.util.concurrent.Flow.Subscriber} instead,
+ * by overriding {@link #ready()}, {@link #deliver(byte[], int)}, {@link #complete()} and
+ * {@link #failed(IOException)}.
+ *
+ * The pool threads never wait for the rate limits or the outbound scheduler: a turn that would have to wait
+ * ends, and the work is picked up again by a later turn.
+ *
+ * The number of threads can be set with the <tt>com.trilead.ssh2.channel.AsyncSinkPump.threads</tt>
+ * and <tt>com.trilead.ssh2.channel.AsyncSinkPump.writerThreads</tt> system properties.
+ */
+class AsyncSinkPump implements Runnable
+{
+	private static final Logger log = Logger.getLogger(AsyncSinkPump.class);
+
+	private static final int THREADS = Integer.getInteger(AsyncSinkPump.class.getName() + ".threads", 4);
+
+	private static final int WRITER_THREADS = Integer.getInteger(AsyncSinkPump.class.getName() + ".writerThreads", 4);
+
+	/**
+	 * Bytes moved per turn, after that the pump queues up behind the other channels again.
+	 */
+	static final int MAX_BYTES_PER_RUN = 64 * 1024;
+
+	private static ThreadPoolExecutor pool;
+	private static ThreadPoolExecutor writerPool;
+	private static ScheduledThreadPoolExecutor timer;
+
+	/**
+	 * The pool for turns that never block.
+	 */
+	static synchronized ThreadPoolExecutor getExecutor()
+	{
+		if (pool == null)
+			pool = newPool(THREADS, "Trilead_SinkPump");
+		return pool;
+	}
+
+	/**
+	 * The pool for writes to piped streams, which may block.
+	 */
+	static synchronized ThreadPoolExecutor getWriterExecutor()
+	{
+		if (writerPool == null)
+			writerPool = newPool(WRITER_THREADS, "Trilead_SinkWriter");
+		return writerPool;
+	}
+
+	private static ThreadPoolExecutor newPool(int threads, final String name)
+	{
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, name);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Runs <code>r</code> after the delay, on a timer thread. <code>r</code> must not block, it usually hands
+	 * the work to {@link #getExecutor()}.
+	 */
+	static synchronized void scheduleLater(Runnable r, long delayNanos)
+	{
+		if (timer == null)
+		{
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "Trilead_SinkPump_Timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			timer.setKeepAliveTime(60, TimeUnit.SECONDS);
+			timer.allowCoreThreadTimeOut(true);
+		}
+		timer.schedule(r, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	final Channel c;
+	final FifoBuffer buffer;
+	private final OutputStream sink;
+	private final Executor executor;
+
+	/**
+	 * At most one turn of a pump is queued or running at any time, the fields below are only
+	 * touched by that turn.
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private byte[] chunk;
+	private volatile boolean done;
+
+	/**
+	 * Bytes taken from the buffer but not yet written to the sink; they still occupy the window.
+	 */
+	volatile int inFlight;
+
+	/**
+	 * @param executor runs the turns, it must take them as long as the channel is open
+	 */
+	AsyncSinkPump(Channel c, FifoBuffer buffer, OutputStream sink, Executor executor)
+	{
+		this.c = c;
+		this.buffer = buffer;
+		this.sink = sink;
+		this.executor = executor;
+	}
+
+	/**
+	 * Called after data or EOF was added to the buffer. Never blocks, it may be called from the receive thread.
+	 */
+	void schedule()
+	{
+		if (!done && scheduled.compareAndSet(false, true))
+			executor.execute(this);
+	}
+
+	/**
+	 * Whether no turn is queued or running.
+	 */
+	boolean idle()
+	{
+		return !scheduled.get();
+	}
+
+	public void run()
+	{
+		try
+		{
+			drain();
+		}
+		catch (IOException e)
+		{
+			done = true;
+			if (log.isEnabled())
+				log.log(20, "Writing the output of channel " + c.localID + " to " + this + " failed", e);
+			failed(e);
+		}
+		finally
+		{
+			scheduled.set(false);
+		}
+
+		// data may have arrived after the last look, but before the flag was cleared
+		if (pending())
+			schedule();
+	}
+
+	/**
+	 * Whether there is work for another turn.
+	 */
+	boolean pending()
+	{
+		return (buffer.readable() > 0 && ready()) || buffer.isClosed();
+	}
+
+	/**
+	 * Whether data may be handed on now. If not, it stays in the buffer, and in the window.
+	 */
+	boolean ready()
+	{
+		return true;
+	}
+
+	/**
+	 * Called at the start of every turn.
+	 */
+	void poll() throws IOException
+	{
+	}
+
+	void deliver(byte[] b, int len) throws IOException
+	{
+		sink.write(b, 0, len);
+	}
+
+	/**
+	 * Everything up to EOF was delivered.
+	 */
+	void complete() throws IOException
+	{
+		sink.close();
+	}
+
+	void failed(IOException e)
+	{
+		closeQuietly(sink);
+		try
+		{
+			c.cm.closeChannel(c, "Failed to write to " + this + " (" + e.getMessage() + ")", true);
+		}
+		catch (IOException ignored)
+		{
+			// the connection is gone as well
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.valueOf(sink);
+	}
+
+	private void drain() throws IOException
+	{
+		poll();
+
+		int total = 0;
+		while (total < MAX_BYTES_PER_RUN)
+		{
+			boolean closed = buffer.isClosed(); // before readable(), so that no data can follow
+			int avail = buffer.readable();
+			if (avail == 0)
+			{
+				if (closed)
+				{
+					done = true;
+					complete();
+				}
+				return;
+			}
+
+			if (!ready())
+				return;
+
+			if (chunk == null)
+				chunk = new byte[PagePool.PAGE_SIZE * 8];
+
+			int n;
+			try
+			{
+				n = buffer.read(chunk, 0, Math.min(avail, chunk.length));
+			}
+			catch (InterruptedException e)
+			{
+				throw new AssertionError(e); // we only read what is there
+			}
+
+			inFlight = n;
+			try
+			{
+				deliver(chunk, n);
+			}
+			finally
+			{
+				inFlight = 0;
+			}
+			total += n;
+
+			c.freeupWindowNoWait(n);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered stdout or stderr of a channel. Takes as much as one maximum sized SSH_MSG_CHANNEL_DATA from the
+ * channel at a time, so that byte-wise parsing does not go through the channel for every byte.
+ */
+public final class BufferedChannelInputStream extends InputStream
+{
+	/**
+	 * Buffer size if we allow larger packets, reads of this size or more bypass the buffer anyway.
+	 */
+	static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+	private final ChannelInputStream in;
+	private final byte[] buf;
+	private int pos;
+	private int count;
+
+	BufferedChannelInputStream(ChannelInputStream in)
+	{
+		this.in = in;
+		int size = in.c.localMaxPacketSize;
+		if (size <= 0 || size > MAX_BUFFER_SIZE)
+			size = MAX_BUFFER_SIZE;
+		this.buf = new byte[size];
+	}
+
+	/**
+	 * @return false on EOF
+	 */
+	private boolean fill() throws IOException
+	{
+		int n = in.read(buf, 0, buf.length);
+		if (n <= 0)
+			return false;
+		pos = 0;
+		count = n;
+		return true;
+	}
+
+	@Override
+	public synchronized int read() throws IOException
+	{
+		if (pos >= count && !fill())
+			return -1;
+		return buf[pos++] & 0xff;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException
+	{
+		if ((off < 0) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0))
+			throw new IndexOutOfBoundsException();
+		if (len == 0)
+			return 0;
+
+		if (pos >= count)
+		{
+			// large reads bypass the buffer
+			if (len >= buf.length)
+				return in.read(b, off, len);
+			if (!fill())
+				return -1;
+		}
+
+		int n = Math.min(len, count - pos);
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public synchronized int available() throws IOException
+	{
+		return (count - pos) + in.available();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		in.close();
+	}
+}
@@ -0,0 +1,238 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.trilead.ssh2.log.Logger;
+
+/**
+ * Buffered stdin of a channel. Small writes are collected into one buffer of the peer's maximum packet size,
+ * so that they go out as full SSH_MSG_CHANNEL_DATA messages, and when they go out is decided by a
+ * {@link FlushPolicy}.
+ *
+ * Delayed flushes of all streams are run by one shared timer thread.
+ */
+public final class BufferedChannelOutputStream extends OutputStream
+{
+	private static final Logger log = Logger.getLogger(BufferedChannelOutputStream.class);
+
+	/**
+	 * Buffer size if the peer allows (nearly) unlimited packets.
+	 */
+	static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * How soon a delayed flush looks again if a writer holds the buffer.
+	 */
+	private static final long RETRY_DELAY_MILLIS = 1;
+
+	private static ScheduledThreadPoolExecutor flusher;
+
+	private static synchronized ScheduledThreadPoolExecutor getFlusher()
+	{
+		if (flusher == null)
+		{
+			flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "Trilead_ChannelFlusher");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			flusher.setRemoveOnCancelPolicy(true);
+		}
+		return flusher;
+	}
+
+	private final Channel c;
+	private final FlushPolicy policy;
+
+	/**
+	 * Not a monitor, so that the timer thread can back off instead of waiting behind a writer
+	 * that is blocked on the channel window.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final byte[] buf;
+	private int count;
+	private boolean closed;
+	private ScheduledFuture<?> pendingFlush;
+
+	private final Runnable delayedFlush = new Runnable()
+	{
+		public void run()
+		{
+			if (!lock.tryLock())
+			{
+				// a writer is busy with the buffer; look again shortly rather than stalling the timer thread,
+				// the data is already due. pendingFlush belongs to the lock holder, it still marks a flush as pending
+				getFlusher().schedule(this, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+				return;
+			}
+			try
+			{
+				pendingFlush = null;
+				if (!closed)
+					flushBuffer();
+			}
+			catch (IOException e)
+			{
+				if (log.isEnabled())
+					log.log(20, "Delayed flush of channel " + c.localID + " failed", e);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	};
+
+	BufferedChannelOutputStream(Channel c, FlushPolicy policy)
+	{
+		this.c = c;
+		this.policy = policy;
+
+		int size = c.remoteMaxPacketSize;
+		if (size <= 0 || size > MAX_BUFFER_SIZE)
+			size = MAX_BUFFER_SIZE;
+		this.buf = new byte[size];
+	}
+
+	private void schedule()
+	{
+		pendingFlush = getFlusher().schedule(delayedFlush, policy.maxDelayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/* Must be called while holding the lock */
+	private void flushBuffer() throws IOException
+	{
+		if (count > 0)
+		{
+			int n = count;
+			count = 0;
+			c.cm.sendData(c, buf, 0, n);
+		}
+		if (pendingFlush != null)
+		{
+			pendingFlush.cancel(false);
+			pendingFlush = null;
+		}
+	}
+
+	/* Must be called while holding the lock, after data was added */
+	private void applyPolicy() throws IOException
+	{
+		if (count == buf.length || (policy.sizeThreshold > 0 && count >= policy.sizeThreshold))
+		{
+			flushBuffer();
+		}
+		else if (count > 0 && policy.maxDelayMillis > 0 && pendingFlush == null)
+		{
+			schedule();
+		}
+	}
+
+	private void ensureOpen() throws IOException
+	{
+		if (closed)
+			throw new IOException("This OutputStream is closed.");
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			ensureOpen();
+			buf[count++] = (byte) b;
+			applyPolicy();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		if ((off < 0) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0))
+			throw new IndexOutOfBoundsException();
+
+		lock.lock();
+		try
+		{
+			ensureOpen();
+
+			if (count == 0 && len >= buf.length)
+			{
+				// nothing to coalesce with, send straight from the caller's array
+				c.cm.sendData(c, b, off, len);
+				return;
+			}
+
+			while (len > 0)
+			{
+				int n = Math.min(len, buf.length - count);
+				System.arraycopy(b, off, buf, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				applyPolicy();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		lock.lock();
+		try
+		{
+			ensureOpen();
+			flushBuffer();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends what is buffered, then EOF.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if (closed)
+				return;
+			try
+			{
+				flushBuffer();
+			}
+			finally
+			{
+				closed = true;
+				c.stdinStream.close();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
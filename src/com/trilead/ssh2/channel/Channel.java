@@ -1,16 +1,34 @@
 
 package com.trilead.ssh2.channel;
 
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.ChannelConditionListener;
 import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.PacketSignal;
 import com.trilead.ssh2.packets.PacketWindowChange;
 import com.trilead.ssh2.packets.Packets;
+import com.trilead.ssh2.transport.DeferredMessage;
 import com.trilead.ssh2.transport.TransportManager;
+import com.trilead.ssh2.util.TokenBucket;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.trilead.ssh2.util.IOUtils.closeQuietly;
 
@@ -57,12 +75,82 @@ public class Channel
 			Channel.class.getName()+".bufferSize",
 			1024*1024 + 16*1024).intValue();
 
+	/**
+	 * Ceiling for windows grown by the auto-tuning in {@link #freeupWindow(int, boolean)}.
+	 */
+	private static final int MAX_WINDOW_SIZE = Integer.getInteger(
+			Channel.class.getName()+".maxWindowSize",
+			16*1024*1024).intValue();
+
+	/**
+	 * Room for the transport and channel headers, padding and MAC on top of the
+	 * data of a channel packet.
+	 */
+	static final int PACKET_SIZE_SLACK = 1024;
+
+	/**
+	 * Largest maximum packet size a channel may advertise.
+	 */
+	static final int MAX_CHANNEL_PACKET_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Percentage of the window that has to be consumed before it is extended
+	 * with SSH_MSG_CHANNEL_WINDOW_ADJUST. A window nobody sized for the round
+	 * trip may be just enough to keep the peer busy, so it is extended early.
+	 */
+	static final int WINDOW_ADJUST_PERCENT = Integer.getInteger(
+			Channel.class.getName()+".windowAdjustPercent",
+			25).intValue();
+
+	/**
+	 * Like {@link #WINDOW_ADJUST_PERCENT}, once auto-tuning has grown the
+	 * window. It then covers the round trip twice over, so half of it still
+	 * keeps the peer busy, with half as many adjusts.
+	 */
+	static final int GROWN_WINDOW_ADJUST_PERCENT = Integer.getInteger(
+			Channel.class.getName()+".grownWindowAdjustPercent",
+			50).intValue();
+
+	static final boolean AUTO_TUNE_WINDOW = !Boolean.getBoolean(
+			Channel.class.getName()+".disableWindowAutoTuning");
+
+	/**
+	 * Priority of a channel unless {@link #setPriority(int)} says otherwise.
+	 */
+	public static final int DEFAULT_PRIORITY = 8;
+
+	/**
+	 * Highest priority, a channel at it gets 64 times the share of a
+	 * channel at priority 1.
+	 */
+	public static final int MAX_PRIORITY = 64;
+
     /**
      * This channel's session size.
      */
     // @GuarydedBy("this")
     int channelBufferSize = CHANNEL_BUFFER_SIZE;
 
+    /**
+     * Whether the window may grow beyond {@link #channelBufferSize} on its own.
+     * Turned off once the application picks a size with {@link #setWindowSize(int)}.
+     */
+    // @GuardedBy("this")
+    boolean autoTuneWindow = AUTO_TUNE_WINDOW;
+
+    /**
+     * Whether auto-tuning has grown the window, see {@link #GROWN_WINDOW_ADJUST_PERCENT}.
+     */
+    // @GuardedBy("this")
+    boolean windowGrown;
+
+    /**
+     * Bytes consumed since {@link #tuneStartNanos}, the throughput sample for auto-tuning.
+     */
+    // @GuardedBy("this")
+    private long tuneBytes;
+    private long tuneStartNanos;
+
 	/*
 	 * To achieve correctness, the following rules have to be respected when
 	 * accessing this object:
@@ -80,17 +168,39 @@ public class Channel
      * read it via {@link InputStream}, and the latter is used when we are passing through the data
      * to another {@link OutputStream}.
      *
-     * The synchronization is done by {@link Channel}
+     * The synchronization is done by {@link Channel}, except that the buffer has a lock of its own, so that
+     * a reader blocked on an empty buffer does not hold the channel. Threads waiting on the channel for a
+     * {@link com.trilead.ssh2.ChannelCondition} are only woken up when a buffer becomes non-empty.
      */
     class Output {
         ChannelInputStream stream;
-        FifoBuffer buffer = new FifoBuffer(Channel.this, 2048, channelBufferSize);
-        OutputStream sink;
+        volatile FifoBuffer buffer = new FifoBuffer(PagePool.PAGE_SIZE, channelBufferSize);
+        volatile OutputStream sink;
+        /**
+         * Set when piping asynchronously or publishing, the buffer then stays and is drained by the pump.
+         */
+        volatile AsyncSinkPump pump;
 
+        /**
+         * Where the data goes instead of to readers of the buffer, null if it is read.
+         */
+        private Object consumer() {
+            AsyncSinkPump p = pump;
+            return p!=null ? p : sink;
+        }
+
+        /**
+         * Must be called while holding the channel lock.
+         */
         public void write(byte[] buf, int start, int len) throws IOException {
             if (buffer!=null) {
                 try {
-                    buffer.write(buf,start,len);
+                    boolean becameReadable = buffer.write(buf,start,len);
+                    AsyncSinkPump p = pump;
+                    if (p!=null)
+                        p.schedule();
+                    else if (becameReadable)
+                        conditionsChanged(this == stdout ? ChannelCondition.STDOUT_DATA : ChannelCondition.STDERR_DATA);
                 } catch (InterruptedException e) {
                     throw new InterruptedIOException();
                 }
@@ -104,16 +214,25 @@ public class Channel
          * How many bytes can be read from the buffer?
          */
         public int readable() {
-            if (buffer!=null)   return buffer.readable();
-            else                return 0;
+            if (consumer()==null)   return buffer.readable();
+            else                    return 0;
+        }
+
+        /**
+         * How many bytes received for this output still occupy the window?
+         */
+        int buffered() {
+            FifoBuffer b = buffer;
+            AsyncSinkPump p = pump;
+            return (b!=null ? b.readable() : 0) + (p!=null ? p.inFlight : 0);
         }
 
         /**
          * See {@link InputStream#available()}
          */
         public int available() {
-            if (buffer==null)
-                throw new IllegalStateException("Output is being piped to "+sink);
+            if (consumer()!=null)
+                throw new IllegalStateException("Output is being piped to "+consumer());
 
             int sz = buffer.readable();
             if (sz>0)    return sz;
@@ -121,10 +240,24 @@ public class Channel
         }
 
         /**
-         * Read from the buffer.
+         * Read from the buffer. Must be called without holding the channel lock, as it blocks until
+         * the receive thread, which needs the lock, delivers some data.
          */
         public int read(byte[] buf, int start, int len) throws InterruptedException {
-            return buffer.read(buf,start,len);
+            FifoBuffer b = buffer;
+            if (b==null || consumer()!=null)
+                throw new IllegalStateException("Output is being piped to "+consumer());
+            return b.read(buf,start,len);
+        }
+
+        /**
+         * Like {@link #read(byte[], int, int)}, but into the remaining space of <code>dst</code>.
+         */
+        public int read(ByteBuffer dst) throws InterruptedException {
+            FifoBuffer b = buffer;
+            if (b==null || consumer()!=null)
+                throw new IllegalStateException("Output is being piped to "+consumer());
+            return b.read(dst);
         }
 
         /**
@@ -132,9 +265,11 @@ public class Channel
          * Not that buffer might still have some more data that needs to be drained.
          */
         public void eof() {
-            if (buffer!=null)
+            if (buffer!=null) {
                 buffer.close();
-            else
+                if (pump!=null)
+                    pump.schedule(); // the pump closes the sink once it drained the buffer
+            } else
                 closeQuietly(sink);
         }
 
@@ -146,10 +281,52 @@ public class Channel
             if (buffer.readable()!=0) {
                 freeupWindow(buffer.writeTo(os));
             }
+            buffer.close(); // gives the pages back
 
             buffer = null;
             stream = null;
         }
+
+        /**
+         * Like {@link #pipeTo(OutputStream)}, but the data is written to <code>os</code> by
+         * {@link AsyncSinkPump}, so a slow stream does not hold up the I/O thread.
+         */
+        public void pipeToAsync(OutputStream os) {
+            pipeToAsync(os, AsyncSinkPump.getWriterExecutor());
+        }
+
+        /**
+         * Like {@link #pipeToAsync(OutputStream)}, with the writes to <code>os</code> run by <code>executor</code>.
+         */
+        public void pipeToAsync(OutputStream os, Executor executor) {
+            sink = os;
+            pump = new AsyncSinkPump(Channel.this, buffer, os, executor);
+            stream = null;
+            pump.schedule(); // for what was spooled before, or an EOF that came already
+        }
+
+        /**
+         * Hands the data, including what was spooled before, to the subscriber of <code>p</code>.
+         *
+         * @return false if the output was piped elsewhere in the meantime
+         */
+        boolean publishTo(ChannelPublisher p) {
+            if (consumer()!=null || p.buffer!=buffer)
+                return false;
+            pump = p;
+            stream = null;
+            p.schedule();
+            return true;
+        }
+
+        /**
+         * @throws IllegalStateException if the output is piped already
+         */
+        ChannelPublisher newPublisher() {
+            if (consumer()!=null)
+                throw new IllegalStateException("Output is being piped to "+consumer());
+            return new ChannelPublisher(Channel.this, this);
+        }
     }
 
     final Output stdout = new Output();
@@ -200,25 +377,114 @@ public class Channel
 
 	final byte[] msgWindowAdjust = new byte[9];
 
+	/*
+	 * Window adjusts of the receive and pump threads are added up here until the
+	 * asynchronous sender gets to them, and then go out as one message.
+	 */
+	private final AtomicInteger pendingWindowAdjust = new AtomicInteger();
+	private final AtomicBoolean windowAdjustQueued = new AtomicBoolean();
+
+	private final DeferredMessage queuedWindowAdjust = new DeferredMessage() {
+		public void send() throws IOException {
+			windowAdjustQueued.set(false);
+			synchronized (channelSendLock) {
+				sendWindowAdjust(0);
+			}
+		}
+	};
+
+	/*
+	 * Window adjusts of the pump threads that the receive limiter holds back,
+	 * guarded by the channel lock. A timer releases them.
+	 */
+	private int heldWindowAdjust;
+	private boolean heldWindowAdjustTimer;
+
+	private final Runnable releaseHeldWindowAdjust = new Runnable() {
+		public void run() {
+			synchronized (Channel.this) {
+				heldWindowAdjustTimer = false;
+			}
+			try {
+				releaseWindowAdjust(0);
+			} catch (IOException e) {
+				// the connection is gone, nothing left to adjust
+			}
+		}
+	};
+
+	/*
+	 * Rate limits of this channel, unlimited by default. The send limiter is
+	 * taken for every SSH_MSG_CHANNEL_DATA, the receive limiter paces our
+	 * window adjusts and thereby the peer.
+	 */
+
+	final TokenBucket sendLimiter = new TokenBucket();
+	final TokenBucket receiveLimiter = new TokenBucket();
+
+	/* Where senders wait for their turn when the connection is busy */
+	final OutboundScheduler.Flow outbound = new OutboundScheduler.Flow();
+
+	/*
+	 * The window the peer granted us (long for readable 2^32 - 1 window
+	 * support). Senders take credit with a CAS and the receive thread adds
+	 * window adjusts without locking the channel, so writers and the receive
+	 * thread do not serialize on the channel monitor. Senders without credit
+	 * park in windowWaiters.
+	 */
+
+	final AtomicLong remoteWindow = new AtomicLong();
+	private final Queue<Thread> windowWaiters = new ConcurrentLinkedQueue<Thread>();
+
+	/* Told about new window on the receive thread, must not block */
+	volatile Runnable windowListener;
+
+	// If you write any of the following fields, then you have to synchronize
+	// on the channel. The state may be read without the lock, every field set
+	// before a change of the state is visible after reading the new state.
+
+	volatile int state = STATE_OPENING;
+
 	// If you access (read or write) any of the following fields, then you have
 	// to synchronize on the channel.
 
-	int state = STATE_OPENING;
-
 	boolean closeMessageRecv = false;
 
-	/* This is a stupid implementation. At the moment we can only wait
-	 * for one pending request per channel.
+	/* Want-reply requests waiting for SSH_MSG_CHANNEL_SUCCESS/FAILURE, in the
+	 * order in which they were sent; the peer replies in that order.
 	 */
-	int successCounter = 0;
-	int failedCounter = 0;
+	final LinkedList<PendingRequest> pendingRequests = new LinkedList<PendingRequest>();
+
+	static final class PendingRequest
+	{
+		final long sentNanos = System.nanoTime();
+		/* A ping, the reply is a round trip measurement */
+		final boolean probe;
+		final CompletableFuture<Boolean> reply = new CompletableFuture<Boolean>();
+
+		PendingRequest(boolean probe)
+		{
+			this.probe = probe;
+		}
+	}
 
 	int localWindow = 0; /* locally, we use a small window, < 2^31 */
-	long remoteWindow = 0; /* long for readable  2^32 - 1 window support */
+
+	/*
+	 * Credit taken from the connection's WindowBudget: localWindow plus what
+	 * was received but not consumed yet. Null/0 while the channel is not
+	 * registered with the ChannelManager.
+	 */
+	WindowBudget windowBudget;
+	long windowCredit;
+	boolean windowBudgetOpen;
 
 	int localMaxPacketSize = -1;
 	int remoteMaxPacketSize = -1;
 
+	/* Completed on the receive thread once the peer confirmed or refused the open */
+	final CompletableFuture<Channel> opened = new CompletableFuture<Channel>();
+
 
     private boolean eof = false;
 
@@ -226,11 +492,124 @@ public class Channel
         stdout.eof();
         stderr.eof();
         eof = true;
+        conditionsChanged(0); // waitForCondition() waits for EOF
     }
     boolean isEOF() {
         return eof;
     }
 
+    /**
+     * A listener and the conditions it is waiting for.
+     */
+    private static final class ConditionWatch {
+        final int mask;
+        final ChannelConditionListener listener;
+        final Executor executor;
+        /* Conditions other than data that were reported already, they only turn true once */
+        int reported;
+
+        ConditionWatch(int mask, ChannelConditionListener listener, Executor executor) {
+            this.mask = mask | ChannelCondition.CLOSED;
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    // @GuardedBy("this")
+    private final List<ConditionWatch> conditionWatches = new ArrayList<ConditionWatch>();
+
+    /**
+     * The current {@link ChannelCondition}s, but never TIMEOUT. Must be called while holding the channel lock.
+     */
+    int getConditions() {
+        int cond = 0;
+
+        if (stdout.readable() > 0)
+            cond |= ChannelCondition.STDOUT_DATA;
+        if (stderr.readable() > 0)
+            cond |= ChannelCondition.STDERR_DATA;
+        if (eof)
+            cond |= ChannelCondition.EOF;
+        if (exit_status != null)
+            cond |= ChannelCondition.EXIT_STATUS;
+        if (exit_signal != null)
+            cond |= ChannelCondition.EXIT_SIGNAL;
+        if (state == STATE_CLOSED)
+            cond |= ChannelCondition.CLOSED | ChannelCondition.EOF;
+
+        return cond;
+    }
+
+    /**
+     * Wakes up {@link ChannelManager#waitForCondition(Channel, long, int)} and hands the conditions that
+     * became true to the listeners. Must be called while holding the channel lock.
+     *
+     * @param dataArrived STDOUT_DATA or STDERR_DATA if data arrived while none was available; other
+     *        conditions stay true once they are, so their transitions are found without help
+     */
+    void conditionsChanged(int dataArrived) {
+        notifyAll();
+
+        if (conditionWatches.isEmpty())
+            return;
+
+        int cond = getConditions();
+        boolean closed = (cond & ChannelCondition.CLOSED) != 0;
+
+        for (ConditionWatch w : conditionWatches) {
+            int sticky = ~(ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA);
+            int raised = cond & w.mask & (dataArrived | (sticky & ~w.reported));
+            if (raised != 0) {
+                w.reported |= cond & sticky;
+                notifyListener(w, cond);
+            }
+        }
+
+        if (closed)
+            conditionWatches.clear(); // nothing will change any more
+    }
+
+    private void notifyListener(final ConditionWatch w, final int cond) {
+        try {
+            w.executor.execute(new Runnable() {
+                public void run() {
+                    w.listener.conditionsChanged(cond);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (log.isEnabled())
+                log.log(20, "Could not tell " + w.listener + " about the conditions of channel " + localID, e);
+        }
+    }
+
+    /**
+     * Has <code>listener</code> called on <code>executor</code> whenever one of the conditions in
+     * <code>conditionMask</code>, or CLOSED, becomes true. Conditions that hold already are reported right away.
+     * The executor is called while the channel is locked, it must not run the listener on the calling thread.
+     */
+    public synchronized void addConditionListener(int conditionMask, ChannelConditionListener listener,
+                                                  Executor executor) {
+        if (listener == null || executor == null)
+            throw new NullPointerException();
+
+        ConditionWatch w = new ConditionWatch(conditionMask, listener, executor);
+        int cond = getConditions();
+
+        if ((cond & w.mask) != 0) {
+            w.reported = cond & ~(ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA);
+            notifyListener(w, cond);
+        }
+        if ((cond & ChannelCondition.CLOSED) == 0)
+            conditionWatches.add(w);
+    }
+
+    public synchronized void removeConditionListener(ChannelConditionListener listener) {
+        for (int i = conditionWatches.size() - 1; i >= 0; i--) {
+            if (conditionWatches.get(i).listener == listener)
+                conditionWatches.remove(i);
+        }
+    }
+
 	Integer exit_status;
 
 	String exit_signal;
@@ -248,11 +627,21 @@ public class Channel
 	private Throwable reasonClosed = null;
 
 	public Channel(ChannelManager cm)
+	{
+		this(cm, 0);
+	}
+
+	/**
+	 * @param maxPacketSize the maximum packet size advertised to the peer, 0
+	 *        for the default derived from {@link TransportManager#MAX_PACKET_SIZE}
+	 */
+	public Channel(ChannelManager cm, int maxPacketSize)
 	{
 		this.cm = cm;
 
 		this.localWindow = channelBufferSize;
-		this.localMaxPacketSize = TransportManager.MAX_PACKET_SIZE - 1024; // leave enough slack
+		this.localMaxPacketSize = (maxPacketSize > 0) ? maxPacketSize
+				: TransportManager.MAX_PACKET_SIZE - PACKET_SIZE_SLACK; // leave enough slack
 
 		this.stdinStream = new ChannelOutputStream(this);
 		this.stdout.stream = new ChannelInputStream(this, false);
@@ -261,12 +650,108 @@ public class Channel
 
 	/* Methods to allow access from classes outside of this package */
 
+    /**
+     * Limits the rate at which data is sent on this channel. Can be changed at any time.
+     *
+     * @param bytesPerSecond the rate, 0 for unlimited
+     * @param burst bytes that may be sent at once after an idle period, 0 for one second worth of the rate
+     */
+    public void setSendRateLimit(long bytesPerSecond, long burst) {
+        sendLimiter.setRate(bytesPerSecond, burst);
+    }
+
+    /**
+     * Sets the share of the connection this channel gets when several channels
+     * send at the same time: per round, each of them may send as many bytes as
+     * its priority allows. Can be changed at any time.
+     *
+     * @param priority from 1 to {@link #MAX_PRIORITY}, {@link #DEFAULT_PRIORITY} by default
+     */
+    public void setPriority(int priority) {
+        if (priority < 1 || priority > MAX_PRIORITY)
+            throw new IllegalArgumentException("Invalid priority: " + priority);
+        outbound.priority = priority;
+    }
+
+    public int getPriority() {
+        return outbound.priority;
+    }
+
+    /**
+     * Limits the rate at which the peer may send data on this channel, by holding back
+     * SSH_MSG_CHANNEL_WINDOW_ADJUST. Can be changed at any time. Output that is piped
+     * to a stream with {@link #pipeStdoutStream(OutputStream)} is written by the receive
+     * thread, which is never held back, so the limit only applies to output read through
+     * {@link #getStdoutStream()} and {@link #getStderrStream()}, or piped with
+     * {@link #pipeStdoutStreamAsync(OutputStream)}.
+     *
+     * @param bytesPerSecond the rate, 0 for unlimited
+     * @param burst bytes that may be received at once after an idle period, 0 for one second worth of the rate
+     */
+    public void setReceiveRateLimit(long bytesPerSecond, long burst) {
+        receiveLimiter.setRate(bytesPerSecond, burst);
+    }
+
     public synchronized void setWindowSize(int newSize) {
         if (newSize<=0)  throw new IllegalArgumentException("Invalid value: "+newSize);
-        this.channelBufferSize = newSize;
+        this.autoTuneWindow = false;
+        this.windowGrown = false;
+        resizeWindow(newSize);
         // next time when the other side sends us something, we'll issue SSH_MSG_CHANNEL_WINDOW_ADJUST
     }
 
+    // @GuardedBy("this")
+    private void resizeWindow(int newSize) {
+        // the buffers have to be able to hold everything the peer may still send us,
+        // which may be more than a smaller new window
+        if (newSize > channelBufferSize) {
+            if (stdout.buffer!=null)    stdout.buffer.setLimit(newSize);
+            if (stderr.buffer!=null)    stderr.buffer.setLimit(newSize);
+        }
+        this.channelBufferSize = newSize;
+    }
+
+    /**
+     * HPN-SSH style window growth. If the peer sent about a window's worth of
+     * data per round trip while our reader kept up, it is the window that limits
+     * the throughput, so it is doubled (up to {@link #MAX_WINDOW_SIZE}).
+     *
+     * @return the new window size, or 0 if the window was left alone
+     */
+    // @GuardedBy("this")
+    private int autoTuneWindow(int copylen) {
+        long now = System.nanoTime();
+
+        if (tuneStartNanos == 0) {
+            tuneStartNanos = now;
+            return 0;
+        }
+
+        tuneBytes += copylen;
+
+        long rtt = cm.tm.getSmoothedRttNanos();
+        long elapsed = now - tuneStartNanos;
+
+        if (rtt <= 0 || elapsed < rtt)
+            return 0; // need at least one round trip worth of samples
+
+        long bytesPerRtt = tuneBytes * rtt / elapsed;
+
+        tuneBytes = 0;
+        tuneStartNanos = now;
+
+        int buffered = stdout.buffered() + stderr.buffered();
+
+        if (bytesPerRtt * 2 < channelBufferSize || buffered > channelBufferSize / 4 || channelBufferSize >= MAX_WINDOW_SIZE)
+            return 0;
+
+        int newSize = (int) Math.min(MAX_WINDOW_SIZE, Math.max(2L * channelBufferSize, 2 * bytesPerRtt));
+        resizeWindow(newSize);
+        windowGrown = true;
+
+        return newSize;
+    }
+
 	public ChannelInputStream getStderrStream()
 	{
 		return stderr.stream;
@@ -277,6 +762,45 @@ public class Channel
 		return stdinStream;
 	}
 
+	/**
+	 * @return a new buffered stream on top of {@link #getStdinStream()}, its buffer holds one maximum sized packet
+	 */
+	public BufferedChannelOutputStream newBufferedStdinStream(FlushPolicy policy)
+	{
+		return new BufferedChannelOutputStream(this, policy);
+	}
+
+	public BufferedChannelInputStream newBufferedStdoutStream()
+	{
+		return new BufferedChannelInputStream(stdout.stream);
+	}
+
+	public BufferedChannelInputStream newBufferedStderrStream()
+	{
+		return new BufferedChannelInputStream(stderr.stream);
+	}
+
+	/**
+	 * @return a channel view of stdout, that reads straight into (direct) {@link ByteBuffer}s
+	 */
+	public ChannelReadableByteChannel newStdoutChannel()
+	{
+		return new ChannelReadableByteChannel(this, false);
+	}
+
+	public ChannelReadableByteChannel newStderrChannel()
+	{
+		return new ChannelReadableByteChannel(this, true);
+	}
+
+	/**
+	 * @return a channel view of stdin, closing it sends EOF like closing {@link #getStdinStream()}
+	 */
+	public ChannelWritableByteChannel newStdinChannel()
+	{
+		return new ChannelWritableByteChannel(this);
+	}
+
 	public ChannelInputStream getStdoutStream()
 	{
 		return stdout.stream;
@@ -290,6 +814,45 @@ public class Channel
         stderr.pipeTo(os);
     }
 
+    /**
+     * Like {@link #pipeStdoutStream(OutputStream)}, but <code>os</code> is written to from a shared
+     * thread pool, and the window is only extended as fast as <code>os</code> takes the data.
+     */
+    public synchronized void pipeStdoutStreamAsync(OutputStream os) {
+        stdout.pipeToAsync(os);
+    }
+
+    public synchronized void pipeStderrStreamAsync(OutputStream os) {
+        stderr.pipeToAsync(os);
+    }
+
+    public synchronized void pipeStdoutStreamAsync(OutputStream os, Executor executor) {
+        stdout.pipeToAsync(os, executor);
+    }
+
+    public synchronized void pipeStderrStreamAsync(OutputStream os, Executor executor) {
+        stderr.pipeToAsync(os, executor);
+    }
+
+    /**
+     * @return a publisher of stdout for one subscriber; the window only grows as the subscriber requests data
+     */
+    public synchronized Flow.Publisher<ByteBuffer> newStdoutPublisher() {
+        return stdout.newPublisher();
+    }
+
+    public synchronized Flow.Publisher<ByteBuffer> newStderrPublisher() {
+        return stderr.newPublisher();
+    }
+
+    /**
+     * @return a subscriber that sends what it receives to stdin, and EOF on completion; it only requests
+     *         data while the peer grants window
+     */
+    public Flow.Subscriber<ByteBuffer> newStdinSubscriber() {
+        return new ChannelSubscriber(this);
+    }
+
 	public String getExitSignal()
 	{
 		synchronized (this)
@@ -341,6 +904,95 @@ public class Channel
       		}
     }
 
+    /**
+     * Takes up to <code>max</code> bytes of the window granted by the peer.
+     *
+     * @return the number of bytes that may be sent, 0 if the window is exhausted
+     */
+    int reserveRemoteWindow(int max) {
+        while (true) {
+            long window = remoteWindow.get();
+            if (window == 0)
+                return 0;
+
+            int n = (int) Math.min(window, max);
+            if (remoteWindow.compareAndSet(window, window - n))
+                return n;
+        }
+    }
+
+    /**
+     * Adds the credit of a SSH_MSG_CHANNEL_WINDOW_ADJUST and wakes up the senders.
+     */
+    void addRemoteWindow(long credit) {
+        final long huge = 0xFFFFffffL; /* 2^32 - 1 */
+
+        while (true) {
+            long window = remoteWindow.get();
+
+            /* TODO - is this a good heuristic? */
+            long grown = Math.min(window + credit, huge);
+            if (remoteWindow.compareAndSet(window, grown))
+                break;
+        }
+
+        wakeWindowWaiters();
+    }
+
+    /**
+     * Parks the calling sender until the peer grants more window, the channel
+     * leaves the open state or the timeout expires.
+     */
+    void awaitRemoteWindow(long timeoutMillis) throws InterruptedIOException {
+        Thread me = Thread.currentThread();
+        windowWaiters.add(me);
+
+        try {
+            /* Check again after registering, or a wakeup in between would be lost */
+            if (remoteWindow.get() == 0 && state == STATE_OPEN)
+                LockSupport.parkNanos(this, timeoutMillis * 1000000L);
+
+            if (Thread.interrupted())
+                throw new InterruptedIOException();
+        } finally {
+            windowWaiters.remove(me);
+        }
+    }
+
+    /**
+     * Must be called after the credit or the state changed.
+     */
+    void wakeWindowWaiters() {
+        for (Thread t : windowWaiters)
+            LockSupport.unpark(t);
+
+        Runnable l = windowListener;
+        if (l != null)
+            l.run();
+    }
+
+    /**
+     * Fails the open and the pending requests, once the channel is closed. Must be called
+     * without holding the channel lock, the futures run their dependents right away.
+     */
+    void failPending() {
+        List<PendingRequest> pending;
+        IOException e;
+
+        synchronized (this) {
+            pending = new ArrayList<PendingRequest>(pendingRequests);
+            pendingRequests.clear();
+            e = (IOException) new IOException("This SSH2 channel is not open. state: " + state)
+                    .initCause(getReasonClosedCause());
+        }
+
+        if (!opened.isDone())
+            opened.completeExceptionally(new IOException("Could not open channel (state:" + state + ")")
+                    .initCause(getReasonClosedCause()));
+        for (PendingRequest r : pending)
+            r.reply.completeExceptionally(e);
+    }
+
     /**
      * Update the flow control couner and if necessary, sends ACK to the other end to
      * let it send more data.
@@ -354,63 +1006,203 @@ public class Channel
      * let it send more data.
      */
     void freeupWindow(int copylen, boolean sendAsync) throws IOException {
-        if (copylen <= 0) return;
+        int increment = windowIncrement(copylen);
+
+        /*
+         * If a consumer reads stdout and stdin in parallel, we may end up with
+         * sending two msgWindowAdjust messages. Luckily, it
+         * does not matter in which order they arrive at the server.
+         */
+
+        if (increment > 0)
+        {
+            if (sendAsync) {
+                /* Never sleep or send on the receive thread, it serves all channels */
+                queueWindowAdjust(increment);
+                return;
+            }
+
+            try {
+                receiveLimiter.acquire(increment);
+            } catch (InterruptedIOException e) {
+                /* localWindow already counts the increment, the timer has to send it */
+                releaseWindowAdjust(increment);
+                throw e;
+            }
+
+            synchronized (channelSendLock)
+            {
+                sendWindowAdjust(increment);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #freeupWindow(int)}, for the pump threads that serve all channels: never sleeps or sends.
+     * The adjust is queued for the asynchronous sender as soon as the receive limit allows.
+     */
+    void freeupWindowNoWait(int copylen) throws IOException {
+        releaseWindowAdjust(windowIncrement(copylen));
+    }
+
+    /**
+     * Queues <code>increment</code> and the adjusts held back before, or holds them until the timer releases
+     * them if the receive limit has no room.
+     */
+    private void releaseWindowAdjust(int increment) throws IOException {
+        long delay;
+
+        synchronized (this) {
+            heldWindowAdjust += increment;
+            increment = heldWindowAdjust;
+
+            if (increment <= 0 || heldWindowAdjustTimer)
+                return;
+
+            delay = receiveLimiter.delayNanos(increment);
+
+            if (delay > 0) {
+                heldWindowAdjustTimer = true;
+            } else {
+                receiveLimiter.take(increment);
+                heldWindowAdjust = 0;
+            }
+        }
+
+        if (delay > 0)
+            AsyncSinkPump.scheduleLater(releaseHeldWindowAdjust, delay);
+        else
+            queueWindowAdjust(increment);
+    }
+
+    private void queueWindowAdjust(int increment) throws IOException {
+        pendingWindowAdjust.addAndGet(increment);
+        if (windowAdjustQueued.compareAndSet(false, true))
+            cm.tm.sendAsynchronousMessage(queuedWindowAdjust);
+    }
+
+    /**
+     * Takes <code>copylen</code> consumed bytes into account.
+     *
+     * @return the increment to send to the peer, 0 if it is not worth an adjust yet
+     */
+    private int windowIncrement(int copylen) {
+        if (copylen <= 0) return 0;
 
         int increment = 0;
-        int remoteID;
         int localID;
+        int grownTo = 0;
+        boolean probeRtt = false;
 
         synchronized (this) {
-            if (localWindow <= ((channelBufferSize * 3) / 4)) {
-                // have enough local window been consumed? if so, we'll send Ack
+            if (autoTuneWindow) {
+                // tuning starts, and it has nothing to go by without a round trip time
+                probeRtt = tuneStartNanos == 0 && cm.tm.getSmoothedRttNanos() == 0;
+                grownTo = autoTuneWindow(copylen);
+            }
 
-                // the window control is on the combined bytes of stdout & stderr
-                int space = channelBufferSize - stdout.readable() - stderr.readable();
+            // the window control is on the combined bytes of stdout & stderr
+            int space = channelBufferSize - stdout.buffered() - stderr.buffered();
 
+            // have enough local window been consumed? if so, we'll send Ack
+            int percent = windowGrown ? GROWN_WINDOW_ADJUST_PERCENT : WINDOW_ADJUST_PERCENT;
+            if (space - localWindow >= (long) channelBufferSize * percent / 100)
                 increment = space - localWindow;
-                if (increment > 0)    // increment<0 can't happen, but be defensive
-                    localWindow += increment;
+
+            if (windowBudget != null) {
+                // give back what was consumed, and take the increment from the budget
+                windowCredit -= copylen;
+                increment = windowBudget.exchange(copylen, windowBudgetOpen ? increment : 0, windowCredit);
+                windowCredit += increment;
             }
 
-            remoteID = this.remoteID; /* read while holding the lock */
+            if (increment > 0)    // increment<0 can't happen, but be defensive
+                localWindow += increment;
+
             localID = this.localID; /* read while holding the lock */
 
         }
 
-        /*
-         * If a consumer reads stdout and stdin in parallel, we may end up with
-         * sending two msgWindowAdjust messages. Luckily, it
-         * does not matter in which order they arrive at the server.
-         */
+        if (probeRtt) {
+            try {
+                cm.probeRtt();
+            } catch (IOException e) {
+                // the connection is gone, nothing left to tune
+            }
+        }
 
-        if (increment > 0)
-        {
+        if (grownTo > 0) {
             if (log.isEnabled())
-                log.log(80, "Sending SSH_MSG_CHANNEL_WINDOW_ADJUST (channel " + localID + ", " + increment + ")");
-
-            synchronized (channelSendLock)
-            {
-                byte[] msg = msgWindowAdjust;
-
-                msg[0] = Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST;
-                msg[1] = (byte) (remoteID >> 24);
-                msg[2] = (byte) (remoteID >> 16);
-                msg[3] = (byte) (remoteID >> 8);
-                msg[4] = (byte) (remoteID);
-                msg[5] = (byte) (increment >> 24);
-                msg[6] = (byte) (increment >> 16);
-                msg[7] = (byte) (increment >> 8);
-                msg[8] = (byte) (increment);
-
-                if (closeMessageSent == false) {
-                    if (sendAsync) {
-                        cm.tm.sendAsynchronousMessage(msg);
-                    } else {
-                        cm.tm.sendMessage(msg);
-                    }
-                }
-            }
+                log.log(50, "Channel " + localID + " window grown to " + grownTo + " bytes");
+            cm.tm.growReceiveBuffer(grownTo);
         }
+
+        return Math.max(increment, 0);
+    }
+
+    /**
+     * Sends <code>increment</code> together with the adjusts queued up for the asynchronous sender.
+     * Must be called while holding the channelSendLock.
+     */
+    private void sendWindowAdjust(int increment) throws IOException {
+        increment += pendingWindowAdjust.getAndSet(0);
+        if (increment <= 0 || closeMessageSent)
+            return;
+
+        /* No channel lock here, it is set before the (volatile) state turned to open */
+        int remoteID = this.remoteID;
+
+        if (log.isEnabled())
+            log.log(80, "Sending SSH_MSG_CHANNEL_WINDOW_ADJUST (channel " + localID + ", " + increment + ")");
+
+        byte[] msg = msgWindowAdjust;
+
+        msg[0] = Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST;
+        msg[1] = (byte) (remoteID >> 24);
+        msg[2] = (byte) (remoteID >> 16);
+        msg[3] = (byte) (remoteID >> 8);
+        msg[4] = (byte) (remoteID);
+        msg[5] = (byte) (increment >> 24);
+        msg[6] = (byte) (increment >> 16);
+        msg[7] = (byte) (increment >> 8);
+        msg[8] = (byte) (increment);
+
+        cm.sendControlMessage(msg);
+    }
+
+    /**
+     * Takes the initial window from the budget, before it is advertised to the peer.
+     */
+    synchronized void openWindowBudget(WindowBudget budget) {
+        windowBudget = budget;
+        windowBudgetOpen = true;
+        localWindow = budget.open(channelBufferSize);
+        windowCredit = localWindow;
+    }
+
+    /**
+     * The channel is closed, the window that will never be used goes back to the budget.
+     * Buffered data is given back as it is consumed.
+     */
+    synchronized void closeWindowBudget() {
+        if (windowBudget == null || !windowBudgetOpen)
+            return;
+        windowBudgetOpen = false;
+        windowBudget.close(localWindow);
+        windowCredit -= localWindow;
+        localWindow = 0;
+    }
+
+    /**
+     * The connection is gone, all credit goes back to the budget.
+     */
+    synchronized void releaseWindowBudget() {
+        if (windowBudget == null)
+            return;
+        closeWindowBudget();
+        windowBudget.release(windowCredit);
+        windowBudget = null;
+        windowCredit = 0;
     }
 
     public void requestWindowChange(int term_width_characters, int term_height_characters,
@@ -428,7 +1220,7 @@ public class Channel
         synchronized (channelSendLock) {
             if (closeMessageSent)
                 throw (IOException)new IOException("Cannot request window-change on this channel").initCause(getReasonClosedCause());
-            cm.tm.sendMessage(pwc.getPayload());
+            cm.sendControlMessage(pwc);
         }
     }
 
@@ -445,7 +1237,7 @@ public class Channel
         synchronized (channelSendLock) {
             if (closeMessageSent)
                 throw (IOException)new IOException("Cannot request window-change on this channel").initCause(getReasonClosedCause());
-            cm.tm.sendMessage(p.getPayload());
+            cm.sendControlMessage(p);
         }
     }
 
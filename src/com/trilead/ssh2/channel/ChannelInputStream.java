@@ -70,11 +70,12 @@ public final class ChannelInputStream extends InputStream
 		return read(b, 0, b.length);
 	}
 
-	public int read() throws IOException
-	{
-		/* Yes, this stream is pure and unbuffered, a single byte read() is slow */
+	/* Yes, this stream is pure and unbuffered, a single byte read() is slow; at least it does not allocate */
+	private final byte[] single = new byte[1];
 
-		final byte b[] = new byte[1];
+	public synchronized int read() throws IOException
+	{
+		final byte b[] = single;
 
 		int ret = read(b, 0, 1);
 
@@ -2,8 +2,13 @@ package com.trilead.ssh2.channel;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
 
 import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.log.Logger;
@@ -12,6 +17,7 @@ import com.trilead.ssh2.packets.PacketChannelOpenFailure;
 import com.trilead.ssh2.packets.PacketChannelTrileadPing;
 import com.trilead.ssh2.packets.PacketGlobalCancelForwardRequest;
 import com.trilead.ssh2.packets.PacketGlobalForwardRequest;
+import com.trilead.ssh2.packets.PacketGlobalKeepAlive;
 import com.trilead.ssh2.packets.PacketGlobalTrileadPing;
 import com.trilead.ssh2.packets.PacketOpenDirectTCPIPChannel;
 import com.trilead.ssh2.packets.PacketOpenSessionChannel;
@@ -23,6 +29,8 @@ import com.trilead.ssh2.packets.PacketSessionX11Request;
 import com.trilead.ssh2.packets.PacketWindowChange;
 import com.trilead.ssh2.packets.Packets;
 import com.trilead.ssh2.packets.TypesReader;
+import com.trilead.ssh2.packets.TypesWriter;
+import com.trilead.ssh2.packets.WritablePacket;
 import com.trilead.ssh2.transport.MessageHandler;
 import com.trilead.ssh2.transport.TransportManager;
 
@@ -44,12 +52,45 @@ public class ChannelManager implements MessageHandler
 
 	/*package*/ TransportManager tm;
 
-	private Vector channels = new Vector();
+	/* Indexed by local id; its monitor also guards the global request state below */
+	private final ChannelTable channels = new ChannelTable();
 	private int nextLocalChannel = 100;
 	private boolean shutdown = false;
 	private int globalSuccessCounter = 0;
 	private int globalFailedCounter = 0;
 
+	/* Window credit of all channels of this connection */
+	private final WindowBudget windowBudget = WindowBudget.forConnection();
+
+	/* Order of the channel data of this connection */
+	final OutboundScheduler scheduler = new OutboundScheduler();
+
+	/*
+	 * The want-reply global requests in the order they were sent, replies
+	 * arrive in the same order (RFC 4254, 4). This lets keepalives be in
+	 * flight while a caller waits for the result of its own global request.
+	 * Guarded by the channels lock.
+	 */
+	private final LinkedList<PendingGlobalRequest> pendingGlobalRequests = new LinkedList<PendingGlobalRequest>();
+	private int keepAlivesOutstanding = 0;
+
+	/* Set once a keepalive went out to measure the round trip, guarded by the channels lock */
+	private boolean rttProbeSent = false;
+
+	private static final class PendingGlobalRequest
+	{
+		final long sentNanos = System.nanoTime();
+		final boolean keepAlive;
+		/* Answered right away by the peer, the reply is a round trip measurement */
+		final boolean probe;
+
+		PendingGlobalRequest(boolean keepAlive, boolean probe)
+		{
+			this.keepAlive = keepAlive;
+			this.probe = probe;
+		}
+	}
+
 	private HashMap remoteForwardings = new HashMap();
 
 	private Vector listenerThreads = new Vector();
@@ -62,43 +103,124 @@ public class ChannelManager implements MessageHandler
 		tm.registerMessageHandler(this, 80, 100);
 	}
 
-	private Channel getChannel(int id)
+	/*
+	 * Sends a want-reply global request. All of them go through the
+	 * asynchronous queue, so that they hit the wire in the order in which they
+	 * were added to pendingGlobalRequests. Only the replies to probes (keepalives
+	 * and pings) are taken as round trip times, others include the time the
+	 * peer needed to handle the request.
+	 */
+	private void sendGlobalRequest(byte[] payload, boolean keepAlive, boolean probe) throws IOException
 	{
 		synchronized (channels)
 		{
-			for (int i = 0; i < channels.size(); i++)
-			{
-				Channel c = (Channel) channels.elementAt(i);
-				if (c.localID == id)
-					return c;
-			}
+			if (shutdown)
+				throw new IOException("The connection is being shutdown");
+
+			if (keepAlive)
+				keepAlivesOutstanding++;
+			else
+				globalSuccessCounter = globalFailedCounter = 0;
+
+			pendingGlobalRequests.addLast(new PendingGlobalRequest(keepAlive, probe));
+			tm.sendAsynchronousMessage(payload);
 		}
-		return null;
 	}
 
-	private void removeChannel(int id)
+	/* Must be called while holding the channels lock, returns false if the reply was for a keepalive */
+	private boolean globalReply()
+	{
+		PendingGlobalRequest r = pendingGlobalRequests.poll();
+
+		if (r == null)
+			return true;
+
+		if (r.probe)
+			tm.addRttSample(System.nanoTime() - r.sentNanos);
+
+		if (r.keepAlive)
+		{
+			keepAlivesOutstanding--;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a "keepalive@openssh.com" global request without waiting for the
+	 * reply. Used by {@link KeepAliveService}.
+	 */
+	public void sendKeepAlive() throws IOException
+	{
+		sendGlobalRequest(new PacketGlobalKeepAlive().getPayload(), true, true);
+
+		if (log.isEnabled())
+			log.log(80, "Sending SSH_MSG_GLOBAL_REQUEST 'keepalive@openssh.com'.");
+	}
+
+	/**
+	 * Sends a keepalive to measure the round trip time, which the window
+	 * auto-tuning needs, unless there is a measurement already or a probe
+	 * was sent before. Does not block.
+	 */
+	void probeRtt() throws IOException
 	{
 		synchronized (channels)
 		{
-			for (int i = 0; i < channels.size(); i++)
-			{
-				Channel c = (Channel) channels.elementAt(i);
-				if (c.localID == id)
-				{
-					channels.removeElementAt(i);
-					break;
-				}
-			}
+			if (rttProbeSent || tm.getSmoothedRttNanos() != 0)
+				return;
+
+			rttProbeSent = true;
 		}
+
+		sendKeepAlive();
+	}
+
+	/**
+	 * @return the number of keepalives the server has not replied to yet
+	 */
+	public int getKeepAlivesOutstanding()
+	{
+		synchronized (channels)
+		{
+			return keepAlivesOutstanding;
+		}
+	}
+
+	private Channel getChannel(int id)
+	{
+		return channels.get(id);
 	}
 
+	private void removeChannel(int id)
+	{
+		Channel c = channels.remove(id);
+		if (c != null)
+			c.closeWindowBudget();
+	}
+
+	/* Must be called before the local window of the channel is advertised */
 	private int addChannel(Channel c)
 	{
+		int id;
+
 		synchronized (channels)
 		{
-			channels.addElement(c);
-			return nextLocalChannel++;
+			id = nextLocalChannel++;
+			channels.put(id, c);
 		}
+
+		c.openWindowBudget(windowBudget);
+		return id;
+	}
+
+	/**
+	 * The budget for the memory that the peer may fill on our side, summed
+	 * over all channels of this connection. Unlimited by default.
+	 */
+	public WindowBudget getWindowBudget()
+	{
+		return windowBudget;
 	}
 
 	private void waitUntilChannelOpen(Channel c) throws IOException
@@ -158,35 +280,85 @@ public class ChannelManager implements MessageHandler
 		}
 	}
 
-	private final boolean waitForChannelRequestResult(Channel c) throws IOException
+	/*
+	 * Sends a want-reply channel request. The peer answers the requests of a
+	 * channel in the order in which they were sent (RFC 4254, 5.4), so they are
+	 * queued in the channel while its send lock keeps that order.
+	 */
+	private CompletableFuture<Boolean> sendChannelRequest(Channel c, WritablePacket request, String errorMsg)
+			throws IOException
 	{
-		synchronized (c)
+		return sendChannelRequest(c, request, errorMsg, false);
+	}
+
+	/*
+	 * With probe set, the reply is taken as a round trip time; only for
+	 * requests that the peer answers without doing anything.
+	 */
+	private CompletableFuture<Boolean> sendChannelRequest(Channel c, WritablePacket request, String errorMsg,
+			boolean probe) throws IOException
+	{
+		Channel.PendingRequest r = new Channel.PendingRequest(probe);
+
+		synchronized (c.channelSendLock)
 		{
-			while ((c.successCounter == 0) && (c.failedCounter == 0))
+			synchronized (c)
 			{
 				if (c.state != Channel.STATE_OPEN)
-				{
-                    throw ioException("This SSH2 channel is not open. state: "+c.state,c);
-				}
+					throw ioException(errorMsg, c);
 
-				try
-				{
-					c.wait(DEFAULT_WAIT_TIMEOUT);
-				}
-				catch (InterruptedException ignore)
-				{
-					throw new InterruptedIOException();
-				}
+				c.pendingRequests.add(r);
 			}
 
-			if ((c.failedCounter == 0) && (c.successCounter == 1))
-				return true;
+			if (c.closeMessageSent)
+				throw ioException(errorMsg, c);
 
-			if ((c.failedCounter == 1) && (c.successCounter == 0))
-				return false;
+			sendControlMessage(request);
+		}
+
+		return r.reply;
+	}
 
-			throw new IOException("Illegal state. The server sent " + c.successCounter
-					+ " SSH_MSG_CHANNEL_SUCCESS and " + c.failedCounter + " SSH_MSG_CHANNEL_FAILURE messages.");
+	/*
+	 * Turns the reply into the outcome of an API call: a denied request fails
+	 * with "failure", caused by why it failed.
+	 */
+	private static CompletableFuture<Void> accepted(CompletableFuture<Boolean> reply, final String failure)
+	{
+		final CompletableFuture<Void> result = new CompletableFuture<Void>();
+
+		reply.whenComplete(new BiConsumer<Boolean, Throwable>()
+		{
+			public void accept(Boolean ok, Throwable t)
+			{
+				if (t == null && ok.booleanValue())
+					result.complete(null);
+				else
+					result.completeExceptionally(new IOException(failure).initCause(
+							(t != null) ? t : new IOException("The server denied the request.")));
+			}
+		});
+
+		return result;
+	}
+
+	/* Waits for an asynchronous call, for the blocking variants of the API */
+	private static <T> T await(CompletableFuture<T> f) throws IOException
+	{
+		try
+		{
+			return f.get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) new IOException(cause.getMessage()).initCause(cause);
+			throw new IOException(cause);
 		}
 	}
 
@@ -214,16 +386,11 @@ public class ChannelManager implements MessageHandler
 		if (log.isEnabled())
 			log.log(50, "Closing all X11 channels for the given fake cookie");
 
-		Vector channel_copy;
+		Channel[] channel_copy = channels.values();
 
-		synchronized (channels)
+		for (int i = 0; i < channel_copy.length; i++)
 		{
-			channel_copy = (Vector) channels.clone();
-		}
-
-		for (int i = 0; i < channel_copy.size(); i++)
-		{
-			Channel c = (Channel) channel_copy.elementAt(i);
+			Channel c = channel_copy[i];
 
 			synchronized (c)
 			{
@@ -256,16 +423,11 @@ public class ChannelManager implements MessageHandler
 		if (log.isEnabled())
 			log.log(50, "Closing all channels");
 
-		Vector channel_copy;
-
-		synchronized (channels)
-		{
-			channel_copy = (Vector) channels.clone();
-		}
+		Channel[] channel_copy = channels.values();
 
-		for (int i = 0; i < channel_copy.size(); i++)
+		for (int i = 0; i < channel_copy.length; i++)
 		{
-			Channel c = (Channel) channel_copy.elementAt(i);
+			Channel c = channel_copy[i];
 			try
 			{
 				closeChannel(c, "Closing all channels", true);
@@ -285,6 +447,7 @@ public class ChannelManager implements MessageHandler
 			if (force)
 			{
 				c.state = Channel.STATE_CLOSED;
+				c.wakeWindowWaiters();
 				c.eof();
 			}
 
@@ -296,14 +459,17 @@ public class ChannelManager implements MessageHandler
 			msg[3] = (byte) (c.remoteID >> 8);
 			msg[4] = (byte) (c.remoteID);
 
-			c.notifyAll();
+			c.conditionsChanged(0);
 		}
 
+		if (force)
+			c.failPending();
+
 		synchronized (c.channelSendLock)
 		{
 			if (c.closeMessageSent == true)
 				return;
-			tm.sendMessage(msg);
+			sendControlMessage(msg);
 			c.closeMessageSent = true;
 		}
 
@@ -331,7 +497,7 @@ public class ChannelManager implements MessageHandler
 		{
 			if (c.closeMessageSent == true)
 				return;
-			tm.sendMessage(msg);
+			sendControlMessage(msg);
 		}
 
 		if (log.isEnabled())
@@ -356,83 +522,259 @@ public class ChannelManager implements MessageHandler
 		{
 			if (c.closeMessageSent == true)
 				return;
-			tm.sendMessage(pcoc.getPayload());
+			sendControlMessage(pcoc);
 		}
 	}
 
 	public void sendData(Channel c, byte[] buffer, int pos, int len) throws IOException
 	{
-		while (len > 0)
+		/* One pooled writer for all chunks, the packet header is filled in by the transport */
+		TypesWriter tw = TypesWriter.obtain();
+
+		try
 		{
-			int thislen = 0;
-			byte[] msg;
+			while (len > 0)
+			{
+				int thislen = reserveSendWindow(c, len, true);
 
-			synchronized (c)
+				tw.reset(TypesWriter.PACKET_HEADER_ROOM);
+				tw.writeByte(Packets.SSH_MSG_CHANNEL_DATA);
+				tw.writeUINT32(c.remoteID);
+				tw.writeString(buffer, pos, thislen);
+
+				sendChannelData(c, tw, thislen);
+
+				pos += thislen;
+				len -= thislen;
+			}
+		}
+		finally
+		{
+			tw.recycle();
+		}
+	}
+
+	/**
+	 * Sends the remaining bytes of <code>src</code>, which may be a direct
+	 * buffer; they are copied straight into the packet.
+	 */
+	public void sendData(Channel c, ByteBuffer src) throws IOException
+	{
+		TypesWriter tw = TypesWriter.obtain();
+
+		try
+		{
+			while (src.hasRemaining())
 			{
-				while (true)
+				int thislen = reserveSendWindow(c, src.remaining(), true);
+
+				writeChannelData(c, tw, src, thislen);
+				sendChannelData(c, tw, thislen);
+			}
+		}
+		finally
+		{
+			tw.recycle();
+		}
+	}
+
+	/**
+	 * Like {@link #sendData(Channel, ByteBuffer)}, but never waits, for
+	 * threads that serve many channels: only sends as much as the window, the
+	 * rate limits and the other channels allow right now, maybe nothing.
+	 * <p>
+	 * Only the write to the transport can still block, like for every
+	 * sender, while the socket does not take more.
+	 *
+	 * @param wakeup run once it is worth trying again, if a rate limit or the
+	 *        scheduler held the data back. Must not block. Running out of
+	 *        window is not covered, see {@link Channel#windowListener}.
+	 * @return whether a rate limit or the scheduler held the data back
+	 */
+	public boolean trySendData(Channel c, ByteBuffer src, Runnable wakeup) throws IOException
+	{
+		TypesWriter tw = TypesWriter.obtain();
+
+		try
+		{
+			while (src.hasRemaining())
+			{
+				/*
+				 * No turn and no tokens for a packet that has no window, a
+				 * closed channel fails below. A turn granted meanwhile is
+				 * given up, the other channels must not wait for it.
+				 */
+
+				if (c.state == Channel.STATE_OPEN && c.remoteWindow.get() == 0)
 				{
-					if (c.state == Channel.STATE_CLOSED)
-                        throw ioException("SSH channel is closed",c);
+					scheduler.cancel(c.outbound);
+					return false;
+				}
 
-					if (c.state != Channel.STATE_OPEN)
-						throw new IOException("SSH channel in strange state. (" + c.state + ")");
+				int len = Math.min(src.remaining(), maxDataLength(c));
 
-					if (c.remoteWindow != 0)
-						break;
+				long delay = Math.max(c.sendLimiter.delayNanos(len), tm.getSendLimiter().delayNanos(len));
 
-					try
-					{
-						c.wait(DEFAULT_WAIT_TIMEOUT);
-					}
-					catch (InterruptedException ignore)
-					{
-						throw new InterruptedIOException();
-					}
+				if (delay > 0)
+				{
+					scheduler.cancel(c.outbound);
+					AsyncSinkPump.scheduleLater(wakeup, delay);
+					return true;
 				}
 
-				/* len > 0, no sign extension can happen when comparing */
+				if (!scheduler.tryAcquire(c.outbound, len, wakeup))
+					return true;
 
-				thislen = (c.remoteWindow >= len) ? len : (int) c.remoteWindow;
+				try
+				{
+					int thislen = reserveSendWindow(c, len, false);
 
-				int estimatedMaxDataLen = c.remoteMaxPacketSize - (tm.getPacketOverheadEstimate() + 9);
+					if (thislen == 0)
+						return false;
 
-				/* The worst case scenario =) a true bottleneck */
+					c.sendLimiter.take(thislen);
+					tm.getSendLimiter().take(thislen);
 
-				if (estimatedMaxDataLen <= 0)
+					writeChannelData(c, tw, src, thislen);
+					sendPacket(c, tw);
+				}
+				finally
 				{
-					estimatedMaxDataLen = 1;
+					scheduler.done();
 				}
+			}
+		}
+		finally
+		{
+			tw.recycle();
+		}
 
-				if (thislen > estimatedMaxDataLen)
-					thislen = estimatedMaxDataLen;
+		return false;
+	}
 
-				c.remoteWindow -= thislen;
+	/**
+	 * Takes as much window as one packet may carry, at most <code>len</code>
+	 * (&gt; 0) bytes. If there is none, waits until the peer grants some, or
+	 * returns 0 if <code>wait</code> is false.
+	 */
+	private int reserveSendWindow(Channel c, int len, boolean wait) throws IOException
+	{
+		while (true)
+		{
+			/* The state is volatile, anything set before the channel was opened is visible now */
 
-				msg = new byte[1 + 8 + thislen];
+			int state = c.state;
 
-				msg[0] = Packets.SSH_MSG_CHANNEL_DATA;
-				msg[1] = (byte) (c.remoteID >> 24);
-				msg[2] = (byte) (c.remoteID >> 16);
-				msg[3] = (byte) (c.remoteID >> 8);
-				msg[4] = (byte) (c.remoteID);
-				msg[5] = (byte) (thislen >> 24);
-				msg[6] = (byte) (thislen >> 16);
-				msg[7] = (byte) (thislen >> 8);
-				msg[8] = (byte) (thislen);
+			if (state == Channel.STATE_CLOSED)
+				throw ioException("SSH channel is closed",c);
 
-				System.arraycopy(buffer, pos, msg, 9, thislen);
-			}
+			if (state != Channel.STATE_OPEN)
+				throw new IOException("SSH channel in strange state. (" + state + ")");
 
-			synchronized (c.channelSendLock)
-			{
-				if (c.closeMessageSent == true)
-                    throw ioException("SSH channel is closed",c);
+			/* len > 0, the credit is taken without locking the channel */
 
-				tm.sendMessage(msg);
-			}
+			int thislen = c.reserveRemoteWindow(Math.min(len, maxDataLength(c)));
+
+			if (thislen > 0 || !wait)
+				return thislen;
+
+			c.awaitRemoteWindow(DEFAULT_WAIT_TIMEOUT);
+		}
+	}
+
+	private static int maxDataLength(Channel c)
+	{
+		/*
+		 * The maximum packet size limits the data of a single
+		 * SSH_MSG_CHANNEL_DATA (RFC 4254, 5.2), headers are not counted.
+		 * It is an uint32, anything above 2^31 - 1 is just "very large".
+		 */
+
+		int maxDataLen = (c.remoteMaxPacketSize < 0) ? Integer.MAX_VALUE : c.remoteMaxPacketSize;
+
+		/* The worst case scenario =) a true bottleneck */
+
+		if (maxDataLen == 0)
+		{
+			maxDataLen = 1;
+		}
+
+		return maxDataLen;
+	}
+
+	private static void writeChannelData(Channel c, TypesWriter tw, ByteBuffer src, int thislen)
+	{
+		tw.reset(TypesWriter.PACKET_HEADER_ROOM);
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_DATA);
+		tw.writeUINT32(c.remoteID);
+		tw.writeString(src, thislen);
+	}
+
+	/* Sends a SSH_MSG_CHANNEL_DATA carrying thislen bytes of reserved window */
+	private void sendChannelData(Channel c, TypesWriter tw, int thislen) throws IOException
+	{
+		try
+		{
+			c.sendLimiter.acquire(thislen);
+			tm.getSendLimiter().acquire(thislen);
+		}
+		catch (InterruptedIOException e)
+		{
+			/* Nothing was sent, the reserved window goes back to the other senders */
+			c.addRemoteWindow(thislen);
+			throw e;
+		}
+
+		scheduler.acquire(c.outbound, thislen);
+
+		try
+		{
+			sendPacket(c, tw);
+		}
+		finally
+		{
+			scheduler.done();
+		}
+	}
+
+	private void sendPacket(Channel c, TypesWriter tw) throws IOException
+	{
+		synchronized (c.channelSendLock)
+		{
+			if (c.closeMessageSent == true)
+				throw ioException("SSH channel is closed",c);
 
-			pos += thislen;
-			len -= thislen;
+			tm.sendMessage(tw);
+		}
+	}
+
+	/**
+	 * Sends a control message of a channel ahead of the channel data that
+	 * waits for its turn.
+	 */
+	void sendControlMessage(byte[] msg) throws IOException
+	{
+		scheduler.beginControl();
+		try
+		{
+			tm.sendMessage(msg);
+		}
+		finally
+		{
+			scheduler.endControl();
+		}
+	}
+
+	void sendControlMessage(WritablePacket packet) throws IOException
+	{
+		scheduler.beginControl();
+		try
+		{
+			tm.sendMessage(packet);
+		}
+		finally
+		{
+			scheduler.endControl();
 		}
 	}
 
@@ -458,13 +800,8 @@ public class ChannelManager implements MessageHandler
 			remoteForwardings.put(key, rfd);
 		}
 
-		synchronized (channels)
-		{
-			globalSuccessCounter = globalFailedCounter = 0;
-		}
-
 		PacketGlobalForwardRequest pgf = new PacketGlobalForwardRequest(true, bindAddress, bindPort);
-		tm.sendMessage(pgf.getPayload());
+		sendGlobalRequest(pgf.getPayload(), false, false);
 
 		if (log.isEnabled())
 			log.log(50, "Requesting a remote forwarding ('" + bindAddress + "', " + bindPort + ")");
@@ -498,14 +835,9 @@ public class ChannelManager implements MessageHandler
 				throw new IOException("Sorry, there is no known remote forwarding for remote port " + bindPort);
 		}
 
-		synchronized (channels)
-		{
-			globalSuccessCounter = globalFailedCounter = 0;
-		}
-
 		PacketGlobalCancelForwardRequest pgcf = new PacketGlobalCancelForwardRequest(true, rfd.bindAddress,
 				rfd.bindPort);
-		tm.sendMessage(pgcf.getPayload());
+		sendGlobalRequest(pgcf.getPayload(), false, false);
 
 		if (log.isEnabled())
 			log.log(50, "Requesting cancelation of remote forward ('" + rfd.bindAddress + "', " + rfd.bindPort + ")");
@@ -550,7 +882,7 @@ public class ChannelManager implements MessageHandler
 		PacketOpenDirectTCPIPChannel dtc = new PacketOpenDirectTCPIPChannel(c.localID, c.localWindow,
 				c.localMaxPacketSize, host_to_connect, port_to_connect, originator_IP_address, originator_port);
 
-		tm.sendMessage(dtc.getPayload());
+		sendControlMessage(dtc);
 
 		waitUntilChannelOpen(c);
 
@@ -559,7 +891,50 @@ public class ChannelManager implements MessageHandler
 
 	public Channel openSessionChannel() throws IOException
 	{
-		Channel c = new Channel(this);
+		return openSessionChannel(0);
+	}
+
+	/**
+	 * Opens a session channel that lets the peer send data packets of up to
+	 * <code>maxPacketSize</code> bytes, e.g., larger ones for bulk transfers.
+	 * 
+	 * @param maxPacketSize 0 for the default
+	 */
+	public Channel openSessionChannel(int maxPacketSize) throws IOException
+	{
+		Channel c = sendOpenSessionChannel(maxPacketSize);
+
+		waitUntilChannelOpen(c);
+
+		return c;
+	}
+
+	/**
+	 * Like {@link #openSessionChannel(int)}, but does not wait for the peer.
+	 * The future is completed on the receive thread; dependent actions that
+	 * block must use the <code>...Async</code> methods of {@link CompletableFuture}.
+	 */
+	public CompletableFuture<Channel> openSessionChannelAsync(int maxPacketSize)
+	{
+		try
+		{
+			return sendOpenSessionChannel(maxPacketSize).opened;
+		}
+		catch (IOException e)
+		{
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	private Channel sendOpenSessionChannel(int maxPacketSize) throws IOException
+	{
+		if ((maxPacketSize < 0) || (maxPacketSize > Channel.MAX_CHANNEL_PACKET_SIZE))
+			throw new IllegalArgumentException("Invalid maximum packet size: " + maxPacketSize);
+
+		Channel c = new Channel(this, maxPacketSize);
+
+		/* The transport has to accept what we are about to advertise */
+		tm.raiseMaxPacketSize(c.localMaxPacketSize + Channel.PACKET_SIZE_SLACK);
 
 		synchronized (c)
 		{
@@ -571,23 +946,16 @@ public class ChannelManager implements MessageHandler
 			log.log(50, "Sending SSH_MSG_CHANNEL_OPEN (Channel " + c.localID + ")");
 
 		PacketOpenSessionChannel smo = new PacketOpenSessionChannel(c.localID, c.localWindow, c.localMaxPacketSize);
-		tm.sendMessage(smo.getPayload());
-
-		waitUntilChannelOpen(c);
+		sendControlMessage(smo);
 
 		return c;
 	}
 
 	public void requestGlobalTrileadPing() throws IOException
 	{
-		synchronized (channels)
-		{
-			globalSuccessCounter = globalFailedCounter = 0;
-		}
-
 		PacketGlobalTrileadPing pgtp = new PacketGlobalTrileadPing();
 
-		tm.sendMessage(pgtp.getPayload());
+		sendGlobalRequest(pgtp.getPayload(), false, true);
 
 		if (log.isEnabled())
 			log.log(50, "Sending SSH_MSG_GLOBAL_REQUEST 'trilead-ping'.");
@@ -607,28 +975,12 @@ public class ChannelManager implements MessageHandler
 
 	public void requestChannelTrileadPing(Channel c) throws IOException
 	{
-		PacketChannelTrileadPing pctp;
-
-		synchronized (c)
-		{
-			if (c.state != Channel.STATE_OPEN)
-				throw ioException("Cannot ping this channel",c);
-
-			pctp = new PacketChannelTrileadPing(c.remoteID);
-
-			c.successCounter = c.failedCounter = 0;
-		}
-
-		synchronized (c.channelSendLock)
-		{
-			if (c.closeMessageSent)
-                throw ioException("Cannot ping this channel",c);
-			tm.sendMessage(pctp.getPayload());
-		}
-
 		try
 		{
-			if (waitForChannelRequestResult(c) == true)
+			boolean success = await(sendChannelRequest(c, new PacketChannelTrileadPing(c.remoteID),
+					"Cannot ping this channel", true));
+
+			if (success)
 				throw new IOException("Your server is alive - but buggy. "
 						+ "It replied with SSH_MSG_SESSION_SUCCESS when it actually should not.");
 
@@ -642,170 +994,112 @@ public class ChannelManager implements MessageHandler
 	public void requestPTY(Channel c, String term, int term_width_characters, int term_height_characters,
 			int term_width_pixels, int term_height_pixels, byte[] terminal_modes) throws IOException
 	{
-		PacketSessionPtyRequest spr;
-
-		synchronized (c)
-		{
-			if (c.state != Channel.STATE_OPEN)
-                throw ioException("Cannot request PTY on this channel",c);
-
-			spr = new PacketSessionPtyRequest(c.remoteID, true, term, term_width_characters, term_height_characters,
-					term_width_pixels, term_height_pixels, terminal_modes);
-
-			c.successCounter = c.failedCounter = 0;
-		}
-
-		synchronized (c.channelSendLock)
-		{
-			if (c.closeMessageSent)
-                throw ioException("Cannot request PTY on this channel",c);
-			tm.sendMessage(spr.getPayload());
-		}
+		await(requestPTYAsync(c, term, term_width_characters, term_height_characters, term_width_pixels,
+				term_height_pixels, terminal_modes));
+	}
 
+	/**
+	 * Like {@link #requestPTY(Channel, String, int, int, int, int, byte[])}, but
+	 * does not wait for the reply. The future is completed on the receive
+	 * thread; dependent actions that block must use the <code>...Async</code>
+	 * methods of {@link CompletableFuture}.
+	 */
+	public CompletableFuture<Void> requestPTYAsync(Channel c, String term, int term_width_characters,
+			int term_height_characters, int term_width_pixels, int term_height_pixels, byte[] terminal_modes)
+	{
 		try
 		{
-			if (waitForChannelRequestResult(c) == false)
-				throw new IOException("The server denied the request.");
+			return accepted(sendChannelRequest(c, new PacketSessionPtyRequest(c.remoteID, true, term,
+					term_width_characters, term_height_characters, term_width_pixels, term_height_pixels,
+					terminal_modes), "Cannot request PTY on this channel"), "PTY request failed");
 		}
 		catch (IOException e)
 		{
-			throw (IOException) new IOException("PTY request failed").initCause(e);
+			return CompletableFuture.failedFuture(e);
 		}
 	}
 
     public void requestX11(Channel c, boolean singleConnection, String x11AuthenticationProtocol,
 			String x11AuthenticationCookie, int x11ScreenNumber) throws IOException
 	{
-		PacketSessionX11Request psr;
-
-		synchronized (c)
-		{
-			if (c.state != Channel.STATE_OPEN)
-                throw ioException("Cannot request X11 on this channel",c);
-
-			psr = new PacketSessionX11Request(c.remoteID, true, singleConnection, x11AuthenticationProtocol,
-					x11AuthenticationCookie, x11ScreenNumber);
-
-			c.successCounter = c.failedCounter = 0;
-		}
-
-		synchronized (c.channelSendLock)
-		{
-			if (c.closeMessageSent)
-                throw ioException("Cannot request X11 on this channel",c);
-			tm.sendMessage(psr.getPayload());
-		}
+		await(requestX11Async(c, singleConnection, x11AuthenticationProtocol, x11AuthenticationCookie,
+				x11ScreenNumber));
+	}
 
+	public CompletableFuture<Void> requestX11Async(Channel c, boolean singleConnection,
+			String x11AuthenticationProtocol, String x11AuthenticationCookie, int x11ScreenNumber)
+	{
 		if (log.isEnabled())
 			log.log(50, "Requesting X11 forwarding (Channel " + c.localID + "/" + c.remoteID + ")");
 
 		try
 		{
-			if (waitForChannelRequestResult(c) == false)
-				throw new IOException("The server denied the request.");
+			return accepted(sendChannelRequest(c, new PacketSessionX11Request(c.remoteID, true, singleConnection,
+					x11AuthenticationProtocol, x11AuthenticationCookie, x11ScreenNumber),
+					"Cannot request X11 on this channel"), "The X11 request failed.");
 		}
 		catch (IOException e)
 		{
-			throw (IOException) new IOException("The X11 request failed.").initCause(e);
+			return CompletableFuture.failedFuture(e);
 		}
 	}
 
 	public void requestSubSystem(Channel c, String subSystemName) throws IOException
 	{
-		PacketSessionSubsystemRequest ssr;
-
-		synchronized (c)
-		{
-			if (c.state != Channel.STATE_OPEN)
-                throw ioException("Cannot request subsystem on this channel",c);
-
-			ssr = new PacketSessionSubsystemRequest(c.remoteID, true, subSystemName);
-
-			c.successCounter = c.failedCounter = 0;
-		}
-
-		synchronized (c.channelSendLock)
-		{
-			if (c.closeMessageSent)
-                throw ioException("Cannot request subsystem on this channel",c);
-			tm.sendMessage(ssr.getPayload());
-		}
+		await(requestSubSystemAsync(c, subSystemName));
+	}
 
+	public CompletableFuture<Void> requestSubSystemAsync(Channel c, String subSystemName)
+	{
 		try
 		{
-			if (waitForChannelRequestResult(c) == false)
-				throw new IOException("The server denied the request.");
+			return accepted(sendChannelRequest(c, new PacketSessionSubsystemRequest(c.remoteID, true, subSystemName),
+					"Cannot request subsystem on this channel"), "The subsystem request failed.");
 		}
 		catch (IOException e)
 		{
-			throw (IOException) new IOException("The subsystem request failed.").initCause(e);
+			return CompletableFuture.failedFuture(e);
 		}
 	}
 
 	public void requestExecCommand(Channel c, String cmd) throws IOException
 	{
-		PacketSessionExecCommand sm;
-
-		synchronized (c)
-		{
-			if (c.state != Channel.STATE_OPEN)
-                throw ioException("Cannot execute command on this channel",c);
-
-			sm = new PacketSessionExecCommand(c.remoteID, true, cmd);
-
-			c.successCounter = c.failedCounter = 0;
-		}
+		await(requestExecCommandAsync(c, cmd));
+	}
 
-		synchronized (c.channelSendLock)
+	public CompletableFuture<Void> requestExecCommandAsync(Channel c, String cmd)
+	{
+		try
 		{
-			if (c.closeMessageSent)
-                throw ioException("Cannot execute command on this channel",c);
-			tm.sendMessage(sm.getPayload());
-		}
+			CompletableFuture<Boolean> reply = sendChannelRequest(c, new PacketSessionExecCommand(c.remoteID, true,
+					cmd), "Cannot execute command on this channel");
 
-		if (log.isEnabled())
-			log.log(50, "Executing command (channel " + c.localID + ", '" + cmd + "')");
+			if (log.isEnabled())
+				log.log(50, "Executing command (channel " + c.localID + ", '" + cmd + "')");
 
-		try
-		{
-			if (waitForChannelRequestResult(c) == false)
-				throw new IOException("The server denied the request.");
+			return accepted(reply, "The execute request failed.");
 		}
 		catch (IOException e)
 		{
-			throw (IOException) new IOException("The execute request failed.").initCause(e);
+			return CompletableFuture.failedFuture(e);
 		}
 	}
 
 	public void requestShell(Channel c) throws IOException
 	{
-		PacketSessionStartShell sm;
-
-		synchronized (c)
-		{
-			if (c.state != Channel.STATE_OPEN)
-                throw ioException("Cannot start shell on this channel",c);
-
-			sm = new PacketSessionStartShell(c.remoteID, true);
-
-			c.successCounter = c.failedCounter = 0;
-		}
-
-		synchronized (c.channelSendLock)
-		{
-			if (c.closeMessageSent)
-                throw ioException("Cannot start shell on this channel",c);
-			tm.sendMessage(sm.getPayload());
-		}
+		await(requestShellAsync(c));
+	}
 
+	public CompletableFuture<Void> requestShellAsync(Channel c)
+	{
 		try
 		{
-			if (waitForChannelRequestResult(c) == false)
-				throw new IOException("The server denied the request.");
+			return accepted(sendChannelRequest(c, new PacketSessionStartShell(c.remoteID, true),
+					"Cannot start shell on this channel"), "The shell request failed.");
 		}
 		catch (IOException e)
 		{
-			throw (IOException) new IOException("The shell request failed.").initCause(e);
+			return CompletableFuture.failedFuture(e);
 		}
 	}
 
@@ -868,28 +1162,10 @@ public class ChannelManager implements MessageHandler
 		{
 			while (true)
 			{
-				int current_cond = 0;
-
-				int stdoutAvail = c.stdout.readable();
-				int stderrAvail = c.stderr.readable();
+				int current_cond = c.getConditions();
 
-				if (stdoutAvail > 0)
-					current_cond = current_cond | ChannelCondition.STDOUT_DATA;
-
-				if (stderrAvail > 0)
-					current_cond = current_cond | ChannelCondition.STDERR_DATA;
-
-				if (c.isEOF())
-					current_cond = current_cond | ChannelCondition.EOF;
-
-				if (c.getExitStatus() != null)
-					current_cond = current_cond | ChannelCondition.EXIT_STATUS;
-
-				if (c.getExitSignal() != null)
-					current_cond = current_cond | ChannelCondition.EXIT_SIGNAL;
-
-				if (c.state == Channel.STATE_CLOSED)
-					return current_cond | ChannelCondition.CLOSED | ChannelCondition.EOF;
+				if ((current_cond & ChannelCondition.CLOSED) != 0)
+					return current_cond;
 
 				if ((current_cond & condition_mask) != 0)
 					return current_cond;
@@ -930,20 +1206,38 @@ public class ChannelManager implements MessageHandler
 	{
 		int copylen;
 
-        synchronized (c) {
-            try {
-                copylen = (extended ? c.stderr : c.stdout).read(target, off, len);
-            } catch (InterruptedException e) {
-                throw new InterruptedIOException();
-            }
-            if (copylen<=0)    return copylen;
+        /* The buffer has its own lock; blocking here with the channel locked would stall the receive thread */
+        try {
+            copylen = (extended ? c.stderr : c.stdout).read(target, off, len);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
         }
+        if (copylen<=0)    return copylen;
 
         c.freeupWindow(copylen);
 
 		return copylen;
 	}
 
+	/**
+	 * Like {@link #getChannelData(Channel, boolean, byte[], int, int)}, but into the remaining space of <code>dst</code>.
+	 */
+	public int getChannelData(Channel c, boolean extended, ByteBuffer dst) throws IOException
+	{
+		int copylen;
+
+		try {
+			copylen = (extended ? c.stderr : c.stdout).read(dst);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		if (copylen<=0)    return copylen;
+
+		c.freeupWindow(copylen);
+
+		return copylen;
+	}
+
 	public void msgChannelData(byte[] msg, int msglen) throws IOException
 	{
 		if (msglen <= 9)
@@ -994,19 +1288,11 @@ public class ChannelManager implements MessageHandler
 		if (c == null)
 			throw new IOException("Unexpected SSH_MSG_CHANNEL_WINDOW_ADJUST message for non-existent channel " + id);
 
-		synchronized (c)
-		{
-			final long huge = 0xFFFFffffL; /* 2^32 - 1 */
+		c.addRemoteWindow(windowChange & 0xFFFFffffL); /* avoid sign extension */
 
-			c.remoteWindow += (windowChange & huge); /* avoid sign extension */
-
-			/* TODO - is this a good heuristic? */
-
-			if ((c.remoteWindow > huge))
-				c.remoteWindow = huge;
-
-			c.notifyAll();
-		}
+		/* Let the socket hold as much as the peer allows us to have in flight */
+		if (Channel.AUTO_TUNE_WINDOW)
+			tm.growSendBuffer((int) Math.min(c.remoteWindow.get(), Integer.MAX_VALUE));
 
 		if (log.isEnabled())
 			log.log(80, "Got SSH_MSG_CHANNEL_WINDOW_ADJUST (channel " + id + ", " + windowChange + ")");
@@ -1050,7 +1336,7 @@ public class ChannelManager implements MessageHandler
 			synchronized (c)
 			{
 				c.remoteID = remoteID;
-				c.remoteWindow = remoteWindow & 0xFFFFffffL; /* properly convert UINT32 to long */
+				c.remoteWindow.set(remoteWindow & 0xFFFFffffL); /* properly convert UINT32 to long */
 				c.remoteMaxPacketSize = remoteMaxPacketSize;
 				c.localID = addChannel(c);
 			}
@@ -1101,7 +1387,7 @@ public class ChannelManager implements MessageHandler
 			synchronized (c)
 			{
 				c.remoteID = remoteID;
-				c.remoteWindow = remoteWindow & 0xFFFFffffL; /* convert UINT32 to long */
+				c.remoteWindow.set(remoteWindow & 0xFFFFffffL); /* convert UINT32 to long */
 				c.remoteMaxPacketSize = remoteMaxPacketSize;
 				c.localID = addChannel(c);
 			}
@@ -1161,7 +1447,7 @@ public class ChannelManager implements MessageHandler
 			synchronized (c)
 			{
 				c.exit_status = new Integer(exit_status);
-				c.notifyAll();
+				c.conditionsChanged(0);
 			}
 
 			if (log.isEnabled())
@@ -1177,8 +1463,8 @@ public class ChannelManager implements MessageHandler
 
 			String signame = tr.readString("US-ASCII");
 			tr.readBoolean();
-			tr.readString();
-			tr.readString();
+			tr.skipString(); /* error message */
+			tr.skipString(); /* language tag */
 
 			if (tr.remain() != 0)
 				throw new IOException("Badly formatted SSH_MSG_CHANNEL_REQUEST message");
@@ -1186,7 +1472,7 @@ public class ChannelManager implements MessageHandler
 			synchronized (c)
 			{
 				c.exit_signal = signame;
-				c.notifyAll();
+				c.conditionsChanged(0);
 			}
 
 			if (log.isEnabled())
@@ -1250,14 +1536,17 @@ public class ChannelManager implements MessageHandler
 		{
             c.eof();
 			c.state = Channel.STATE_CLOSED;
+			c.wakeWindowWaiters();
 			c.setReasonClosed("Close requested by remote");
 			c.closeMessageRecv = true;
 
 			removeChannel(c.localID);
 
-			c.notifyAll();
+			c.conditionsChanged(0);
 		}
 
+		c.failPending();
+
 		if (log.isEnabled())
 			log.log(50, "Got SSH_MSG_CHANNEL_CLOSE (channel " + id + ")");
 	}
@@ -1274,14 +1563,33 @@ public class ChannelManager implements MessageHandler
 		if (c == null)
 			throw new IOException("Unexpected SSH_MSG_CHANNEL_SUCCESS message for non-existent channel " + id);
 
+		if (log.isEnabled())
+			log.log(80, "Got SSH_MSG_CHANNEL_SUCCESS (channel " + id + ")");
+
+		channelRequestReply(c, true);
+	}
+
+	private void channelRequestReply(Channel c, boolean success) throws IOException
+	{
+		Channel.PendingRequest r;
+
 		synchronized (c)
 		{
-			c.successCounter++;
-			c.notifyAll();
+			r = c.pendingRequests.poll();
 		}
 
-		if (log.isEnabled())
-			log.log(80, "Got SSH_MSG_CHANNEL_SUCCESS (channel " + id + ")");
+		if (r == null)
+		{
+			if (log.isEnabled())
+				log.log(20, "Ignoring unexpected reply on channel " + c.localID + ", no request is pending");
+			return;
+		}
+
+		if (r.probe)
+			tm.addRttSample(System.nanoTime() - r.sentNanos);
+
+		/* Outside of the channel lock, this runs what depends on the reply */
+		r.reply.complete(Boolean.valueOf(success));
 	}
 
 	public void msgChannelFailure(byte[] msg, int msglen) throws IOException
@@ -1296,14 +1604,10 @@ public class ChannelManager implements MessageHandler
 		if (c == null)
 			throw new IOException("Unexpected SSH_MSG_CHANNEL_FAILURE message for non-existent channel " + id);
 
-		synchronized (c)
-		{
-			c.failedCounter++;
-			c.notifyAll();
-		}
-
 		if (log.isEnabled())
 			log.log(50, "Got SSH_MSG_CHANNEL_FAILURE (channel " + id + ")");
+
+		channelRequestReply(c, false);
 	}
 
 	public void msgChannelOpenConfirmation(byte[] msg, int msglen) throws IOException
@@ -1323,7 +1627,7 @@ public class ChannelManager implements MessageHandler
 						+ sm.recipientChannelID);
 
 			c.remoteID = sm.senderChannelID;
-			c.remoteWindow = sm.initialWindowSize & 0xFFFFffffL; /* convert UINT32 to long */
+			c.remoteWindow.set(sm.initialWindowSize & 0xFFFFffffL); /* convert UINT32 to long */
 			c.remoteMaxPacketSize = sm.maxPacketSize;
 			c.state = Channel.STATE_OPEN;
 			c.notifyAll();
@@ -1332,6 +1636,8 @@ public class ChannelManager implements MessageHandler
 		if (log.isEnabled())
 			log.log(50, "Got SSH_MSG_CHANNEL_OPEN_CONFIRMATION (channel " + sm.recipientChannelID + " / remote: "
 					+ sm.senderChannelID + ")");
+
+		c.opened.complete(c);
 	}
 
 	public void msgChannelOpenFailure(byte[] msg, int msglen) throws IOException
@@ -1390,11 +1696,14 @@ public class ChannelManager implements MessageHandler
 			c.state = Channel.STATE_CLOSED;
 			c.setReasonClosed("The server refused to open the channel (" + reasonCodeSymbolicName + ", '"
 					+ descriptionBuffer.toString() + "')");
-			c.notifyAll();
+			removeChannel(c.localID);
+			c.conditionsChanged(0);
 		}
 
 		if (log.isEnabled())
 			log.log(50, "Got SSH_MSG_CHANNEL_OPEN_FAILURE (channel " + id + ")");
+
+		c.failPending();
 	}
 
 	public void msgGlobalRequest(byte[] msg, int msglen) throws IOException
@@ -1425,8 +1734,11 @@ public class ChannelManager implements MessageHandler
 	{
 		synchronized (channels)
 		{
-			globalSuccessCounter++;
-			channels.notifyAll();
+			if (globalReply())
+			{
+				globalSuccessCounter++;
+				channels.notifyAll();
+			}
 		}
 
 		if (log.isEnabled())
@@ -1437,8 +1749,11 @@ public class ChannelManager implements MessageHandler
 	{
 		synchronized (channels)
 		{
-			globalFailedCounter++;
-			channels.notifyAll();
+			if (globalReply())
+			{
+				globalFailedCounter++;
+				channels.notifyAll();
+			}
 		}
 
 		if (log.isEnabled())
@@ -1510,32 +1825,40 @@ public class ChannelManager implements MessageHandler
             listenerThreadsAllowed = false;
         }
 
+        Channel[] all;
+
         synchronized (channels)
         {
             shutdown = true;
+            pendingGlobalRequests.clear();
+
+            all = channels.values();
 
-            for (int i = 0; i < channels.size(); i++)
+            for (int i = 0; i < all.length; i++)
             {
-                Channel c = (Channel) channels.elementAt(i);
+                Channel c = all[i];
                 synchronized (c)
                 {
                     c.eof();
                     c.state = Channel.STATE_CLOSED;
+                    c.wakeWindowWaiters();
                     c.setReasonClosed(new IOException("The connection is being shutdown").initCause(cause));
+                    c.releaseWindowBudget();
                     c.closeMessageRecv = true; /*
                                                                                                                          * You never know, perhaps
                                                                                                                          * we are waiting for a
                                                                                                                          * pending close message
                                                                                                                          * from the server...
                                                                                                                          */
-                    c.notifyAll();
+                    c.conditionsChanged(0);
                 }
             }
-            /* Works with J2ME */
-            channels.setSize(0);
-            channels.trimToSize();
+            channels.clear();
             channels.notifyAll(); /* Notify global response waiters */
         }
+
+        for (int i = 0; i < all.length; i++)
+            all[i].failPending();
     }
 
     private IOException ioException(String msg, Channel c) {
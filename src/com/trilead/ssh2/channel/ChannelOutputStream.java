@@ -20,13 +20,14 @@ public final class ChannelOutputStream extends OutputStream
 		this.c = c;
 	}
 
-	public void write(int b) throws IOException
-	{	
-		byte[] buff = new byte[1];
-		
-		buff[0] = (byte) b;
-		
-		write(buff, 0, 1);
+	/* Unbuffered, so a single byte write() sends a whole packet; at least it does not allocate */
+	private final byte[] single = new byte[1];
+
+	public synchronized void write(int b) throws IOException
+	{
+		single[0] = (byte) b;
+
+		write(single, 0, 1);
 	}
 
 	public void close() throws IOException
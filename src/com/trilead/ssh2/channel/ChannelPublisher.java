@@ -0,0 +1,186 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.trilead.ssh2.log.Logger;
+
+/**
+ * Publishes stdout or stderr of a channel to one {@link Flow.Subscriber}, without a thread of its own:
+ * the data is handed on by the {@link AsyncSinkPump} threads, each buffer is a copy owned by the subscriber.
+ *
+ * The window is only given back to the peer for data that the subscriber asked for with
+ * {@link Flow.Subscription#request(long)} and received, so a subscriber that stops requesting stops the
+ * peer once the channel buffer is full. Until somebody subscribes, the output can still be read as a stream;
+ * after that it belongs to the subscriber. A cancelled subscription discards the rest of the output.
+ */
+final class ChannelPublisher extends AsyncSinkPump implements Flow.Publisher<ByteBuffer>, Flow.Subscription
+{
+	private static final Logger log = Logger.getLogger(ChannelPublisher.class);
+
+	private final Channel.Output output;
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+	private volatile Flow.Subscriber<? super ByteBuffer> subscriber;
+
+	/* Set once onSubscribe() returned, no turn runs before that */
+	private volatile boolean started;
+
+	private final AtomicLong demand = new AtomicLong();
+	private volatile boolean cancelled;
+
+	/* A request(n) with n <= 0, signalled by the next turn so that it does not overlap onNext */
+	private volatile IllegalArgumentException invalidRequest;
+
+	ChannelPublisher(Channel c, Channel.Output output)
+	{
+		super(c, output.buffer, null, getExecutor());
+		this.output = output;
+	}
+
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> s)
+	{
+		if (s == null)
+			throw new NullPointerException();
+
+		if (!subscribed.compareAndSet(false, true))
+		{
+			reject(s, "already has a subscriber");
+			return;
+		}
+
+		/* Take over the output first, so that nothing is delivered while another consumer may still own it */
+		subscriber = s;
+		boolean published;
+		synchronized (c)
+		{
+			published = output.publishTo(this);
+		}
+		if (!published)
+		{
+			cancelled = true;
+			reject(s, "is piped elsewhere");
+			return;
+		}
+
+		s.onSubscribe(this);
+		started = true;
+		schedule();
+	}
+
+	private void reject(Flow.Subscriber<? super ByteBuffer> s, String reason)
+	{
+		s.onSubscribe(new Flow.Subscription()
+		{
+			public void request(long n)
+			{
+			}
+
+			public void cancel()
+			{
+			}
+		});
+		s.onError(new IllegalStateException("Output of channel " + c.localID + " " + reason));
+	}
+
+	@Override
+	void schedule()
+	{
+		if (started)
+			super.schedule();
+	}
+
+	public void request(long n)
+	{
+		if (n <= 0)
+		{
+			invalidRequest = new IllegalArgumentException("Non-positive request: " + n);
+		}
+		else
+		{
+			while (true)
+			{
+				long d = demand.get();
+				long sum = d + n;
+				if (demand.compareAndSet(d, sum < 0 ? Long.MAX_VALUE : sum))
+					break;
+			}
+		}
+		schedule();
+	}
+
+	public void cancel()
+	{
+		cancelled = true;
+		schedule(); // gives the window of what is buffered back
+	}
+
+	@Override
+	boolean pending()
+	{
+		return (invalidRequest != null && !cancelled) || super.pending();
+	}
+
+	@Override
+	boolean ready()
+	{
+		return cancelled || demand.get() > 0;
+	}
+
+	@Override
+	void poll()
+	{
+		IllegalArgumentException e = invalidRequest;
+		if (e != null && !cancelled)
+		{
+			cancelled = true;
+			subscriber.onError(e);
+		}
+	}
+
+	@Override
+	void deliver(byte[] b, int len)
+	{
+		if (cancelled)
+			return;
+
+		demand.decrementAndGet();
+		try
+		{
+			subscriber.onNext(ByteBuffer.wrap(Arrays.copyOf(b, len)));
+		}
+		catch (RuntimeException e)
+		{
+			/* Rule 2.13 of Reactive Streams: the subscription is considered cancelled */
+			cancelled = true;
+			if (log.isEnabled())
+				log.log(20, "Subscriber of channel " + c.localID + " failed, discarding the rest of the output", e);
+		}
+	}
+
+	@Override
+	void complete()
+	{
+		if (!cancelled)
+			subscriber.onComplete();
+	}
+
+	@Override
+	void failed(IOException e)
+	{
+		if (!cancelled)
+		{
+			cancelled = true;
+			subscriber.onError(e);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "publisher of channel " + c.localID;
+	}
+}
@@ -0,0 +1,96 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * Stdout or stderr of a channel as a {@link java.nio.channels.ReadableByteChannel}.
+ *
+ * Data is copied once, from the pages of the channel buffer into the caller's buffer, which may be
+ * a direct one. So it can be handed on to a {@link java.nio.channels.FileChannel} or a socket without
+ * passing through a heap array first.
+ *
+ * Reads block until some data is available, like {@link ChannelInputStream#read(byte[], int, int)}.
+ */
+public final class ChannelReadableByteChannel implements ScatteringByteChannel
+{
+	private final Channel c;
+	private final boolean extended;
+
+	private volatile boolean closed;
+	private boolean eof;
+
+	ChannelReadableByteChannel(Channel c, boolean extended)
+	{
+		this.c = c;
+		this.extended = extended;
+	}
+
+	private Channel.Output output()
+	{
+		return extended ? c.stderr : c.stdout;
+	}
+
+	public synchronized int read(ByteBuffer dst) throws IOException
+	{
+		if (closed)
+			throw new ClosedChannelException();
+		if (eof)
+			return -1;
+		if (!dst.hasRemaining())
+			return 0;
+
+		int n = c.cm.getChannelData(c, extended, dst);
+		if (n == -1)
+			eof = true;
+		return n;
+	}
+
+	/**
+	 * Blocks only until the first buffer with remaining space got some data, the following ones
+	 * only take what is already buffered.
+	 */
+	public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+	{
+		if ((offset < 0) || (length < 0) || (offset > dsts.length - length))
+			throw new IndexOutOfBoundsException();
+
+		long total = 0;
+		for (int i = offset; i < offset + length; i++)
+		{
+			ByteBuffer dst = dsts[i];
+			if (!dst.hasRemaining())
+				continue;
+			if (total > 0 && output().readable() == 0)
+				break;
+
+			int n = read(dst);
+			if (n == -1)
+				return total > 0 ? total : -1;
+			total += n;
+			if (dst.hasRemaining())
+				break;
+		}
+		return total;
+	}
+
+	public long read(ByteBuffer[] dsts) throws IOException
+	{
+		return read(dsts, 0, dsts.length);
+	}
+
+	public boolean isOpen()
+	{
+		return !closed;
+	}
+
+	/**
+	 * Like {@link ChannelInputStream#close()}, this only stops reading. The channel itself stays open.
+	 */
+	public void close()
+	{
+		closed = true;
+	}
+}
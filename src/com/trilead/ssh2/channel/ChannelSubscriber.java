@@ -0,0 +1,185 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.trilead.ssh2.log.Logger;
+
+/**
+ * Sends what a {@link Flow.Publisher} produces to stdin of a channel, without blocking the publisher:
+ * the packets are sent from the {@link AsyncSinkPump} threads.
+ *
+ * The next buffer is only requested once the previous one was sent and the peer grants window, so the
+ * remote side paces the publisher. Completion sends EOF, an error of the publisher closes the channel.
+ *
+ * A turn never waits for the rate limits or for the other channels; it ends, and the next turn starts when
+ * the data may go on.
+ */
+final class ChannelSubscriber implements Flow.Subscriber<ByteBuffer>, Runnable
+{
+	private static final Logger log = Logger.getLogger(ChannelSubscriber.class);
+
+	private final Channel c;
+	private volatile Flow.Subscription subscription;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
+	private volatile boolean awaitingItem;
+	private volatile boolean completed;
+	private volatile Throwable error;
+
+	/**
+	 * At most one turn is queued or running at any time.
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile boolean done;
+
+	/**
+	 * A rate limit or the other channels hold the data back, {@link #wakeup} is due.
+	 */
+	private volatile boolean heldBack;
+
+	private final Runnable windowListener = new Runnable()
+	{
+		public void run()
+		{
+			schedule();
+		}
+	};
+
+	private final Runnable wakeup = new Runnable()
+	{
+		public void run()
+		{
+			heldBack = false;
+			schedule();
+		}
+	};
+
+	ChannelSubscriber(Channel c)
+	{
+		this.c = c;
+	}
+
+	public void onSubscribe(Flow.Subscription s)
+	{
+		if (subscription != null)
+		{
+			s.cancel(); // Rule 2.5 of Reactive Streams
+			return;
+		}
+		subscription = s;
+		c.windowListener = windowListener;
+		schedule();
+	}
+
+	public void onNext(ByteBuffer b)
+	{
+		queue.add(b);
+		awaitingItem = false;
+		schedule();
+	}
+
+	public void onError(Throwable t)
+	{
+		error = t;
+		schedule();
+	}
+
+	public void onComplete()
+	{
+		completed = true;
+		schedule();
+	}
+
+	private void schedule()
+	{
+		if (!done && scheduled.compareAndSet(false, true))
+			AsyncSinkPump.getExecutor().execute(this);
+	}
+
+	/**
+	 * Whether no turn is queued or running.
+	 */
+	boolean idle()
+	{
+		return !scheduled.get();
+	}
+
+	public void run()
+	{
+		try
+		{
+			send();
+		}
+		catch (IOException e)
+		{
+			finish();
+			subscription.cancel();
+			if (log.isEnabled())
+				log.log(20, "Sending to stdin of channel " + c.localID + " failed", e);
+		}
+		finally
+		{
+			scheduled.set(false);
+		}
+
+		// an item or window may have arrived after the last look, but before the flag was cleared
+		if (pending())
+			schedule();
+	}
+
+	private boolean pending()
+	{
+		if (done || subscription == null || heldBack)
+			return false;
+		boolean window = c.remoteWindow.get() > 0;
+		if (!queue.isEmpty())
+			return window;
+		return completed || error != null || (!awaitingItem && window);
+	}
+
+	private void send() throws IOException
+	{
+		ByteBuffer b;
+		while ((b = queue.peek()) != null)
+		{
+			heldBack = true; // before, the wakeup may come before trySendData() returns
+			if (!c.cm.trySendData(c, b, wakeup))
+				heldBack = false;
+			if (b.hasRemaining())
+				return; // the window listener or the wakeup brings us back
+			queue.poll();
+		}
+
+		Throwable t = error;
+		if (t != null)
+		{
+			finish();
+			c.cm.closeChannel(c, "The publisher of stdin failed (" + t + ")", true);
+			return;
+		}
+
+		if (completed)
+		{
+			finish();
+			c.cm.sendEOF(c);
+			return;
+		}
+
+		if (!awaitingItem && c.remoteWindow.get() > 0)
+		{
+			awaitingItem = true;
+			subscription.request(1);
+		}
+	}
+
+	private void finish()
+	{
+		done = true;
+		c.windowListener = null;
+		c.cm.scheduler.cancel(c.outbound); // a turn granted in the meantime
+	}
+}
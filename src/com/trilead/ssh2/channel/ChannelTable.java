@@ -0,0 +1,145 @@
+package com.trilead.ssh2.channel;
+
+/**
+ * ChannelTable. Maps local channel ids to channels for the receive thread,
+ * which looks up a channel for every incoming channel message. Lookups do not
+ * lock: the table is an open addressing hash on the int id that is replaced as
+ * a whole when channels are added or removed, which happens rarely compared
+ * to lookups.
+ * <p>
+ * Modifications synchronize on the table; {@link ChannelManager} uses the same
+ * monitor for its other channel bookkeeping.
+ */
+final class ChannelTable
+{
+	private static final class Table
+	{
+		final int[] ids;
+		final Channel[] channels;
+		final int size;
+
+		Table(int capacity, int size)
+		{
+			this.ids = new int[capacity];
+			this.channels = new Channel[capacity];
+			this.size = size;
+		}
+	}
+
+	private static final int MIN_CAPACITY = 16;
+
+	private volatile Table table = new Table(MIN_CAPACITY, 0);
+
+	private static int slot(int id, int mask)
+	{
+		/* Ids are sequential, spread them anyway in case they are not */
+		return (id * 0x9E3779B9) >>> 16 & mask;
+	}
+
+	Channel get(int id)
+	{
+		Table t = table;
+		int mask = t.ids.length - 1;
+
+		for (int i = slot(id, mask);; i = (i + 1) & mask)
+		{
+			Channel c = t.channels[i];
+
+			if (c == null)
+				return null;
+
+			if (t.ids[i] == id)
+				return c;
+		}
+	}
+
+	synchronized void put(int id, Channel c)
+	{
+		Table t = table;
+		int n = t.size;
+
+		for (int i = 0; i < t.channels.length; i++)
+		{
+			if (t.channels[i] != null && t.ids[i] == id)
+			{
+				n--;
+				break;
+			}
+		}
+
+		table = rebuild(t, n + 1, id, c);
+	}
+
+	synchronized Channel remove(int id)
+	{
+		Table t = table;
+		Channel c = get(id);
+
+		if (c != null)
+			table = rebuild(t, t.size - 1, id, null);
+
+		return c;
+	}
+
+	/* Copies all entries except the one of id, then adds (id, c) unless c is null */
+	private static Table rebuild(Table old, int size, int id, Channel c)
+	{
+		int capacity = MIN_CAPACITY;
+
+		while (capacity < size * 2)
+			capacity <<= 1;
+
+		Table t = new Table(capacity, size);
+		int mask = capacity - 1;
+
+		for (int i = 0; i < old.channels.length; i++)
+		{
+			if (old.channels[i] != null && old.ids[i] != id)
+				insert(t, mask, old.ids[i], old.channels[i]);
+		}
+
+		if (c != null)
+			insert(t, mask, id, c);
+
+		return t;
+	}
+
+	private static void insert(Table t, int mask, int id, Channel c)
+	{
+		int i = slot(id, mask);
+
+		while (t.channels[i] != null)
+			i = (i + 1) & mask;
+
+		t.ids[i] = id;
+		t.channels[i] = c;
+	}
+
+	int size()
+	{
+		return table.size;
+	}
+
+	/**
+	 * @return the channels at the time of the call
+	 */
+	Channel[] values()
+	{
+		Table t = table;
+		Channel[] values = new Channel[t.size];
+		int n = 0;
+
+		for (int i = 0; i < t.channels.length; i++)
+		{
+			if (t.channels[i] != null)
+				values[n++] = t.channels[i];
+		}
+
+		return values;
+	}
+
+	synchronized void clear()
+	{
+		table = new Table(MIN_CAPACITY, 0);
+	}
+}
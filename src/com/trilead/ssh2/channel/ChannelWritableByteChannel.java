@@ -0,0 +1,72 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Stdin of a channel as a {@link java.nio.channels.WritableByteChannel}.
+ *
+ * The bytes of the caller's buffer, which may be a direct one, are copied straight into the outgoing
+ * packets. A write blocks until all of them are sent, like {@link ChannelOutputStream#write(byte[], int, int)}.
+ */
+public final class ChannelWritableByteChannel implements GatheringByteChannel
+{
+	private final Channel c;
+
+	ChannelWritableByteChannel(Channel c)
+	{
+		this.c = c;
+	}
+
+	private void ensureOpen() throws IOException
+	{
+		if (!isOpen())
+			throw new ClosedChannelException();
+	}
+
+	public int write(ByteBuffer src) throws IOException
+	{
+		ensureOpen();
+		int n = src.remaining();
+		c.cm.sendData(c, src);
+		return n;
+	}
+
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		if ((offset < 0) || (length < 0) || (offset > srcs.length - length))
+			throw new IndexOutOfBoundsException();
+
+		ensureOpen();
+		long total = 0;
+		for (int i = offset; i < offset + length; i++)
+		{
+			total += srcs[i].remaining();
+			c.cm.sendData(c, srcs[i]);
+		}
+		return total;
+	}
+
+	public long write(ByteBuffer[] srcs) throws IOException
+	{
+		return write(srcs, 0, srcs.length);
+	}
+
+	/**
+	 * Shares its state with {@link Channel#getStdinStream()}, closing either one closes both.
+	 */
+	public boolean isOpen()
+	{
+		return !c.stdinStream.isClosed;
+	}
+
+	/**
+	 * Sends EOF.
+	 */
+	public void close() throws IOException
+	{
+		c.stdinStream.close();
+	}
+}
@@ -3,6 +3,10 @@ package com.trilead.ssh2.channel;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * FIFO buffer for a reader thread and a writer thread to collaborate.
@@ -15,6 +19,10 @@ import java.io.OutputStream;
  * A user code normally drains the buffer more quickly than what the network delivers, so this implementation
  * saves memory while simultaneously allowing us to advertise a bigger window size for a large latency network.
  *
+ * Pages come from the shared {@link PagePool} and go back to it once the reader is done with them. An empty
+ * buffer holds no page at all, so channels that never see data on a stream (most never use stderr) cost
+ * nothing but this object.
+ *
  * @author Kohsuke Kawaguchi
  */
 class FifoBuffer {
@@ -23,7 +31,7 @@ class FifoBuffer {
 	private static long DEFAULT_WAIT_TIMEOUT = Long.parseLong(System.getProperty(PROPERTY_TIMEOUT,"1200000"));
 
     /**
-     * Unit of buffer, singly linked and lazy created as needed.
+     * Unit of buffer, singly linked and lazy created as needed, recycled through {@link PagePool}.
      */
     static final class Page {
         final byte[] buf;
@@ -43,10 +51,15 @@ class FifoBuffer {
          * [0,p.buf.size)
          */
         int off;
+        /**
+         * The reader gives up the pages it leaves behind, the writer is always ahead of it.
+         */
+        final boolean reader;
 
-        Pointer(Page p, int off) {
+        Pointer(Page p, int off, boolean reader) {
             this.p = p;
             this.off = off;
+            this.reader = reader;
         }
 
         /**
@@ -61,6 +74,8 @@ class FifoBuffer {
             Page q = p.next;
             if (q==null)
                 q = p.next = newPage();
+            if (reader)
+                releasePage(p);
             p = q;
             off = 0;
             return pageSize;
@@ -87,9 +102,26 @@ class FifoBuffer {
                 start+=chunk;
             }
         }
+
+        public void read(ByteBuffer dst, int len) {
+            while (len>0) {
+                int chunk = Math.min(len,chunk());
+                dst.put(p.buf,off,chunk);
+
+                off+=chunk;
+                len-=chunk;
+            }
+        }
     }
 
-    private final Object lock;
+    /**
+     * Guards the buffer. Readers wait for {@link #notEmpty}, writers for {@link #notFull}; each is only signalled
+     * when the other side changes something the waiter can act on, not on every chunk.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int waitingWriters;
 
     /**
      * Number of bytes currently in this ring buffer
@@ -100,6 +132,7 @@ class FifoBuffer {
      */
     private int limit;
     private final int pageSize;
+    private final PagePool pool;
 
     /**
      * The position at which the next read/write will happen.
@@ -112,35 +145,68 @@ class FifoBuffer {
     private boolean closed;
 
     FifoBuffer(int pageSize, int limit) {
-        this(null,pageSize,limit);
-    }
-
-    FifoBuffer(Object lock, int pageSize, int limit) {
-        this.lock = lock==null ? this : lock;
         this.limit = limit;
         this.pageSize = pageSize;
-
-        Page p = newPage();
-        r = new Pointer(p,0);
-        w = new Pointer(p,0);
+        this.pool = (pageSize == PagePool.SHARED.getPageSize()) ? PagePool.SHARED : null;
     }
 
     public void setLimit(int newLimit) {
-        synchronized (lock) {
+        lock.lock();
+        try {
             limit = newLimit;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
         }
     }
 
     private Page newPage() {
-        return new Page(pageSize);
+        return pool != null ? pool.allocate() : new Page(pageSize);
+    }
+
+    private void releasePage(Page p) {
+        if (pool != null)
+            pool.release(p);
+    }
+
+    /**
+     * Hands all pages back to the pool, the next write starts over with a fresh page.
+     * Must be called while holding the lock and only when there is nothing to read.
+     */
+    private void releasePages() {
+        if (r == null)
+            return;
+
+        Page p = r.p;
+        while (p != null) {
+            Page next = p.next;
+            releasePage(p);
+            p = next;
+        }
+        r = w = null;
     }
 
     /**
      * Number of bytes readable
      */
     int readable() {
-        synchronized (lock) {
+        lock.lock();
+        try {
             return sz;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * True once the write end was closed, there may still be data to read.
+     */
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -151,32 +217,65 @@ class FifoBuffer {
         return Math.max(0,limit-readable());
     }
 
-    public void write(byte[] buf, int start, int len) throws InterruptedException {
+    /**
+     * @return true if the buffer was empty before, i.e. readers that were not waiting on this buffer but on some
+     *         condition of their own may want to know
+     */
+    public boolean write(byte[] buf, int start, int len) throws InterruptedException {
+        boolean wasEmpty = false;
+        boolean first = true;
+
         while (len>0) {
             int chunk;
 
-            synchronized (lock) {
-                while ((chunk = Math.min(len,writable()))==0)
-                    lock.wait(DEFAULT_WAIT_TIMEOUT);
+            lock.lock();
+            try {
+                while ((chunk = Math.min(len,writable()))==0) {
+                    waitingWriters++;
+                    try {
+                        notFull.await(DEFAULT_WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+                    } finally {
+                        waitingWriters--;
+                    }
+                }
+
+                if (w == null) {
+                    Page p = newPage();
+                    r = new Pointer(p,0,true);
+                    w = new Pointer(p,0,false);
+                }
 
                 w.write(buf, start, chunk);
 
                 start += chunk;
                 len -= chunk;
-                sz += chunk;
 
-                lock.notifyAll();
+                if (sz==0) {
+                    // readers only ever wait for an empty buffer
+                    notEmpty.signalAll();
+                    if (first)
+                        wasEmpty = true;
+                }
+                sz += chunk;
+                first = false;
+            } finally {
+                lock.unlock();
             }
         }
+        return wasEmpty;
     }
 
     public void close() {
-        synchronized (lock) {
+        lock.lock();
+        try {
             if (!closed) {
                 closed = true;
                 releaseRing();
-                lock.notifyAll();
+                notEmpty.signalAll();
+                notFull.signalAll();
             }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -185,7 +284,7 @@ class FifoBuffer {
      */
     private void releaseRing() {
         if (closed &&  readable()==0)
-            r = w = null;
+            releasePages();
     }
 
     /**
@@ -193,6 +292,22 @@ class FifoBuffer {
      * @see InputStream#read(byte[],int,int)
      */
     public int read(byte[] buf, int start, int len) throws InterruptedException {
+        return read(buf, start, null, len);
+    }
+
+    /**
+     * Reads into the remaining space of <code>dst</code>, which may be a direct buffer, straight from the pages.
+     *
+     * @see java.nio.channels.ReadableByteChannel#read(ByteBuffer)
+     */
+    public int read(ByteBuffer dst) throws InterruptedException {
+        return read(null, 0, dst, dst.remaining());
+    }
+
+    /**
+     * Either reads into <code>buf</code> at <code>start</code>, or into <code>dst</code> if it is not null.
+     */
+    private int read(byte[] buf, int start, ByteBuffer dst, int len) throws InterruptedException {
         if (len==0)     return 0;
 
         int read = 0;   // total # of bytes read
@@ -200,7 +315,8 @@ class FifoBuffer {
         while (true) {
             int chunk;
 
-            synchronized (lock) {
+            lock.lock();
+            try {
                 while (true) {
                     chunk = Math.min(len,readable());
                     if (chunk>0)    break;
@@ -213,17 +329,28 @@ class FifoBuffer {
                         releaseRing();
                         return -1;  // no more data
                     }
-                    lock.wait(DEFAULT_WAIT_TIMEOUT); // wait until the writer gives us something
+                    notEmpty.await(DEFAULT_WAIT_TIMEOUT, TimeUnit.MILLISECONDS); // wait until the writer gives us something
                 }
 
-                r.read(buf,start,chunk);
+                if (dst!=null)
+                    r.read(dst,chunk);
+                else
+                    r.read(buf,start,chunk);
 
                 start += chunk;
                 len -= chunk;
                 read += chunk;
                 sz -= chunk;
 
-                lock.notifyAll();
+                // the reader caught up with the writer, don't sit on the page while idle
+                if (sz==0)
+                    releasePages();
+
+                // wake writers once there is room for a sizable chunk, not for every byte
+                if (waitingWriters>0 && limit-sz >= Math.min(pageSize, (limit+1)/2))
+                    notFull.signalAll();
+            } finally {
+                lock.unlock();
             }
         }
     }
@@ -234,8 +361,10 @@ class FifoBuffer {
     public int writeTo(OutputStream out) throws IOException {
         try {
             int total = 0;
+            byte[] buf = null;  // most often this method gets called before we have any data, so this is a win
             while (readable()>0) {
-                byte[] buf = new byte[1024];    // most often this method gets called before we have any data, so this is a win
+                if (buf == null)
+                    buf = new byte[pageSize];
                 int read = read(buf, 0, buf.length);
                 out.write(buf,0,read);
                 total += read;
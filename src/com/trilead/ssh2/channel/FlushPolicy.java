@@ -0,0 +1,54 @@
+package com.trilead.ssh2.channel;
+
+/**
+ * When a {@link BufferedChannelOutputStream} sends what it has buffered. A full buffer (one maximum sized
+ * SSH_MSG_CHANNEL_DATA) and {@link java.io.OutputStream#flush()} always send.
+ */
+public final class FlushPolicy
+{
+	final int sizeThreshold;
+	final long maxDelayMillis;
+
+	private FlushPolicy(int sizeThreshold, long maxDelayMillis)
+	{
+		this.sizeThreshold = sizeThreshold;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * Only a full buffer, {@link java.io.OutputStream#flush()} and {@link java.io.OutputStream#close()} send data.
+	 */
+	public static FlushPolicy explicit()
+	{
+		return new FlushPolicy(0, 0);
+	}
+
+	/**
+	 * Sends as soon as <code>bytes</code> bytes are buffered.
+	 */
+	public static FlushPolicy size(int bytes)
+	{
+		if (bytes <= 0)
+			throw new IllegalArgumentException("Invalid size: " + bytes);
+		return new FlushPolicy(bytes, 0);
+	}
+
+	/**
+	 * Like Nagle's algorithm: small writes are collected, but no byte waits longer than
+	 * <code>maxDelayMillis</code> before it is sent.
+	 */
+	public static FlushPolicy delay(long maxDelayMillis)
+	{
+		if (maxDelayMillis <= 0)
+			throw new IllegalArgumentException("Invalid delay: " + maxDelayMillis);
+		return new FlushPolicy(0, maxDelayMillis);
+	}
+
+	@Override
+	public String toString()
+	{
+		if (sizeThreshold > 0)  return "FlushPolicy[size=" + sizeThreshold + "]";
+		if (maxDelayMillis > 0) return "FlushPolicy[delay=" + maxDelayMillis + "ms]";
+		return "FlushPolicy[explicit]";
+	}
+}
@@ -0,0 +1,120 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.trilead.ssh2.log.Logger;
+import com.trilead.ssh2.transport.TransportManager;
+
+/**
+ * KeepAliveService. Sends "keepalive@openssh.com" global requests on a timer,
+ * for all connections from one shared thread. The requests are queued without
+ * waiting for the reply; the replies feed the round trip time estimate of the
+ * connection, and a connection whose server has not answered
+ * <code>countMax</code> keepalives in a row is closed.
+ */
+public class KeepAliveService
+{
+	private static final Logger log = Logger.getLogger(KeepAliveService.class);
+
+	private static ScheduledThreadPoolExecutor scheduler;
+
+	private static synchronized ScheduledThreadPoolExecutor getScheduler()
+	{
+		if (scheduler == null)
+		{
+			scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "Trilead_KeepAliveService");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			scheduler.setRemoveOnCancelPolicy(true);
+		}
+		return scheduler;
+	}
+
+	/**
+	 * A scheduled keepalive of one connection. Stops by itself once the
+	 * connection is closed.
+	 */
+	public static final class KeepAlive implements Runnable
+	{
+		private final TransportManager tm;
+		private final ChannelManager cm;
+		private final int countMax;
+		private volatile ScheduledFuture<?> future;
+
+		KeepAlive(ChannelManager cm, int countMax)
+		{
+			this.tm = cm.tm;
+			this.cm = cm;
+			this.countMax = countMax;
+		}
+
+		public void run()
+		{
+			if (tm.isConnectionClosed())
+			{
+				cancel();
+				return;
+			}
+
+			int missed = cm.getKeepAlivesOutstanding();
+
+			if (countMax > 0 && missed >= countMax)
+			{
+				cancel();
+				tm.close(new IOException("The server did not reply to " + missed + " keepalive requests."), false);
+				return;
+			}
+
+			try
+			{
+				cm.sendKeepAlive();
+			}
+			catch (IOException e)
+			{
+				if (log.isEnabled())
+					log.log(20, "Sending a keepalive failed", e);
+			}
+		}
+
+		public void cancel()
+		{
+			ScheduledFuture<?> f = future;
+
+			if (f != null)
+				f.cancel(false);
+		}
+	}
+
+	private KeepAliveService()
+	{
+	}
+
+	/**
+	 * Starts sending keepalives on an authenticated connection.
+	 *
+	 * @param cm the channel manager of the connection
+	 * @param intervalMillis time between two keepalives
+	 * @param countMax number of unanswered keepalives after which the
+	 *        connection is closed, 0 to never close it
+	 * @return the handle to stop the keepalives with
+	 */
+	public static KeepAlive schedule(ChannelManager cm, long intervalMillis, int countMax)
+	{
+		if (intervalMillis <= 0)
+			throw new IllegalArgumentException("Invalid keepalive interval: " + intervalMillis);
+
+		KeepAlive k = new KeepAlive(cm, countMax);
+		k.future = getScheduler().scheduleWithFixedDelay(k, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		return k;
+	}
+}
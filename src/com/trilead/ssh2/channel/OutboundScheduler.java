@@ -0,0 +1,264 @@
+package com.trilead.ssh2.channel;
+
+import java.util.ArrayDeque;
+
+/**
+ * Decides in which order the channels of a connection put their SSH_MSG_CHANNEL_DATA on the wire.
+ *
+ * Senders that find the transport busy wait in the queue of their channel, and the queues are served by
+ * weighted deficit round-robin: per round, a channel may send {@link #QUANTUM} bytes times its priority.
+ * A bulk transfer thus gets its share, but no more, and a small packet of an interactive channel goes out
+ * after at most one round instead of after everything that happened to win the transport lock first.
+ *
+ * The scheduler only hands out turns, every sender still writes its own packet. Channel control messages
+ * (window adjustments, requests, EOF and close) are announced with {@link #beginControl()}; no turn is
+ * handed out while one of them waits, so they only wait for the packets that are being written already.
+ *
+ * Threads that serve many channels must not wait for a turn. They use {@link #tryAcquire(Flow, int, Runnable)},
+ * which queues the request like any other and runs a callback once the turn is theirs.
+ *
+ * One turn is handed out at a time, or one per CPU if the transport encrypts in parallel
+ * (<tt>com.trilead.ssh2.transport.TransportConnection.parallelEncryption</tt>). Quantum and number of turns
+ * can be set with the <tt>com.trilead.ssh2.channel.OutboundScheduler.quantum</tt> and
+ * <tt>com.trilead.ssh2.channel.OutboundScheduler.concurrency</tt> system properties.
+ */
+final class OutboundScheduler
+{
+	/**
+	 * Bytes per round and unit of priority. With the default priority a round covers a full 32K packet.
+	 */
+	static final int QUANTUM = Integer.getInteger(OutboundScheduler.class.getName() + ".quantum", 4096);
+
+	private static final int CONCURRENCY = Integer.getInteger(OutboundScheduler.class.getName() + ".concurrency",
+			Boolean.getBoolean("com.trilead.ssh2.transport.TransportConnection.parallelEncryption")
+					? Runtime.getRuntime().availableProcessors() : 1);
+
+	/**
+	 * The queue of one channel. Everything but the priority is guarded by the scheduler.
+	 */
+	static final class Flow
+	{
+		volatile int priority = Channel.DEFAULT_PRIORITY;
+
+		private final ArrayDeque<Turn> waiting = new ArrayDeque<Turn>();
+		private long deficit;
+		private boolean inRound;
+		private boolean credited; // got its quantum for the current visit
+		private Turn pending; // of tryAcquire(), queued or granted
+	}
+
+	private static final class Turn
+	{
+		final int length;
+		final Runnable wakeup;
+		boolean granted;
+
+		Turn(int length, Runnable wakeup)
+		{
+			this.length = length;
+			this.wakeup = wakeup;
+		}
+	}
+
+	private final int concurrency;
+
+	/* Flows with waiting senders, the head is the one being visited */
+	private final ArrayDeque<Flow> round = new ArrayDeque<Flow>();
+	private int sending;
+	private int control;
+
+	OutboundScheduler()
+	{
+		this(CONCURRENCY);
+	}
+
+	OutboundScheduler(int concurrency)
+	{
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * Waits until a packet of <code>length</code> bytes may be sent for the flow. Must be followed by
+	 * {@link #done()} once the packet is written.
+	 *
+	 * Not interruptible: the window for the packet is taken already, and the packet has to go out.
+	 * The interrupt status is kept.
+	 */
+	synchronized void acquire(Flow f, int length)
+	{
+		if (sending < concurrency && control == 0 && round.isEmpty())
+		{
+			sending++;
+			return;
+		}
+
+		Turn t = new Turn(length, null);
+		enqueue(f, t);
+
+		boolean interrupted = false;
+		while (!t.granted)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Takes a turn if one is free, or the one granted since the last call. Otherwise queues the request, at most
+	 * one per flow, and returns false; <code>wakeup</code> is run, with the scheduler locked, once the turn is
+	 * granted. It must not block, and it must lead to another call that takes the turn, or to {@link #cancel(Flow)}.
+	 * A turn that was taken must be followed by {@link #done()}.
+	 */
+	synchronized boolean tryAcquire(Flow f, int length, Runnable wakeup)
+	{
+		Turn t = f.pending;
+		if (t != null)
+		{
+			if (!t.granted)
+				return false;
+			f.pending = null;
+			return true;
+		}
+
+		if (sending < concurrency && control == 0 && round.isEmpty())
+		{
+			sending++;
+			return true;
+		}
+
+		t = new Turn(length, wakeup);
+		f.pending = t;
+		enqueue(f, t);
+		return false;
+	}
+
+	/**
+	 * Gives up the request of {@link #tryAcquire(Flow, int, Runnable)}, granted or not.
+	 */
+	synchronized void cancel(Flow f)
+	{
+		Turn t = f.pending;
+		if (t == null)
+			return;
+		f.pending = null;
+
+		if (t.granted)
+		{
+			done();
+			return;
+		}
+
+		f.waiting.remove(t);
+		if (f.waiting.isEmpty() && f.inRound)
+		{
+			round.remove(f);
+			f.inRound = false;
+			f.credited = false;
+			f.deficit = 0;
+		}
+		dispatch();
+	}
+
+	synchronized void done()
+	{
+		sending--;
+		dispatch();
+	}
+
+	synchronized void beginControl()
+	{
+		control++;
+	}
+
+	synchronized void endControl()
+	{
+		control--;
+		dispatch();
+	}
+
+	/**
+	 * Senders waiting for a turn.
+	 */
+	synchronized int waiting()
+	{
+		int n = 0;
+		for (Flow f : round)
+			n += f.waiting.size();
+		return n;
+	}
+
+	private void enqueue(Flow f, Turn t)
+	{
+		f.waiting.add(t);
+		if (!f.inRound)
+		{
+			f.inRound = true;
+			round.add(f);
+		}
+		dispatch();
+	}
+
+	private void dispatch()
+	{
+		boolean granted = false;
+		while (sending < concurrency && control == 0)
+		{
+			Turn t = next();
+			if (t == null)
+				break;
+			t.granted = true;
+			sending++;
+			if (t.wakeup != null)
+				t.wakeup.run();
+			else
+				granted = true;
+		}
+		if (granted)
+			notifyAll();
+	}
+
+	private Turn next()
+	{
+		while (true)
+		{
+			Flow f = round.peek();
+			if (f == null)
+				return null;
+
+			if (!f.credited)
+			{
+				f.deficit += (long) QUANTUM * f.priority;
+				f.credited = true;
+			}
+
+			Turn t = f.waiting.peek();
+			if (t.length <= f.deficit)
+			{
+				f.waiting.poll();
+				f.deficit -= t.length;
+				if (f.waiting.isEmpty())
+				{
+					/* Credit is not saved up while idle */
+					round.poll();
+					f.inRound = false;
+					f.credited = false;
+					f.deficit = 0;
+				}
+				return t;
+			}
+
+			/* Used up its share of this round */
+			f.credited = false;
+			round.poll();
+			round.add(f);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.trilead.ssh2.channel;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the pages that {@link FifoBuffer}s of all channels are built from.
+ *
+ * Without it, every MB received on a channel would allocate ~500 pages and drop them for GC once the
+ * reader has consumed them. Consumed pages go back to the pool instead, up to a bound so that a burst
+ * of traffic does not pin its memory forever.
+ *
+ * The pool size can be set with the <tt>com.trilead.ssh2.channel.PagePool.maxPages</tt> system property,
+ * 0 turns pooling off.
+ */
+public final class PagePool
+{
+	/**
+	 * Size of the pages that are pooled; buffers with other page sizes allocate their own.
+	 */
+	static final int PAGE_SIZE = 2048;
+
+	private static final int MAX_PAGES = Integer.getInteger(PagePool.class.getName() + ".maxPages", 4096);
+
+	static final PagePool SHARED = new PagePool(PAGE_SIZE, MAX_PAGES);
+
+	private final int pageSize;
+	private final int maxPages;
+
+	private final ConcurrentLinkedQueue<FifoBuffer.Page> pages = new ConcurrentLinkedQueue<FifoBuffer.Page>();
+	/**
+	 * Tracked separately, {@link ConcurrentLinkedQueue#size()} is O(n).
+	 */
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	PagePool(int pageSize, int maxPages)
+	{
+		this.pageSize = pageSize;
+		this.maxPages = maxPages;
+	}
+
+	int getPageSize()
+	{
+		return pageSize;
+	}
+
+	FifoBuffer.Page allocate()
+	{
+		FifoBuffer.Page p = pages.poll();
+		if (p != null)
+		{
+			pooled.decrementAndGet();
+			hits.incrementAndGet();
+			return p;
+		}
+		misses.incrementAndGet();
+		return new FifoBuffer.Page(pageSize);
+	}
+
+	void release(FifoBuffer.Page p)
+	{
+		p.next = null;
+		if (p.buf.length != pageSize)
+			return;
+
+		if (pooled.incrementAndGet() > maxPages)
+		{
+			pooled.decrementAndGet();
+			return; // let GC have it
+		}
+		pages.offer(p);
+	}
+
+	long hits()
+	{
+		return hits.get();
+	}
+
+	long misses()
+	{
+		return misses.get();
+	}
+
+	int pooledBytes()
+	{
+		return pooled.get() * pageSize;
+	}
+
+	/**
+	 * Fraction of page allocations of the channel buffers that were served from the pool, 0 if none happened yet.
+	 */
+	public static double getHitRate()
+	{
+		long h = SHARED.hits();
+		long total = h + SHARED.misses();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * Bytes held by the pool for reuse, in addition to the bytes buffered in channels.
+	 */
+	public static long getResidentBytes()
+	{
+		return SHARED.pooledBytes();
+	}
+}
@@ -0,0 +1,178 @@
+package com.trilead.ssh2.channel;
+
+/**
+ * Caps the memory that the peer may fill on our side, summed over channels.
+ *
+ * Every byte of window that a channel advertises is credit taken from the budget, and it stays taken
+ * while the data received for it sits in the channel buffer; it is given back once the application
+ * consumed the data. So the total of advertised windows and buffered data stays under the limit,
+ * no matter how many channels are open or how far their readers lag behind.
+ *
+ * Credit is handed out as channels consume: a busy channel asks for more after each read and gets it
+ * as long as credit is left, also beyond its fair share (the limit divided by the open channels), up
+ * to the size its window has grown to. An idle channel does not ask, and once credit runs short,
+ * channels above their fair share are only refilled from what is left after a reserve for the others,
+ * so their windows shrink back.
+ *
+ * The budget is soft by {@link #MIN_WINDOW} per channel: a channel can always hold that much, so
+ * that it never stalls for good, waiting for credit that idle channels sit on.
+ *
+ * A budget for the whole JVM, which all connection budgets draw from, can be set with the
+ * <tt>com.trilead.ssh2.channel.WindowBudget.jvmLimit</tt> system property (in bytes).
+ */
+public final class WindowBudget
+{
+	/**
+	 * Credit a channel may always hold.
+	 */
+	static final int MIN_WINDOW = Integer.getInteger(WindowBudget.class.getName() + ".minWindow", 32 * 1024);
+
+	private static final WindowBudget JVM = createJvmBudget();
+
+	private static WindowBudget createJvmBudget()
+	{
+		long limit = Long.getLong(WindowBudget.class.getName() + ".jvmLimit", 0);
+		return limit > 0 ? new WindowBudget(limit, null) : null;
+	}
+
+	private final WindowBudget parent;
+
+	// @GuardedBy("this")
+	private long limit;
+	private long used;
+	private int channels;
+
+	WindowBudget(long limit, WindowBudget parent)
+	{
+		this.limit = limit;
+		this.parent = parent;
+	}
+
+	/**
+	 * A new, unlimited, budget for a connection. It draws from the JVM wide budget, if there is one.
+	 */
+	static WindowBudget forConnection()
+	{
+		return new WindowBudget(0, JVM);
+	}
+
+	/**
+	 * @return the budget shared by all connections, null if <tt>jvmLimit</tt> was not set
+	 */
+	public static WindowBudget getJvmBudget()
+	{
+		return JVM;
+	}
+
+	/**
+	 * @param limit in bytes, 0 for unlimited. Lowering it does not take back windows that were already
+	 *        advertised, they are not refilled until the budget is met again.
+	 */
+	public synchronized void setLimit(long limit)
+	{
+		if (limit < 0)
+			throw new IllegalArgumentException("Invalid limit: " + limit);
+		this.limit = limit;
+	}
+
+	public synchronized long getLimit()
+	{
+		return limit;
+	}
+
+	/**
+	 * @return bytes of credit held by channels, i.e. advertised window plus buffered data
+	 */
+	public synchronized long getUsed()
+	{
+		return used;
+	}
+
+	/**
+	 * @return channels that currently compete for credit
+	 */
+	public synchronized int getChannels()
+	{
+		return channels;
+	}
+
+	/**
+	 * How much of <code>wanted</code> a channel that holds <code>held</code> may take.
+	 */
+	// @GuardedBy("this")
+	private long allowance(long wanted, long held)
+	{
+		if (limit == 0)
+			return wanted;
+
+		long free = limit - used;
+		long grant;
+		if (held + wanted <= limit / Math.max(1, channels))
+		{
+			grant = Math.min(wanted, free);
+		}
+		else
+		{
+			// above the fair share, keep some for the channels below it
+			grant = Math.min(wanted, free - limit / 8);
+		}
+		if (held + grant < MIN_WINDOW)
+			grant = Math.min(wanted, MIN_WINDOW - held);
+		return Math.max(0, grant);
+	}
+
+	private synchronized int take(long wanted, long held)
+	{
+		int grant = (int) allowance(wanted, held);
+		if (parent != null && grant > 0)
+			grant = parent.exchange(0, grant, held);
+		used += grant;
+		return grant;
+	}
+
+	/**
+	 * A channel is opened and advertises its initial window.
+	 *
+	 * @return the initial window
+	 */
+	synchronized int open(int wanted)
+	{
+		channels++;
+		if (parent != null)
+			parent.open(0);
+		return take(wanted, 0);
+	}
+
+	/**
+	 * A channel is closed. It no longer competes for credit, but still holds what it has buffered.
+	 *
+	 * @param unused the window that will not be used any more
+	 */
+	synchronized void close(long unused)
+	{
+		channels--;
+		if (parent != null)
+			parent.close(0);
+		release(unused);
+	}
+
+	synchronized void release(long credit)
+	{
+		used -= credit;
+		if (parent != null)
+			parent.release(credit);
+	}
+
+	/**
+	 * A channel consumed <code>released</code> bytes and would like to extend its window by <code>wanted</code>.
+	 *
+	 * @param held what the channel holds after releasing
+	 * @return by how much the window may be extended
+	 */
+	synchronized int exchange(long released, long wanted, long held)
+	{
+		if (released > 0)
+			release(released);
+		return wanted > 0 ? take(wanted, held) : 0;
+	}
+}
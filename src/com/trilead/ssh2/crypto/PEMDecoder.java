@@ -32,6 +32,7 @@ import com.trilead.ssh2.crypto.cipher.BlockCipher;
 import com.trilead.ssh2.crypto.cipher.CBCMode;
 import com.trilead.ssh2.crypto.cipher.DES;
 import com.trilead.ssh2.crypto.cipher.DESede;
+import com.trilead.ssh2.crypto.digest.JreMessageDigestWrapper;
 import com.trilead.ssh2.crypto.digest.MD5;
 import com.trilead.ssh2.signature.DSAPrivateKey;
 import com.trilead.ssh2.signature.KeyAlgorithm;
@@ -278,8 +279,8 @@ public class PEMDecoder
 
 		MessageDigest digest = null;
 		try {
-			digest = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
+			digest = JreMessageDigestWrapper.createMessageDigest("MD5");
+		} catch (IllegalArgumentException e) {
 			throw new IOException(e);
 		}
 
@@ -80,7 +80,7 @@ public class BlockCipherFactory
 			else if (type.endsWith("-ctr"))
 			{
 				bc.init(true, key);
-				return new CTRMode(bc, iv, encrypt);
+				return new CTRMode(bc, key, iv, encrypt);
 			}
 			throw new IllegalArgumentException("Cannot instantiate " + type);
 		}
@@ -1,6 +1,8 @@
 
 package com.trilead.ssh2.crypto.cipher;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 /**
  * This is CTR mode as described in draft-ietf-secsh-newmodes-XY.txt
  * 
@@ -18,12 +20,30 @@ public class CTRMode implements BlockCipher
 
 	int count = 0;
 
+	/* Needed to set up further instances of the block cipher, may be null */
+	final byte[] key;
+
+	/* Block ciphers for transform(), which may run on several threads at once */
+	private final ConcurrentLinkedQueue<BlockCipher> spares = new ConcurrentLinkedQueue<BlockCipher>();
+
 	public void init(boolean forEncryption, byte[] key)
 	{
 	}
 
 	public CTRMode(BlockCipher tc, byte[] iv, boolean doEnc) throws IllegalArgumentException
 	{
+		this(tc, null, iv, doEnc);
+	}
+
+	/**
+	 * @param tc the block cipher, already initialized for encryption with <code>key</code>
+	 * @param key the key of the block cipher, allows {@link #reserve(int)}
+	 * @param iv the initial counter
+	 * @param doEnc encryption or decryption
+	 */
+	public CTRMode(BlockCipher tc, byte[] key, byte[] iv, boolean doEnc) throws IllegalArgumentException
+	{
+		this.key = (key != null) ? key.clone() : null;
 		bc = tc;
 		blockSize = bc.getBlockSize();
 		doEncrypt = doEnc;
@@ -59,4 +79,91 @@ public class CTRMode implements BlockCipher
 
 		}
 	}
+
+	/**
+	 * @return true if keystream can be reserved with {@link #reserve(int)}
+	 */
+	public final boolean supportsReservation()
+	{
+		return key != null;
+	}
+
+	/**
+	 * Skips over the keystream of the next <code>blocks</code> blocks, so that
+	 * it can be applied later with
+	 * {@link #transform(byte[], byte[], int, byte[], int, int)}. Like
+	 * {@link #transformBlock(byte[], int, byte[], int)}, this must not be called
+	 * concurrently.
+	 * 
+	 * @return the counter of the first reserved block
+	 */
+	public final byte[] reserve(int blocks)
+	{
+		byte[] counter = X.clone();
+
+		int carry = blocks;
+
+		for (int i = (blockSize - 1); i >= 0 && carry != 0; i--)
+		{
+			int sum = (X[i] & 0xff) + (carry & 0xff);
+			X[i] = (byte) sum;
+			carry = (carry >>> 8) + (sum >>> 8);
+		}
+
+		return counter;
+	}
+
+	/**
+	 * Applies reserved keystream, starting with the block of the given counter.
+	 * May be called from several threads at once.
+	 * 
+	 * @param counter as returned by {@link #reserve(int)}, is not modified
+	 * @param len a multiple of the block size
+	 */
+	public final void transform(byte[] counter, byte[] src, int srcoff, byte[] dst, int dstoff, int len)
+	{
+		BlockCipher cipher = spares.poll();
+
+		if (cipher == null)
+			cipher = newBlockCipher();
+
+		byte[] ctr = counter.clone();
+		byte[] ks = new byte[blockSize];
+
+		for (int done = 0; done < len; done += blockSize)
+		{
+			cipher.transformBlock(ctr, 0, ks, 0);
+
+			for (int i = 0; i < blockSize; i++)
+			{
+				dst[dstoff + done + i] = (byte) (src[srcoff + done + i] ^ ks[i]);
+			}
+
+			for (int i = (blockSize - 1); i >= 0; i--)
+			{
+				ctr[i]++;
+				if (ctr[i] != 0)
+					break;
+			}
+		}
+
+		spares.offer(cipher);
+	}
+
+	private BlockCipher newBlockCipher()
+	{
+		if (key == null)
+			throw new IllegalStateException("The key of this cipher is not known");
+
+		try
+		{
+			BlockCipher cipher = bc.getClass().getDeclaredConstructor().newInstance();
+			cipher.init(true, key);
+			return cipher;
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new IllegalStateException("Cannot instantiate " + bc.getClass().getName(), e);
+		}
+	}
 }
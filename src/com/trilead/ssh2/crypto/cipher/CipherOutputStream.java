@@ -144,6 +144,23 @@ public class CipherOutputStream
 			writeBlock();
 	}
 
+	/**
+	 * Writes data that has been encrypted elsewhere, without copying it into
+	 * the internal buffer.
+	 */
+	public void writeEncrypted(byte[] b, int off, int len) throws IOException
+	{
+		if (pos != 0)
+			throw new IOException("Cannot write encrypted data since crypto buffer is not aligned.");
+
+		if (out_buffer_pos > 0)
+		{
+			bo.write(out_buffer, 0, out_buffer_pos);
+			out_buffer_pos = 0;
+		}
+		bo.write(b, off, len);
+	}
+
 	public void writePlain(int b) throws IOException
 	{
 		if (pos != 0)
@@ -2,8 +2,6 @@
 package com.trilead.ssh2.crypto.digest;
 
 import java.math.BigInteger;
-import java.security.GeneralSecurityException;
-import java.security.MessageDigest;
 
 /**
  * HashForSSH2Types.
@@ -23,8 +21,9 @@ public class HashForSSH2Types
 	Digest md;
 	
 	private final Digest messageDigest;
-	
-	
+
+	private final byte[] uint32 = new byte[4];
+
 
 	public HashForSSH2Types(Digest md)
 	{
@@ -35,23 +34,12 @@ public class HashForSSH2Types
 
 	public HashForSSH2Types(String type)
 	{
-		this(new JreMessageDigestWrapper(createMessageDigest(type)));
-	}
-
-	private static MessageDigest createMessageDigest(String algorithm) {
-		try {
-			return MessageDigest.getInstance(algorithm);
-		} catch (GeneralSecurityException ex) {
-			throw new IllegalArgumentException("Could not get Message digest instance", ex);
-		}
+		this(JreMessageDigestWrapper.getInstance(type));
 	}
 
 	public void updateByte(byte b)
 	{
-		/* HACK - to test it with J2ME */
-		byte[] tmp = new byte[1];
-		tmp[0] = b;
-		messageDigest.update(tmp);
+		messageDigest.update(b);
 	}
 
 	public void updateBytes(byte[] b)
@@ -61,10 +49,11 @@ public class HashForSSH2Types
 
 	public void updateUINT32(int v)
 	{
-		messageDigest.update((byte) (v >> 24));
-		messageDigest.update((byte) (v >> 16));
-		messageDigest.update((byte) (v >> 8));
-		messageDigest.update((byte) (v));
+		uint32[0] = (byte) (v >> 24);
+		uint32[1] = (byte) (v >> 16);
+		uint32[2] = (byte) (v >> 8);
+		uint32[3] = (byte) (v);
+		messageDigest.update(uint32, 0, 4);
 	}
 
 	public void updateByteString(byte[] b)
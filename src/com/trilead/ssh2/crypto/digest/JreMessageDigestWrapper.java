@@ -1,12 +1,23 @@
 package com.trilead.ssh2.crypto.digest;
 
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author Michael Clarke
  */
 public class JreMessageDigestWrapper implements Digest {
 
+    /**
+     * Untouched instances, one per algorithm, that are cloned rather than looked up again. Provider
+     * lookup walks the installed security providers on every call whereas a clone is a plain copy of
+     * the (intrinsic backed) SPI state.
+     */
+    private static final ConcurrentMap<String, MessageDigest> PROTOTYPES = new ConcurrentHashMap<>();
+
     private final MessageDigest digest;
 
     public JreMessageDigestWrapper(MessageDigest digest) {
@@ -14,6 +25,47 @@ public class JreMessageDigestWrapper implements Digest {
         this.digest = digest;
     }
 
+    /**
+     * @param algorithm the JCE name of the digest, e.g. "SHA-256"
+     * @return a wrapper around a fresh digest of the given algorithm
+     * @throws IllegalArgumentException if the algorithm is not available
+     */
+    public static JreMessageDigestWrapper getInstance(String algorithm) {
+        return new JreMessageDigestWrapper(createMessageDigest(algorithm));
+    }
+
+    /**
+     * @param algorithm the JCE name of the digest, e.g. "SHA-256"
+     * @return a fresh digest of the given algorithm, cloned from a cached prototype where the provider allows it
+     * @throws IllegalArgumentException if the algorithm is not available
+     */
+    public static MessageDigest createMessageDigest(String algorithm) {
+        MessageDigest prototype = PROTOTYPES.get(algorithm);
+        if (prototype != null) {
+            try {
+                return (MessageDigest) prototype.clone();
+            } catch (CloneNotSupportedException ex) {
+                // only cloneable prototypes are cached
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        MessageDigest instance;
+        try {
+            instance = MessageDigest.getInstance(algorithm);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalArgumentException("Could not get Message digest instance", ex);
+        }
+
+        try {
+            MessageDigest copy = (MessageDigest) instance.clone();
+            PROTOTYPES.putIfAbsent(algorithm, instance);
+            return copy;
+        } catch (CloneNotSupportedException ex) {
+            return instance;
+        }
+    }
+
     public int getDigestLength() {
         return digest.getDigestLength();
     }
@@ -35,13 +87,21 @@ public class JreMessageDigestWrapper implements Digest {
     }
 
     public void digest(byte[] out) {
-        byte[] output = digest.digest();
-        System.arraycopy(output, 0, out, 0, out.length);
+        digest(out, 0);
     }
 
     public void digest(byte[] out, int off) {
-        byte[] output = digest.digest();
-        System.arraycopy(output, 0, out, off, out.length);
+        int len = digest.getDigestLength();
+        if (len > 0 && out.length - off >= len) {
+            try {
+                digest.digest(out, off, len);
+                return;
+            } catch (DigestException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
 
+        byte[] output = digest.digest();
+        System.arraycopy(output, 0, out, off, Math.min(output.length, out.length - off));
     }
 }
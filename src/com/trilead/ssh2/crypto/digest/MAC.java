@@ -75,6 +75,14 @@ public class MAC
 		throw new IllegalArgumentException("Unkown algorithm " + type);
 	}
 
+	/**
+	 * For subclasses that compute the MAC themselves and leave the
+	 * deprecated fields unset.
+	 */
+	protected MAC()
+	{
+	}
+
 	/**
 	 * @param type the MAC algorithm to use
 	 * @param key the key to use in the MAC
@@ -84,19 +92,19 @@ public class MAC
 	{
 		if (type.equals("hmac-sha1"))
 		{
-			mac = new HMAC(new SHA1(), key, 20);
+			mac = new HMAC(JreMessageDigestWrapper.getInstance("SHA-1"), key, 20);
 		}
 		else if (type.equals("hmac-sha1-96"))
 		{
-			mac = new HMAC(new SHA1(), key, 12);
+			mac = new HMAC(JreMessageDigestWrapper.getInstance("SHA-1"), key, 12);
 		}
 		else if (type.equals("hmac-md5"))
 		{
-			mac = new HMAC(new MD5(), key, 16);
+			mac = new HMAC(JreMessageDigestWrapper.getInstance("MD5"), key, 16);
 		}
 		else if (type.equals("hmac-md5-96"))
 		{
-			mac = new HMAC(new MD5(), key, 12);
+			mac = new HMAC(JreMessageDigestWrapper.getInstance("MD5"), key, 12);
 		}
 		else
 			return;
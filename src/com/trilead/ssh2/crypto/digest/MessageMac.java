@@ -7,19 +7,24 @@ import javax.crypto.spec.SecretKeySpec;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public final class MessageMac extends MAC {
 
+	/* Uninitialised instances that are cloned instead of asking the providers again */
+	private static final ConcurrentMap<String, Mac> PROTOTYPES = new ConcurrentHashMap<>();
+
 	private final Mac messageMac;
 	private boolean encryptThenMac = false;
 	private final byte[] buffer;
 	private final int outSize;
 
 	public MessageMac(String type, byte[] key) {
-		super(type, key);
+		super();
 
 		try {
-			messageMac = Mac.getInstance(Hmac.getHmac(type).getAlgorithm());
+			messageMac = createMac(Hmac.getHmac(type).getAlgorithm());
 			
 			int macSize = messageMac.getMacLength();
 			
@@ -38,6 +43,48 @@ public final class MessageMac extends MAC {
 		}
 	}
 
+	private MessageMac(MessageMac original, Mac messageMac) {
+		super();
+
+		this.messageMac = messageMac;
+		this.encryptThenMac = original.encryptThenMac;
+		this.buffer = (original.buffer != null) ? new byte[original.buffer.length] : null;
+		this.outSize = original.outSize;
+	}
+
+	/**
+	 * @return an independent instance with the same algorithm and key, e.g.
+	 *         for use on another thread, or <code>null</code> if the provider
+	 *         cannot copy its state
+	 */
+	public MessageMac copy() {
+		try {
+			return new MessageMac(this, (Mac) messageMac.clone());
+		} catch (CloneNotSupportedException e) {
+			return null;
+		}
+	}
+
+	private static Mac createMac(String algorithm) throws GeneralSecurityException {
+		Mac prototype = PROTOTYPES.get(algorithm);
+		if (prototype != null) {
+			try {
+				return (Mac) prototype.clone();
+			} catch (CloneNotSupportedException e) {
+				// only cloneable prototypes are cached
+				throw new IllegalStateException(e);
+			}
+		}
+
+		Mac instance = Mac.getInstance(algorithm);
+		try {
+			Mac copy = (Mac) instance.clone();
+			PROTOTYPES.putIfAbsent(algorithm, instance);
+			return copy;
+		} catch (CloneNotSupportedException e) {
+			return instance;
+		}
+	}
 
 	public static String[] getMacs() {
 		List<String> macList = new ArrayList<String>();
@@ -8,7 +8,7 @@ import java.io.IOException;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: PacketChannelOpenConfirmation.java,v 1.1 2007/10/15 12:49:55 cplattne Exp $
  */
-public class PacketChannelOpenConfirmation
+public class PacketChannelOpenConfirmation implements WritablePacket
 {
 	byte[] payload;
 
@@ -49,16 +49,21 @@ public class PacketChannelOpenConfirmation
 			throw new IOException("Padding in SSH_MSG_CHANNEL_OPEN_CONFIRMATION packet!");
 	}
 
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_OPEN_CONFIRMATION);
+		tw.writeUINT32(recipientChannelID);
+		tw.writeUINT32(senderChannelID);
+		tw.writeUINT32(initialWindowSize);
+		tw.writeUINT32(maxPacketSize);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_OPEN_CONFIRMATION);
-			tw.writeUINT32(recipientChannelID);
-			tw.writeUINT32(senderChannelID);
-			tw.writeUINT32(initialWindowSize);
-			tw.writeUINT32(maxPacketSize);
+			writeTo(tw);
 			payload = tw.getBytes();
 		}
 		return payload;
@@ -8,7 +8,7 @@ import java.io.IOException;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: PacketChannelOpenFailure.java,v 1.1 2007/10/15 12:49:55 cplattne Exp $
  */
-public class PacketChannelOpenFailure
+public class PacketChannelOpenFailure implements WritablePacket
 {
 	byte[] payload;
 
@@ -49,16 +49,21 @@ public class PacketChannelOpenFailure
 			throw new IOException("Padding in SSH_MSG_CHANNEL_OPEN_FAILURE packet!");
 	}
 
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_OPEN_FAILURE);
+		tw.writeUINT32(recipientChannelID);
+		tw.writeUINT32(reasonCode);
+		tw.writeString(description);
+		tw.writeString(languageTag);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_OPEN_FAILURE);
-			tw.writeUINT32(recipientChannelID);
-			tw.writeUINT32(reasonCode);
-			tw.writeString(description);
-			tw.writeString(languageTag);
+			writeTo(tw);
 			payload = tw.getBytes();
 		}
 		return payload;
@@ -8,7 +8,7 @@ package com.trilead.ssh2.packets;
  * @version $Id: PacketChannelTrileadPing.java,v 1.1 2008/03/03 07:01:36
  *          cplattne Exp $
  */
-public class PacketChannelTrileadPing
+public class PacketChannelTrileadPing implements WritablePacket
 {
 	byte[] payload;
 
@@ -19,15 +19,20 @@ public class PacketChannelTrileadPing
 		this.recipientChannelID = recipientChannelID;
 	}
 
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
+		tw.writeUINT32(recipientChannelID);
+		tw.writeString("trilead-ping");
+		tw.writeBoolean(true);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
-			tw.writeUINT32(recipientChannelID);
-			tw.writeString("trilead-ping");
-			tw.writeBoolean(true);
+			writeTo(tw);
 			payload = tw.getBytes();
 		}
 		return payload;
@@ -8,7 +8,7 @@ import java.io.IOException;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: PacketChannelWindowAdjust.java,v 1.1 2007/10/15 12:49:55 cplattne Exp $
  */
-public class PacketChannelWindowAdjust
+public class PacketChannelWindowAdjust implements WritablePacket
 {
 	byte[] payload;
 
@@ -42,14 +42,19 @@ public class PacketChannelWindowAdjust
 			throw new IOException("Padding in SSH_MSG_CHANNEL_WINDOW_ADJUST packet!");
 	}
 
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST);
+		tw.writeUINT32(recipientChannelID);
+		tw.writeUINT32(windowChange);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST);
-			tw.writeUINT32(recipientChannelID);
-			tw.writeUINT32(windowChange);
+			writeTo(tw);
 			payload = tw.getBytes();
 		}
 		return payload;
@@ -0,0 +1,75 @@
+package com.trilead.ssh2.packets;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.trilead.ssh2.util.Tokenizer;
+
+/**
+ * PacketExtInfo. The SSH_MSG_EXT_INFO message defined in RFC 8308, sent by a
+ * server that saw "ext-info-c" in our first SSH_MSG_KEXINIT.
+ */
+public class PacketExtInfo
+{
+	public static final String EXT_INFO_CLIENT = "ext-info-c";
+
+	public static final String SERVER_SIG_ALGS = "server-sig-algs";
+
+	byte[] payload;
+
+	final Map<String, byte[]> extensions = new LinkedHashMap<>();
+
+	public PacketExtInfo(byte payload[], int off, int len) throws IOException
+	{
+		this.payload = new byte[len];
+		System.arraycopy(payload, off, this.payload, 0, len);
+
+		TypesReader tr = new TypesReader(payload, off, len);
+
+		int packet_type = tr.readByte();
+
+		if (packet_type != Packets.SSH_MSG_EXT_INFO)
+			throw new IOException("This is not a SSH_MSG_EXT_INFO! (" + packet_type + ")");
+
+		int count = tr.readUINT32();
+
+		if (count < 0)
+			throw new IOException("Illegal number of extensions in SSH_MSG_EXT_INFO (" + count + ")");
+
+		for (int i = 0; i < count; i++)
+		{
+			String name = tr.readString();
+			byte[] value = tr.readByteString();
+			extensions.put(name, value);
+		}
+
+		if (tr.remain() != 0)
+			throw new IOException("Padding in SSH_MSG_EXT_INFO packet!");
+	}
+
+	public Map<String, byte[]> getExtensions()
+	{
+		return extensions;
+	}
+
+	/**
+	 * @return the public key signature algorithms accepted by the server, or
+	 *         <code>null</code> if the server did not send "server-sig-algs".
+	 */
+	public String[] getServerSigAlgs()
+	{
+		byte[] value = extensions.get(SERVER_SIG_ALGS);
+
+		if (value == null)
+			return null;
+
+		return Tokenizer.parseTokens(new String(value, StandardCharsets.ISO_8859_1), ',');
+	}
+
+	public byte[] getPayload()
+	{
+		return payload;
+	}
+}
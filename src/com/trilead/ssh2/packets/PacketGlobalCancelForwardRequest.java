@@ -8,7 +8,7 @@ package com.trilead.ssh2.packets;
  * @version $Id: PacketGlobalCancelForwardRequest.java,v 1.1 2007/10/15 12:49:55
  *          cplattne Exp $
  */
-public class PacketGlobalCancelForwardRequest
+public class PacketGlobalCancelForwardRequest implements WritablePacket
 {
 	byte[] payload;
 
@@ -23,18 +23,22 @@ public class PacketGlobalCancelForwardRequest
 		this.bindPort = bindPort;
 	}
 
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_GLOBAL_REQUEST);
+
+		tw.writeString("cancel-tcpip-forward");
+		tw.writeBoolean(wantReply);
+		tw.writeString(bindAddress);
+		tw.writeUINT32(bindPort);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_GLOBAL_REQUEST);
-
-			tw.writeString("cancel-tcpip-forward");
-			tw.writeBoolean(wantReply);
-			tw.writeString(bindAddress);
-			tw.writeUINT32(bindPort);
-
+			writeTo(tw);
 			payload = tw.getBytes();
 		}
 		return payload;
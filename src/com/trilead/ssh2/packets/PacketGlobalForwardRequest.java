@@ -7,7 +7,7 @@ package com.trilead.ssh2.packets;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: PacketGlobalForwardRequest.java,v 1.1 2007/10/15 12:49:55 cplattne Exp $
  */
-public class PacketGlobalForwardRequest
+public class PacketGlobalForwardRequest implements WritablePacket
 {
 	byte[] payload;
 
@@ -22,18 +22,22 @@ public class PacketGlobalForwardRequest
 		this.bindPort = bindPort;
 	}
 
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_GLOBAL_REQUEST);
+		
+		tw.writeString("tcpip-forward");
+		tw.writeBoolean(wantReply);
+		tw.writeString(bindAddress);
+		tw.writeUINT32(bindPort);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_GLOBAL_REQUEST);
-			
-			tw.writeString("tcpip-forward");
-			tw.writeBoolean(wantReply);
-			tw.writeString(bindAddress);
-			tw.writeUINT32(bindPort);
-
+			writeTo(tw);
 			payload = tw.getBytes();
 		}
 		return payload;
@@ -0,0 +1,34 @@
+package com.trilead.ssh2.packets;
+
+/**
+ * PacketGlobalKeepAlive. The "keepalive@openssh.com" global request, which
+ * servers answer with SSH_MSG_REQUEST_FAILURE (or SUCCESS) like any request
+ * they do not know.
+ */
+public class PacketGlobalKeepAlive implements WritablePacket
+{
+	byte[] payload;
+
+	public PacketGlobalKeepAlive()
+	{
+	}
+
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_GLOBAL_REQUEST);
+
+		tw.writeString("keepalive@openssh.com");
+		tw.writeBoolean(true);
+	}
+
+	public byte[] getPayload()
+	{
+		if (payload == null)
+		{
+			TypesWriter tw = new TypesWriter();
+			writeTo(tw);
+			payload = tw.getBytes();
+		}
+		return payload;
+	}
+}
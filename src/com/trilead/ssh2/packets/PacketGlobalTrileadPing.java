@@ -7,7 +7,7 @@ package com.trilead.ssh2.packets;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: PacketGlobalTrileadPing.java,v 1.1 2008/03/03 07:01:36 cplattne Exp $
  */
-public class PacketGlobalTrileadPing
+public class PacketGlobalTrileadPing implements WritablePacket
 {
 	byte[] payload;
 
@@ -15,16 +15,20 @@ public class PacketGlobalTrileadPing
 	{
 	}
 
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_GLOBAL_REQUEST);
+		
+		tw.writeString("trilead-ping");
+		tw.writeBoolean(true);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_GLOBAL_REQUEST);
-			
-			tw.writeString("trilead-ping");
-			tw.writeBoolean(true);
-
+			writeTo(tw);
 			payload = tw.getBytes();
 		}
 		return payload;
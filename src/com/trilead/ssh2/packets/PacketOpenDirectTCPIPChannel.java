@@ -7,7 +7,7 @@ package com.trilead.ssh2.packets;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: PacketOpenDirectTCPIPChannel.java,v 1.1 2007/10/15 12:49:55 cplattne Exp $
  */
-public class PacketOpenDirectTCPIPChannel
+public class PacketOpenDirectTCPIPChannel implements WritablePacket
 {
 	byte[] payload;
 
@@ -33,22 +33,25 @@ public class PacketOpenDirectTCPIPChannel
 		this.originator_port = originator_port;
 	}
 
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_OPEN);
+		tw.writeString("direct-tcpip");
+		tw.writeUINT32(channelID);
+		tw.writeUINT32(initialWindowSize);
+		tw.writeUINT32(maxPacketSize);
+		tw.writeString(host_to_connect);
+		tw.writeUINT32(port_to_connect);
+		tw.writeString(originator_IP_address);
+		tw.writeUINT32(originator_port);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_OPEN);
-			tw.writeString("direct-tcpip");
-			tw.writeUINT32(channelID);
-			tw.writeUINT32(initialWindowSize);
-			tw.writeUINT32(maxPacketSize);
-			tw.writeString(host_to_connect);
-			tw.writeUINT32(port_to_connect);
-			tw.writeString(originator_IP_address);
-			tw.writeUINT32(originator_port);
-
+			writeTo(tw);
 			payload = tw.getBytes();
 		}
 		return payload;
@@ -8,7 +8,7 @@ import java.io.IOException;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: PacketOpenSessionChannel.java,v 1.1 2007/10/15 12:49:55 cplattne Exp $
  */
-public class PacketOpenSessionChannel
+public class PacketOpenSessionChannel implements WritablePacket
 {
 	byte[] payload;
 
@@ -45,16 +45,21 @@ public class PacketOpenSessionChannel
 			throw new IOException("Padding in SSH_MSG_CHANNEL_OPEN packet!");
 	}
 
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_OPEN);
+		tw.writeString("session");
+		tw.writeUINT32(channelID);
+		tw.writeUINT32(initialWindowSize);
+		tw.writeUINT32(maxPacketSize);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_OPEN);
-			tw.writeString("session");
-			tw.writeUINT32(channelID);
-			tw.writeUINT32(initialWindowSize);
-			tw.writeUINT32(maxPacketSize);
+			writeTo(tw);
 			payload = tw.getBytes();
 		}
 		return payload;
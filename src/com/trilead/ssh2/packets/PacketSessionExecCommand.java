@@ -7,7 +7,7 @@ package com.trilead.ssh2.packets;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: PacketSessionExecCommand.java,v 1.1 2007/10/15 12:49:55 cplattne Exp $
  */
-public class PacketSessionExecCommand
+public class PacketSessionExecCommand implements WritablePacket
 {
 	byte[] payload;
 
@@ -22,16 +22,21 @@ public class PacketSessionExecCommand
 		this.command = command;
 	}
 	
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
+		tw.writeUINT32(recipientChannelID);
+		tw.writeString("exec");
+		tw.writeBoolean(wantReply);
+		tw.writeString(command);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
-			tw.writeUINT32(recipientChannelID);
-			tw.writeString("exec");
-			tw.writeBoolean(wantReply);
-			tw.writeString(command);
+			writeTo(tw);
 			payload = tw.getBytes();
 		}
 		return payload;
@@ -7,7 +7,7 @@ package com.trilead.ssh2.packets;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: PacketSessionPtyRequest.java,v 1.1 2007/10/15 12:49:55 cplattne Exp $
  */
-public class PacketSessionPtyRequest
+public class PacketSessionPtyRequest implements WritablePacket
 {
 	byte[] payload;
 
@@ -34,22 +34,26 @@ public class PacketSessionPtyRequest
 		this.terminal_modes = terminal_modes;
 	}
 
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
+		tw.writeUINT32(recipientChannelID);
+		tw.writeString("pty-req");
+		tw.writeBoolean(wantReply);
+		tw.writeString(term);
+		tw.writeUINT32(character_width);
+		tw.writeUINT32(character_height);
+		tw.writeUINT32(pixel_width);
+		tw.writeUINT32(pixel_height);
+		tw.writeString(terminal_modes, 0, terminal_modes.length);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
-			tw.writeUINT32(recipientChannelID);
-			tw.writeString("pty-req");
-			tw.writeBoolean(wantReply);
-			tw.writeString(term);
-			tw.writeUINT32(character_width);
-			tw.writeUINT32(character_height);
-			tw.writeUINT32(pixel_width);
-			tw.writeUINT32(pixel_height);
-			tw.writeString(terminal_modes, 0, terminal_modes.length);
-
+			writeTo(tw);
 			payload = tw.getBytes();
 		}
 		return payload;
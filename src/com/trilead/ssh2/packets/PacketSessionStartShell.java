@@ -7,7 +7,7 @@ package com.trilead.ssh2.packets;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: PacketSessionStartShell.java,v 1.1 2007/10/15 12:49:55 cplattne Exp $
  */
-public class PacketSessionStartShell
+public class PacketSessionStartShell implements WritablePacket
 {
 	byte[] payload;
 
@@ -20,15 +20,20 @@ public class PacketSessionStartShell
 		this.wantReply = wantReply;
 	}
 
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
+		tw.writeUINT32(recipientChannelID);
+		tw.writeString("shell");
+		tw.writeBoolean(wantReply);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
-			tw.writeUINT32(recipientChannelID);
-			tw.writeString("shell");
-			tw.writeBoolean(wantReply);
+			writeTo(tw);
 			payload = tw.getBytes();
 		}
 		return payload;
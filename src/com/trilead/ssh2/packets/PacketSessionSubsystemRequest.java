@@ -7,7 +7,7 @@ package com.trilead.ssh2.packets;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: PacketSessionSubsystemRequest.java,v 1.1 2007/10/15 12:49:55 cplattne Exp $
  */
-public class PacketSessionSubsystemRequest
+public class PacketSessionSubsystemRequest implements WritablePacket
 {
 	byte[] payload;
 
@@ -22,18 +22,22 @@ public class PacketSessionSubsystemRequest
 		this.subsystem = subsystem;
 	}
 	
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
+		tw.writeUINT32(recipientChannelID);
+		tw.writeString("subsystem");
+		tw.writeBoolean(wantReply);
+		tw.writeString(subsystem);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
-			tw.writeUINT32(recipientChannelID);
-			tw.writeString("subsystem");
-			tw.writeBoolean(wantReply);
-			tw.writeString(subsystem);
+			writeTo(tw);
 			payload = tw.getBytes();
-			tw.getBytes(payload);
 		}
 		return payload;
 	}
@@ -7,7 +7,7 @@ package com.trilead.ssh2.packets;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: PacketSessionX11Request.java,v 1.1 2007/10/15 12:49:55 cplattne Exp $
  */
-public class PacketSessionX11Request
+public class PacketSessionX11Request implements WritablePacket
 {
 	byte[] payload;
 
@@ -31,21 +31,25 @@ public class PacketSessionX11Request
 		this.x11ScreenNumber = x11ScreenNumber;
 	}
 
+	public void writeTo(TypesWriter tw)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
+		tw.writeUINT32(recipientChannelID);
+		tw.writeString("x11-req");
+		tw.writeBoolean(wantReply);
+
+		tw.writeBoolean(singleConnection);
+		tw.writeString(x11AuthenticationProtocol);
+		tw.writeString(x11AuthenticationCookie);
+		tw.writeUINT32(x11ScreenNumber);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
-			tw.writeUINT32(recipientChannelID);
-			tw.writeString("x11-req");
-			tw.writeBoolean(wantReply);
-
-			tw.writeBoolean(singleConnection);
-			tw.writeString(x11AuthenticationProtocol);
-			tw.writeString(x11AuthenticationCookie);
-			tw.writeUINT32(x11ScreenNumber);
-
+			writeTo(tw);
 			payload = tw.getBytes();
 		}
 		return payload;
@@ -10,7 +10,7 @@ import java.util.Map;
  *
  * @author Kohsuke Kawaguchi
  */
-public class PacketSignal {
+public class PacketSignal implements WritablePacket {
     byte[] payload;
 
    	public int recipientChannelID;
@@ -23,17 +23,21 @@ public class PacketSignal {
         this.signalName = signalName;
    	}
 
+   	public void writeTo(TypesWriter tw)
+   	{
+   		tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
+   		tw.writeUINT32(recipientChannelID);
+   		tw.writeString("signal");
+        tw.writeBoolean(false);
+   		tw.writeString(signalName);
+   	}
+
    	public byte[] getPayload()
    	{
    		if (payload == null)
    		{
    			TypesWriter tw = new TypesWriter();
-   			tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
-   			tw.writeUINT32(recipientChannelID);
-   			tw.writeString("signal");
-            tw.writeBoolean(false);
-   			tw.writeString(signalName);
-
+   			writeTo(tw);
    			payload = tw.getBytes();
    		}
    		return payload;
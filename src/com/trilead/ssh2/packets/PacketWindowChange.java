@@ -7,7 +7,7 @@ package com.trilead.ssh2.packets;
  *
  * @author Kohsuke Kawaguchi
  */
-public class PacketWindowChange {
+public class PacketWindowChange implements WritablePacket {
     byte[] payload;
 
    	public int recipientChannelID;
@@ -26,20 +26,24 @@ public class PacketWindowChange {
    		this.pixel_height = pixel_height;
    	}
 
+   	public void writeTo(TypesWriter tw)
+   	{
+   		tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
+   		tw.writeUINT32(recipientChannelID);
+   		tw.writeString("window-change");
+        tw.writeBoolean(false);
+   		tw.writeUINT32(character_width);
+   		tw.writeUINT32(character_height);
+   		tw.writeUINT32(pixel_width);
+   		tw.writeUINT32(pixel_height);
+   	}
+
    	public byte[] getPayload()
    	{
    		if (payload == null)
    		{
    			TypesWriter tw = new TypesWriter();
-   			tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
-   			tw.writeUINT32(recipientChannelID);
-   			tw.writeString("window-change");
-            tw.writeBoolean(false);
-   			tw.writeUINT32(character_width);
-   			tw.writeUINT32(character_height);
-   			tw.writeUINT32(pixel_width);
-   			tw.writeUINT32(pixel_height);
-
+   			writeTo(tw);
    			payload = tw.getBytes();
    		}
    		return payload;
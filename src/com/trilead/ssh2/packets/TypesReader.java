@@ -9,6 +9,8 @@ import com.trilead.ssh2.util.Tokenizer;
 
 /**
  * TypesReader.
+ * <p>
+ * Fields a parser is not interested in can be skipped without copying them.
  * 
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: TypesReader.java,v 1.2 2008/04/01 12:38:09 cplattne Exp $
@@ -59,7 +61,7 @@ public class TypesReader
 
 	public byte[] readBytes(int len) throws IOException
 	{
-		if ((pos + len) > max)
+		if ((len < 0) || (len > (max - pos)))
 			throw new IOException("Packet too short.");
 
 		byte[] res = new byte[len];
@@ -72,7 +74,7 @@ public class TypesReader
 
 	public void readBytes(byte[] dst, int off, int len) throws IOException
 	{
-		if ((pos + len) > max)
+		if ((len < 0) || (len > (max - pos)))
 			throw new IOException("Packet too short.");
 
 		System.arraycopy(arr, pos, dst, off, len);
@@ -128,7 +130,7 @@ public class TypesReader
 	{
 		int len = readUINT32();
 
-		if ((len + pos) > max)
+		if ((len < 0) || (len > (max - pos)))
 			throw new IOException("Malformed SSH byte string.");
 
 		byte[] res = new byte[len];
@@ -141,7 +143,7 @@ public class TypesReader
 	{
 		int len = readUINT32();
 
-		if ((len + pos) > max)
+		if ((len < 0) || (len > (max - pos)))
 			throw new IOException("Malformed SSH string.");
 
 		String res = (charsetName == null) ? new String(arr, pos, len) : new String(arr, pos, len, charsetName);
@@ -154,7 +156,7 @@ public class TypesReader
 	{
 		int len = readUINT32();
 
-		if ((len + pos) > max)
+		if ((len < 0) || (len > (max - pos)))
 			throw new IOException("Malformed SSH string.");
 
 		String res = new String(arr, pos, len, "ISO-8859-1");
@@ -164,6 +166,27 @@ public class TypesReader
 		return res;
 	}
 
+	/**
+	 * Skips an SSH string (or byte string) without looking at its contents.
+	 */
+	public void skipString() throws IOException
+	{
+		int len = readUINT32();
+
+		if ((len < 0) || (len > (max - pos)))
+			throw new IOException("Malformed SSH string.");
+
+		pos += len;
+	}
+
+	public void skip(int len) throws IOException
+	{
+		if ((len < 0) || (len > (max - pos)))
+			throw new IOException("Packet too short.");
+
+		pos += len;
+	}
+
 	public String[] readNameList() throws IOException
 	{
 		return Tokenizer.parseTokens(readString(), ',');
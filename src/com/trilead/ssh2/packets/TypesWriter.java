@@ -1,54 +1,195 @@
-
 package com.trilead.ssh2.packets;
 
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * TypesWriter.
+ * <p>
+ * A writer may be created with some reserved room in front of the data. The
+ * transport layer uses that room to put the binary packet header (packet
+ * length and padding length) in front of the payload, so that a message can be
+ * encrypted without copying it into another array first. Short-lived writers
+ * for outgoing messages should be taken from a small per-thread pool with
+ * {@link #obtain()} and handed back with {@link #recycle()}.
  * 
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: TypesWriter.java,v 1.2 2008/04/01 12:38:09 cplattne Exp $
  */
 public class TypesWriter
 {
+	/**
+	 * Room reserved by {@link #obtain()}: uint32 packet_length and byte
+	 * padding_length of the SSH binary packet.
+	 */
+	public static final int PACKET_HEADER_ROOM = 5;
+
+	/**
+	 * Writers whose buffer grew beyond this size are not kept in the pool, so a
+	 * single large message does not pin its buffer to the thread forever.
+	 */
+	private static final int MAX_POOLED_SIZE = Integer.getInteger(TypesWriter.class.getName() + ".maxPooledSize",
+			256 * 1024);
+
+	/* A few slots per thread, since a writer may be in use while another message is built */
+	private static final int POOL_SLOTS = 4;
+
+	private static final ThreadLocal<TypesWriter[]> pool = ThreadLocal.withInitial(() -> new TypesWriter[POOL_SLOTS]);
+
 	byte arr[];
 	int pos;
+	int start;
 
 	public TypesWriter()
 	{
-		arr = new byte[256];
-		pos = 0;
+		this(256);
+	}
+
+	public TypesWriter(int size)
+	{
+		this(size, 0);
+	}
+
+	/**
+	 * @param size initial capacity of the buffer, including the reserved room
+	 * @param reserved number of bytes to leave free in front of the data
+	 */
+	public TypesWriter(int size, int reserved)
+	{
+		arr = new byte[Math.max(size, reserved + 16)];
+		pos = start = reserved;
+	}
+
+	/**
+	 * Takes a writer from the pool of the current thread (or creates a new one)
+	 * that reserves {@link #PACKET_HEADER_ROOM} bytes in front of the data.
+	 */
+	public static TypesWriter obtain()
+	{
+		return obtain(PACKET_HEADER_ROOM);
 	}
 
-	private void resize(int len)
+	public static TypesWriter obtain(int reserved)
 	{
-		byte new_arr[] = new byte[len];
-		System.arraycopy(arr, 0, new_arr, 0, arr.length);
+		TypesWriter[] slots = pool.get();
+
+		for (int i = 0; i < slots.length; i++)
+		{
+			TypesWriter tw = slots[i];
+
+			if (tw != null)
+			{
+				slots[i] = null;
+				tw.reset(reserved);
+				return tw;
+			}
+		}
+
+		return new TypesWriter(256 + reserved, reserved);
+	}
+
+	/**
+	 * Hands this writer back to the pool of the current thread. The writer (and
+	 * any array obtained from {@link #getBuffer()}) must not be used afterwards.
+	 */
+	public void recycle()
+	{
+		if (arr.length > MAX_POOLED_SIZE)
+			return;
+
+		TypesWriter[] slots = pool.get();
+
+		for (int i = 0; i < slots.length; i++)
+		{
+			if (slots[i] == this)
+				return;
+		}
+
+		for (int i = 0; i < slots.length; i++)
+		{
+			if (slots[i] == null)
+			{
+				slots[i] = this;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Discards the contents and reserves <code>reserved</code> bytes in front
+	 * of the data.
+	 */
+	public void reset(int reserved)
+	{
+		if (reserved > arr.length)
+			arr = new byte[reserved + 256];
+
+		pos = start = reserved;
+	}
+
+	private void ensureCapacity(int needed)
+	{
+		if (needed <= arr.length)
+			return;
+
+		byte new_arr[] = new byte[Math.max(needed, arr.length << 1)];
+		System.arraycopy(arr, 0, new_arr, 0, pos);
 		arr = new_arr;
 	}
 
+	/**
+	 * Makes sure that <code>len</code> bytes can be placed behind the data
+	 * (e.g., padding and MAC of a packet) in the array returned by
+	 * {@link #getBuffer()}. The length of the data does not change.
+	 */
+	public void ensureTrailingRoom(int len)
+	{
+		ensureCapacity(pos + len);
+	}
+
 	public int length()
 	{
-		return pos;
+		return pos - start;
+	}
+
+	/**
+	 * @return the internal buffer. The data starts at {@link #getOffset()} and
+	 *         is {@link #length()} bytes long; the bytes in front of it are the
+	 *         reserved room.
+	 */
+	public byte[] getBuffer()
+	{
+		return arr;
+	}
+
+	public int getOffset()
+	{
+		return start;
 	}
 
 	public byte[] getBytes()
 	{
-		byte[] dst = new byte[pos];
-		System.arraycopy(arr, 0, dst, 0, pos);
+		byte[] dst = new byte[pos - start];
+		System.arraycopy(arr, start, dst, 0, pos - start);
 		return dst;
 	}
 
 	public void getBytes(byte dst[])
 	{
-		System.arraycopy(arr, 0, dst, 0, pos);
+		System.arraycopy(arr, start, dst, 0, pos - start);
 	}
 
+	/**
+	 * Overwrites (or appends) a uint32 at the given offset, relative to the
+	 * start of the data.
+	 */
 	public void writeUINT32(int val, int off)
 	{
-		if ((off + 4) > arr.length)
-			resize(off + 32);
+		off += start;
+
+		ensureCapacity(off + 4);
 
 		arr[off++] = (byte) (val >> 24);
 		arr[off++] = (byte) (val >> 16);
@@ -58,14 +199,13 @@ public class TypesWriter
 
 	public void writeUINT32(int val)
 	{
-		writeUINT32(val, pos);
+		writeUINT32(val, pos - start);
 		pos += 4;
 	}
 
 	public void writeUINT64(long val)
 	{
-		if ((pos + 8) > arr.length)
-			resize(arr.length + 32);
+		ensureCapacity(pos + 8);
 
 		arr[pos++] = (byte) (val >> 56);
 		arr[pos++] = (byte) (val >> 48);
@@ -79,23 +219,23 @@ public class TypesWriter
 
 	public void writeBoolean(boolean v)
 	{
-		if ((pos + 1) > arr.length)
-			resize(arr.length + 32);
+		ensureCapacity(pos + 1);
 
 		arr[pos++] = v ? (byte) 1 : (byte) 0;
 	}
 
 	public void writeByte(int v, int off)
 	{
-		if ((off + 1) > arr.length)
-			resize(off + 32);
+		off += start;
+
+		ensureCapacity(off + 1);
 
 		arr[off] = (byte) v;
 	}
 
 	public void writeByte(int v)
 	{
-		writeByte(v, pos);
+		writeByte(v, pos - start);
 		pos++;
 	}
 
@@ -116,8 +256,7 @@ public class TypesWriter
 
 	public void writeBytes(byte[] buff, int off, int len)
 	{
-		if ((pos + len) > arr.length)
-			resize(arr.length + len + 32);
+		ensureCapacity(pos + len);
 
 		System.arraycopy(buff, off, arr, pos, len);
 		pos += len;
@@ -129,22 +268,58 @@ public class TypesWriter
 		writeBytes(buff, off, len);
 	}
 
+	/**
+	 * Writes the next <code>len</code> bytes of <code>src</code> as a string,
+	 * advancing its position. Works for direct buffers without an intermediate
+	 * array.
+	 */
+	public void writeString(ByteBuffer src, int len)
+	{
+		writeUINT32(len);
+		ensureCapacity(pos + len);
+
+		ByteBuffer chunk = src.duplicate();
+		chunk.limit(chunk.position() + len);
+		chunk.get(arr, pos, len);
+		src.position(src.position() + len);
+		pos += len;
+	}
+
 	public void writeString(String v)
 	{
-		byte[] b;
+		int lenOff = pos - start;
 
-		try
-		{
-			/* All Java JVMs must support ISO-8859-1 */
-			b = v.getBytes("ISO-8859-1");
-		}
-		catch (UnsupportedEncodingException ignore)
+		writeUINT32(0);
+		writeLatin1(v);
+		writeUINT32(pos - start - lenOff - 4, lenOff);
+	}
+
+	/**
+	 * Appends the ISO-8859-1 encoding of the string (without length field),
+	 * straight into the buffer.
+	 */
+	private void writeLatin1(String v)
+	{
+		int len = v.length();
+
+		ensureCapacity(pos + len);
+
+		for (int i = 0; i < len; i++)
 		{
-			b = v.getBytes();
+			char c = v.charAt(i);
+
+			if (c > 0xff)
+			{
+				/* Let the JRE decide how to map anything else */
+				byte[] b = v.getBytes(StandardCharsets.ISO_8859_1);
+				writeBytes(b, 0, b.length);
+				return;
+			}
+
+			arr[pos + i] = (byte) c;
 		}
 
-		writeUINT32(b.length);
-		writeBytes(b, 0, b.length);
+		pos += len;
 	}
 
 	public void writeString(String v, String charsetName) throws UnsupportedEncodingException
@@ -157,13 +332,17 @@ public class TypesWriter
 
 	public void writeNameList(String v[])
 	{
-		StringBuffer sb = new StringBuffer();
+		int lenOff = pos - start;
+
+		writeUINT32(0);
+
 		for (int i = 0; i < v.length; i++)
 		{
 			if (i > 0)
-				sb.append(',');
-			sb.append(v[i]);
+				writeByte(',');
+			writeLatin1(v[i]);
 		}
-		writeString(sb.toString());
+
+		writeUINT32(pos - start - lenOff - 4, lenOff);
 	}
 }
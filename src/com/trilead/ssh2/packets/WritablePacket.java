@@ -0,0 +1,11 @@
+package com.trilead.ssh2.packets;
+
+/**
+ * WritablePacket. A message that can serialize itself into a (pooled)
+ * {@link TypesWriter}, so it can be sent without building an intermediate
+ * payload array.
+ */
+public interface WritablePacket
+{
+	void writeTo(TypesWriter tw);
+}
@@ -6,7 +6,8 @@ import java.math.BigInteger;
 import java.security.SecureRandom;
 
 import com.trilead.ssh2.IOWarningException;
-import com.trilead.ssh2.crypto.digest.SHA1;
+import com.trilead.ssh2.crypto.digest.Digest;
+import com.trilead.ssh2.crypto.digest.JreMessageDigestWrapper;
 import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.TypesReader;
 import com.trilead.ssh2.packets.TypesWriter;
@@ -138,7 +139,7 @@ public class DSASHA1Verify
 	{
 		/* Inspired by Bouncycastle's DSASigner class */
 
-		SHA1 md = new SHA1();
+		Digest md = JreMessageDigestWrapper.getInstance("SHA-1");
 		md.update(message);
 		byte[] sha_message = new byte[md.getDigestLength()];
 		md.digest(sha_message);
@@ -194,7 +195,7 @@ public class DSASHA1Verify
 	@Deprecated
 	public static DSASignature generateSignature(byte[] message, DSAPrivateKey pk, SecureRandom rnd)
 	{
-		SHA1 md = new SHA1();
+		Digest md = JreMessageDigestWrapper.getInstance("SHA-1");
 		md.update(message);
 		byte[] sha_message = new byte[md.getDigestLength()];
 		md.digest(sha_message);
@@ -6,7 +6,8 @@ import java.math.BigInteger;
 
 import com.trilead.ssh2.IOWarningException;
 import com.trilead.ssh2.crypto.SimpleDERReader;
-import com.trilead.ssh2.crypto.digest.SHA1;
+import com.trilead.ssh2.crypto.digest.Digest;
+import com.trilead.ssh2.crypto.digest.JreMessageDigestWrapper;
 import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.TypesReader;
 import com.trilead.ssh2.packets.TypesWriter;
@@ -114,7 +115,7 @@ public class RSASHA1Verify
 	@Deprecated
 	public static RSASignature generateSignature(byte[] message, RSAPrivateKey pk) throws IOException
 	{
-		SHA1 md = new SHA1();
+		Digest md = JreMessageDigestWrapper.getInstance("SHA-1");
 		md.update(message);
 		byte[] sha_message = new byte[md.getDigestLength()];
 		md.digest(sha_message);
@@ -153,7 +154,7 @@ public class RSASHA1Verify
 	@Deprecated
 	public static boolean verifySignature(byte[] message, RSASignature ds, RSAPublicKey dpk) throws IOException
 	{
-		SHA1 md = new SHA1();
+		Digest md = JreMessageDigestWrapper.getInstance("SHA-1");
 		md.update(message);
 		byte[] sha_message = new byte[md.getDigestLength()];
 		md.digest(sha_message);
@@ -1,6 +1,7 @@
 package com.trilead.ssh2.transport;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.net.Socket;
 import java.net.ServerSocket;
@@ -18,6 +19,9 @@ import com.trilead.ssh2.ServerHostKeyVerifier;
  */
 public class Acceptor extends Connection{
 
+    private CallHomeListener listener;
+    private InetAddress device;
+
     /**
      * Constuctor
      * @param hostname is the hostname that this class is running on.
@@ -26,6 +30,25 @@ public class Acceptor extends Connection{
     public Acceptor(String hostname,int port){
         super(hostname,port);
     }
+
+    /**
+     * Waits for any device that calls home through a shared listener.
+     * @param listener a started listener, see {@link CallHomeListener#start()}.
+     */
+    public Acceptor(CallHomeListener listener){
+        this(listener, null);
+    }
+
+    /**
+     * Waits for a particular device that calls home through a shared listener.
+     * @param listener a started listener, see {@link CallHomeListener#start()}.
+     * @param device the address the device calls from, or <code>null</code> for any device.
+     */
+    public Acceptor(CallHomeListener listener, InetAddress device){
+        super((device != null) ? device.getHostAddress() : "0.0.0.0", listener.getLocalPort());
+        this.listener = listener;
+        this.device = device;
+    }
     /**
      * This method reuses most of methods for {@link Connection#connect(ServerHostKeyVerifier, int, int, int)}. Parameters and descriptions applies here too.
      * The main difference between 
@@ -33,6 +56,9 @@ public class Acceptor extends Connection{
      * will wait (blocks) for an incoming connection for max {@param connectTimeout} . If connection is completed a {@link Socket} is returned and we set a timeout of this socket using 
      * {@param readTimeout}.
      * 
+     * With a {@link CallHomeListener}, no port is bound here: the socket of a device that already called
+     * (or calls within {@param connectTimeout}) is taken from the listener.
+     * 
      * @throws SocketTimeoutException If there is no incoming connection within  {@param connectTimeout}.
      *  
      */
@@ -47,7 +73,10 @@ public class Acceptor extends Connection{
             throw new IllegalArgumentException("kexTimeout must be non-negative!");
 
         tm = new TransportManager(hostname, port);
-        tm.setEnabledCallHomeSSH(true);
+        if (listener != null)
+            tm.setCallHomeListener(listener, device);
+        else
+            tm.setEnabledCallHomeSSH(true);
 
         tm.setConnectionMonitors(connectionMonitors);
         try {
@@ -0,0 +1,250 @@
+package com.trilead.ssh2.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import com.trilead.ssh2.log.Logger;
+
+/**
+ * A long-lived listener for SSH Call Home (RFC 8071). The port is bound once,
+ * a background thread accepts devices as they call in and queues their sockets,
+ * and each {@link Acceptor} takes the socket of the device it waits for. Many
+ * devices can call home at the same time without the port being bound again
+ * for every connection.
+ * <p>
+ * Devices are picked by their address. The host key is only known after the
+ * key exchange, so identifying a device by its host key is left to the
+ * {@link com.trilead.ssh2.ServerHostKeyVerifier} passed to
+ * {@link Acceptor#accept(com.trilead.ssh2.ServerHostKeyVerifier, int, int, int)},
+ * which also receives the address the device called from.
+ */
+public class CallHomeListener implements Runnable
+{
+
+	private static final Logger log = Logger.getLogger(CallHomeListener.class);
+
+	/* Sockets that were accepted but not taken yet; the oldest ones are dropped beyond this */
+	static final int MAX_PENDING = Integer.getInteger(CallHomeListener.class.getName() + ".maxPending", 64);
+
+	private final InetSocketAddress bindAddress;
+
+	private final LinkedList<Socket> pending = new LinkedList<Socket>();
+
+	private ServerSocket serverSocket;
+
+	private Thread acceptThread;
+
+	private boolean closed = false;
+
+	/**
+	 * @param port the port that devices call home to, e.g. 4334 for NETCONF
+	 */
+	public CallHomeListener(int port)
+	{
+		this(new InetSocketAddress(port));
+	}
+
+	public CallHomeListener(InetSocketAddress bindAddress)
+	{
+		this.bindAddress = bindAddress;
+	}
+
+	/**
+	 * Binds the port and starts accepting devices.
+	 *
+	 * @throws IOException if the port cannot be bound
+	 */
+	public synchronized void start() throws IOException
+	{
+		if (serverSocket != null)
+			throw new IOException("The call home listener has already been started.");
+
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(bindAddress);
+
+		acceptThread = new Thread(this);
+		acceptThread.setDaemon(true);
+		acceptThread.setName("Trilead_CallHomeListener_" + getLocalPort());
+		acceptThread.start();
+
+		log.log(50, "SSH Call Home listener on port " + getLocalPort());
+	}
+
+	/**
+	 * @return the port the listener is bound to, or -1 if it has not been started
+	 */
+	public synchronized int getLocalPort()
+	{
+		return (serverSocket != null) ? serverSocket.getLocalPort() : -1;
+	}
+
+	public void run()
+	{
+		ServerSocket ss;
+
+		synchronized (this)
+		{
+			ss = serverSocket;
+		}
+
+		while (true)
+		{
+			Socket socket;
+
+			try
+			{
+				socket = ss.accept();
+			}
+			catch (IOException e)
+			{
+				synchronized (this)
+				{
+					if (!closed)
+						log.log(20, "SSH Call Home listener stopped accepting", e);
+					closed = true;
+					notifyAll();
+				}
+				return;
+			}
+
+			if (log.isEnabled())
+				log.log(50, "SSH Call Home from " + socket.getRemoteSocketAddress());
+
+			Socket dropped = null;
+
+			synchronized (this)
+			{
+				if (closed)
+				{
+					dropped = socket;
+				}
+				else
+				{
+					pending.addLast(socket);
+
+					if (pending.size() > MAX_PENDING)
+						dropped = pending.removeFirst();
+
+					notifyAll();
+				}
+			}
+
+			if (dropped != null)
+				closeQuietly(dropped);
+		}
+	}
+
+	/**
+	 * Takes the socket of a device that called home, waiting for one if
+	 * necessary. Devices are handed out in the order they called.
+	 *
+	 * @param device the address of the device, or <code>null</code> for any device
+	 * @param timeout in milliseconds, 0 waits forever
+	 * @return a connected socket, owned by the caller from now on
+	 * @throws SocketTimeoutException if no matching device called within the timeout
+	 * @throws IOException if the listener has been closed
+	 */
+	public Socket take(InetAddress device, long timeout) throws IOException
+	{
+		long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+
+		synchronized (this)
+		{
+			while (true)
+			{
+				Iterator<Socket> it = pending.iterator();
+
+				while (it.hasNext())
+				{
+					Socket socket = it.next();
+
+					if (device == null || device.equals(socket.getInetAddress()))
+					{
+						it.remove();
+						return socket;
+					}
+				}
+
+				if (closed || serverSocket == null)
+					throw new IOException("The call home listener is not running.");
+
+				long wait = 0;
+
+				if (deadline != 0)
+				{
+					wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						throw new SocketTimeoutException("No device called home within " + timeout + " ms.");
+				}
+
+				try
+				{
+					wait(wait);
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of devices that called and have not been taken yet
+	 */
+	public synchronized int getPendingCount()
+	{
+		return pending.size();
+	}
+
+	/**
+	 * Unbinds the port and closes the sockets that nobody has taken.
+	 */
+	public void close()
+	{
+		LinkedList<Socket> orphans;
+		ServerSocket ss;
+
+		synchronized (this)
+		{
+			closed = true;
+			ss = serverSocket;
+			orphans = new LinkedList<Socket>(pending);
+			pending.clear();
+			notifyAll();
+		}
+
+		if (ss != null)
+		{
+			try
+			{
+				ss.close();
+			}
+			catch (IOException ignore)
+			{
+			}
+		}
+
+		for (Socket socket : orphans)
+			closeQuietly(socket);
+	}
+
+	private static void closeQuietly(Socket socket)
+	{
+		try
+		{
+			socket.close();
+		}
+		catch (IOException ignore)
+		{
+		}
+	}
+}
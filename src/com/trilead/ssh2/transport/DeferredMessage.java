@@ -0,0 +1,20 @@
+package com.trilead.ssh2.transport;
+
+import java.io.IOException;
+
+/**
+ * A message that is put together only when the asynchronous sender of the
+ * {@link TransportManager} gets to it, so that updates which pile up in the
+ * meantime (e.g. window adjustments of a channel) go out as one message.
+ */
+public interface DeferredMessage
+{
+	/**
+	 * Called on the sender thread of the transport, in queue order.
+	 * Sends the message with {@link TransportManager#sendMessage(byte[])},
+	 * or nothing if it has become obsolete.
+	 *
+	 * @throws IOException the io exception
+	 */
+	public void send() throws IOException;
+}
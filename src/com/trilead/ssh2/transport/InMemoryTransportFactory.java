@@ -0,0 +1,237 @@
+package com.trilead.ssh2.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Connects to an SSH server running in the same JVM through a pair of
+ * in-memory pipes, for tests and benchmarks without the TCP stack. For every
+ * connection the server end of a new pipe pair is handed to the server
+ * callback, which must serve it on a thread of its own.
+ */
+public class InMemoryTransportFactory implements TransportFactory
+{
+
+	static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private final Consumer<Transport> server;
+
+	private final int bufferSize;
+
+	/**
+	 * @param server receives the server end of each new connection
+	 */
+	public InMemoryTransportFactory(Consumer<Transport> server)
+	{
+		this(server, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param server receives the server end of each new connection
+	 * @param bufferSize the number of bytes each direction buffers before a writer blocks
+	 */
+	public InMemoryTransportFactory(Consumer<Transport> server, int bufferSize)
+	{
+		this.server = server;
+		this.bufferSize = bufferSize;
+	}
+
+	public Transport open(String hostname, int port, int connectTimeout, int readTimeout) throws IOException
+	{
+		Transport[] pair = createPair(bufferSize);
+		((PipeTransport) pair[0]).readTimeout = readTimeout;
+		server.accept(pair[1]);
+		return pair[0];
+	}
+
+	/**
+	 * @return two connected transports: what is written to one can be read from the other
+	 */
+	public static Transport[] createPair(int bufferSize)
+	{
+		Pipe up = new Pipe(bufferSize);
+		Pipe down = new Pipe(bufferSize);
+		return new Transport[] {new PipeTransport(down, up), new PipeTransport(up, down)};
+	}
+
+	/*
+	 * A bounded byte ring. Unlike java.io.PipedInputStream it does not care
+	 * which threads read and write, SSH sends from whatever thread has data.
+	 */
+	private static final class Pipe
+	{
+
+		private final byte[] buffer;
+
+		private int readPos = 0;
+
+		private int count = 0;
+
+		private boolean closed = false;
+
+		Pipe(int size)
+		{
+			buffer = new byte[size];
+		}
+
+		synchronized int read(byte[] b, int off, int len, int timeout) throws IOException
+		{
+			long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+
+			while (count == 0)
+			{
+				if (closed)
+					return -1;
+
+				long wait = 0;
+
+				if (deadline != 0)
+				{
+					wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						throw new SocketTimeoutException("Read timed out");
+				}
+
+				waitInterruptibly(wait);
+			}
+
+			int n = Math.min(len, count);
+			int first = Math.min(n, buffer.length - readPos);
+
+			System.arraycopy(buffer, readPos, b, off, first);
+			System.arraycopy(buffer, 0, b, off + first, n - first);
+
+			readPos = (readPos + n) % buffer.length;
+			count -= n;
+			notifyAll();
+
+			return n;
+		}
+
+		synchronized void write(byte[] b, int off, int len) throws IOException
+		{
+			while (len > 0)
+			{
+				if (closed)
+					throw new IOException("Pipe closed");
+
+				if (count == buffer.length)
+				{
+					waitInterruptibly(0);
+					continue;
+				}
+
+				int writePos = (readPos + count) % buffer.length;
+				int n = Math.min(len, Math.min(buffer.length - count, buffer.length - writePos));
+
+				System.arraycopy(b, off, buffer, writePos, n);
+
+				count += n;
+				off += n;
+				len -= n;
+				notifyAll();
+			}
+		}
+
+		synchronized void close()
+		{
+			closed = true;
+			notifyAll();
+		}
+
+		private void waitInterruptibly(long timeout) throws InterruptedIOException
+		{
+			try
+			{
+				wait(timeout);
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	private static final class PipeTransport implements Transport
+	{
+
+		private final Pipe in;
+
+		private final Pipe out;
+
+		volatile int readTimeout = 0;
+
+		private final InputStream inputStream = new InputStream()
+		{
+			@Override
+			public int read() throws IOException
+			{
+				byte[] b = new byte[1];
+				int n = read(b, 0, 1);
+				return (n < 0) ? -1 : (b[0] & 0xff);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				if (len == 0)
+					return 0;
+				return in.read(b, off, len, readTimeout);
+			}
+
+			@Override
+			public void close()
+			{
+				PipeTransport.this.close();
+			}
+		};
+
+		private final OutputStream outputStream = new OutputStream()
+		{
+			@Override
+			public void write(int b) throws IOException
+			{
+				out.write(new byte[] {(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close()
+			{
+				PipeTransport.this.close();
+			}
+		};
+
+		PipeTransport(Pipe in, Pipe out)
+		{
+			this.in = in;
+			this.out = out;
+		}
+
+		public InputStream getInputStream()
+		{
+			return inputStream;
+		}
+
+		public OutputStream getOutputStream()
+		{
+			return outputStream;
+		}
+
+		/* Like closing a socket: both directions, seen by both ends */
+		public void close()
+		{
+			in.close();
+			out.close();
+		}
+	}
+}
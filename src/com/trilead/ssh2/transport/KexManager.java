@@ -23,6 +23,7 @@ import com.trilead.ssh2.crypto.dh.DhGroupExchange;
 import com.trilead.ssh2.crypto.dh.GenericDhExchange;
 import com.trilead.ssh2.crypto.digest.MessageMac;
 import com.trilead.ssh2.log.Logger;
+import com.trilead.ssh2.packets.PacketExtInfo;
 import com.trilead.ssh2.packets.PacketKexDHInit;
 import com.trilead.ssh2.packets.PacketKexDHReply;
 import com.trilead.ssh2.packets.PacketKexDhGexGroup;
@@ -248,12 +249,34 @@ public class KexManager implements MessageHandler
 			kxs = new KexState();
 
 			kxs.dhgexParameters = nextKEXdhgexParameters;
-			PacketKexInit kp = new PacketKexInit(nextKEXcryptoWishList, rnd);
+			PacketKexInit kp = createLocalKexInit();
 			kxs.localKEX = kp;
 			tm.sendKexMessage(kp.getPayload());
 		}
 	}
 
+	/**
+	 * Build our SSH_MSG_KEXINIT. The first one also carries the "ext-info-c"
+	 * pseudo algorithm (RFC 8308), asking the server to tell us via
+	 * SSH_MSG_EXT_INFO which public key signature algorithms it accepts.
+	 */
+	private PacketKexInit createLocalKexInit()
+	{
+		PacketKexInit kp = new PacketKexInit(nextKEXcryptoWishList, rnd);
+
+		if (sessionId == null)
+		{
+			KexParameters params = kp.getKexParameters();
+			String[] kex = params.kex_algorithms;
+			String[] kexWithExtInfo = new String[kex.length + 1];
+			System.arraycopy(kex, 0, kexWithExtInfo, 0, kex.length);
+			kexWithExtInfo[kex.length] = PacketExtInfo.EXT_INFO_CLIENT;
+			params.kex_algorithms = kexWithExtInfo;
+		}
+
+		return kp;
+	}
+
 	private boolean establishKeyMaterial()
 	{
 		try
@@ -445,7 +468,7 @@ public class KexManager implements MessageHandler
 				 */
 				kxs = new KexState();
 				kxs.dhgexParameters = nextKEXdhgexParameters;
-				kip = new PacketKexInit(nextKEXcryptoWishList, rnd);
+				kip = createLocalKexInit();
 				kxs.localKEX = kip;
 				tm.sendKexMessage(kip.getPayload());
 			}
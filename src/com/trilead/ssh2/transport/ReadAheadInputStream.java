@@ -0,0 +1,178 @@
+package com.trilead.ssh2.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * ReadAheadInputStream. Reads the underlying stream on a thread of its own,
+ * so that waiting for the socket overlaps with decrypting the data that
+ * already arrived. At most <code>depth</code> chunks are held back.
+ */
+final class ReadAheadInputStream extends InputStream implements Runnable
+{
+	private static final class Chunk
+	{
+		final byte[] buf;
+		int len;
+		int pos;
+
+		Chunk(int size)
+		{
+			buf = new byte[size];
+		}
+	}
+
+	/* Marks the end of the stream (or a failure), stays at the head of the queue */
+	private static final Chunk END = new Chunk(0);
+
+	private final InputStream in;
+
+	private final int chunkSize;
+
+	private final BlockingQueue<Chunk> filled;
+
+	private final BlockingQueue<Chunk> free;
+
+	private volatile IOException failure;
+
+	private Chunk current;
+
+	private Thread reader;
+
+	ReadAheadInputStream(InputStream in, int chunkSize, int depth)
+	{
+		this.in = in;
+		this.chunkSize = chunkSize;
+		this.filled = new ArrayBlockingQueue<Chunk>(depth + 1);
+		this.free = new ArrayBlockingQueue<Chunk>(depth + 1);
+	}
+
+	void start(String threadName)
+	{
+		reader = new Thread(this);
+		reader.setDaemon(true);
+		reader.setName(threadName);
+		reader.start();
+	}
+
+	public void run()
+	{
+		try
+		{
+			while (true)
+			{
+				Chunk c = free.poll();
+
+				if (c == null)
+					c = new Chunk(chunkSize);
+
+				int n = in.read(c.buf, 0, c.buf.length);
+
+				if (n < 0)
+					break;
+
+				c.len = n;
+				c.pos = 0;
+				filled.put(c);
+			}
+
+			filled.put(END);
+		}
+		catch (IOException e)
+		{
+			failure = e;
+
+			try
+			{
+				filled.put(END);
+			}
+			catch (InterruptedException ignore)
+			{
+			}
+		}
+		catch (InterruptedException e)
+		{
+			/* Closed, nobody reads any more */
+		}
+	}
+
+	private Chunk nextChunk() throws IOException
+	{
+		if (current != null && current != END && current.pos >= current.len)
+		{
+			free.offer(current);
+			current = null;
+		}
+
+		if (current == null)
+		{
+			try
+			{
+				current = filled.take();
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+		}
+
+		if (current == END && failure != null)
+			throw new IOException("Reading from the socket failed.", failure);
+
+		return current;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		Chunk c = nextChunk();
+
+		if (c == END)
+			return -1;
+
+		return c.buf[c.pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+
+		Chunk c = nextChunk();
+
+		if (c == END)
+			return -1;
+
+		int n = Math.min(len, c.len - c.pos);
+		System.arraycopy(c.buf, c.pos, b, off, n);
+		c.pos += n;
+
+		return n;
+	}
+
+	@Override
+	public int available()
+	{
+		Chunk c = current;
+
+		if (c == null || c == END)
+			return 0;
+
+		return c.len - c.pos;
+	}
+
+	/**
+	 * Stops the reader thread. The underlying stream is left alone, it
+	 * belongs to the socket.
+	 */
+	@Override
+	public void close()
+	{
+		if (reader != null)
+			reader.interrupt();
+	}
+}
@@ -0,0 +1,35 @@
+package com.trilead.ssh2.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * The default transport: a connected TCP socket.
+ */
+class SocketTransport implements Transport
+{
+
+	private final Socket socket;
+
+	SocketTransport(Socket socket)
+	{
+		this.socket = socket;
+	}
+
+	public InputStream getInputStream() throws IOException
+	{
+		return socket.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException
+	{
+		return socket.getOutputStream();
+	}
+
+	public void close() throws IOException
+	{
+		socket.close();
+	}
+}
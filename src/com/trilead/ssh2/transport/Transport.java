@@ -0,0 +1,24 @@
+package com.trilead.ssh2.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The byte streams an SSH connection runs over, supplied by a
+ * {@link TransportFactory}. The input stream is only read by one thread and
+ * the output stream only written by one thread at a time, but both are used
+ * concurrently.
+ */
+public interface Transport
+{
+
+	InputStream getInputStream() throws IOException;
+
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Closes both streams. Must unblock a thread that is waiting for input.
+	 */
+	void close() throws IOException;
+}
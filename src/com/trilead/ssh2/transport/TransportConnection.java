@@ -5,14 +5,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.trilead.ssh2.crypto.cipher.BlockCipher;
+import com.trilead.ssh2.crypto.cipher.CTRMode;
 import com.trilead.ssh2.crypto.cipher.CipherInputStream;
 import com.trilead.ssh2.crypto.cipher.CipherOutputStream;
 import com.trilead.ssh2.crypto.cipher.NullCipher;
 import com.trilead.ssh2.crypto.digest.MessageMac;
 import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.Packets;
+import com.trilead.ssh2.packets.TypesWriter;
 
 
 /**
@@ -25,6 +28,14 @@ public class TransportConnection
 {
 	private static final Logger log = Logger.getLogger(TransportConnection.class);
 
+	/**
+	 * Lets threads that send through {@link TransportManager#sendMessage(TypesWriter)}
+	 * encrypt and MAC their packets themselves, outside of the connection lock,
+	 * when the cipher allows reserving keystream (CTR modes).
+	 */
+	static final boolean PARALLEL_ENCRYPTION = Boolean.getBoolean(TransportConnection.class.getName()
+			+ ".parallelEncryption");
+
 	int send_seq_number = 0;
 
 	int recv_seq_number = 0;
@@ -37,10 +48,15 @@ public class TransportConnection
 
 	/* Depends on current MAC and CIPHER */
 
+	BlockCipher send_cipher;
+
 	MessageMac send_mac;
 
 	byte[] send_mac_buffer;
 
+	/* Copies of send_mac for packets that are sealed outside of the lock */
+	ConcurrentLinkedQueue<MessageMac> send_mac_pool = new ConcurrentLinkedQueue<MessageMac>();
+
 	int send_padd_blocksize = 8;
 
 	MessageMac recv_mac;
@@ -63,6 +79,39 @@ public class TransportConnection
 
 	boolean recv_packet_header_present = false;
 
+	/* Largest packet_length we accept, raised when channels negotiate bigger packets */
+	volatile int recv_max_packet_length = TransportManager.MAX_PACKET_SIZE;
+
+	boolean parallelEncryption = PARALLEL_ENCRYPTION;
+
+	/*
+	 * Reserved packets are written strictly in the order of their tickets.
+	 * Guarded by send_order.
+	 */
+
+	final Object send_order = new Object();
+
+	long send_tickets_reserved = 0;
+
+	long send_tickets_written = 0;
+
+	IOException send_failure;
+
+	/*
+	 * Random bytes for the padding of reserved packets, kept per sending
+	 * thread so that a packet needs neither an allocation nor a call into
+	 * the shared SecureRandom
+	 */
+
+	final ThreadLocal<RandomPadding> send_reserved_padding = new ThreadLocal<RandomPadding>()
+	{
+		@Override
+		protected RandomPadding initialValue()
+		{
+			return new RandomPadding();
+		}
+	};
+
 	ClientServerHello csh;
 
 	final SecureRandom rnd;
@@ -95,7 +144,9 @@ public class TransportConnection
 		}
 
 		cos.changeCipher(bc);
+		send_cipher = bc;
 		send_mac = mac;
+		send_mac_pool = new ConcurrentLinkedQueue<MessageMac>();
 		send_mac_buffer = (mac != null) ? new byte[mac.size()] : null;
 		send_padd_blocksize = bc.getBlockSize();
 		if (send_padd_blocksize < 8)
@@ -118,26 +169,35 @@ public class TransportConnection
 		return 5 + 4 + (send_padd_blocksize - 1) + send_mac_buffer.length;
 	}
 
-	public void sendMessage(byte[] message, int off, int len, int padd) throws IOException
+	/**
+	 * Sends the contents of the writer. If the writer reserved room for the
+	 * packet header (see {@link TypesWriter#obtain()}), the header is put in
+	 * front of the payload and both go through the cipher and the MAC in one
+	 * piece, without an extra copy of the payload.
+	 */
+	public void sendMessage(TypesWriter tw) throws IOException
 	{
-		if (padd < 4)
-			padd = 4;
-		else if (padd > 64)
-			padd = 64;
+		byte[] buffer = tw.getBuffer();
+		int off = tw.getOffset();
 
-		boolean encryptThenMac = send_mac != null && send_mac.isEncryptThenMac();
+		if (off < 5)
+			sendMessage(buffer, off, tw.length(), 0);
+		else
+			sendPacket(buffer, off - 5, buffer, off, tw.length(), 0);
+	}
 
-		int packet_len = (encryptThenMac ? 1 : 5) + len + padd; /* Minimum allowed padding is 4 */
+	public void sendMessage(byte[] message, int off, int len, int padd) throws IOException
+	{
+		sendPacket(send_packet_header_buffer, 0, message, off, len, padd);
+	}
 
-		int slack = packet_len % send_padd_blocksize;
+	private void sendPacket(byte[] header, int hdrOff, byte[] message, int off, int len, int padd) throws IOException
+	{
+		awaitReservedPackets();
 
-		if (slack != 0)
-		{
-			packet_len += (send_padd_blocksize - slack);
-		}
+		boolean encryptThenMac = send_mac != null && send_mac.isEncryptThenMac();
 
-		if (packet_len < 16)
-			packet_len = 16;
+		int packet_len = getPacketLength(len, padd, encryptThenMac);
 
 		int padd_len = packet_len - ((encryptThenMac ? 1 : 5) + len);
 
@@ -172,20 +232,30 @@ public class TransportConnection
 		}
 
 		int payloadLength = encryptThenMac ? packet_len : packet_len - 4;
-		send_packet_header_buffer[0] = (byte) (packet_len >> 24);
-		send_packet_header_buffer[1] = (byte) (payloadLength >> 16);
-		send_packet_header_buffer[2] = (byte) (payloadLength >> 8);
-		send_packet_header_buffer[3] = (byte) (payloadLength);
-		send_packet_header_buffer[4] = (byte) padd_len;
-
-		if (send_mac != null && send_mac.isEncryptThenMac()) {
-			cos.writePlain(send_packet_header_buffer, 0, 4);
+		header[hdrOff] = (byte) (payloadLength >> 24);
+		header[hdrOff + 1] = (byte) (payloadLength >> 16);
+		header[hdrOff + 2] = (byte) (payloadLength >> 8);
+		header[hdrOff + 3] = (byte) (payloadLength);
+		header[hdrOff + 4] = (byte) padd_len;
+
+		/* Header directly in front of the payload? Then process both in one go. */
+		boolean contiguous = (header == message) && (hdrOff + 5 == off);
+
+		if (encryptThenMac) {
+			cos.writePlain(header, hdrOff, 4);
 			cos.startRecording();
-			cos.write(send_packet_header_buffer, 4, 1);
+			if (contiguous) {
+				cos.write(message, off - 1, len + 1);
+			} else {
+				cos.write(header, hdrOff + 4, 1);
+				cos.write(message, off, len);
+			}
+		} else if (contiguous) {
+			cos.write(message, hdrOff, len + 5);
 		} else {
-			cos.write(send_packet_header_buffer, 0, 5);
+			cos.write(header, hdrOff, 5);
+			cos.write(message, off, len);
 		}
-		cos.write(message, off, len);
 		cos.write(send_padding_buffer, 0, padd_len);
 
 		if (send_mac != null)
@@ -193,12 +263,15 @@ public class TransportConnection
 			send_mac.initMac(send_seq_number);
 			
 			
-			if (send_mac.isEncryptThenMac()) {
-				send_mac.update(send_packet_header_buffer, 0, 4);
+			if (encryptThenMac) {
+				send_mac.update(header, hdrOff, 4);
 				byte[] encryptedMessage = cos.getRecordedOutput();
 				send_mac.update(encryptedMessage, 0, encryptedMessage.length);
+			} else if (contiguous) {
+				send_mac.update(message, hdrOff, len + 5);
+				send_mac.update(send_padding_buffer, 0, padd_len);
 			} else {
-				send_mac.update(send_packet_header_buffer, 0, 5);
+				send_mac.update(header, hdrOff, 5);
 				send_mac.update(message, off, len);
 				send_mac.update(send_padding_buffer, 0, padd_len);
 			}
@@ -217,6 +290,282 @@ public class TransportConnection
 		send_seq_number++;
 	}
 
+	/*
+	 * The number of bytes that go through the cipher: packet_length (unless
+	 * encrypt-then-MAC is used), padding_length, payload and padding.
+	 */
+	private int getPacketLength(int len, int padd, boolean encryptThenMac)
+	{
+		if (padd < 4)
+			padd = 4;
+		else if (padd > 64)
+			padd = 64;
+
+		int packet_len = (encryptThenMac ? 1 : 5) + len + padd; /* Minimum allowed padding is 4 */
+
+		int slack = packet_len % send_padd_blocksize;
+
+		if (slack != 0)
+		{
+			packet_len += (send_padd_blocksize - slack);
+		}
+
+		if (packet_len < 16)
+			packet_len = 16;
+
+		return packet_len;
+	}
+
+	/**
+	 * Hands out random bytes, each of them once. The padding_length is a byte,
+	 * so one refill always covers a packet.
+	 */
+	final class RandomPadding
+	{
+		private final byte[] bytes = new byte[256];
+
+		private int pos = bytes.length;
+
+		void copyTo(byte[] dst, int off, int len)
+		{
+			if (pos + len > bytes.length)
+			{
+				rnd.nextBytes(bytes);
+				pos = 0;
+			}
+
+			System.arraycopy(bytes, pos, dst, off, len);
+			pos += len;
+		}
+	}
+
+	/**
+	 * A packet whose sequence number and keystream have been reserved, see
+	 * {@link TransportConnection#reservePacket(TypesWriter)}.
+	 */
+	static final class ReservedPacket
+	{
+		final long ticket;
+		final int seq;
+		final CTRMode cipher;
+		final byte[] counter;
+		final MessageMac mac;
+		final ConcurrentLinkedQueue<MessageMac> macPool;
+		final int packetLength;
+
+		ReservedPacket(long ticket, int seq, CTRMode cipher, byte[] counter, MessageMac mac,
+				ConcurrentLinkedQueue<MessageMac> macPool, int packetLength)
+		{
+			this.ticket = ticket;
+			this.seq = seq;
+			this.cipher = cipher;
+			this.counter = counter;
+			this.mac = mac;
+			this.macPool = macPool;
+			this.packetLength = packetLength;
+		}
+	}
+
+	/**
+	 * Reserves the next sequence number and the keystream for the contents of
+	 * the writer, so that the packet can be encrypted and MACed by
+	 * {@link #sendReservedPacket(ReservedPacket, TypesWriter)} on the calling
+	 * thread without holding the connection lock. Must be called with the same
+	 * lock held as {@link #sendMessage(TypesWriter)}.
+	 * 
+	 * @return <code>null</code> if this is not possible (parallel encryption is
+	 *         disabled, no CTR cipher is in use yet, no room for the header...);
+	 *         the packet must then be sent with {@link #sendMessage(TypesWriter)}.
+	 */
+	ReservedPacket reservePacket(TypesWriter tw)
+	{
+		if (!parallelEncryption || !useRandomPadding || send_mac == null || tw.getOffset() < 5)
+			return null;
+
+		if (!(send_cipher instanceof CTRMode) || !((CTRMode) send_cipher).supportsReservation())
+			return null;
+
+		MessageMac mac = send_mac_pool.poll();
+
+		if (mac == null)
+			mac = send_mac.copy();
+
+		if (mac == null)
+			return null;
+
+		int packet_len = getPacketLength(tw.length(), 0, mac.isEncryptThenMac());
+
+		/* Everything but the plain packet_length in front of an encrypt-then-MAC packet is encrypted */
+		byte[] counter = ((CTRMode) send_cipher).reserve(packet_len / send_padd_blocksize);
+
+		long ticket;
+
+		synchronized (send_order)
+		{
+			ticket = send_tickets_reserved++;
+		}
+
+		return new ReservedPacket(ticket, send_seq_number++, (CTRMode) send_cipher, counter, mac, send_mac_pool,
+				packet_len);
+	}
+
+	/**
+	 * Encrypts and MACs a reserved packet on the calling thread and writes it
+	 * once all packets reserved before it have been written. If this fails,
+	 * the connection cannot be used any more.
+	 */
+	void sendReservedPacket(ReservedPacket p, TypesWriter tw) throws IOException
+	{
+		boolean sent = false;
+		Exception cause = null;
+
+		try
+		{
+			int len = tw.length();
+			int macLength = p.mac.size();
+
+			tw.ensureTrailingRoom(p.packetLength + macLength);
+
+			byte[] buffer = tw.getBuffer();
+			int off = tw.getOffset();
+			int start = off - 5;
+
+			boolean encryptThenMac = p.mac.isEncryptThenMac();
+			int padd_len = p.packetLength - ((encryptThenMac ? 1 : 5) + len);
+			int packet_end = off + len + padd_len;
+
+			int payloadLength = encryptThenMac ? p.packetLength : p.packetLength - 4;
+			buffer[start] = (byte) (payloadLength >> 24);
+			buffer[start + 1] = (byte) (payloadLength >> 16);
+			buffer[start + 2] = (byte) (payloadLength >> 8);
+			buffer[start + 3] = (byte) (payloadLength);
+			buffer[start + 4] = (byte) padd_len;
+
+			send_reserved_padding.get().copyTo(buffer, off + len, padd_len);
+
+			p.mac.initMac(p.seq);
+
+			if (encryptThenMac)
+			{
+				p.cipher.transform(p.counter, buffer, start + 4, buffer, start + 4, p.packetLength);
+				p.mac.update(buffer, start, packet_end - start);
+			}
+			else
+			{
+				p.mac.update(buffer, start, packet_end - start);
+				p.cipher.transform(p.counter, buffer, start, buffer, start, p.packetLength);
+			}
+
+			p.mac.getMac(buffer, packet_end);
+			p.macPool.offer(p.mac);
+
+			synchronized (send_order)
+			{
+				boolean interrupted = false;
+
+				/* The keystream is spoken for, so there is no way back: wait even if interrupted */
+				while (send_tickets_written != p.ticket)
+				{
+					if (send_failure != null)
+						throw new IOException("An earlier packet could not be sent.", send_failure);
+
+					try
+					{
+						send_order.wait();
+					}
+					catch (InterruptedException e)
+					{
+						interrupted = true;
+					}
+				}
+
+				if (interrupted)
+					Thread.currentThread().interrupt();
+
+				cos.writeEncrypted(buffer, start, packet_end + macLength - start);
+				cos.flush();
+
+				send_tickets_written++;
+				sent = true;
+				send_order.notifyAll();
+			}
+
+			if (log.isEnabled())
+			{
+				log.log(90, "Sent " + Packets.getMessageName(buffer[off] & 0xff) + " " + len
+						+ " bytes payload (encrypted outside of the connection lock)");
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			cause = e;
+			throw e;
+		}
+		finally
+		{
+			if (!sent)
+			{
+				synchronized (send_order)
+				{
+					if (send_failure == null)
+						send_failure = new IOException("Packet " + p.seq + " could not be sent.", cause);
+					send_order.notifyAll();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Packets are written in sequence number order, so everything reserved so
+	 * far has to be on the wire before a packet can be sent the ordinary way.
+	 */
+	private void awaitReservedPackets() throws IOException
+	{
+		synchronized (send_order)
+		{
+			boolean interrupted = false;
+
+			while (true)
+			{
+				if (send_failure != null)
+					throw new IOException("An earlier packet could not be sent.", send_failure);
+
+				if (send_tickets_written == send_tickets_reserved)
+					break;
+
+				try
+				{
+					send_order.wait();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Raises the largest incoming packet length that is accepted. Never lowers it.
+	 */
+	public synchronized void raiseMaxPacketLength(int packetLength)
+	{
+		if (packetLength > recv_max_packet_length)
+			recv_max_packet_length = packetLength;
+	}
+
+	/**
+	 * @return the size a receive buffer needs so that any acceptable packet
+	 *         (including a trailing encrypt-then-MAC tag) fits into it
+	 */
+	public int getReceiveBufferSize()
+	{
+		return recv_max_packet_length + ((recv_mac_buffer != null) ? recv_mac_buffer.length : 64);
+	}
+
 	public int peekNextMessageLength() throws IOException
 	{
 		if (recv_packet_header_present == false)
@@ -231,7 +580,7 @@ public class TransportConnection
 
 		int padding_length = recv_packet_header_buffer[4] & 0xff;
 
-		if (packet_length > TransportManager.MAX_PACKET_SIZE || packet_length < 12)
+		if (packet_length > recv_max_packet_length || packet_length < 12)
 			throw new IOException("Illegal packet size! (" + packet_length + ")");
 
 		int payload_length = packet_length - padding_length - 1;
@@ -251,6 +600,9 @@ public class TransportConnection
 			cis.readPlain(recv_packet_header_buffer, 0, 4);
 			packetLength = getPacketLength(recv_packet_header_buffer, true);
 
+			if (packetLength + recv_mac_buffer.length > len)
+				throw new IOException("Receive buffer too small (" + len + ", need " + (packetLength + recv_mac_buffer.length) + ")");
+
 			recv_mac.initMac(recv_seq_number);
 			recv_mac.update(recv_packet_header_buffer, 0, 4);
 
@@ -321,12 +673,12 @@ public class TransportConnection
 			throw new IOException("Remote sent corrupt MAC.");
 	}
 
-	private static int getPacketLength(byte[] packetHeader, boolean isEtm) throws IOException {
+	private int getPacketLength(byte[] packetHeader, boolean isEtm) throws IOException {
 		int packetLength = ((packetHeader[0] & 0xff) << 24)
 						| ((packetHeader[1] & 0xff) << 16) | ((packetHeader[2] & 0xff) << 8)
 						| ((packetHeader[3] & 0xff));
 
-		if (packetLength > TransportManager.MAX_PACKET_SIZE || packetLength < (isEtm ? 8 : 12))
+		if (packetLength > recv_max_packet_length || packetLength < (isEtm ? 8 : 12))
 			throw new IOException("Illegal packet size! (" + packetLength + ")");
 
 		return packetLength;
@@ -0,0 +1,25 @@
+package com.trilead.ssh2.transport;
+
+import java.io.IOException;
+
+/**
+ * Opens the {@link Transport} of a connection instead of the default TCP
+ * socket, e.g. a UNIX-domain socket ({@link UnixDomainTransportFactory}) or an
+ * in-JVM pipe ({@link InMemoryTransportFactory}).
+ *
+ * @see com.trilead.ssh2.Connection#setTransportFactory(TransportFactory)
+ */
+public interface TransportFactory
+{
+
+	/**
+	 * @param hostname the hostname the connection was created for
+	 * @param port the port the connection was created for
+	 * @param connectTimeout in milliseconds, 0 means no timeout
+	 * @param readTimeout in milliseconds, 0 means no timeout; may be ignored
+	 *        by transports that cannot time out reads
+	 * @return the connected transport
+	 * @throws IOException if the transport cannot be opened
+	 */
+	Transport open(String hostname, int port, int connectTimeout, int readTimeout) throws IOException;
+}
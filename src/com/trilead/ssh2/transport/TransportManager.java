@@ -10,7 +10,11 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
 
 import com.trilead.ssh2.ConnectionInfo;
 import com.trilead.ssh2.ConnectionMonitor;
@@ -25,8 +29,12 @@ import com.trilead.ssh2.crypto.cipher.BlockCipher;
 import com.trilead.ssh2.crypto.digest.MessageMac;
 import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.PacketDisconnect;
+import com.trilead.ssh2.packets.PacketExtInfo;
 import com.trilead.ssh2.packets.Packets;
 import com.trilead.ssh2.packets.TypesReader;
+import com.trilead.ssh2.packets.TypesWriter;
+import com.trilead.ssh2.packets.WritablePacket;
+import com.trilead.ssh2.util.TokenBucket;
 import com.trilead.ssh2.util.Tokenizer;
 
 
@@ -65,8 +73,10 @@ public class TransportManager
 		int high;
 	}
 
+	/* byte[] or DeferredMessage */
 	private final Vector asynchronousQueue = new Vector();
 	private Thread asynchronousThread = null;
+	private boolean asynchronousClosed = false;
 	
 	/* For auto numbering threads. */
 	private static long threadInitNumber;
@@ -80,31 +90,34 @@ public class TransportManager
 		{
 			while (true)
 			{
-				byte[] msg = null;
+				Object msg = null;
 
 				synchronized (asynchronousQueue)
 				{
-					if (asynchronousQueue.size() == 0)
+					/* Stay around until the connection closes, window adjustments
+					 * must not wait for a new thread to be started */
+
+					while (asynchronousQueue.size() == 0)
 					{
-						/* After the queue is empty for about 2 seconds, stop this thread */
+						if (asynchronousClosed)
+						{
+							asynchronousThread = null;
+							return;
+						}
 
 						try
 						{
-							asynchronousQueue.wait(2000);
+							asynchronousQueue.wait();
 						}
 						catch (InterruptedException e)
 						{
 							/* OKOK, if somebody interrupts us, then we may die earlier. */
-						}
-
-						if (asynchronousQueue.size() == 0)
-						{
 							asynchronousThread = null;
 							return;
 						}
 					}
 
-					msg = (byte[]) asynchronousQueue.remove(0);
+					msg = asynchronousQueue.remove(0);
 				}
 
 				/* The following invocation may throw an IOException.
@@ -121,7 +134,10 @@ public class TransportManager
 
 				try
 				{
-					sendMessage(msg);
+					if (msg instanceof DeferredMessage)
+						((DeferredMessage) msg).send();
+					else
+						sendMessage((byte[]) msg);
 				}
 				catch (IOException e)
 				{
@@ -134,7 +150,49 @@ public class TransportManager
 	final private String sourceAddress;
 	String hostname;
 	int port;
-	Socket sock = new Socket();
+
+	/* The TCP socket, null before it is connected and when a TransportFactory is used */
+	volatile Socket sock;
+
+	private static final int MAX_SOCKET_BUFFER_SIZE = Integer.getInteger(
+			TransportManager.class.getName() + ".maxSocketBufferSize", 16 * 1024 * 1024).intValue();
+
+	/*
+	 * Whether growReceiveBuffer()/growSendBuffer() may resize the buffers of
+	 * the connected socket. Off by default: on Linux, setting SO_RCVBUF or
+	 * SO_SNDBUF turns off the kernel's buffer autotuning and caps the buffer at
+	 * net.core.rmem_max/wmem_max, far less than a long fat link needs.
+	 */
+	private static final boolean RESIZE_SOCKET_BUFFERS = Boolean.getBoolean(
+			TransportManager.class.getName() + ".resizeSocketBuffers");
+
+	/* Requested socket buffer sizes, 0 means OS default */
+	private final Object socketBufferLock = new Object();
+	private volatile int receiveBufferSize = Integer.getInteger(
+			TransportManager.class.getName() + ".receiveBufferSize", 0).intValue();
+	private volatile int sendBufferSize = Integer.getInteger(
+			TransportManager.class.getName() + ".sendBufferSize", 0).intValue();
+
+	/**
+	 * Receive with three threads (socket reader, decryption and MAC check,
+	 * dispatch) instead of one, so that a busy download can use more than one core.
+	 */
+	static final boolean PIPELINED_RECEIVE = Boolean.getBoolean(TransportManager.class.getName()
+			+ ".pipelinedReceive");
+
+	/* Number of chunks and of packets that may wait between two stages */
+	static final int RECEIVE_PIPELINE_DEPTH = Integer.getInteger(
+			TransportManager.class.getName() + ".receivePipelineDepth", 16).intValue();
+
+	private static final int RECEIVE_CHUNK_SIZE = 32 * 1024;
+
+	private ReadAheadInputStream readAhead;
+
+	/* Shapes the channel data of all channels, unlimited by default */
+	private final TokenBucket sendLimiter = new TokenBucket();
+
+	private final Object rttLock = new Object();
+	private volatile long smoothedRtt = 0;
 
 	final Object connectionSemaphore = new Object();
 
@@ -153,6 +211,15 @@ public class TransportManager
 	boolean monitorsWereInformed = false;
 	private ClientServerHello versions;
 	private boolean enabledCallHomeSSH = false;
+	/* Replaces the TCP socket if set; transport is what the connection actually runs over */
+	private TransportFactory transportFactory;
+	private volatile Transport transport;
+
+	private CallHomeListener callHomeListener;
+	private InetAddress callHomeDevice;
+
+	/* Filled in from the "server-sig-algs" extension of SSH_MSG_EXT_INFO */
+	private volatile String[] serverSigAlgs = null;
 
 	
 
@@ -234,19 +301,221 @@ public class TransportManager
 		return tc.getPacketOverheadEstimate();
 	}
 
+	/**
+	 * Makes sure that incoming packets of up to <code>packetSize</code> bytes
+	 * are accepted. The receive buffer grows accordingly; the limit is never
+	 * lowered again.
+	 */
+	public void raiseMaxPacketSize(int packetSize)
+	{
+		tc.raiseMaxPacketLength(packetSize);
+	}
+
+	/**
+	 * Sets TCP_NODELAY on the connected socket. Does nothing if there is no
+	 * TCP socket (yet), e.g. when a {@link TransportFactory} is used.
+	 */
 	public void setTcpNoDelay(boolean state) throws IOException
 	{
-		sock.setTcpNoDelay(state);
+		Socket s = sock;
+
+		if (s != null)
+			s.setTcpNoDelay(state);
+	}
+
+	/**
+	 * Sets SO_RCVBUF/SO_SNDBUF (0 means OS default). Values set before the
+	 * connection is established also take part in the TCP window scale
+	 * negotiation. Ignored when a {@link TransportFactory} is used.
+	 * <p>
+	 * Socket buffer sizing is opt-in: unless this is called, or the
+	 * <code>resizeSocketBuffers</code> property lets {@link #growReceiveBuffer(int)}
+	 * follow the channel windows, the buffers are left to the kernel.
+	 */
+	public void setSocketBufferSizes(int receive, int send) throws IOException
+	{
+		synchronized (socketBufferLock)
+		{
+			receiveBufferSize = receive;
+			sendBufferSize = send;
+
+			applySocketBufferSizes(sock);
+		}
+	}
+
+	private void applySocketBufferSizes(Socket s) throws IOException
+	{
+		synchronized (socketBufferLock)
+		{
+			if (s == null)
+				return;
+
+			if (receiveBufferSize > 0)
+				s.setReceiveBufferSize(receiveBufferSize);
+
+			if (sendBufferSize > 0)
+				s.setSendBufferSize(sendBufferSize);
+		}
+	}
+
+	/**
+	 * Raises SO_RCVBUF so that the socket can hold a channel window that has
+	 * grown to <code>size</code> bytes. Never shrinks the buffer. Does nothing
+	 * unless the <code>com.trilead.ssh2.transport.TransportManager.resizeSocketBuffers</code>
+	 * system property is set.
+	 */
+	public void growReceiveBuffer(int size)
+	{
+		if (!RESIZE_SOCKET_BUFFERS)
+			return;
+
+		size = Math.min(size, MAX_SOCKET_BUFFER_SIZE);
+
+		if (size <= receiveBufferSize)
+			return;
+
+		synchronized (socketBufferLock)
+		{
+			Socket s = sock;
+
+			if (s == null || size <= receiveBufferSize)
+				return;
+
+			try
+			{
+				if (s.getReceiveBufferSize() < size)
+					s.setReceiveBufferSize(size);
+				receiveBufferSize = size;
+			}
+			catch (IOException e)
+			{
+				if (log.isEnabled())
+					log.log(50, "Could not raise socket receive buffer to " + size, e);
+				receiveBufferSize = MAX_SOCKET_BUFFER_SIZE;
+			}
+		}
+
+		if (log.isEnabled())
+			log.log(80, "Socket receive buffer raised to " + size);
+	}
+
+	/**
+	 * Limits the rate at which channel data is sent on this connection. The
+	 * limit can be changed at any time; the key exchange and other control
+	 * messages are never held back.
+	 *
+	 * @param bytesPerSecond the rate, 0 for unlimited
+	 * @param burst bytes that may be sent at once after an idle period, 0 for
+	 *        one second worth of the rate
+	 */
+	public void setSendRateLimit(long bytesPerSecond, long burst)
+	{
+		sendLimiter.setRate(bytesPerSecond, burst);
+
+		if (log.isEnabled())
+			log.log(50, "Connection send rate limited to " + bytesPerSecond + " bytes/s (burst " + burst + ")");
+	}
+
+	/**
+	 * @return the limiter that the channel data of this connection is charged
+	 *         to, see {@link #setSendRateLimit(long, long)}
+	 */
+	public TokenBucket getSendLimiter()
+	{
+		return sendLimiter;
+	}
+
+	/**
+	 * Raises SO_SNDBUF so that the socket can hold a window of <code>size</code>
+	 * bytes granted by the peer. Never shrinks the buffer. Like
+	 * {@link #growReceiveBuffer(int)}, only if resizing was switched on.
+	 */
+	public void growSendBuffer(int size)
+	{
+		if (!RESIZE_SOCKET_BUFFERS)
+			return;
+
+		size = Math.min(size, MAX_SOCKET_BUFFER_SIZE);
+
+		if (size <= sendBufferSize)
+			return;
+
+		synchronized (socketBufferLock)
+		{
+			Socket s = sock;
+
+			if (s == null || size <= sendBufferSize)
+				return;
+
+			try
+			{
+				if (s.getSendBufferSize() < size)
+					s.setSendBufferSize(size);
+				sendBufferSize = size;
+			}
+			catch (IOException e)
+			{
+				if (log.isEnabled())
+					log.log(50, "Could not raise socket send buffer to " + size, e);
+				sendBufferSize = MAX_SOCKET_BUFFER_SIZE;
+			}
+		}
+
+		if (log.isEnabled())
+			log.log(80, "Socket send buffer raised to " + size);
+	}
+
+	/**
+	 * Feeds a round trip measurement (request sent until reply received) into
+	 * the smoothed estimate, using the same gain as TCP (RFC 6298).
+	 */
+	public void addRttSample(long rttNanos)
+	{
+		if (rttNanos <= 0)
+			return;
+
+		synchronized (rttLock)
+		{
+			smoothedRtt = (smoothedRtt == 0) ? rttNanos : smoothedRtt + (rttNanos - smoothedRtt) / 8;
+		}
+	}
+
+	/**
+	 * @return the smoothed round trip time in nanoseconds, 0 if nothing has
+	 *         been measured yet
+	 */
+	public long getSmoothedRttNanos()
+	{
+		return smoothedRtt;
 	}
 
 	public void setSoTimeout(int timeout) throws IOException
 	{
-		sock.setSoTimeout(timeout);
+		Socket s = sock;
+
+		if (s != null)
+			s.setSoTimeout(timeout);
 	}
 
 	public ConnectionInfo getConnectionInfo(int kexNumber) throws IOException
 	{
-		return km.getOrWaitForConnectionInfo(kexNumber);
+		ConnectionInfo kex = km.getOrWaitForConnectionInfo(kexNumber);
+
+		/* The key exchange result is shared, the round trip time goes into a copy */
+
+		ConnectionInfo ci = new ConnectionInfo();
+
+		ci.keyExchangeAlgorithm = kex.keyExchangeAlgorithm;
+		ci.clientToServerCryptoAlgorithm = kex.clientToServerCryptoAlgorithm;
+		ci.serverToClientCryptoAlgorithm = kex.serverToClientCryptoAlgorithm;
+		ci.clientToServerMACAlgorithm = kex.clientToServerMACAlgorithm;
+		ci.serverToClientMACAlgorithm = kex.serverToClientMACAlgorithm;
+		ci.serverHostKeyAlgorithm = kex.serverHostKeyAlgorithm;
+		ci.serverHostKey = kex.serverHostKey;
+		ci.keyExchangeCounter = kex.keyExchangeCounter;
+		ci.smoothedRttNanos = getSmoothedRttNanos();
+
+		return ci;
 	}
 	
 	public ClientServerHello getVersionInfo() {
@@ -274,6 +543,30 @@ public class TransportManager
 		return km.sessionId;
 	}
 
+	/**
+	 * The public key signature algorithms the server announced with the
+	 * "server-sig-algs" extension (RFC 8308).
+	 *
+	 * @return the announced algorithms, or <code>null</code> if the server
+	 *         did not send them (yet).
+	 */
+	public String[] getServerSigAlgs()
+	{
+		return serverSigAlgs;
+	}
+
+	private void closeTransport() throws IOException
+	{
+		Transport t = transport;
+
+		Socket s = sock;
+
+		if (t != null)
+			t.close();
+		else if (s != null)
+			s.close();
+	}
+
 	public void close(Throwable cause, boolean useDisconnectPacket)
 	{
 		if (useDisconnectPacket == false)
@@ -284,7 +577,7 @@ public class TransportManager
 
 			try
 			{
-				sock.close();
+				closeTransport();
 			}
 			catch (IOException ignore)
 			{
@@ -315,7 +608,7 @@ public class TransportManager
 
 					try
 					{
-						sock.close();
+						closeTransport();
 					}
 					catch (IOException ignore)
 					{
@@ -329,6 +622,13 @@ public class TransportManager
 			connectionSemaphore.notifyAll();
 		}
 
+		synchronized (asynchronousQueue)
+		{
+			/* Lets the sender thread go, what is still queued cannot be sent any more */
+			asynchronousClosed = true;
+			asynchronousQueue.notifyAll();
+		}
+
 		/* No check if we need to inform the monitors */
 
 		Vector monitors = null;
@@ -369,19 +669,29 @@ public class TransportManager
 
 		if (proxyData == null)
 		{
+			if (callHomeListener != null)
+			{
+				takeCallHomeConnection(connectTimeout, readTimeout);
+				return;
+			}
+
 			if(enabledCallHomeSSH){
 				establishCallHomeConnection(connectTimeout,readTimeout);
 				return;
 			}
 
+			Socket s = new Socket();
+			sock = s;
+			applySocketBufferSizes(s);
+
 			if (sourceAddress != null)
 			{
 				InetAddress sourceaddr = createInetAddress(this.sourceAddress);
-				sock.bind(new InetSocketAddress(sourceaddr,0));
+				s.bind(new InetSocketAddress(sourceaddr,0));
 			}
 			InetAddress addr = createInetAddress(hostname);
-			sock.connect(new InetSocketAddress(addr, port), connectTimeout);
-			sock.setSoTimeout(readTimeout);
+			s.connect(new InetSocketAddress(addr, port), connectTimeout);
+			s.setSoTimeout(readTimeout);
 			return;
 		}
 
@@ -392,8 +702,11 @@ public class TransportManager
 			/* At the moment, we only support HTTP proxies */
 
 			InetAddress addr = createInetAddress(pd.proxyHost);
-			sock.connect(new InetSocketAddress(addr, pd.proxyPort), connectTimeout);
-			sock.setSoTimeout(readTimeout);
+			Socket s = new Socket();
+			sock = s;
+			applySocketBufferSizes(s);
+			s.connect(new InetSocketAddress(addr, pd.proxyPort), connectTimeout);
+			s.setSoTimeout(readTimeout);
 
 			/* OK, now tell the proxy where we actually want to connect to */
 
@@ -428,7 +741,7 @@ public class TransportManager
 
 			sb.append("\r\n");
 
-			OutputStream out = sock.getOutputStream();
+			OutputStream out = s.getOutputStream();
 
 			out.write(sb.toString().getBytes("ISO-8859-1"));
 			out.flush();
@@ -436,7 +749,7 @@ public class TransportManager
 			/* Now parse the HTTP response */
 
 			byte[] buffer = new byte[1024];
-			InputStream in = sock.getInputStream();
+			InputStream in = s.getInputStream();
 
 			int len = ClientServerHello.readLineRN(in, buffer);
 
@@ -487,6 +800,8 @@ public class TransportManager
 		Socket socket = null;
 		try (ServerSocket serverSocket = new ServerSocket()){
             // Create a ServerSocket bound to a specific hostname and port
+            if (receiveBufferSize > 0)
+                serverSocket.setReceiveBufferSize(receiveBufferSize);
             serverSocket.bind(new InetSocketAddress(port));
 			serverSocket.setSoTimeout(connectTimeout);
 
@@ -494,16 +809,37 @@ public class TransportManager
 
             // Accept a client connection (blocks until a connection is made)
              socket = serverSocket.accept();
-			log.log(100,"Call Home SSH accepted connection on host "+sock.getLocalAddress().getHostAddress()+" on port "+port);
+			log.log(100,"Call Home SSH accepted connection on host "+socket.getLocalAddress().getHostAddress()+" on port "+port);
 			if(socket != null){
 				socket.setSoTimeout(readTimeout);
+				applySocketBufferSizes(socket);
 			}
 		}catch (Exception e){
-			log.log(100,"Could not create client socket "+sock.getLocalAddress().getHostAddress()+" on port "+port,e);
+			log.log(100,"Could not create client socket on host "+hostname+" on port "+port,e);
 		}
 		sock = socket;
 	}
 
+	private void takeCallHomeConnection(int connectTimeout, int readTimeout) throws IOException
+	{
+		Socket socket = callHomeListener.take(callHomeDevice, connectTimeout);
+
+		try
+		{
+			socket.setSoTimeout(readTimeout);
+			applySocketBufferSizes(socket);
+		}
+		catch (IOException e)
+		{
+			socket.close();
+			throw e;
+		}
+
+		/* The host key verifier gets to see which device called */
+		hostname = socket.getInetAddress().getHostAddress();
+		sock = socket;
+	}
+
     public void initialize(CryptoWishList cwl, ServerHostKeyVerifier verifier, DHGexParameters dhgex,
             int connectTimeout, SecureRandom rnd, ProxyData proxyData) throws IOException {
         initialize(cwl, verifier, dhgex, connectTimeout, 0, rnd, proxyData);
@@ -512,19 +848,36 @@ public class TransportManager
     public void initialize(CryptoWishList cwl, ServerHostKeyVerifier verifier, DHGexParameters dhgex,
 			int connectTimeout, int readTimeout, SecureRandom rnd, ProxyData proxyData) throws IOException
 	{
-		/* First, establish the TCP connection to the SSH-2 server */
+		if (transportFactory != null)
+		{
+			transport = transportFactory.open(hostname, port, connectTimeout, readTimeout);
+		}
+		else
+		{
+			/* First, establish the TCP connection to the SSH-2 server */
 
-		establishConnection(proxyData, connectTimeout, readTimeout);
+			establishConnection(proxyData, connectTimeout, readTimeout);
+			transport = new SocketTransport(sock);
+		}
 
 		/* Parse the server line and say hello - important: this information is later needed for the
 		 * key exchange (to stop man-in-the-middle attacks) - that is why we wrap it into an object
 		 * for later use.
 		 */
 
-		ClientServerHello csh = new ClientServerHello(sock.getInputStream(), sock.getOutputStream());
+		ClientServerHello csh = new ClientServerHello(transport.getInputStream(), transport.getOutputStream());
 		versions = csh;
 
-		tc = new TransportConnection(sock.getInputStream(), sock.getOutputStream(), rnd);
+		InputStream in = transport.getInputStream();
+
+		if (PIPELINED_RECEIVE)
+		{
+			readAhead = new ReadAheadInputStream(in, RECEIVE_CHUNK_SIZE, RECEIVE_PIPELINE_DEPTH);
+			readAhead.start(nextThreadName("socketReader"));
+			in = readAhead;
+		}
+
+		tc = new TransportConnection(in, transport.getOutputStream(), rnd);
 
 		km = new KexManager(this, csh, cwl, hostname, port, verifier, rnd);
 		km.initiateKEX(cwl, dhgex);
@@ -664,10 +1017,29 @@ public class TransportManager
 	}
 
 	public void sendAsynchronousMessage(byte[] msg) throws IOException
+	{
+		queueAsynchronousMessage(msg);
+	}
+
+	/**
+	 * Queues a message that is put together when it is its turn to be sent.
+	 * The caller should have at most one of them queued per purpose, e.g.
+	 * per channel, and merge further updates into it.
+	 */
+	public void sendAsynchronousMessage(DeferredMessage msg) throws IOException
+	{
+		queueAsynchronousMessage(msg);
+	}
+
+	private void queueAsynchronousMessage(Object msg) throws IOException
 	{
 		synchronized (asynchronousQueue)
 		{
+			if (asynchronousClosed)
+				throw (IOException) new IOException("Sorry, this connection is closed.").initCause(reasonClosedCause);
+
 			asynchronousQueue.addElement(msg);
+			asynchronousQueue.notifyAll();
 
 			/* This limit should be flexible enough. We need this, otherwise the peer
 			 * can flood us with global requests (and other stuff where we have to reply
@@ -687,7 +1059,7 @@ public class TransportManager
 				asynchronousThread.setName(nextThreadName("sendThread"));
 				asynchronousThread.start();
 
-				/* The thread will stop after 2 seconds of inactivity (i.e., empty queue) */
+				/* The thread will stop once the connection is closed */
 			}
 		}
 	}
@@ -702,151 +1074,366 @@ public class TransportManager
 
 	public void sendMessage(byte[] msg) throws IOException
 	{
-		if (Thread.currentThread() == receiveThread)
-			throw new IOException("Assertion error: sendMessage may never be invoked by the receiver thread!");
-
 		synchronized (connectionSemaphore)
 		{
-			while (true)
+			waitUntilSendable();
+
+			try
+			{
+				tc.sendMessage(msg);
+			}
+			catch (IOException e)
 			{
-                ensureConnected();
+				close(e, false);
+				throw e;
+			}
+		}
+	}
 
-                if (flagKexOngoing == false)
-					break;
+	/**
+	 * Sends the contents of the writer, preferably taken from
+	 * {@link TypesWriter#obtain()} so that the packet header can be filled in
+	 * without copying the payload. The writer is not recycled.
+	 * <p>
+	 * With parallel encryption enabled (system property
+	 * <code>com.trilead.ssh2.transport.TransportConnection.parallelEncryption</code>)
+	 * and a CTR cipher in use, the connection lock is only held while the
+	 * sequence number and the keystream are reserved; encryption and MAC run on
+	 * the calling thread and the packets are written in sequence order.
+	 */
+	public void sendMessage(TypesWriter tw) throws IOException
+	{
+		TransportConnection.ReservedPacket reserved;
 
+		synchronized (connectionSemaphore)
+		{
+			waitUntilSendable();
+
+			reserved = tc.reservePacket(tw);
+
+			if (reserved == null)
+			{
 				try
 				{
-					connectionSemaphore.wait(DEFAULT_WAIT_TIMEOUT);
+					tc.sendMessage(tw);
 				}
-				catch (InterruptedException e)
+				catch (IOException e)
 				{
-					throw new InterruptedIOException();
+					close(e, false);
+					throw e;
 				}
+				return;
 			}
+		}
+
+		/* Only the sequence number and the keystream were reserved, the crypto work happens here */
+
+		try
+		{
+			tc.sendReservedPacket(reserved, tw);
+		}
+		catch (IOException e)
+		{
+			close(e, false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Serializes the packet into a pooled writer and sends it.
+	 */
+	public void sendMessage(WritablePacket packet) throws IOException
+	{
+		TypesWriter tw = TypesWriter.obtain();
+
+		try
+		{
+			packet.writeTo(tw);
+			sendMessage(tw);
+		}
+		finally
+		{
+			tw.recycle();
+		}
+	}
+
+	/* Must be called while holding connectionSemaphore */
+	private void waitUntilSendable() throws IOException
+	{
+		if (Thread.currentThread() == receiveThread)
+			throw new IOException("Assertion error: sendMessage may never be invoked by the receiver thread!");
+
+		while (true)
+		{
+			ensureConnected();
+
+			if (flagKexOngoing == false)
+				break;
 
 			try
 			{
-				tc.sendMessage(msg);
+				connectionSemaphore.wait(DEFAULT_WAIT_TIMEOUT);
 			}
-			catch (IOException e)
+			catch (InterruptedException e)
 			{
-				close(e, false);
-				throw e;
+				throw new InterruptedIOException();
 			}
 		}
 	}
 
 	public void receiveLoop() throws IOException
 	{
-		byte[] msg = new byte[MAX_PACKET_SIZE];
+		if (readAhead != null)
+		{
+			pipelinedReceiveLoop();
+			return;
+		}
+
+		byte[] msg = new byte[tc.getReceiveBufferSize()];
 
 		while (true)
 		{
+			if (msg.length < tc.getReceiveBufferSize())
+			{
+				/* A channel negotiated larger packets */
+				msg = new byte[tc.getReceiveBufferSize()];
+			}
+
 			int msglen = tc.receiveMessage(msg, 0, msg.length);
 
-			int type = msg[0] & 0xff;
+			dispatchMessage(msg, msglen);
+		}
+	}
 
-			if (type == Packets.SSH_MSG_IGNORE)
-				continue;
+	private static final class ReceivedMessage
+	{
+		final byte[] msg;
+		final int msglen;
+		final Exception failure;
 
-			if (type == Packets.SSH_MSG_DEBUG)
+		ReceivedMessage(byte[] msg, int msglen, Exception failure)
+		{
+			this.msg = msg;
+			this.msglen = msglen;
+			this.failure = failure;
+		}
+	}
+
+	/*
+	 * The socket is read by the thread behind readAhead, packets are decrypted
+	 * and verified by a second thread, and the receive thread only dispatches.
+	 * The bounded queues between the stages keep the packets in order.
+	 */
+	private void pipelinedReceiveLoop() throws IOException
+	{
+		final BlockingQueue<ReceivedMessage> received = new ArrayBlockingQueue<ReceivedMessage>(RECEIVE_PIPELINE_DEPTH);
+		final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<byte[]>(RECEIVE_PIPELINE_DEPTH + 2);
+
+		/* After SSH_MSG_NEWKEYS, the next packet can only be decrypted once the dispatcher installed the new keys */
+		final Semaphore newKeysHandled = new Semaphore(0);
+
+		Thread decryptThread = new Thread(new Runnable()
+		{
+			public void run()
 			{
-				if (log.isEnabled())
+				try
 				{
-					TypesReader tr = new TypesReader(msg, 0, msglen);
-					tr.readByte();
-					tr.readBoolean();
-					StringBuffer debugMessageBuffer = new StringBuffer();
-					debugMessageBuffer.append(tr.readString("UTF-8"));
-
-					for (int i = 0; i < debugMessageBuffer.length(); i++)
+					while (true)
 					{
-						char c = debugMessageBuffer.charAt(i);
+						int size = tc.getReceiveBufferSize();
+						byte[] msg = buffers.poll();
 
-						if ((c >= 32) && (c <= 126))
-							continue;
-						debugMessageBuffer.setCharAt(i, '\uFFFD');
-					}
+						if (msg == null || msg.length < size)
+							msg = new byte[size];
+
+						int msglen = tc.receiveMessage(msg, 0, msg.length);
 
-					log.log(50, "DEBUG Message from remote: '" + debugMessageBuffer.toString() + "'");
+						received.put(new ReceivedMessage(msg, msglen, null));
+
+						if (msg[0] == Packets.SSH_MSG_NEWKEYS)
+							newKeysHandled.acquire();
+					}
+				}
+				catch (IOException | RuntimeException e)
+				{
+					try
+					{
+						received.put(new ReceivedMessage(null, 0, e));
+					}
+					catch (InterruptedException ignore)
+					{
+					}
+				}
+				catch (InterruptedException e)
+				{
+					/* The receive thread is gone */
 				}
-				continue;
 			}
+		});
 
-			if (type == Packets.SSH_MSG_UNIMPLEMENTED)
-			{
-				throw new IOException("Peer sent UNIMPLEMENTED message, that should not happen.");
-			}
+		decryptThread.setDaemon(true);
+		decryptThread.setName(nextThreadName("decryptThread"));
+		decryptThread.start();
 
-			if (type == Packets.SSH_MSG_DISCONNECT)
+		try
+		{
+			while (true)
 			{
-				TypesReader tr = new TypesReader(msg, 0, msglen);
-				tr.readByte();
-				int reason_code = tr.readUINT32();
-				StringBuffer reasonBuffer = new StringBuffer();
-				reasonBuffer.append(tr.readString("UTF-8"));
+				ReceivedMessage rm;
 
-				/*
-				 * Do not get fooled by servers that send abnormal long error
-				 * messages
-				 */
+				try
+				{
+					rm = received.take();
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
 
-				if (reasonBuffer.length() > 255)
+				if (rm.failure instanceof IOException)
+					throw (IOException) rm.failure;
+				if (rm.failure != null)
+					throw new IOException("Error while receiving a packet.", rm.failure);
+
+				try
 				{
-					reasonBuffer.setLength(255);
-					reasonBuffer.setCharAt(254, '.');
-					reasonBuffer.setCharAt(253, '.');
-					reasonBuffer.setCharAt(252, '.');
+					dispatchMessage(rm.msg, rm.msglen);
+				}
+				finally
+				{
+					if (rm.msg[0] == Packets.SSH_MSG_NEWKEYS)
+						newKeysHandled.release();
 				}
 
-				/*
-				 * Also, check that the server did not send charcaters that may
-				 * screw up the receiver -> restrict to reasonable US-ASCII
-				 * subset -> "printable characters" (ASCII 32 - 126). Replace
-				 * all others with 0xFFFD (UNICODE replacement character).
-				 */
+				buffers.offer(rm.msg);
+			}
+		}
+		finally
+		{
+			decryptThread.interrupt();
+			readAhead.close();
+		}
+	}
 
-				for (int i = 0; i < reasonBuffer.length(); i++)
+	private void dispatchMessage(byte[] msg, int msglen) throws IOException
+	{
+		int type = msg[0] & 0xff;
+
+		if (type == Packets.SSH_MSG_IGNORE)
+			return;
+
+		if (type == Packets.SSH_MSG_DEBUG)
+		{
+			if (log.isEnabled())
+			{
+				TypesReader tr = new TypesReader(msg, 0, msglen);
+				tr.readByte();
+				tr.readBoolean();
+				StringBuffer debugMessageBuffer = new StringBuffer();
+				debugMessageBuffer.append(tr.readString("UTF-8"));
+
+				for (int i = 0; i < debugMessageBuffer.length(); i++)
 				{
-					char c = reasonBuffer.charAt(i);
+					char c = debugMessageBuffer.charAt(i);
 
 					if ((c >= 32) && (c <= 126))
 						continue;
-					reasonBuffer.setCharAt(i, '\uFFFD');
+					debugMessageBuffer.setCharAt(i, '\uFFFD');
 				}
 
-				throw new IOException("Peer sent DISCONNECT message (reason code " + reason_code + "): "
-						+ reasonBuffer.toString());
+				log.log(50, "DEBUG Message from remote: '" + debugMessageBuffer.toString() + "'");
+			}
+			return;
+		}
+
+		if (type == Packets.SSH_MSG_EXT_INFO)
+		{
+			PacketExtInfo pei = new PacketExtInfo(msg, 0, msglen);
+			String[] sigAlgs = pei.getServerSigAlgs();
+
+			if (sigAlgs != null)
+			{
+				serverSigAlgs = sigAlgs;
+
+				if (log.isEnabled())
+					log.log(50, "Server accepts signature algorithms " + Arrays.toString(sigAlgs));
 			}
+			return;
+		}
+
+		if (type == Packets.SSH_MSG_UNIMPLEMENTED)
+		{
+			throw new IOException("Peer sent UNIMPLEMENTED message, that should not happen.");
+		}
+
+		if (type == Packets.SSH_MSG_DISCONNECT)
+		{
+			TypesReader tr = new TypesReader(msg, 0, msglen);
+			tr.readByte();
+			int reason_code = tr.readUINT32();
+			StringBuffer reasonBuffer = new StringBuffer();
+			reasonBuffer.append(tr.readString("UTF-8"));
 
 			/*
-			 * Is it a KEX Packet?
+			 * Do not get fooled by servers that send abnormal long error
+			 * messages
 			 */
 
-			if ((type == Packets.SSH_MSG_KEXINIT) || (type == Packets.SSH_MSG_NEWKEYS)
-					|| ((type >= 30) && (type <= 49)))
+			if (reasonBuffer.length() > 255)
 			{
-				km.handleMessage(msg, msglen);
-				continue;
+				reasonBuffer.setLength(255);
+				reasonBuffer.setCharAt(254, '.');
+				reasonBuffer.setCharAt(253, '.');
+				reasonBuffer.setCharAt(252, '.');
 			}
 
-			MessageHandler mh = null;
+			/*
+			 * Also, check that the server did not send charcaters that may
+			 * screw up the receiver -> restrict to reasonable US-ASCII
+			 * subset -> "printable characters" (ASCII 32 - 126). Replace
+			 * all others with 0xFFFD (UNICODE replacement character).
+			 */
 
-			for (int i = 0; i < messageHandlers.size(); i++)
+			for (int i = 0; i < reasonBuffer.length(); i++)
 			{
-				HandlerEntry he = (HandlerEntry) messageHandlers.elementAt(i);
-				if ((he.low <= type) && (type <= he.high))
-				{
-					mh = he.mh;
-					break;
-				}
+				char c = reasonBuffer.charAt(i);
+
+				if ((c >= 32) && (c <= 126))
+					continue;
+				reasonBuffer.setCharAt(i, '\uFFFD');
 			}
 
-			if (mh == null)
-				throw new IOException("Unexpected SSH message (type " + type + ")");
+			throw new IOException("Peer sent DISCONNECT message (reason code " + reason_code + "): "
+					+ reasonBuffer.toString());
+		}
 
-			mh.handleMessage(msg, msglen);
+		/*
+		 * Is it a KEX Packet?
+		 */
+
+		if ((type == Packets.SSH_MSG_KEXINIT) || (type == Packets.SSH_MSG_NEWKEYS)
+				|| ((type >= 30) && (type <= 49)))
+		{
+			km.handleMessage(msg, msglen);
+			return;
 		}
+
+		MessageHandler mh = null;
+
+		for (int i = 0; i < messageHandlers.size(); i++)
+		{
+			HandlerEntry he = (HandlerEntry) messageHandlers.elementAt(i);
+			if ((he.low <= type) && (type <= he.high))
+			{
+				mh = he.mh;
+				break;
+			}
+		}
+
+		if (mh == null)
+			throw new IOException("Unexpected SSH message (type " + type + ")");
+
+		mh.handleMessage(msg, msglen);
 	}
 
 	/**
@@ -857,6 +1444,29 @@ public class TransportManager
 	public boolean isEnabledCallHomeSSH() {
 		return enabledCallHomeSSH;
 	}
+	/**
+	 * Run the connection over the transport opened by the factory instead of
+	 * a TCP socket (proxy and call home settings are then ignored). Must be
+	 * called before {@link #initialize}.
+	 * 
+	 * @param factory the factory, <code>null</code> for a TCP socket
+	 */
+	public void setTransportFactory(TransportFactory factory) {
+		this.transportFactory = factory;
+	}
+
+	/**
+	 * Take the socket from a shared call home listener instead of binding the
+	 * port for this connection alone.
+	 * 
+	 * @param listener the running listener
+	 * @param device the address of the device to wait for, or <code>null</code> for any device
+	 */
+	public void setCallHomeListener(CallHomeListener listener, InetAddress device) {
+		this.callHomeListener = listener;
+		this.callHomeDevice = device;
+	}
+
 	/**
 	 * Set SSH Call Home 
 	 * 
@@ -867,7 +1477,8 @@ public class TransportManager
 	}
 
     /**
-     * Advertised maximum SSH packet size that the other side can send to us.
+     * Advertised maximum SSH packet size that the other side can send to us,
+     * unless a channel asks for more (see {@link #raiseMaxPacketSize(int)}).
      */
     public static final int MAX_PACKET_SIZE = Integer.getInteger(
     			TransportManager.class.getName()+".maxPacketSize",
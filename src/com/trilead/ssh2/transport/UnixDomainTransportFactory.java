@@ -0,0 +1,126 @@
+package com.trilead.ssh2.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Connects to an SSH server listening on a UNIX-domain socket, e.g. an sshd
+ * sidecar, bypassing the TCP stack. The hostname and port of the connection
+ * are not used. Read timeouts are not supported.
+ */
+public class UnixDomainTransportFactory implements TransportFactory
+{
+
+	private final Path path;
+
+	/**
+	 * @param path the file system path of the server's socket
+	 */
+	public UnixDomainTransportFactory(Path path)
+	{
+		this.path = path;
+	}
+
+	public Transport open(String hostname, int port, int connectTimeout, int readTimeout) throws IOException
+	{
+		SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+
+		try
+		{
+			channel.connect(UnixDomainSocketAddress.of(path));
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+
+		return new ChannelTransport(channel);
+	}
+
+	/*
+	 * Channels.newInputStream() and newOutputStream() serialize reads and
+	 * writes on the channel's blocking lock, so a blocked read would hold up
+	 * every write. SocketChannel itself allows one reader and one writer at
+	 * the same time.
+	 */
+	private static final class ChannelTransport implements Transport
+	{
+
+		private final SocketChannel channel;
+
+		private final InputStream in = new InputStream()
+		{
+			@Override
+			public int read() throws IOException
+			{
+				byte[] b = new byte[1];
+				int n = read(b, 0, 1);
+				return (n < 0) ? -1 : (b[0] & 0xff);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				if (len == 0)
+					return 0;
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				channel.close();
+			}
+		};
+
+		private final OutputStream out = new OutputStream()
+		{
+			@Override
+			public void write(int b) throws IOException
+			{
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+				while (bb.hasRemaining())
+					channel.write(bb);
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				channel.close();
+			}
+		};
+
+		ChannelTransport(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		public InputStream getInputStream()
+		{
+			return in;
+		}
+
+		public OutputStream getOutputStream()
+		{
+			return out;
+		}
+
+		public void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.trilead.ssh2.util;
+
+import java.io.InterruptedIOException;
+
+/**
+ * TokenBucket. A byte rate limiter with a burst allowance: the bucket fills at
+ * <code>bytesPerSecond</code> up to <code>burst</code> bytes, and taking more
+ * than is in the bucket waits until it has refilled. Requests larger than the
+ * burst are let through once the bucket is full and leave it in debt, so the
+ * average rate still holds.
+ * <p>
+ * The rate can be changed at any time, threads waiting for tokens notice the
+ * new rate right away. A rate of 0 (the default) means unlimited.
+ */
+public class TokenBucket
+{
+	private long rate;
+
+	private long burst;
+
+	private double tokens;
+
+	private long lastRefill;
+
+	/**
+	 * Creates an unlimited bucket.
+	 */
+	public TokenBucket()
+	{
+		this(0, 0);
+	}
+
+	/**
+	 * @param bytesPerSecond the rate, 0 or less for unlimited
+	 * @param burst how many bytes may be sent at once after an idle period,
+	 *        0 or less for one second worth of the rate
+	 */
+	public TokenBucket(long bytesPerSecond, long burst)
+	{
+		setRate(bytesPerSecond, burst);
+	}
+
+	/**
+	 * Changes the rate. A bucket that becomes limited starts out full.
+	 *
+	 * @param bytesPerSecond the rate, 0 or less for unlimited
+	 * @param burst how many bytes may be sent at once after an idle period,
+	 *        0 or less for one second worth of the rate
+	 */
+	public synchronized void setRate(long bytesPerSecond, long burst)
+	{
+		boolean wasLimited = isLimited();
+
+		if (wasLimited)
+			refill(System.nanoTime());
+
+		this.rate = Math.max(bytesPerSecond, 0);
+		this.burst = (burst > 0) ? burst : this.rate;
+
+		if (!wasLimited)
+		{
+			tokens = this.burst;
+			lastRefill = System.nanoTime();
+		}
+		else if (tokens > this.burst)
+		{
+			tokens = this.burst;
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * @return the rate in bytes per second, 0 if unlimited
+	 */
+	public synchronized long getRate()
+	{
+		return rate;
+	}
+
+	public synchronized long getBurst()
+	{
+		return burst;
+	}
+
+	public synchronized boolean isLimited()
+	{
+		return rate > 0;
+	}
+
+	/**
+	 * Takes <code>n</code> tokens, waiting as long as the rate requires.
+	 *
+	 * @param n number of bytes about to be sent or accepted
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public synchronized void acquire(int n) throws InterruptedIOException
+	{
+		if (n <= 0)
+			return;
+
+		while (rate > 0)
+		{
+			long now = System.nanoTime();
+
+			refill(now);
+
+			double needed = Math.min(n, burst);
+
+			if (tokens >= needed)
+			{
+				tokens -= n;
+				return;
+			}
+
+			long waitNanos = (long) Math.ceil((needed - tokens) * 1000000000.0 / rate);
+
+			try
+			{
+				wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	/**
+	 * For callers that must not wait: how long {@link #acquire(int)} would
+	 * wait for <code>n</code> tokens right now. Nothing is taken.
+	 *
+	 * @return nanoseconds, 0 if the tokens are there
+	 */
+	public synchronized long delayNanos(int n)
+	{
+		if ((n <= 0) || (rate <= 0))
+			return 0;
+
+		refill(System.nanoTime());
+
+		double needed = Math.min(n, burst);
+
+		if (tokens >= needed)
+			return 0;
+
+		return Math.max(1, (long) Math.ceil((needed - tokens) * 1000000000.0 / rate));
+	}
+
+	/**
+	 * Takes <code>n</code> tokens without waiting, the bucket may go into
+	 * debt. Meant to follow a {@link #delayNanos(int)} of 0.
+	 */
+	public synchronized void take(int n)
+	{
+		if ((n <= 0) || (rate <= 0))
+			return;
+
+		refill(System.nanoTime());
+
+		tokens -= n;
+	}
+
+	/* Must be called while holding the lock */
+	private void refill(long now)
+	{
+		long elapsed = now - lastRefill;
+
+		if (elapsed <= 0)
+			return;
+
+		tokens = Math.min(burst, tokens + (elapsed * (double) rate) / 1000000000.0);
+		lastRefill = now;
+	}
+}
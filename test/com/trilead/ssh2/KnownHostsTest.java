@@ -86,4 +86,14 @@ public class KnownHostsTest {
         assertEquals(KnownHosts.HOSTKEY_IS_OK, testCase.verifyHostkey("testhost", "ssh-rsa", encodedPublicKey));
     }
 
+    @Test
+    public void testVerifyHashedKnownHostKey() throws IOException, NoSuchAlgorithmException {
+        KnownHosts testCase = new KnownHosts();
+        KeyPairGenerator rsaGenerator = KeyPairGenerator.getInstance("RSA");
+        byte[] encodedPublicKey = new RSAKeyAlgorithm().encodePublicKey((RSAPublicKey) rsaGenerator.generateKeyPair().getPublic());
+        testCase.addHostkey(new String[]{KnownHosts.createHashedHostname("testhost")}, "ssh-rsa", encodedPublicKey);
+        assertEquals(KnownHosts.HOSTKEY_IS_NEW, testCase.verifyHostkey("testhost2", "ssh-rsa", encodedPublicKey));
+        assertEquals(KnownHosts.HOSTKEY_IS_OK, testCase.verifyHostkey("testhost", "ssh-rsa", encodedPublicKey));
+    }
+
 }
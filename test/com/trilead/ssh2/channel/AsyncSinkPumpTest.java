@@ -0,0 +1,147 @@
+package com.trilead.ssh2.channel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncSinkPumpTest {
+
+    /**
+     * Sink that blocks until it is released.
+     */
+    static class GatedSink extends ByteArrayOutputStream {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            synchronized (this) {
+                super.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    RecordingTransportManager tm;
+    Channel c;
+
+    @Before
+    public void setUp() throws IOException {
+        tm = new RecordingTransportManager();
+        c = tm.openChannel();
+        c.setWindowSize(131072);
+        c.localWindow = 131072;
+    }
+
+    /**
+     * What {@link ChannelManager#msgChannelData(byte[], int)} does on the receive thread.
+     */
+    private void receive(byte[] data) throws IOException {
+        synchronized (c) {
+            c.localWindow -= data.length;
+            c.stdout.write(data, 0, data.length);
+        }
+    }
+
+    @Test
+    public void slowSinkDoesNotBlockTheReceiverAndHoldsTheWindow() throws Exception {
+        GatedSink sink = new GatedSink();
+        c.pipeStdoutStreamAsync(sink);
+
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        receive(data); // would hang here if the sink was written to synchronously
+
+        Thread.sleep(50);
+        assertEquals(0, tm.adjusted());
+        assertEquals(0, c.stdout.readable());
+
+        sink.gate.countDown();
+        c.eof();
+        assertTrue(sink.closed.await(5, TimeUnit.SECONDS));
+
+        assertArrayEquals(data, sink.toByteArray());
+        // the window is only topped up once a good part of it is used, by the asynchronous sender
+        int expected = 100000 - 131072 * Channel.WINDOW_ADJUST_PERCENT / 100;
+        assertTrue(tm.awaitAdjusted(expected) >= expected);
+    }
+
+    @Test
+    public void dataSpooledBeforePipingIsDelivered() throws Exception {
+        receive(new byte[] { 1, 2, 3 });
+        c.eof();
+
+        GatedSink sink = new GatedSink();
+        sink.gate.countDown();
+        c.pipeStdoutStreamAsync(sink);
+
+        assertTrue(sink.closed.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, sink.toByteArray());
+    }
+
+    @Test
+    public void writesRunApartFromTheFlowPool() throws Exception {
+        GatedSink sink = new GatedSink();
+        sink.gate.countDown();
+        receive(new byte[] { 1 });
+        c.eof();
+
+        final String[] writer = new String[1];
+        c.pipeStdoutStreamAsync(new FilterOutputStream(sink) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writer[0] = Thread.currentThread().getName();
+                out.write(b, off, len);
+            }
+        });
+
+        assertTrue(sink.closed.await(5, TimeUnit.SECONDS));
+        assertEquals("Trilead_SinkWriter", writer[0]);
+    }
+
+    @Test
+    public void writesRunOnTheGivenExecutor() throws Exception {
+        GatedSink sink = new GatedSink();
+        sink.gate.countDown();
+        receive(new byte[] { 1, 2, 3 });
+        c.eof();
+
+        final AtomicInteger turns = new AtomicInteger();
+        c.pipeStdoutStreamAsync(sink, new Executor() {
+            public void execute(Runnable r) {
+                turns.incrementAndGet();
+                new Thread(r).start();
+            }
+        });
+
+        assertTrue(sink.closed.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, sink.toByteArray());
+        assertTrue(turns.get() > 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void pipedOutputCannotBeRead() throws Exception {
+        c.pipeStdoutStreamAsync(new ByteArrayOutputStream());
+        c.stdout.read(new byte[1], 0, 1);
+    }
+}
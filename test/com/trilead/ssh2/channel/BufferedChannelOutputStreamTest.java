@@ -0,0 +1,83 @@
+package com.trilead.ssh2.channel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BufferedChannelOutputStreamTest {
+
+    RecordingTransportManager tm;
+    Channel c;
+
+    @Before
+    public void setUp() throws IOException {
+        tm = new RecordingTransportManager();
+        c = tm.openChannel();
+        c.remoteMaxPacketSize = 1000;
+        c.remoteWindow.set(1000000);
+    }
+
+    @Test
+    public void smallWritesAreCoalescedIntoFullPackets() throws IOException {
+        BufferedChannelOutputStream out = c.newBufferedStdinStream(FlushPolicy.explicit());
+        for (int i = 0; i < 250; i++) {
+            out.write(new byte[10]);
+        }
+        out.write(7);
+        assertEquals(2, tm.dataPackets().size());
+        assertEquals(1000, (int) tm.dataPackets().get(0));
+
+        out.flush();
+        assertEquals(501, (int) tm.dataPackets().get(2));
+
+        out.write(new byte[5000]);
+        assertEquals(5000, tm.dataPackets().stream().skip(3).mapToInt(Integer::intValue).sum());
+
+        out.write(1);
+        out.close();
+        assertEquals(1, (int) tm.dataPackets().get(tm.dataPackets().size() - 1));
+        assertTrue(tm.eof());
+    }
+
+    @Test
+    public void sizePolicySendsAtTheThreshold() throws IOException {
+        BufferedChannelOutputStream out = c.newBufferedStdinStream(FlushPolicy.size(100));
+        for (int i = 0; i < 25; i++) {
+            out.write(new byte[30]);
+        }
+        assertEquals(6, tm.dataPackets().size());
+        assertEquals(120, (int) tm.dataPackets().get(0));
+    }
+
+    @Test
+    public void delayPolicySendsLateWrites() throws Exception {
+        BufferedChannelOutputStream out = c.newBufferedStdinStream(FlushPolicy.delay(20));
+        out.write(new byte[3]);
+        out.write(new byte[4]);
+        assertEquals(0, tm.dataPackets().size());
+
+        List<Integer> sent = tm.awaitDataPackets(1);
+        assertEquals(1, sent.size());
+        assertEquals(7, (int) sent.get(0));
+    }
+
+    @Test
+    public void bufferedInputServesSingleBytes() throws Exception {
+        byte[] data = new byte[] { 1, 2, 3, 4, 5 };
+        synchronized (c) {
+            c.stdout.write(data, 0, data.length);
+        }
+        c.eof();
+
+        InputStream in = c.newBufferedStdoutStream();
+        for (byte b : data) {
+            assertEquals(b, in.read());
+        }
+        assertEquals(-1, in.read());
+    }
+}
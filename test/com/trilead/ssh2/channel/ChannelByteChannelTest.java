@@ -0,0 +1,115 @@
+package com.trilead.ssh2.channel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ChannelByteChannelTest {
+
+    RecordingTransportManager tm;
+    Channel c;
+
+    @Before
+    public void setUp() throws IOException {
+        tm = new RecordingTransportManager();
+        c = tm.openChannel();
+        c.remoteMaxPacketSize = 1000;
+        c.remoteWindow.set(1000000);
+    }
+
+    private static byte[] pattern(int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = (byte) (i * 31);
+        }
+        return b;
+    }
+
+    @Test
+    public void directBuffersAreSentInPackets() throws IOException {
+        byte[] data = pattern(2500);
+        ByteBuffer src = ByteBuffer.allocateDirect(data.length);
+        src.put(data).flip();
+
+        ChannelWritableByteChannel stdin = c.newStdinChannel();
+        assertEquals(2500, stdin.write(src));
+        assertFalse(src.hasRemaining());
+        assertEquals(3, tm.dataPackets().size());
+
+        ByteBuffer[] srcs = { ByteBuffer.wrap(data, 0, 10), ByteBuffer.allocate(0), ByteBuffer.wrap(data, 10, 5) };
+        assertEquals(15, stdin.write(srcs));
+
+        stdin.close();
+        assertTrue(tm.eof());
+        assertFalse(stdin.isOpen());
+        try {
+            stdin.write(ByteBuffer.wrap(data));
+            fail();
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+
+        byte[] sent = tm.sentData();
+        assertArrayEquals(data, Arrays.copyOf(sent, 2500));
+        assertArrayEquals(Arrays.copyOf(data, 15), Arrays.copyOfRange(sent, 2500, 2515));
+    }
+
+    @Test
+    public void stdoutTransfersIntoAFile() throws IOException {
+        byte[] data = pattern(10000);
+        synchronized (c) {
+            c.stdout.write(data, 0, data.length);
+        }
+        c.eof();
+
+        File f = File.createTempFile("channel", ".bin");
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            FileChannel fc = raf.getChannel();
+            long pos = 0;
+            long n;
+            while ((n = fc.transferFrom(c.newStdoutChannel(), pos, 4096)) > 0) {
+                pos += n;
+            }
+            assertEquals(10000, pos);
+
+            ByteBuffer back = ByteBuffer.allocate(10000);
+            fc.read(back, 0);
+            assertArrayEquals(data, back.array());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void scatteringReadTakesOnlyWhatIsBuffered() throws IOException {
+        byte[] data = pattern(300);
+        synchronized (c) {
+            c.stdout.write(data, 0, data.length);
+        }
+
+        ChannelReadableByteChannel stdout = c.newStdoutChannel();
+        ByteBuffer[] dsts = { ByteBuffer.allocateDirect(100), ByteBuffer.allocate(0), ByteBuffer.allocate(500) };
+        assertEquals(300, stdout.read(dsts));
+        assertEquals(200, dsts[2].position());
+
+        c.eof();
+        assertEquals(-1, stdout.read(dsts));
+
+        stdout.close();
+        try {
+            stdout.read(ByteBuffer.allocate(1));
+            fail();
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.trilead.ssh2.channel;
+
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.ChannelConditionListener;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ChannelConditionListenerTest {
+
+    /**
+     * Executor that keeps the tasks until the test runs them.
+     */
+    static class QueueingExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        public synchronized void execute(Runnable r) {
+            tasks.add(r);
+        }
+
+        synchronized void runAll() {
+            for (Runnable r : tasks) {
+                r.run();
+            }
+            tasks.clear();
+        }
+    }
+
+    static class RecordingListener implements ChannelConditionListener {
+        final List<Integer> calls = new ArrayList<>();
+
+        public void conditionsChanged(int conditions) {
+            calls.add(conditions);
+        }
+    }
+
+    QueueingExecutor executor;
+    RecordingListener listener;
+    Channel c;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = new QueueingExecutor();
+        listener = new RecordingListener();
+        c = new RecordingTransportManager().openChannel();
+    }
+
+    private void receive(int n) throws IOException {
+        synchronized (c) {
+            c.stdout.write(new byte[n], 0, n);
+        }
+    }
+
+    private List<Integer> calls() {
+        executor.runAll();
+        List<Integer> calls = new ArrayList<>(listener.calls);
+        listener.calls.clear();
+        return calls;
+    }
+
+    @Test
+    public void dataIsReportedWhenItArrivesInAnEmptyBuffer() throws Exception {
+        c.addConditionListener(ChannelCondition.STDOUT_DATA, listener, executor);
+        assertTrue(calls().isEmpty());
+
+        receive(10);
+        assertEquals(1, calls().size());
+
+        receive(10); // still unread, no transition
+        assertTrue(calls().isEmpty());
+
+        c.stdout.read(new byte[20], 0, 20);
+        receive(5);
+        List<Integer> calls = calls();
+        assertEquals(1, calls.size());
+        assertTrue((calls.get(0) & ChannelCondition.STDOUT_DATA) != 0);
+    }
+
+    @Test
+    public void conditionsAreReportedOnceAndClosedLast() throws Exception {
+        c.addConditionListener(ChannelCondition.EOF | ChannelCondition.EXIT_STATUS, listener, executor);
+
+        receive(10); // not asked for
+        assertTrue(calls().isEmpty());
+
+        synchronized (c) {
+            c.exit_status = 0;
+            c.conditionsChanged(0);
+        }
+        List<Integer> calls = calls();
+        assertEquals(1, calls.size());
+        assertTrue((calls.get(0) & ChannelCondition.EXIT_STATUS) != 0);
+
+        c.eof();
+        synchronized (c) {
+            c.conditionsChanged(0); // nothing new
+        }
+        calls = calls();
+        assertEquals(1, calls.size());
+        assertTrue((calls.get(0) & ChannelCondition.EOF) != 0);
+
+        c.cm.closeChannel(c, "test", true);
+        calls = calls();
+        assertEquals(1, calls.size());
+        assertTrue((calls.get(0) & ChannelCondition.CLOSED) != 0);
+
+        synchronized (c) {
+            c.exit_signal = "KILL";
+            c.conditionsChanged(0);
+        }
+        assertTrue(calls().isEmpty());
+    }
+
+    @Test
+    public void conditionsThatHoldAlreadyAreReportedRightAway() throws Exception {
+        synchronized (c) {
+            c.exit_status = 1;
+        }
+        c.addConditionListener(ChannelCondition.EXIT_STATUS, listener, executor);
+        assertEquals(1, calls().size());
+
+        c.eof();
+        assertTrue(calls().isEmpty()); // not asked for, and EXIT_STATUS was reported already
+    }
+
+    @Test
+    public void removedListenersAreNotCalled() throws Exception {
+        c.addConditionListener(ChannelCondition.STDOUT_DATA, listener, executor);
+        c.removeConditionListener(listener);
+
+        receive(10);
+        c.cm.closeChannel(c, "test", true);
+        assertTrue(calls().isEmpty());
+    }
+}
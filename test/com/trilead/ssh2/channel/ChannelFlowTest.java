@@ -0,0 +1,271 @@
+package com.trilead.ssh2.channel;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class ChannelFlowTest {
+
+    /**
+     * Subscriber that collects what it gets, and requests only what the test asks for.
+     */
+    static class CollectingSubscriber implements Flow.Subscriber<ByteBuffer> {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+        int items;
+
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+        }
+
+        public synchronized void onNext(ByteBuffer b) {
+            byte[] data = new byte[b.remaining()];
+            b.get(data);
+            received.write(data, 0, data.length);
+            items++;
+            notifyAll();
+        }
+
+        public void onError(Throwable t) {
+            error = t;
+            completed.countDown();
+        }
+
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        synchronized int awaitItems(int n) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (items < n && System.currentTimeMillis() < end) {
+                wait(10);
+            }
+            return items;
+        }
+
+        synchronized byte[] received() {
+            return received.toByteArray();
+        }
+    }
+
+    /**
+     * Subscription that counts what the subscriber requests.
+     */
+    static class CountingSubscription implements Flow.Subscription {
+        long requested;
+        boolean cancelled;
+
+        public synchronized void request(long n) {
+            requested += n;
+            notifyAll();
+        }
+
+        public synchronized void cancel() {
+            cancelled = true;
+        }
+
+        synchronized long awaitRequested(long n) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (requested < n && System.currentTimeMillis() < end) {
+                wait(10);
+            }
+            return requested;
+        }
+    }
+
+    /**
+     * Waits up to five seconds for the condition.
+     */
+    private static boolean eventually(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        return condition.getAsBoolean();
+    }
+
+    @Test
+    public void publisherDemandOpensTheWindow() throws Exception {
+        RecordingTransportManager tm = new RecordingTransportManager();
+        Channel c = tm.openChannel();
+        c.setWindowSize(131072);
+        c.localWindow = 131072;
+
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        synchronized (c) {
+            c.localWindow -= data.length;
+            c.stdout.write(data, 0, data.length);
+        }
+
+        CollectingSubscriber s = new CollectingSubscriber();
+        final ChannelPublisher p = c.stdout.newPublisher();
+        p.subscribe(s);
+        assertNotNull(s.subscription);
+
+        s.subscription.request(1);
+        assertEquals(1, s.awaitItems(1));
+        assertTrue(eventually(p::idle));
+        assertEquals(1, s.items);
+        assertEquals(0, tm.adjusted()); // nothing asked for, nothing given back
+
+        s.subscription.request(Long.MAX_VALUE);
+        c.eof();
+        assertTrue(s.completed.await(5, TimeUnit.SECONDS));
+        assertNull(s.error);
+        assertArrayEquals(data, s.received());
+        int expected = 100000 - 131072 * Channel.WINDOW_ADJUST_PERCENT / 100;
+        assertTrue(tm.awaitAdjusted(expected) >= expected);
+    }
+
+    @Test
+    public void publisherAllowsOneSubscriber() throws Exception {
+        Channel c = new RecordingTransportManager().openChannel();
+        Flow.Publisher<ByteBuffer> p = c.newStdoutPublisher();
+        p.subscribe(new CollectingSubscriber());
+
+        CollectingSubscriber second = new CollectingSubscriber();
+        p.subscribe(second);
+        assertTrue(second.error instanceof IllegalStateException);
+
+        try {
+            c.stdout.read(new byte[1], 0, 1);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void outputPipedElsewhereIsNotDeliveredToTheSubscriber() throws Exception {
+        Channel c = new RecordingTransportManager().openChannel();
+        Flow.Publisher<ByteBuffer> p = c.newStdoutPublisher();
+        c.stdout.pipeToAsync(new ByteArrayOutputStream());
+        synchronized (c) {
+            c.localWindow -= 10;
+            c.stdout.write(new byte[10], 0, 10);
+        }
+
+        CollectingSubscriber s = new CollectingSubscriber() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                super.onSubscribe(subscription);
+                subscription.request(Long.MAX_VALUE);
+            }
+        };
+        p.subscribe(s);
+        assertTrue(s.error instanceof IllegalStateException);
+        assertEquals(0, s.items);
+    }
+
+    @Test
+    public void subscriberRequestsWhileThereIsWindow() throws Exception {
+        RecordingTransportManager tm = new RecordingTransportManager();
+        Channel c = tm.openChannel();
+        c.remoteMaxPacketSize = 1000;
+
+        final ChannelSubscriber s = new ChannelSubscriber(c);
+        final CountingSubscription subscription = new CountingSubscription();
+        s.onSubscribe(subscription);
+        assertTrue(eventually(s::idle));
+        assertEquals(0, subscription.requested); // no window yet
+
+        c.addRemoteWindow(1500);
+        assertEquals(1, subscription.awaitRequested(1));
+
+        s.onNext(ByteBuffer.wrap(new byte[2500]));
+        assertEquals(2, tm.awaitDataPackets(2).size());
+        assertTrue(eventually(s::idle));
+        assertEquals(1, subscription.requested); // the rest waits for window
+
+        c.addRemoteWindow(5000);
+        assertEquals(2, subscription.awaitRequested(2));
+        assertEquals(2500, tm.awaitDataPackets(3).stream().mapToInt(Integer::intValue).sum());
+
+        s.onComplete();
+        assertTrue(eventually(tm::eof));
+        assertFalse(subscription.cancelled);
+    }
+
+    @Test
+    public void subscriberCancelsWhenTheChannelIsClosed() throws Exception {
+        RecordingTransportManager tm = new RecordingTransportManager();
+        Channel c = tm.openChannel();
+        ChannelManager cm = c.cm;
+        c.addRemoteWindow(1000);
+
+        Flow.Subscriber<ByteBuffer> s = c.newStdinSubscriber();
+        final CountingSubscription subscription = new CountingSubscription();
+        s.onSubscribe(subscription);
+        assertEquals(1, subscription.awaitRequested(1));
+
+        cm.closeChannel(c, "test", true);
+        s.onNext(ByteBuffer.wrap(new byte[10]));
+
+        assertTrue(eventually(() -> subscription.cancelled));
+    }
+
+    @Test
+    public void rateLimitedDataIsRescheduledInsteadOfWaitedFor() throws Exception {
+        RecordingTransportManager tm = new RecordingTransportManager();
+        Channel c = tm.openChannel();
+        ChannelManager cm = c.cm;
+        c.remoteMaxPacketSize = 1000;
+        c.addRemoteWindow(100000);
+        c.setSendRateLimit(10000, 1000);
+
+        final CountDownLatch woken = new CountDownLatch(1);
+        Runnable wakeup = new Runnable() {
+            public void run() {
+                woken.countDown();
+            }
+        };
+
+        ByteBuffer data = ByteBuffer.wrap(new byte[3000]);
+        assertTrue(cm.trySendData(c, data, wakeup)); // the burst
+        assertTrue(cm.trySendData(c, data, wakeup)); // held back, the wakeup is due
+        assertEquals(2000, data.remaining());
+        assertEquals(1, tm.dataPackets().size());
+
+        assertTrue(woken.await(5, TimeUnit.SECONDS));
+        assertTrue(cm.trySendData(c, data, wakeup)); // refilled meanwhile
+        assertEquals(1000, data.remaining());
+        assertEquals(2, tm.dataPackets().size());
+    }
+
+    @Test
+    public void publisherDoesNotWaitForTheReceiveLimit() throws Exception {
+        RecordingTransportManager tm = new RecordingTransportManager();
+        Channel c = tm.openChannel();
+        c.setWindowSize(131072);
+        c.localWindow = 131072;
+        c.setReceiveRateLimit(1000, 1000); // giving back the window takes more than a minute
+
+        byte[] data = new byte[100000];
+        synchronized (c) {
+            c.localWindow -= data.length;
+            c.stdout.write(data, 0, data.length);
+        }
+        c.eof();
+
+        CollectingSubscriber s = new CollectingSubscriber();
+        c.newStdoutPublisher().subscribe(s);
+        s.subscription.request(Long.MAX_VALUE);
+        assertTrue(s.completed.await(5, TimeUnit.SECONDS));
+        assertNull(s.error);
+        assertEquals(data.length, s.received().length);
+
+        /* Only the window waits for the receive limit, at most one burst went back */
+        assertTrue(tm.adjusted() < data.length);
+    }
+}
@@ -0,0 +1,87 @@
+package com.trilead.ssh2.channel;
+
+import com.trilead.ssh2.ChannelCondition;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ChannelReceiveTest {
+
+    ChannelManager cm;
+    Channel c;
+
+    @Before
+    public void setUp() throws IOException {
+        c = new RecordingTransportManager().openChannel();
+        cm = c.cm;
+    }
+
+    private void receive(byte[] data) throws IOException {
+        synchronized (c) {
+            c.localWindow -= data.length;
+            c.stdout.write(data, 0, data.length);
+        }
+    }
+
+    @Test
+    public void blockedReaderDoesNotHoldTheChannel() throws Exception {
+        final int[] read = new int[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    read[0] = c.stdout.read(new byte[10], 0, 10);
+                } catch (InterruptedException ignore) {
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(50);
+
+        /* Would deadlock if the reader waited with the channel locked */
+        receive(new byte[] { 1, 2, 3 });
+
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertEquals(3, read[0]);
+    }
+
+    @Test
+    public void conditionWaitersSeeDataAndEof() throws Exception {
+        final int[] cond = new int[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cond[0] = cm.waitForCondition(c, 5000, ChannelCondition.STDOUT_DATA);
+                } catch (InterruptedException ignore) {
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(50);
+        receive(new byte[] { 1 });
+        waiter.join(5000);
+        assertTrue((cond[0] & ChannelCondition.STDOUT_DATA) != 0);
+        assertTrue((cond[0] & ChannelCondition.TIMEOUT) == 0);
+
+        waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cond[0] = cm.waitForCondition(c, 5000, ChannelCondition.EOF);
+                } catch (InterruptedException ignore) {
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(50);
+        c.eof();
+        waiter.join(5000);
+        assertTrue((cond[0] & ChannelCondition.EOF) != 0);
+        assertTrue((cond[0] & ChannelCondition.TIMEOUT) == 0);
+    }
+}
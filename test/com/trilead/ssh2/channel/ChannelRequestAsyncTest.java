@@ -0,0 +1,148 @@
+package com.trilead.ssh2.channel;
+
+import com.trilead.ssh2.packets.PacketChannelOpenConfirmation;
+import com.trilead.ssh2.packets.PacketChannelOpenFailure;
+import com.trilead.ssh2.packets.Packets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class ChannelRequestAsyncTest {
+
+    RecordingTransportManager tm;
+    ChannelManager cm;
+
+    @Before
+    public void setUp() throws IOException {
+        tm = new RecordingTransportManager();
+        cm = new ChannelManager(tm);
+    }
+
+    private static byte[] reply(int type, int id) {
+        return new byte[] { (byte) type, (byte) (id >> 24), (byte) (id >> 16), (byte) (id >> 8), (byte) id };
+    }
+
+    private Channel open() throws Exception {
+        CompletableFuture<Channel> opened = cm.openSessionChannelAsync(0);
+        assertFalse(opened.isDone());
+        assertEquals(1, tm.packetCount());
+
+        byte[] confirmation = new PacketChannelOpenConfirmation(100, 7, 65536, 32768).getPayload();
+        cm.msgChannelOpenConfirmation(confirmation, confirmation.length);
+
+        Channel c = opened.getNow(null);
+        assertNotNull(c);
+        assertEquals(7, c.remoteID);
+        return c;
+    }
+
+    private static Throwable failure(CompletableFuture<?> f) throws InterruptedException {
+        try {
+            f.get();
+            fail();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    @Test
+    public void pipelinedRequestsGetTheirOwnReplies() throws Exception {
+        Channel c = open();
+
+        CompletableFuture<Void> pty = cm.requestPTYAsync(c, "vt100", 80, 24, 0, 0, new byte[] { 0 });
+        CompletableFuture<Void> exec = cm.requestExecCommandAsync(c, "ls");
+        assertEquals(3, tm.packetCount()); // both sent without waiting
+
+        cm.msgChannelSuccess(reply(Packets.SSH_MSG_CHANNEL_SUCCESS, 100), 5);
+        assertTrue(pty.isDone() && !pty.isCompletedExceptionally());
+        assertFalse(exec.isDone());
+
+        cm.msgChannelFailure(reply(Packets.SSH_MSG_CHANNEL_FAILURE, 100), 5);
+        Throwable t = failure(exec);
+        assertTrue(t instanceof IOException);
+        assertEquals("The execute request failed.", t.getMessage());
+    }
+
+    @Test
+    public void blockingRequestsWaitForTheirReply() throws Exception {
+        final Channel c = open();
+        final IOException[] result = new IOException[1];
+
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cm.requestShell(c);
+                } catch (IOException e) {
+                    result[0] = e;
+                }
+            }
+        };
+        t.start();
+        while (tm.packetCount() < 2) {
+            Thread.sleep(1);
+        }
+        assertTrue(t.isAlive());
+
+        cm.msgChannelSuccess(reply(Packets.SSH_MSG_CHANNEL_SUCCESS, 100), 5);
+        t.join(5000);
+        assertFalse(t.isAlive());
+        assertNull(result[0]);
+    }
+
+    @Test
+    public void closingFailsPendingRequests() throws Exception {
+        Channel c = open();
+        CompletableFuture<Void> shell = cm.requestShellAsync(c);
+
+        cm.msgChannelClose(reply(Packets.SSH_MSG_CHANNEL_CLOSE, 100), 5);
+        assertTrue(failure(shell) instanceof IOException);
+
+        assertTrue(cm.requestExecCommandAsync(c, "ls").isCompletedExceptionally());
+    }
+
+    @Test
+    public void onlyPingRepliesAreRoundTripSamples() throws Exception {
+        final Channel c = open();
+        CompletableFuture<Void> exec = cm.requestExecCommandAsync(c, "sleep 10");
+        Thread.sleep(5);
+        cm.msgChannelSuccess(reply(Packets.SSH_MSG_CHANNEL_SUCCESS, 100), 5);
+        assertTrue(exec.isDone());
+        assertEquals(0, tm.getSmoothedRttNanos()); // neither the open nor the exec
+
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cm.requestChannelTrileadPing(c);
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        t.start();
+        while (tm.packetCount() < 3) {
+            Thread.sleep(1);
+        }
+        cm.msgChannelFailure(reply(Packets.SSH_MSG_CHANNEL_FAILURE, 100), 5);
+        t.join(5000);
+        assertTrue(tm.getSmoothedRttNanos() > 0);
+    }
+
+    @Test
+    public void refusedOpenFails() throws Exception {
+        CompletableFuture<Channel> opened = cm.openSessionChannelAsync(0);
+
+        byte[] refusal = new PacketChannelOpenFailure(100, 4, "too many", "").getPayload();
+        cm.msgChannelOpenFailure(refusal, refusal.length);
+
+        Throwable t = failure(opened);
+        assertTrue(t.getMessage().startsWith("Could not open channel"));
+        assertTrue(t.getCause().getMessage().contains("SSH_OPEN_RESOURCE_SHORTAGE"));
+    }
+}
@@ -0,0 +1,114 @@
+package com.trilead.ssh2.channel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import static org.junit.Assert.*;
+
+public class ChannelSendWindowTest {
+
+    RecordingTransportManager tm;
+    ChannelManager cm;
+    Channel c;
+
+    @Before
+    public void setUp() throws IOException {
+        tm = new RecordingTransportManager();
+        c = tm.openChannel();
+        cm = c.cm;
+        c.localID = 100;
+        c.remoteMaxPacketSize = 1000;
+    }
+
+    private Thread sender(final int len, final IOException[] failure) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cm.sendData(c, new byte[len], 0, len);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    @Test
+    public void channelDataIsChargedToTheConnectionLimit() throws Exception {
+        tm.setSendRateLimit(10000, 1000);
+        c.remoteWindow.set(100000);
+
+        long start = System.nanoTime();
+        cm.sendData(c, new byte[3000], 0, 3000);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(3000, tm.sentBytes());
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 150);
+    }
+
+    @Test
+    public void concurrentSendersNeverExceedTheWindow() throws Exception {
+        c.remoteWindow.set(0);
+
+        IOException[] failure = new IOException[1];
+        Thread[] senders = new Thread[4];
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = sender(5000, failure);
+        }
+
+        Thread.sleep(50);
+        assertEquals(0, tm.sentBytes());
+
+        for (int granted = 0; granted < 20000; granted += 1500) {
+            c.addRemoteWindow(1500);
+            Thread.sleep(5);
+            assertTrue(tm.sentBytes() <= granted + 1500);
+        }
+        c.addRemoteWindow(20000);
+
+        for (Thread t : senders) {
+            t.join(5000);
+            assertFalse(t.isAlive());
+        }
+        assertNull(failure[0]);
+        assertEquals(20000, tm.sentBytes());
+    }
+
+    @Test
+    public void interruptedSenderHandsBackTheWindow() throws Exception {
+        c.setSendRateLimit(1000, 1000);
+        c.remoteWindow.set(5000);
+
+        IOException[] failure = new IOException[1];
+        Thread t = sender(3000, failure);
+        assertEquals(1, tm.awaitDataPackets(1).size());
+
+        t.interrupt();
+        t.join(5000);
+        assertFalse(t.isAlive());
+        assertTrue(failure[0] instanceof InterruptedIOException);
+        assertEquals(1000, tm.sentBytes());
+        assertEquals(4000, c.remoteWindow.get());
+    }
+
+    @Test
+    public void closingWakesParkedSenders() throws Exception {
+        c.remoteWindow.set(0);
+
+        IOException[] failure = new IOException[1];
+        Thread t = sender(100, failure);
+
+        Thread.sleep(50);
+        assertTrue(t.isAlive());
+
+        cm.closeChannel(c, "test", true);
+        t.join(5000);
+        assertFalse(t.isAlive());
+        assertNotNull(failure[0]);
+    }
+}
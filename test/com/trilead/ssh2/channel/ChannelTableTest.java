@@ -0,0 +1,44 @@
+package com.trilead.ssh2.channel;
+
+import com.trilead.ssh2.transport.TransportManager;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChannelTableTest {
+
+    @Test
+    public void behavesLikeAMap() throws IOException {
+        ChannelManager cm = new ChannelManager(new TransportManager("localhost", 22, null));
+        ChannelTable table = new ChannelTable();
+        Map<Integer, Channel> expected = new HashMap<>();
+        Random random = new Random(7);
+
+        for (int round = 0; round < 5000; round++) {
+            int id = 100 + random.nextInt(300);
+            if (random.nextInt(3) == 0) {
+                assertSame(expected.remove(id), table.remove(id));
+            } else {
+                Channel c = new Channel(cm);
+                expected.put(id, c);
+                table.put(id, c);
+            }
+
+            assertEquals(expected.size(), table.size());
+            assertEquals(expected.size(), table.values().length);
+        }
+
+        for (int id = 0; id < 500; id++) {
+            assertSame(expected.get(id), table.get(id));
+        }
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertNull(table.get(expected.keySet().iterator().next()));
+    }
+}
@@ -0,0 +1,108 @@
+package com.trilead.ssh2.channel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class ChannelWindowAdjustTest {
+
+    RecordingTransportManager tm;
+    Channel c;
+
+    @Before
+    public void setUp() throws IOException {
+        tm = new RecordingTransportManager();
+        tm.gate = new CountDownLatch(1);
+        c = tm.openChannel();
+        c.setWindowSize(100000);
+    }
+
+    /**
+     * The peer used up the whole window and the data was consumed.
+     */
+    private void consumeWindow(boolean receiveThread) throws IOException {
+        synchronized (c) {
+            c.localWindow = 0;
+        }
+        c.freeupWindow(100000, receiveThread);
+    }
+
+    @Test
+    public void adjustsOfTheReceiveThreadAreCoalesced() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            consumeWindow(true);
+        }
+        tm.gate.countDown();
+
+        assertEquals(400000, tm.awaitAdjusted(400000));
+        assertTrue(tm.windowAdjusts().size() <= 2);
+    }
+
+    @Test
+    public void readerSendsQueuedAdjustsAlong() throws Exception {
+        tm.gate.countDown();
+        synchronized (c.channelSendLock) {
+            // keeps the sender thread from getting to the queued adjust
+            consumeWindow(true);
+            consumeWindow(true);
+        }
+        consumeWindow(false);
+
+        assertEquals(300000, tm.awaitAdjusted(300000));
+        assertTrue(tm.windowAdjusts().contains(300000) || tm.windowAdjusts().size() == 2);
+    }
+
+    @Test
+    public void interruptedReaderKeepsTheAdjust() throws Exception {
+        tm.gate.countDown();
+        c.setReceiveRateLimit(100000, 100000);
+        consumeWindow(false); // takes the burst
+
+        Thread.currentThread().interrupt();
+        try {
+            consumeWindow(false);
+            fail();
+        } catch (InterruptedIOException expected) {
+        }
+
+        assertEquals(200000, tm.awaitAdjusted(200000));
+    }
+
+    @Test
+    public void smallReadsDoNotAdjust() throws Exception {
+        tm.gate.countDown();
+        synchronized (c) {
+            c.localWindow = 80000;
+        }
+        c.freeupWindow(20000, false);
+        assertEquals(0, tm.adjusted());
+
+        synchronized (c) {
+            c.localWindow = 70000;
+        }
+        c.freeupWindow(10000, false);
+        assertEquals(30000, tm.adjusted());
+    }
+
+    @Test
+    public void grownWindowWaitsForHalfOfIt() throws Exception {
+        tm.gate.countDown();
+        synchronized (c) {
+            c.windowGrown = true;
+            c.localWindow = 60000;
+        }
+        c.freeupWindow(40000, false);
+        assertEquals(0, tm.adjusted());
+
+        synchronized (c) {
+            c.localWindow = 40000;
+        }
+        c.freeupWindow(20000, false);
+        assertEquals(60000, tm.adjusted());
+    }
+}
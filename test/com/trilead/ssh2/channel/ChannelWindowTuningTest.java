@@ -0,0 +1,96 @@
+package com.trilead.ssh2.channel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public class ChannelWindowTuningTest {
+
+    RecordingTransportManager tm;
+    Channel c;
+
+    @Before
+    public void setUp() throws IOException {
+        tm = new RecordingTransportManager();
+        c = tm.openChannel();
+    }
+
+    /**
+     * Simulates the peer sending <code>len</code> bytes that the reader consumes right away.
+     */
+    private void consume(int len) throws IOException {
+        synchronized (c) {
+            c.localWindow -= len;
+        }
+        c.freeupWindow(len);
+    }
+
+    @Test
+    public void smoothedRtt() {
+        assertThat(tm.getSmoothedRttNanos(), is(0L));
+        tm.addRttSample(80);
+        assertThat(tm.getSmoothedRttNanos(), is(80L));
+        tm.addRttSample(160);
+        assertThat(tm.getSmoothedRttNanos(), is(90L));
+    }
+
+    @Test
+    public void tuningProbesTheRttOnce() throws Exception {
+        consume(1);
+        consume(1);
+        c.cm.probeRtt();
+
+        tm.awaitGlobalRequests(1);
+        assertThat(tm.globalRequests(), is(Collections.singletonList("keepalive@openssh.com")));
+    }
+
+    @Test
+    public void windowGrowsWhenItLimitsThroughput() throws Exception {
+        int initial = c.channelBufferSize;
+        tm.addRttSample(20_000_000L);
+
+        consume(1);
+        Thread.sleep(25);
+        consume(initial - 1);
+
+        assertThat(c.channelBufferSize, is(2 * initial));
+        assertThat(tm.receiveBuffer, is(2 * initial));
+        List<Integer> adjusts = tm.windowAdjusts();
+        assertThat(adjusts.get(adjusts.size() - 1), is(initial + initial));
+        assertTrue(tm.globalRequests().isEmpty()); // the round trip time was known
+    }
+
+    @Test
+    public void windowStaysWhenPeerIsSlow() throws Exception {
+        int initial = c.channelBufferSize;
+        tm.addRttSample(20_000_000L);
+
+        consume(1);
+        Thread.sleep(25);
+        consume(initial / 8);
+        Thread.sleep(25);
+        consume(initial / 8);
+
+        assertThat(c.channelBufferSize, is(initial));
+        assertThat(tm.receiveBuffer, is(0));
+    }
+
+    @Test
+    public void explicitWindowSizeDisablesTuning() throws Exception {
+        c.setWindowSize(64 * 1024);
+        tm.addRttSample(1);
+
+        consume(1);
+        Thread.sleep(5);
+        consume(64 * 1024 - 1);
+
+        assertThat(c.channelBufferSize, is(64 * 1024));
+        assertThat(tm.receiveBuffer, is(0));
+    }
+}
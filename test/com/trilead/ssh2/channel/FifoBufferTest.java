@@ -94,4 +94,42 @@ public class FifoBufferTest {
 
         es.shutdown();
     }
+
+    /**
+     * Pages of consumed data go back to the shared pool and are reused.
+     */
+    @Test
+    public void pagesAreRecycled() throws Exception {
+        FifoBuffer fb = new FifoBuffer(PagePool.PAGE_SIZE, 64*1024);
+        long misses = PagePool.SHARED.misses();
+
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        byte[] d = new byte[data.length];
+
+        for (int i=0; i<100; i++) {
+            fb.write(data,0,data.length);
+            int n = 0;
+            while (n<d.length)
+                n += fb.read(d, n, d.length-n);
+            assertArrayEquals(data, d);
+        }
+
+        // 1MB went through, but only a handful of pages had to be created
+        assertTrue(PagePool.SHARED.misses() - misses < 20);
+        assertTrue(PagePool.getHitRate() > 0);
+
+        // an empty buffer holds no page
+        assertThat(fb.readable(), is(0));
+        assertTrue(PagePool.getResidentBytes() >= PagePool.PAGE_SIZE);
+    }
+
+    @Test
+    public void writeReportsTheBufferBecomingReadable() throws Exception {
+        assertTrue(rb.write(new byte[]{1,2,3},0,3));
+        assertFalse(rb.write(new byte[]{4},0,1));
+
+        assertThat(rb.read(buf,0,4), is(4));
+        assertTrue(rb.write(new byte[]{5},0,1));
+    }
 }
@@ -0,0 +1,82 @@
+package com.trilead.ssh2.channel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class KeepAliveServiceTest {
+
+    RecordingTransportManager tm;
+    ChannelManager cm;
+
+    @Before
+    public void setUp() throws IOException {
+        tm = new RecordingTransportManager();
+        cm = new ChannelManager(tm);
+    }
+
+    @Test
+    public void keepAliveRepliesDoNotAnswerOtherRequests() throws Exception {
+        cm.sendKeepAlive();
+        assertEquals(1, cm.getKeepAlivesOutstanding());
+
+        final IOException[] pingFailure = new IOException[1];
+        Thread ping = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cm.requestGlobalTrileadPing();
+                } catch (IOException e) {
+                    pingFailure[0] = e;
+                }
+            }
+        };
+        ping.start();
+        tm.awaitGlobalRequests(2);
+
+        /* The first reply belongs to the keepalive, the ping keeps waiting */
+        cm.msgGlobalFailure();
+        assertEquals(0, cm.getKeepAlivesOutstanding());
+        ping.join(100);
+        assertTrue(ping.isAlive());
+
+        cm.msgGlobalFailure();
+        ping.join(5000);
+        assertFalse(ping.isAlive());
+        assertNull(pingFailure[0]);
+
+        assertEquals("keepalive@openssh.com", tm.globalRequests().get(0));
+        assertEquals("trilead-ping", tm.globalRequests().get(1));
+        assertTrue(tm.getSmoothedRttNanos() > 0);
+    }
+
+    @Test
+    public void closesAfterMissedReplies() throws Exception {
+        KeepAliveService.KeepAlive keepAlive = KeepAliveService.schedule(cm, 10, 3);
+        try {
+            assertTrue(tm.closed.await(5, TimeUnit.SECONDS));
+            assertEquals(3, cm.getKeepAlivesOutstanding());
+            assertTrue(tm.closeCause.getMessage().contains("3 keepalive"));
+        } finally {
+            keepAlive.cancel();
+        }
+    }
+
+    @Test
+    public void answeredKeepAlivesKeepTheConnection() throws Exception {
+        KeepAliveService.KeepAlive keepAlive = KeepAliveService.schedule(cm, 10, 2);
+        try {
+            for (int i = 1; i <= 5; i++) {
+                tm.awaitGlobalRequests(i);
+                cm.msgGlobalFailure();
+            }
+            assertEquals(1, tm.closed.getCount());
+        } finally {
+            keepAlive.cancel();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.trilead.ssh2.channel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class OutboundSchedulerTest {
+
+    OutboundScheduler scheduler;
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    final List<Thread> senders = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        scheduler = new OutboundScheduler(1);
+    }
+
+    private static OutboundScheduler.Flow flow(int priority) {
+        OutboundScheduler.Flow f = new OutboundScheduler.Flow();
+        f.priority = priority;
+        return f;
+    }
+
+    /**
+     * Starts a sender that records its name once it got its turn, and waits until it is queued.
+     */
+    private void send(final OutboundScheduler.Flow f, final int length, final String name) throws InterruptedException {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                scheduler.acquire(f, length);
+                order.add(name);
+                scheduler.done();
+            }
+        };
+        senders.add(t);
+        t.start();
+
+        long end = System.currentTimeMillis() + 5000;
+        while (scheduler.waiting() < senders.size() && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        assertEquals(senders.size(), scheduler.waiting());
+    }
+
+    private void joinSenders() throws InterruptedException {
+        for (Thread t : senders) {
+            t.join(5000);
+            assertFalse(t.isAlive());
+        }
+    }
+
+    @Test
+    public void smallPacketOfAPriorChannelOvertakesBulkData() throws Exception {
+        OutboundScheduler.Flow bulk = flow(1);
+        OutboundScheduler.Flow interactive = flow(Channel.DEFAULT_PRIORITY);
+
+        scheduler.acquire(bulk, 32768);
+        for (int i = 0; i < 3; i++) {
+            send(bulk, 32768, "bulk");
+        }
+        send(interactive, 100, "interactive");
+        scheduler.done();
+
+        joinSenders();
+        assertEquals(asList("interactive", "bulk", "bulk", "bulk"), order);
+    }
+
+    @Test
+    public void channelsShareByPriority() throws Exception {
+        OutboundScheduler.Flow a = flow(2);
+        OutboundScheduler.Flow b = flow(1);
+
+        scheduler.acquire(a, OutboundScheduler.QUANTUM);
+        for (int i = 0; i < 4; i++) {
+            send(a, OutboundScheduler.QUANTUM, "a");
+        }
+        for (int i = 0; i < 2; i++) {
+            send(b, OutboundScheduler.QUANTUM, "b");
+        }
+        scheduler.done();
+
+        joinSenders();
+        assertEquals(asList("a", "a", "b", "a", "a", "b"), order);
+    }
+
+    @Test
+    public void controlMessagesGoFirst() throws Exception {
+        OutboundScheduler.Flow f = flow(Channel.DEFAULT_PRIORITY);
+
+        scheduler.acquire(f, 1000);
+        send(f, 1000, "data");
+
+        scheduler.beginControl();
+        scheduler.done();
+        Thread.sleep(50);
+        assertEquals(1, scheduler.waiting());
+        assertTrue(order.isEmpty());
+
+        scheduler.endControl();
+        joinSenders();
+        assertEquals(asList("data"), order);
+    }
+
+    @Test
+    public void priorityIsSetThroughTheChannel() throws Exception {
+        Channel c = new RecordingTransportManager().openChannel();
+        assertEquals(Channel.DEFAULT_PRIORITY, c.getPriority());
+
+        c.setPriority(1);
+        assertEquals(1, c.outbound.priority);
+
+        try {
+            c.setPriority(0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void tryAcquireQueuesAndWakesUpInsteadOfWaiting() throws Exception {
+        OutboundScheduler.Flow bulk = flow(8);
+        OutboundScheduler.Flow pumped = flow(8);
+        final List<String> woken = new ArrayList<>();
+        Runnable wakeup = new Runnable() {
+            public void run() {
+                woken.add("pumped");
+            }
+        };
+
+        assertTrue(scheduler.tryAcquire(bulk, 1000, wakeup)); // free
+        assertFalse(scheduler.tryAcquire(pumped, 1000, wakeup));
+        assertFalse(scheduler.tryAcquire(pumped, 1000, wakeup)); // queued once only
+        assertEquals(1, scheduler.waiting());
+        assertTrue(woken.isEmpty());
+
+        scheduler.done();
+        assertEquals(asList("pumped"), woken);
+        assertTrue(scheduler.tryAcquire(pumped, 1000, wakeup)); // the granted turn
+        scheduler.done();
+        assertTrue(scheduler.tryAcquire(bulk, 1000, wakeup)); // free again
+        scheduler.done();
+    }
+
+    @Test
+    public void cancelledTurnsDoNotHoldUpOthers() throws Exception {
+        OutboundScheduler.Flow pumped = flow(8);
+        OutboundScheduler.Flow other = flow(8);
+        Runnable wakeup = new Runnable() {
+            public void run() {
+            }
+        };
+
+        scheduler.acquire(other, 1000);
+        assertFalse(scheduler.tryAcquire(pumped, 1000, wakeup));
+        scheduler.cancel(pumped); // still queued
+        assertEquals(0, scheduler.waiting());
+        scheduler.done();
+
+        scheduler.acquire(other, 1000);
+        assertFalse(scheduler.tryAcquire(pumped, 1000, wakeup));
+        scheduler.done(); // granted to the pump, which does not come back
+        scheduler.cancel(pumped);
+
+        assertTrue(scheduler.tryAcquire(other, 1000, wakeup)); // free again
+        scheduler.done();
+    }
+
+}
@@ -0,0 +1,219 @@
+package com.trilead.ssh2.channel;
+
+import com.trilead.ssh2.packets.Packets;
+import com.trilead.ssh2.packets.TypesReader;
+import com.trilead.ssh2.packets.TypesWriter;
+import com.trilead.ssh2.packets.WritablePacket;
+import com.trilead.ssh2.transport.TransportManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unconnected transport for the channel tests, records what would be sent.
+ */
+class RecordingTransportManager extends TransportManager {
+    private final List<byte[]> data = new ArrayList<>();
+    private final List<byte[]> messages = new ArrayList<>();
+    private final List<WritablePacket> packets = new ArrayList<>();
+
+    /**
+     * If set, {@link #sendMessage(byte[])} waits until it is counted down.
+     */
+    volatile CountDownLatch gate;
+
+    volatile int receiveBuffer;
+
+    final CountDownLatch closed = new CountDownLatch(1);
+    volatile Throwable closeCause;
+
+    RecordingTransportManager() throws IOException {
+        super("localhost", 22, null);
+    }
+
+    /**
+     * @return a channel of a new {@link ChannelManager} over this transport, open as if the peer had confirmed it
+     */
+    Channel openChannel() {
+        return openChannel(new ChannelManager(this));
+    }
+
+    /**
+     * @return a channel of the given manager, open as if the peer had confirmed it
+     */
+    static Channel openChannel(ChannelManager cm) {
+        Channel c = new Channel(cm);
+        c.remoteID = 7;
+        c.state = Channel.STATE_OPEN;
+        return c;
+    }
+
+    @Override
+    public void raiseMaxPacketSize(int packetSize) {
+    }
+
+    @Override
+    public void growReceiveBuffer(int size) {
+        receiveBuffer = size;
+    }
+
+    @Override
+    public void sendMessage(TypesWriter tw) throws IOException {
+        TypesReader tr = new TypesReader(tw.getBuffer(), tw.getOffset(), tw.length());
+        assertEquals(Packets.SSH_MSG_CHANNEL_DATA, tr.readByte());
+        tr.readUINT32();
+        byte[] b = tr.readByteString();
+
+        synchronized (this) {
+            data.add(b);
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void sendMessage(byte[] msg) {
+        CountDownLatch g = gate;
+        if (g != null) {
+            try {
+                g.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+        record(msg);
+    }
+
+    @Override
+    public void sendAsynchronousMessage(byte[] msg) {
+        record(msg);
+    }
+
+    @Override
+    public synchronized void sendMessage(WritablePacket packet) {
+        packets.add(packet);
+        notifyAll();
+    }
+
+    @Override
+    public void close(Throwable cause, boolean useDisconnectPacket) {
+        closeCause = cause;
+        closed.countDown();
+    }
+
+    private synchronized void record(byte[] msg) {
+        messages.add(msg.clone()); // the window adjust buffer is reused
+        notifyAll();
+    }
+
+    /**
+     * Waits up to five seconds for the condition, the caller holds the lock.
+     */
+    private void await(BooleanSupplier done) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!done.getAsBoolean() && System.currentTimeMillis() < end) {
+            wait(10);
+        }
+    }
+
+    /**
+     * @return the data length of every SSH_MSG_CHANNEL_DATA
+     */
+    synchronized List<Integer> dataPackets() {
+        List<Integer> lengths = new ArrayList<>();
+        for (byte[] b : data) {
+            lengths.add(b.length);
+        }
+        return lengths;
+    }
+
+    synchronized List<Integer> awaitDataPackets(final int n) throws InterruptedException {
+        await(() -> data.size() >= n);
+        return dataPackets();
+    }
+
+    synchronized int sentBytes() {
+        int sum = 0;
+        for (byte[] b : data) {
+            sum += b.length;
+        }
+        return sum;
+    }
+
+    synchronized byte[] sentData() {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (byte[] b : data) {
+            all.write(b, 0, b.length);
+        }
+        return all.toByteArray();
+    }
+
+    synchronized boolean eof() {
+        for (byte[] msg : messages) {
+            if (msg[0] == Packets.SSH_MSG_CHANNEL_EOF) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the increment of every SSH_MSG_CHANNEL_WINDOW_ADJUST
+     */
+    synchronized List<Integer> windowAdjusts() {
+        List<Integer> adjusts = new ArrayList<>();
+        for (byte[] msg : messages) {
+            if (msg[0] == Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST) {
+                adjusts.add(((msg[5] & 0xff) << 24) | ((msg[6] & 0xff) << 16) | ((msg[7] & 0xff) << 8) | (msg[8] & 0xff));
+            }
+        }
+        return adjusts;
+    }
+
+    synchronized int adjusted() {
+        int sum = 0;
+        for (int a : windowAdjusts()) {
+            sum += a;
+        }
+        return sum;
+    }
+
+    synchronized int awaitAdjusted(final int total) throws InterruptedException {
+        await(() -> adjusted() >= total);
+        return adjusted();
+    }
+
+    /**
+     * @return the request names of the SSH_MSG_GLOBAL_REQUEST messages
+     */
+    synchronized List<String> globalRequests() {
+        List<String> names = new ArrayList<>();
+        for (byte[] msg : messages) {
+            if (msg[0] == Packets.SSH_MSG_GLOBAL_REQUEST) {
+                try {
+                    TypesReader tr = new TypesReader(msg, 1);
+                    names.add(tr.readString());
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+        return names;
+    }
+
+    synchronized void awaitGlobalRequests(final int count) throws InterruptedException {
+        await(() -> globalRequests().size() >= count);
+    }
+
+    /**
+     * @return how many packets were sent with {@link #sendMessage(WritablePacket)}
+     */
+    synchronized int packetCount() {
+        return packets.size();
+    }
+}
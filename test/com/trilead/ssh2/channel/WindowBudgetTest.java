@@ -0,0 +1,102 @@
+package com.trilead.ssh2.channel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class WindowBudgetTest {
+
+    ChannelManager cm;
+
+    @Before
+    public void setUp() throws IOException {
+        cm = new ChannelManager(new RecordingTransportManager());
+    }
+
+    private Channel open(WindowBudget budget) {
+        Channel c = RecordingTransportManager.openChannel(cm);
+        c.openWindowBudget(budget);
+        return c;
+    }
+
+    /**
+     * The peer fills the whole window, then the application reads it all.
+     */
+    private void cycle(Channel c) throws Exception {
+        int n;
+        synchronized (c) {
+            n = c.localWindow;
+            c.localWindow = 0;
+            c.stdout.write(new byte[n], 0, n);
+        }
+        byte[] buf = new byte[n];
+        for (int read = 0; read < n; ) {
+            read += c.stdout.read(buf, read, n - read);
+        }
+        c.freeupWindow(n);
+    }
+
+    @Test
+    public void initialWindowsStayInTheBudget() {
+        WindowBudget budget = new WindowBudget(4 * 1024 * 1024, null);
+        Channel[] channels = new Channel[20];
+        long total = 0;
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = open(budget);
+            assertTrue(channels[i].localWindow >= WindowBudget.MIN_WINDOW);
+            total += channels[i].localWindow;
+        }
+        assertEquals(total, budget.getUsed());
+        assertTrue(total <= budget.getLimit() + channels.length * WindowBudget.MIN_WINDOW);
+        assertEquals(20, budget.getChannels());
+
+        for (Channel c : channels) {
+            c.releaseWindowBudget();
+        }
+        assertEquals(0, budget.getUsed());
+        assertEquals(0, budget.getChannels());
+    }
+
+    @Test
+    public void consumingChannelGetsWhatOthersGiveBack() throws Exception {
+        WindowBudget budget = new WindowBudget(2 * 1024 * 1024, null);
+        Channel idle = open(budget);
+        Channel hot = open(budget);
+        int initial = hot.localWindow;
+        assertTrue(idle.localWindow + initial <= budget.getLimit());
+
+        for (int i = 0; i < 3; i++) {
+            cycle(hot);
+            assertTrue(budget.getUsed() <= budget.getLimit());
+        }
+        assertEquals(initial, hot.localWindow);
+
+        idle.closeWindowBudget();
+        cycle(hot);
+        assertEquals(hot.channelBufferSize, hot.localWindow);
+
+        // shrinks once the budget gets tight
+        budget.setLimit(256 * 1024);
+        cycle(hot);
+        assertTrue(hot.localWindow < 256 * 1024);
+        assertEquals(hot.localWindow, budget.getUsed());
+    }
+
+    @Test
+    public void jvmBudgetCapsUnlimitedConnections() {
+        WindowBudget jvm = new WindowBudget(1024 * 1024, null);
+        WindowBudget connection = new WindowBudget(0, jvm);
+        Channel c = open(connection);
+
+        assertTrue(c.localWindow < 1024 * 1024);
+        assertEquals(c.localWindow, connection.getUsed());
+        assertEquals(c.localWindow, jvm.getUsed());
+
+        c.releaseWindowBudget();
+        assertEquals(0, jvm.getUsed());
+        assertEquals(0, jvm.getChannels());
+    }
+}
@@ -0,0 +1,77 @@
+package com.trilead.ssh2.crypto.digest;
+
+import com.trilead.ssh2.KnownHosts;
+import com.trilead.ssh2.signature.RSAKeyAlgorithm;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPublicKey;
+
+/**
+ * Rough timings for the two hashing hot spots: the key exchange hash and the lookup
+ * of a host in a known_hosts file made up of hashed entries. Not run as part of the
+ * test suite, start it with the test classpath:
+ * <pre>java com.trilead.ssh2.crypto.digest.DigestBenchmark [iterations]</pre>
+ */
+public class DigestBenchmark {
+
+    private static final int HASHED_HOSTS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        SecureRandom rnd = new SecureRandom();
+        byte[] hostKey = new byte[279];
+        byte[] kexInit = new byte[1500];
+        rnd.nextBytes(hostKey);
+        rnd.nextBytes(kexInit);
+        BigInteger e = new BigInteger(2048, rnd);
+        BigInteger f = new BigInteger(2048, rnd);
+        BigInteger k = new BigInteger(2048, rnd);
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                exchangeHash("SHA-256", hostKey, kexInit, e, f, k);
+            }
+            report("exchange hash (sha256)", start, iterations);
+        }
+
+        byte[] encodedKey = new RSAKeyAlgorithm().encodePublicKey(
+                (RSAPublicKey) KeyPairGenerator.getInstance("RSA").generateKeyPair().getPublic());
+        KnownHosts knownHosts = new KnownHosts();
+        for (int i = 0; i < HASHED_HOSTS; i++) {
+            String hashed = KnownHosts.createHashedHostname("host" + i + ".example.com");
+            knownHosts.addHostkey(new String[]{hashed}, "ssh-rsa", encodedKey);
+        }
+
+        int lookups = Math.max(1, iterations / HASHED_HOSTS);
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                knownHosts.getPreferredServerHostkeyAlgorithmOrder("unknown.example.com");
+            }
+            report("hashed host lookup (" + HASHED_HOSTS + " entries)", start, lookups);
+        }
+    }
+
+    private static byte[] exchangeHash(String algorithm, byte[] hostKey, byte[] kexInit, BigInteger e, BigInteger f, BigInteger k) {
+        HashForSSH2Types hash = new HashForSSH2Types(algorithm);
+        hash.updateByteString("SSH-2.0-TrileadSSH2Java_213".getBytes(StandardCharsets.ISO_8859_1));
+        hash.updateByteString("SSH-2.0-OpenSSH_9.6".getBytes(StandardCharsets.ISO_8859_1));
+        hash.updateByteString(kexInit);
+        hash.updateByteString(kexInit);
+        hash.updateByteString(hostKey);
+        hash.updateBigInt(e);
+        hash.updateBigInt(f);
+        hash.updateBigInt(k);
+        return hash.getDigest();
+    }
+
+    private static void report(String name, long start, int operations) {
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-40s %10.2f us/op%n", name, elapsed / 1000.0 / operations);
+    }
+}
@@ -0,0 +1,54 @@
+package com.trilead.ssh2.crypto.digest;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+
+public class JreMessageDigestWrapperTest {
+
+    private static final byte[] MESSAGE = "abc".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void cachedInstancesAreIndependent() throws Exception {
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(MESSAGE);
+
+        MessageDigest first = JreMessageDigestWrapper.createMessageDigest("SHA-256");
+        first.update(new byte[]{1, 2, 3});
+        MessageDigest second = JreMessageDigestWrapper.createMessageDigest("SHA-256");
+
+        assertNotSame(first, second);
+        assertArrayEquals(expected, second.digest(MESSAGE));
+    }
+
+    @Test
+    public void digestHonoursOffset() throws Exception {
+        byte[] expected = MessageDigest.getInstance("SHA-1").digest(MESSAGE);
+
+        JreMessageDigestWrapper digest = JreMessageDigestWrapper.getInstance("SHA-1");
+        digest.update(MESSAGE);
+        byte[] out = new byte[5 + expected.length];
+        digest.digest(out, 5);
+
+        byte[] actual = new byte[expected.length];
+        System.arraycopy(out, 5, actual, 0, actual.length);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void digestTruncatesToShortBuffer() throws Exception {
+        byte[] expected = MessageDigest.getInstance("SHA-1").digest(MESSAGE);
+
+        JreMessageDigestWrapper digest = JreMessageDigestWrapper.getInstance("SHA-1");
+        digest.update(MESSAGE);
+        byte[] out = new byte[12];
+        digest.digest(out);
+
+        byte[] truncated = new byte[12];
+        System.arraycopy(expected, 0, truncated, 0, 12);
+        assertArrayEquals(truncated, out);
+    }
+}
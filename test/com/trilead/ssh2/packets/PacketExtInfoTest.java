@@ -0,0 +1,47 @@
+package com.trilead.ssh2.packets;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PacketExtInfoTest {
+
+    private static byte[] extInfo(String... nameValuePairs) {
+        TypesWriter tw = new TypesWriter();
+        tw.writeByte(Packets.SSH_MSG_EXT_INFO);
+        tw.writeUINT32(nameValuePairs.length / 2);
+        for (int i = 0; i < nameValuePairs.length; i += 2) {
+            tw.writeString(nameValuePairs[i]);
+            tw.writeString(nameValuePairs[i + 1]);
+        }
+        return tw.getBytes();
+    }
+
+    @Test
+    public void parsesServerSigAlgs() throws IOException {
+        byte[] msg = extInfo("server-sig-algs", "ssh-ed25519,rsa-sha2-512,rsa-sha2-256", "no-flow-control", "p");
+
+        PacketExtInfo pei = new PacketExtInfo(msg, 0, msg.length);
+
+        assertEquals(2, pei.getExtensions().size());
+        assertArrayEquals(new String[]{"ssh-ed25519", "rsa-sha2-512", "rsa-sha2-256"}, pei.getServerSigAlgs());
+    }
+
+    @Test
+    public void missingServerSigAlgs() throws IOException {
+        byte[] msg = extInfo("delay-compression", "none");
+
+        assertNull(new PacketExtInfo(msg, 0, msg.length).getServerSigAlgs());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedMessage() throws IOException {
+        byte[] msg = extInfo("server-sig-algs", "rsa-sha2-256");
+
+        new PacketExtInfo(msg, 0, msg.length - 3);
+    }
+}
@@ -0,0 +1,50 @@
+package com.trilead.ssh2.packets;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TypesReaderTest {
+
+    private static byte[] message() {
+        TypesWriter tw = new TypesWriter();
+        tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
+        tw.writeString("skipped");
+        tw.writeString("view");
+        tw.writeUINT32(99);
+        return tw.getBytes();
+    }
+
+    @Test
+    public void skipsFieldsItIsNotInterestedIn() throws IOException {
+        TypesReader tr = new TypesReader(message());
+
+        assertEquals(Packets.SSH_MSG_CHANNEL_REQUEST, tr.readByte());
+        tr.skipString();
+        assertEquals("view", tr.readString());
+        assertEquals(99, tr.readUINT32());
+        assertEquals(0, tr.remain());
+    }
+
+    @Test
+    public void rejectsNegativeLengths() {
+        byte[] msg = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xf0, 1, 2, 3};
+
+        try {
+            new TypesReader(msg).readByteString();
+            fail();
+        } catch (IOException expected) {
+            // length is 2^32 - 16
+        }
+
+        try {
+            new TypesReader(msg).skipString();
+            fail();
+        } catch (IOException expected) {
+            // same for skipping
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.trilead.ssh2.packets;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class TypesWriterTest {
+
+    @Test
+    public void reservedRoomIsNotPartOfTheData() throws IOException {
+        TypesWriter tw = new TypesWriter(16, 5);
+        tw.writeByte(Packets.SSH_MSG_CHANNEL_DATA);
+        tw.writeUINT32(42);
+        tw.writeString("hello");
+
+        assertEquals(5, tw.getOffset());
+        assertEquals(1 + 4 + 4 + 5, tw.length());
+
+        TypesReader tr = new TypesReader(tw.getBytes());
+        assertEquals(Packets.SSH_MSG_CHANNEL_DATA, tr.readByte());
+        assertEquals(42, tr.readUINT32());
+        assertEquals("hello", tr.readString());
+        assertEquals(0, tr.remain());
+    }
+
+    @Test
+    public void offsetWritesAreRelativeToTheData() {
+        TypesWriter tw = new TypesWriter(8, 9);
+        tw.writeUINT32(0);
+        tw.writeByte(7);
+        tw.writeUINT32(0x01020304, 0);
+
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 7}, tw.getBytes());
+    }
+
+    @Test
+    public void growsBeyondInitialSize() {
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        TypesWriter tw = new TypesWriter(4, 5);
+        tw.writeString(data, 0, data.length);
+
+        byte[] out = tw.getBytes();
+        assertEquals(data.length + 4, out.length);
+        assertEquals(data[data.length - 1], out[out.length - 1]);
+    }
+
+    @Test
+    public void stringsMatchIso88591Encoding() throws IOException {
+        String[] values = {"", "ssh-ed25519", "caf\u00e9", "\u20ac uro", "\ud83d\ude00"};
+
+        for (String v : values) {
+            TypesWriter tw = new TypesWriter();
+            tw.writeString(v);
+
+            TypesReader tr = new TypesReader(tw.getBytes());
+            assertArrayEquals(v, v.getBytes("ISO-8859-1"), tr.readByteString());
+            assertEquals(0, tr.remain());
+        }
+    }
+
+    @Test
+    public void nameList() throws IOException {
+        TypesWriter tw = new TypesWriter();
+        tw.writeNameList(new String[] {"aes128-ctr", "aes256-ctr"});
+        tw.writeNameList(new String[0]);
+
+        TypesReader tr = new TypesReader(tw.getBytes());
+        assertEquals("aes128-ctr,aes256-ctr", tr.readString());
+        assertEquals("", tr.readString());
+        assertEquals(0, tr.remain());
+    }
+
+    @Test
+    public void pooledWritersAreReused() {
+        TypesWriter first = TypesWriter.obtain();
+        TypesWriter nested = TypesWriter.obtain();
+        assertNotSame(first, nested);
+
+        first.writeUINT32(1);
+        nested.recycle();
+        first.recycle();
+        first.recycle();
+
+        TypesWriter again = TypesWriter.obtain(9);
+        assertEquals(9, again.getOffset());
+        assertEquals(0, again.length());
+        assertTrue(again == first || again == nested);
+        assertNotSame(again, TypesWriter.obtain());
+        again.recycle();
+    }
+}
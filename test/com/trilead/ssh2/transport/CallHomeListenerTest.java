@@ -0,0 +1,86 @@
+package com.trilead.ssh2.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CallHomeListenerTest {
+
+    private CallHomeListener listener;
+    private final List<Socket> devices = new ArrayList<>();
+
+    @Before
+    public void startListener() throws IOException {
+        listener = new CallHomeListener(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        listener.start();
+    }
+
+    @After
+    public void stopListener() throws IOException {
+        listener.close();
+        for (Socket device : devices) {
+            device.close();
+        }
+    }
+
+    private Socket callHome() throws IOException {
+        Socket device = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        devices.add(device);
+        return device;
+    }
+
+    @Test
+    public void handsOutDevicesInTheOrderTheyCalled() throws IOException {
+        Socket first = callHome();
+        Socket second = callHome();
+
+        Socket taken = listener.take(null, 5000);
+        assertEquals(first.getLocalPort(), taken.getPort());
+        taken.close();
+
+        taken = listener.take(InetAddress.getLoopbackAddress(), 5000);
+        assertEquals(second.getLocalPort(), taken.getPort());
+        taken.close();
+    }
+
+    @Test
+    public void waitsForTheRequestedDevice() throws IOException {
+        callHome();
+
+        try {
+            listener.take(InetAddress.getByAddress(new byte[] {(byte) 192, 0, 2, 1}), 200);
+            fail("no device called from 192.0.2.1");
+        } catch (SocketTimeoutException expected) {
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listener.getPendingCount() != 1 && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(1, listener.getPendingCount());
+    }
+
+    @Test
+    public void closedListenerRefusesToHandOutSockets() {
+        listener.close();
+
+        try {
+            listener.take(null, 0);
+            fail("listener is closed");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("not running"));
+        }
+    }
+}
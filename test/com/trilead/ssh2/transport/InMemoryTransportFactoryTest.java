@@ -0,0 +1,102 @@
+package com.trilead.ssh2.transport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class InMemoryTransportFactoryTest {
+
+    private static byte[] readFully(InputStream in, int len) throws IOException {
+        byte[] b = new byte[len];
+        int n = 0;
+        while (n < len) {
+            int r = in.read(b, n, len - n);
+            if (r < 0)
+                throw new IOException("EOF after " + n + " bytes");
+            n += r;
+        }
+        return b;
+    }
+
+    @Test
+    public void bothDirectionsCarryMoreThanTheBuffer() throws Exception {
+        Transport[] pair = InMemoryTransportFactory.createPair(1000);
+        final byte[] data = new byte[50000];
+        new Random(1).nextBytes(data);
+
+        final OutputStream out = pair[0].getOutputStream();
+        Thread writer = new Thread(() -> {
+            try {
+                out.write(data);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+
+        assertArrayEquals(data, readFully(pair[1].getInputStream(), data.length));
+        writer.join();
+
+        pair[1].getOutputStream().write(new byte[] {1, 2, 3});
+        assertArrayEquals(new byte[] {1, 2, 3}, readFully(pair[0].getInputStream(), 3));
+    }
+
+    @Test
+    public void closeEndsBothDirections() throws IOException {
+        Transport[] pair = InMemoryTransportFactory.createPair(100);
+        pair[0].getOutputStream().write(42);
+        pair[0].close();
+
+        assertEquals(42, pair[1].getInputStream().read());
+        assertEquals(-1, pair[1].getInputStream().read());
+
+        try {
+            pair[1].getOutputStream().write(1);
+            fail("the pipe is closed");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void factoryHandsServerEndToServerAndHonoursReadTimeout() throws IOException {
+        final List<Transport> served = new ArrayList<>();
+        TransportFactory factory = new InMemoryTransportFactory(served::add);
+
+        Transport client = factory.open("localhost", 22, 0, 50);
+        assertEquals(1, served.size());
+
+        served.get(0).getOutputStream().write(7);
+        assertEquals(7, client.getInputStream().read());
+
+        try {
+            client.getInputStream().read();
+            fail("nothing was sent");
+        } catch (SocketTimeoutException expected) {
+        }
+    }
+
+    @Test
+    public void socketOptionsWithoutTcpSocketAreIgnored() throws IOException {
+        TransportManager tm = new TransportManager("localhost", 22);
+        tm.setTransportFactory(new InMemoryTransportFactory(t -> { }));
+
+        tm.setTcpNoDelay(true);
+        tm.setSoTimeout(100);
+        tm.setSocketBufferSizes(65536, 65536);
+        tm.growReceiveBuffer(1 << 20);
+        tm.growSendBuffer(1 << 20);
+
+        assertNull(tm.sock);
+    }
+}
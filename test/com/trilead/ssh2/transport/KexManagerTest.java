@@ -62,6 +62,16 @@ public class KexManagerTest {
 		verify(tm, times(1)).sendKexMessage(any());
 	}
 
+	@Test
+	public void firstKexInit_AdvertisesExtInfo() throws Exception {
+		kexManager.initiateKEX(new CryptoWishList(), new DHGexParameters());
+		verify(tm).sendKexMessage(packetCaptor.capture());
+
+		byte[] payload = packetCaptor.getValue();
+		String[] kexAlgorithms = new PacketKexInit(payload, 0, payload.length).getKex_algorithms();
+		assertEquals("ext-info-c", kexAlgorithms[kexAlgorithms.length - 1]);
+	}
+
 	@Test(expected = IOException.class)
 	public void handlePacket_BeforeKex_NotKexInit_ThrowsException() throws Exception {
 		kexManager.handleMessage(new byte[] {Packets.SSH_MSG_NEWKEYS}, 1);
@@ -0,0 +1,64 @@
+package com.trilead.ssh2.transport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ReadAheadInputStreamTest {
+
+    @Test
+    public void deliversAllBytesInOrder() throws IOException {
+        byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+
+        ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 1000, 3);
+        in.start("test-reader");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void reportsReadFailureAfterTheDataBeforeIt() throws IOException {
+        InputStream failing = new InputStream() {
+            private int count = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (count == 10) {
+                    throw new IOException("connection reset");
+                }
+                return count++;
+            }
+        };
+
+        ReadAheadInputStream in = new ReadAheadInputStream(failing, 4, 2);
+        in.start("test-reader");
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, in.read());
+        }
+
+        try {
+            in.read();
+            fail("the read failure must be passed on");
+        } catch (IOException expected) {
+            assertEquals("connection reset", expected.getCause().getMessage());
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.trilead.ssh2.transport;
+
+import com.trilead.ssh2.crypto.cipher.BlockCipherFactory;
+import com.trilead.ssh2.crypto.digest.MessageMac;
+import com.trilead.ssh2.packets.Packets;
+import com.trilead.ssh2.packets.TypesReader;
+import com.trilead.ssh2.packets.TypesWriter;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransportConnectionTest {
+
+    /* Padding is random once encryption is on, make it predictable */
+    private static class FixedRandom extends SecureRandom {
+        @Override
+        public int nextInt() {
+            return 0x5a5a5a5a;
+        }
+
+        @Override
+        public void nextBytes(byte[] bytes) {
+            Arrays.fill(bytes, (byte) 0x5a);
+        }
+    }
+
+    private static byte[] send(String cipher, String mac, boolean inPlace) throws IOException {
+        return send(cipher, mac, inPlace, false);
+    }
+
+    private static TransportConnection encryptingConnection(OutputStream out, String cipher, String mac) {
+        TransportConnection tc = new TransportConnection(new ByteArrayInputStream(new byte[0]), out, new FixedRandom());
+
+        byte[] key = new byte[BlockCipherFactory.getKeySize(cipher)];
+        byte[] iv = new byte[BlockCipherFactory.getBlockSize(cipher)];
+        tc.changeSendCipher(BlockCipherFactory.createCipher(cipher, true, key, iv),
+                new MessageMac(mac, new byte[MessageMac.getKeyLength(mac)]));
+        return tc;
+    }
+
+    private static TransportConnection decryptingConnection(byte[] in, String cipher, String mac) {
+        TransportConnection tc = new TransportConnection(new ByteArrayInputStream(in), new ByteArrayOutputStream(), new FixedRandom());
+
+        byte[] key = new byte[BlockCipherFactory.getKeySize(cipher)];
+        byte[] iv = new byte[BlockCipherFactory.getBlockSize(cipher)];
+        tc.changeRecvCipher(BlockCipherFactory.createCipher(cipher, false, key, iv),
+                new MessageMac(mac, new byte[MessageMac.getKeyLength(mac)]));
+        return tc;
+    }
+
+    private static byte[] send(String cipher, String mac, boolean inPlace, boolean reserved) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransportConnection tc = encryptingConnection(out, cipher, mac);
+        tc.parallelEncryption = reserved;
+
+        for (int len : new int[] {0, 1, 17, 1000, 40000}) {
+            TypesWriter tw = inPlace ? TypesWriter.obtain() : new TypesWriter();
+            tw.writeByte(Packets.SSH_MSG_CHANNEL_DATA);
+            tw.writeUINT32(7);
+            tw.writeString(new byte[len], 0, len);
+
+            if (reserved) {
+                TransportConnection.ReservedPacket packet = tc.reservePacket(tw);
+                assertNotNull(packet);
+                tc.sendReservedPacket(packet, tw);
+                tw.recycle();
+            } else if (inPlace) {
+                tc.sendMessage(tw);
+                tw.recycle();
+            } else {
+                tc.sendMessage(tw.getBytes());
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    @Test
+    public void inPlaceHeaderProducesSamePackets() throws IOException {
+        assertArrayEquals(send("aes128-ctr", "hmac-sha2-256", false), send("aes128-ctr", "hmac-sha2-256", true));
+    }
+
+    @Test
+    public void inPlaceHeaderProducesSamePacketsWithEncryptThenMac() throws IOException {
+        String mac = "hmac-sha2-256-etm@openssh.com";
+        assertArrayEquals(send("aes256-ctr", mac, false), send("aes256-ctr", mac, true));
+        assertArrayEquals(send("aes128-cbc", mac, false), send("aes128-cbc", mac, true));
+    }
+
+    @Test
+    public void reservedPacketsProduceSamePackets() throws IOException {
+        assertArrayEquals(send("aes128-ctr", "hmac-sha2-256", false), send("aes128-ctr", "hmac-sha2-256", true, true));
+
+        String mac = "hmac-sha2-512-etm@openssh.com";
+        assertArrayEquals(send("aes256-ctr", mac, false), send("aes256-ctr", mac, true, true));
+    }
+
+    @Test
+    public void reservationNeedsCounterMode() {
+        TransportConnection tc = encryptingConnection(new ByteArrayOutputStream(), "aes128-cbc", "hmac-sha2-256");
+        tc.parallelEncryption = true;
+        TypesWriter tw = TypesWriter.obtain();
+        tw.writeByte(Packets.SSH_MSG_IGNORE);
+        assertNull(tc.reservePacket(tw));
+    }
+
+    @Test
+    public void concurrentlySealedPacketsArriveInOrder() throws Exception {
+        final String cipher = "aes128-ctr";
+        final String mac = "hmac-sha2-256";
+        final int threads = 4;
+        final int packets = 200;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final TransportConnection tc = encryptingConnection(out, cipher, mac);
+        tc.parallelEncryption = true;
+
+        final Object lock = new Object();
+        List<Thread> senders = new ArrayList<>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        for (int t = 0; t < threads; t++) {
+            final int sender = t;
+            senders.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < packets; i++) {
+                        TypesWriter tw = TypesWriter.obtain();
+                        tw.writeByte(Packets.SSH_MSG_CHANNEL_DATA);
+                        tw.writeUINT32(sender);
+                        tw.writeUINT32(i);
+                        tw.writeString(new byte[i * 7], 0, i * 7);
+
+                        TransportConnection.ReservedPacket packet;
+                        synchronized (lock) {
+                            packet = tc.reservePacket(tw);
+                        }
+                        tc.sendReservedPacket(packet, tw);
+                        tw.recycle();
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }));
+        }
+
+        for (Thread sender : senders)
+            sender.start();
+        for (Thread sender : senders)
+            sender.join();
+
+        assertEquals(Collections.emptyList(), failures);
+
+        TransportConnection receiver = decryptingConnection(out.toByteArray(), cipher, mac);
+        byte[] buffer = new byte[receiver.getReceiveBufferSize()];
+        int[] next = new int[threads];
+
+        for (int i = 0; i < threads * packets; i++) {
+            receiver.receiveMessage(buffer, 0, buffer.length);
+            TypesReader tr = new TypesReader(buffer, 1);
+            int sender = tr.readUINT32();
+            assertEquals(next[sender]++, tr.readUINT32());
+        }
+    }
+
+    private static byte[] unencryptedPacket(int payloadLength) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransportConnection tc = new TransportConnection(new ByteArrayInputStream(new byte[0]), out, new FixedRandom());
+        byte[] payload = new byte[payloadLength];
+        payload[0] = Packets.SSH_MSG_CHANNEL_DATA;
+        tc.sendMessage(payload);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void largerPacketsNeedToBeAllowed() throws IOException {
+        byte[] packet = unencryptedPacket(200 * 1024);
+
+        TransportConnection tc = new TransportConnection(new ByteArrayInputStream(packet), new ByteArrayOutputStream(), new FixedRandom());
+        try {
+            tc.receiveMessage(new byte[tc.getReceiveBufferSize()], 0, tc.getReceiveBufferSize());
+            fail("packet is larger than " + TransportManager.MAX_PACKET_SIZE);
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("Illegal packet size"));
+        }
+
+        tc = new TransportConnection(new ByteArrayInputStream(packet), new ByteArrayOutputStream(), new FixedRandom());
+        tc.raiseMaxPacketLength(256 * 1024);
+        tc.raiseMaxPacketLength(1024);
+        assertTrue(tc.getReceiveBufferSize() > 256 * 1024);
+
+        byte[] buffer = new byte[tc.getReceiveBufferSize()];
+        assertEquals(200 * 1024, tc.receiveMessage(buffer, 0, buffer.length));
+        assertEquals(Packets.SSH_MSG_CHANNEL_DATA, buffer[0]);
+    }
+}
@@ -0,0 +1,51 @@
+package com.trilead.ssh2.transport;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+public class UnixDomainTransportFactoryTest {
+
+    @Test
+    public void talksToServerOnUnixSocket() throws Exception {
+        Path dir = Files.createTempDirectory("trilead-uds");
+        Path path = dir.resolve("sshd.sock");
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(path));
+
+            Transport transport = new UnixDomainTransportFactory(path).open("ignored", 22, 0, 0);
+
+            try (SocketChannel peer = server.accept()) {
+                transport.getOutputStream().write(new byte[] {1, 2, 3});
+
+                ByteBuffer received = ByteBuffer.allocate(3);
+                while (received.hasRemaining())
+                    peer.read(received);
+                received.flip();
+
+                peer.write(received);
+
+                InputStream in = transport.getInputStream();
+                assertEquals(1, in.read());
+                assertEquals(2, in.read());
+                assertEquals(3, in.read());
+            }
+
+            assertEquals(-1, transport.getInputStream().read());
+            transport.close();
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.trilead.ssh2.util;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    @Test
+    public void unlimitedNeverWaits() throws InterruptedIOException {
+        TokenBucket bucket = new TokenBucket();
+        assertFalse(bucket.isLimited());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            bucket.acquire(1024 * 1024);
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void burstPassesAndTheRestIsPaced() throws InterruptedIOException {
+        TokenBucket bucket = new TokenBucket(100000, 10000);
+
+        long start = System.nanoTime();
+        bucket.acquire(10000);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+
+        /* 30000 more bytes at 100000 bytes/s take about 300 ms */
+        for (int i = 0; i < 30; i++) {
+            bucket.acquire(1000);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue("elapsed " + elapsed, elapsed >= TimeUnit.MILLISECONDS.toNanos(250));
+        assertTrue("elapsed " + elapsed, elapsed < TimeUnit.SECONDS.toNanos(3));
+    }
+
+    @Test
+    public void liftingTheLimitReleasesWaiters() throws Exception {
+        final TokenBucket bucket = new TokenBucket(10, 1000);
+        bucket.acquire(1000);
+
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    /* Would take 100 seconds at the initial rate */
+                    bucket.acquire(1000);
+                } catch (InterruptedIOException ignore) {
+                }
+            }
+        };
+        waiter.start();
+
+        Thread.sleep(100);
+        assertTrue(waiter.isAlive());
+
+        bucket.setRate(0, 0);
+        waiter.join(2000);
+        assertFalse(waiter.isAlive());
+    }
+
+    @Test
+    public void delayTellsHowLongAcquireWouldWait() {
+        TokenBucket bucket = new TokenBucket(100000, 10000);
+        assertEquals(0, bucket.delayNanos(10000));
+
+        bucket.take(10000);
+        bucket.take(5000); // into debt
+
+        /* 15000 bytes at 100000 bytes/s, the burst caps what is needed */
+        long delay = bucket.delayNanos(50000);
+        assertTrue("delay " + delay, delay > TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue("delay " + delay, delay <= TimeUnit.MILLISECONDS.toNanos(150));
+
+        assertEquals(0, new TokenBucket().delayNanos(1 << 30));
+    }
+
+}